@@ -5,9 +5,12 @@ package com.ibm.storage.storagemanager.implementations.async;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.lang.reflect.Method;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
@@ -36,9 +39,11 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
     // Configuration file name.  Configuration file contains size of thread pool
 
     
+    private Semaphore inFlight;  // bounds requests running on store, null if bounded by thread pool size
     private ListeningExecutorService service;
     private KeyValue<K,V> store;
     private int threadPoolSize;
+    private boolean virtualThreads = false;  // true if each request runs on its own virtual thread
     
     
     /**
@@ -58,6 +63,84 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
         service = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadPoolSize));
     }
 
+    /**
+     * Constructor which runs each request on its own thread, with at most maxInFlight requests
+     * running on the store at a time.  Requests beyond this limit wait for a permit rather
+     * than for a pooled thread, so many more requests can be outstanding than there are
+     * connections to the store.  Virtual threads are used if the JVM supports them (Java 21
+     * or later); otherwise requests run on a fixed pool of maxInFlight threads.
+     * 
+     * For a KeyValueSQL store, maxInFlight should match its connection pool size.
+     * 
+     * @param kvStore
+     *            object corresponding to store to be accessed asynchronously
+     * @param maxInFlight
+     *            maximum number of requests running on the store at a time (values < 1 
+     *            are treated as 1)
+     *            
+     */
+    public AsyncKeyValue(KeyValue<K,V> kvStore, int maxInFlight) {
+        store = kvStore;
+        threadPoolSize = Math.max(maxInFlight, 1);
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor != null) {
+            virtualThreads = true;
+            inFlight = new Semaphore(threadPoolSize);
+        }
+        else {
+            executor = Executors.newFixedThreadPool(threadPoolSize);
+        }
+        service = MoreExecutors.listeningDecorator(executor);
+    }
+
+    // Returns Executors.newVirtualThreadPerTaskExecutor() on JVMs which have it, null otherwise.
+    // Reflection is used so the library still builds and runs on older JVMs.
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Submit a request, holding a permit from inFlight while it runs on the store
+    private <T> ListenableFuture<T> submit(final Callable<T> request) {
+        if (inFlight == null) {
+            return service.submit(request);
+        }
+        return service.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                inFlight.acquire();
+                try {
+                    return request.call();
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Return true if each asynchronous request runs on its own virtual thread
+     * 
+     * @return true if virtual threads are used
+     * 
+     * */
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Shut down the threads supporting the asynchronous interface.  Requests which have 
+     * already been submitted still complete.
+     * 
+     * */
+    public void shutdown() {
+        service.shutdown();
+    }
+
     /**
      * delete all entries from the storage service asynchronously
      * 
@@ -66,7 +149,7 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
      * */
     @Override
     public ListenableFuture<ReturnStatus> clearAsync() {
-        return service.submit(new Callable<ReturnStatus>() {     
+        return submit(new Callable<ReturnStatus>() {     
             @Override
             public ReturnStatus call() {
                 return store.clear();
@@ -85,7 +168,7 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
      * */
     @Override
     public ListenableFuture<Integer> deleteAsync(final K key) {
-        return service.submit(new Callable<Integer>() {     
+        return submit(new Callable<Integer>() {     
             @Override
             public Integer call() {
                 return store.delete(key);
@@ -104,7 +187,7 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
      * */
     @Override
     public ListenableFuture<Integer> deleteAllAsync(final List<K> keys) {
-        return service.submit(new Callable<Integer>() {     
+        return submit(new Callable<Integer>() {     
             @Override
             public Integer call() {
                 return store.deleteAll(keys);
@@ -122,7 +205,7 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
      * */
     @Override
     public ListenableFuture<V> getAsync(final K key) {
-        return service.submit(new Callable<V>() {     
+        return submit(new Callable<V>() {     
             @Override
             public V call() {
                 return store.get(key);
@@ -140,7 +223,7 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
      * */
     @Override
     public ListenableFuture<Map<K, V>> getAllAsync(final List<K> keys) {
-        return service.submit(new Callable<Map<K,V>>() {     
+        return submit(new Callable<Map<K,V>>() {     
             @Override
             public Map<K,V> call() {
                 return store.getAll(keys);
@@ -149,7 +232,9 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
     }
 
     /**
-     * Return size of thread pool supporting asynchronous interface
+     * Return size of thread pool supporting asynchronous interface.  For an AsyncKeyValue
+     * running each request on its own virtual thread, this is the maximum number of requests
+     * running on the store at a time.
      * 
      * @return integer containing thread pool size
      * 
@@ -172,7 +257,7 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
      * */
     @Override
     public ListenableFuture<ReturnStatus> putAsync(final K key, final V value) {
-        return service.submit(new Callable<ReturnStatus>() {
+        return submit(new Callable<ReturnStatus>() {
             @Override
             public ReturnStatus call() {
                 return store.put(key, value);
@@ -190,7 +275,7 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
      * 
      * */
     public Future<Integer> putAllAsync(final Map<K, V> map) {
-        return service.submit(new Callable<Integer>() {
+        return submit(new Callable<Integer>() {
             @Override
             public Integer call() {
                 return store.putAll(map);
@@ -204,7 +289,7 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
      * @return Future for number of stored objects
      * */
     public Future<Long> sizeAsync() {
-        return service.submit(new Callable<Long>() {
+        return submit(new Callable<Long>() {
             @Override
             public Long call() {
                 return store.size();
@@ -219,7 +304,7 @@ public class AsyncKeyValue<K,V> implements KeyValueAsync<K,V> {
      * 
      * */
     public Future<String> toStringAsync() {
-        return service.submit(new Callable<String>() {
+        return submit(new Callable<String>() {
             @Override
             public String call() {
                 return store.toString();
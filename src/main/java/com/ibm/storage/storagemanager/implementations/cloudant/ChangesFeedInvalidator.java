@@ -0,0 +1,285 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.implementations.cloudant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.cloudant.client.api.model.ChangesResult;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+
+/**
+ * @author ArunIyengar
+ *
+ * Follows the _changes feed of a Cloudant database and keeps a local cache of the same
+ * data, such as a KeyValueGuava object, consistent with writes made by other clients.
+ * Changed keys are processed in batches: they are either invalidated in the cache or,
+ * if they are already cached, refreshed with their new values using a single bulk read.
+ * The sequence number of the last processed change is persisted to a file so that a
+ * cache which survives a restart can resume from where it left off.
+ *
+ * Writes made through the Cloudant store itself also appear in the feed, so they cause
+ * the corresponding cache entries to be invalidated or refreshed once.
+ */
+public class ChangesFeedInvalidator<K, V> {
+
+    public enum Mode {
+        INVALIDATE, // remove changed keys from the cache
+        REFRESH     // replace values of changed keys which are cached, remove deleted keys
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private KeyValueCloudant<K, V> source;
+    private KeyValue<K, V> cache;
+    private File sequenceFile;
+    private volatile String lastSequence;
+    private volatile Mode mode = Mode.INVALIDATE;
+    private volatile int batchSize = 500;  // max # of changes per _changes request
+    private long pollInterval = 1000;  // milliseconds between requests once caught up
+    private boolean describeExceptions = true;
+    private ScheduledExecutorService poller;
+
+    /**
+     * Constructor.  Changes are followed from the sequence number stored in sequenceFile.
+     * If the file doesn't exist, only changes made after this constructor is called are
+     * followed, so the cache should not contain entries read before then.
+     *
+     * @param cloudantStore
+     *            Cloudant store whose changes are followed
+     * @param localCache
+     *            cache of data in cloudantStore
+     * @param sequenceFile
+     *            file storing sequence number of last processed change, null if the
+     *            sequence number shouldn't be persisted
+     */
+    public ChangesFeedInvalidator(KeyValueCloudant<K, V> cloudantStore, KeyValue<K, V> localCache,
+            File sequenceFile) {
+        source = cloudantStore;
+        cache = localCache;
+        this.sequenceFile = sequenceFile;
+        lastSequence = readSequence();
+        if (lastSequence == null) {
+            lastSequence = source.getDatabase().changes().since("now").limit(1).getChanges().getLastSeq();
+            writeSequence(lastSequence);
+        }
+    }
+
+    /**
+     * Set how cached entries for changed keys are handled.  In REFRESH mode, a cache other
+     * than KeyValueGuava is asked which changed keys it holds with getAll, so these lookups
+     * appear in its hit and miss statistics and can change its eviction order.
+     *
+     * @param newMode
+     *            INVALIDATE or REFRESH
+     */
+    public void setMode(Mode newMode) {
+        mode = newMode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Set maximum number of changes requested and applied to the cache at a time
+     *
+     * @param size
+     *            number of changes (ignored if < 1)
+     */
+    public void setBatchSize(int size) {
+        if (size >= 1)
+            batchSize = size;
+    }
+
+    /**
+     * Set time between requests to the _changes feed once all changes have been processed.
+     * Takes effect the next time start is called.
+     *
+     * @param millis
+     *            interval in milliseconds (ignored if < 1)
+     */
+    public void setPollInterval(long millis) {
+        if (millis >= 1)
+            pollInterval = millis;
+    }
+
+    /**
+     * Pass boolean parameter to determine whether to output exceptions
+     *
+     * @param showExceptions
+     *            true to print exceptions, false otherwise
+     */
+    public void outputExceptions(boolean showExceptions) {
+        describeExceptions = showExceptions;
+    }
+
+    /**
+     * Return sequence number of last change applied to the cache
+     *
+     * @return sequence number
+     */
+    public String getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Start following the _changes feed in a background thread
+     */
+    public synchronized void start() {
+        if (poller != null) {
+            return;
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("changes-feed-%d").build());
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (Exception e) {
+                    if (describeExceptions) {
+                        System.out.println("ChangesFeedInvalidator: reading _changes failed.  " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, 0, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop following the _changes feed
+     */
+    public synchronized void stop() {
+        if (poller != null) {
+            poller.shutdownNow();
+            poller = null;
+        }
+    }
+
+    /**
+     * Apply all changes made since the last processed change to the cache
+     *
+     * @return number of changes applied
+     */
+    public synchronized int poll() {
+        int numChanges = 0;
+        while (true) {
+            int size = batchSize;
+            ChangesResult changes = source.getDatabase().changes().since(lastSequence).limit(size)
+                    .includeDocs(false).getChanges();
+            List<ChangesResult.Row> rows = changes.getResults();
+            if (rows == null || rows.isEmpty()) {
+                return numChanges;
+            }
+            apply(rows);
+            numChanges += rows.size();
+            lastSequence = changes.getLastSeq();
+            writeSequence(lastSequence);
+            if (rows.size() < size) {
+                return numChanges;
+            }
+        }
+    }
+
+    // apply a batch of changes to the cache
+    @SuppressWarnings("unchecked")
+    private void apply(List<ChangesResult.Row> rows) {
+        List<K> changed = new ArrayList<K>();
+        List<K> deleted = new ArrayList<K>();
+        for (ChangesResult.Row row : rows) {
+            if (row.getId().startsWith("_design/")) {
+                continue;
+            }
+            if (row.isDeleted() || mode == Mode.INVALIDATE) {
+                deleted.add((K) row.getId());
+            }
+            else {
+                changed.add((K) row.getId());
+            }
+        }
+        if (!deleted.isEmpty()) {
+            cache.deleteAll(deleted);
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        // only refresh entries which are cached, so that the cache isn't filled with every
+        // document written by other clients
+        List<K> cached = cachedKeys(changed);
+        if (cached.isEmpty()) {
+            return;
+        }
+        Map<K, V> values = source.getAll(cached);
+        cached.removeAll(values.keySet());
+        if (!cached.isEmpty()) {
+            // deleted again since the change was recorded
+            cache.deleteAll(cached);
+        }
+        cache.putAll(values);
+    }
+
+    // return the keys which are cached.  A KeyValueGuava cache is checked without affecting
+    // its statistics or eviction order; other caches are probed with getAll, which counts
+    // as lookups of the changed keys.
+    private List<K> cachedKeys(List<K> keys) {
+        if (cache instanceof KeyValueGuava) {
+            KeyValueGuava<K, V> guava = (KeyValueGuava<K, V>) cache;
+            List<K> cached = new ArrayList<K>();
+            for (K key : keys) {
+                if (guava.containsKey(key)) {
+                    cached.add(key);
+                }
+            }
+            return cached;
+        }
+        return new ArrayList<K>(cache.getAll(keys).keySet());
+    }
+
+    private String readSequence() {
+        if (sequenceFile == null || !sequenceFile.exists()) {
+            return null;
+        }
+        try {
+            String sequence = new String(Files.readAllBytes(sequenceFile.toPath()), UTF8).trim();
+            return sequence.isEmpty() ? null : sequence;
+        } catch (IOException e) {
+            if (describeExceptions) {
+                System.out.println("ChangesFeedInvalidator: could not read " + sequenceFile + ".  " + e.getMessage());
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    // write sequence number to a temporary file first so a crash can't leave a partial one
+    private void writeSequence(String sequence) {
+        if (sequenceFile == null) {
+            return;
+        }
+        try {
+            Path path = sequenceFile.toPath().toAbsolutePath();
+            Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(temp, sequence.getBytes(UTF8));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (describeExceptions) {
+                System.out.println("ChangesFeedInvalidator: could not write " + sequenceFile + ".  " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+}
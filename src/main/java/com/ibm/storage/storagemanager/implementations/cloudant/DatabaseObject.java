@@ -5,6 +5,7 @@ package com.ibm.storage.storagemanager.implementations.cloudant;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Map;
 
 /**
  * @author ArunIyengar
@@ -16,6 +17,7 @@ public class DatabaseObject implements Serializable {
     private String _id;
     private String _rev;
     private byte[] value;
+    private Map<String, Object> _attachments;  // attachment stubs, null if there are none
 
     DatabaseObject(String key, byte[] data) {
         _id = key;
@@ -30,6 +32,14 @@ public class DatabaseObject implements Serializable {
         return _id;
     }
 
+    public void setRevision(String revision) {
+        _rev = revision;
+    }
+
+    public String getRevision() {
+        return _rev;
+    }
+
     public void setValue(byte[] data) {
         value = data;
     }
@@ -38,15 +48,30 @@ public class DatabaseObject implements Serializable {
         return value;
     }
 
+    /**
+     * Determine whether the document has an attachment
+     * 
+     * @param name
+     *            name of attachment
+     * @return true if the document has an attachment with this name, false otherwise
+     */
+    public boolean hasAttachment(String name) {
+        return (_attachments != null) && _attachments.containsKey(name);
+    }
+
     public void print() {
         System.out.println("DatabaseObject ID: " + _id);
         System.out.println("version: " + _rev);
         System.out.println("value: " + Arrays.toString(value));
+        if (_attachments != null) {
+            System.out.println("attachments: " + _attachments.keySet());
+        }
     }
     
     public String toString() {
         return "DatabaseObject ID: " + _id + "\n" + "version: " + _rev + "\n" +
-                "value: " + Arrays.toString(value) + "\n";
+                "value: " + Arrays.toString(value) + "\n" +
+                ((_attachments == null) ? "" : "attachments: " + _attachments.keySet() + "\n");
     }
 
 }
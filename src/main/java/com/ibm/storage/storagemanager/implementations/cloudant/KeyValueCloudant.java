@@ -5,18 +5,42 @@ package com.ibm.storage.storagemanager.implementations.cloudant;
 
 import com.cloudant.client.api.CloudantClient;
 import com.cloudant.client.api.Database;
+import com.cloudant.client.api.model.ConnectOptions;
 import com.cloudant.client.api.model.Response;
+import com.cloudant.client.api.model.ViewResult;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.ibm.storage.storagemanager.util.Constants;
+import com.ibm.storage.storagemanager.util.HttpTransportConfig;
 import com.ibm.storage.storagemanager.util.Serializer;
 import com.ibm.storage.storagemanager.util.Util;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
 
 /**
  * @author ArunIyengar
@@ -28,7 +52,16 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
     private String databaseName;
     private boolean describeExceptions = true;
     private int putAttempts = 3;  // # of times to try put before giving up
+    private int bulkBatchSize = 500;  // max # of documents per _bulk_docs or _all_docs request
+    private static final int DEFAULT_REVISION_CACHE_SIZE = 10000;
+    private int attachmentThreshold = 65536;  // larger serialized values are stored as attachments
+    private static final String VALUE_ATTACHMENT = "value";
+    private static final String ATTACHMENT_CONTENT_TYPE = "application/octet-stream";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
+    // most recently seen revision of each document, so that updates and deletes don't need
+    // to look up the revision first
+    private Cache<String, String> revisions = newRevisionCache(DEFAULT_REVISION_CACHE_SIZE);
 
 
     /**
@@ -47,12 +80,39 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
      */
     public KeyValueCloudant(String storeId, String dbName, String userId, String password, 
             boolean deletePreviousDb) {
-        initialize(storeId, dbName, userId, password, deletePreviousDb);
+        initialize(storeId, dbName, userId, password, new HttpTransportConfig(), deletePreviousDb);
+    }
+
+    /**
+     * Constructor. Establishes a session with a Key-value store using specific HTTP
+     * transport settings.
+     * 
+     * @param storeId
+     *            identifies the store, could be a URL such as for cloudant
+     * @param dbName
+     *            identifies the database
+     * @param userId
+     *            identifies the user
+     * @param password
+     *            password corresponding to the user
+     * @param transport
+     *            HTTP connection pool size and timeouts
+     * @param deletePreviousDb
+     *            true if previous version of dbName should be deleted
+     */
+    public KeyValueCloudant(String storeId, String dbName, String userId, String password, 
+            HttpTransportConfig transport, boolean deletePreviousDb) {
+        initialize(storeId, dbName, userId, password, transport, deletePreviousDb);
     }
 
     private void initialize(String storeId, String dbName, String userId, String password, 
-            boolean deletePreviousDb) {
-        client = new CloudantClient(storeId, userId, password);
+            HttpTransportConfig transport, boolean deletePreviousDb) {
+        // the Cloudant client pools and reuses connections itself; its keep-alive time
+        // isn't configurable
+        ConnectOptions options = new ConnectOptions().setMaxConnections(transport.getMaxConnections())
+                .setConnectionTimeout(transport.getConnectTimeout())
+                .setSocketTimeout(transport.getSocketTimeout());
+        client = new CloudantClient(storeId, userId, password, options);
         if (deletePreviousDb) {
             deleteDatabase(dbName);
         }
@@ -70,6 +130,24 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
      *            true if previous version of dbName should be deleted
      */
     public KeyValueCloudant(String dbName, String inputFile, boolean deletePreviousDb) {
+        this(dbName, inputFile, new HttpTransportConfig(), deletePreviousDb);
+    }
+
+    /**
+     * Constructor. Establishes a session with a Key-value store using specific HTTP
+     * transport settings, reading in credentials from a file.
+     * 
+     * @param dbName
+     *            identifies the database
+     * @param inputFile
+     *            Name of file storing Cloudant URL, user id, and password
+     * @param transport
+     *            HTTP connection pool size and timeouts
+     * @param deletePreviousDb
+     *            true if previous version of dbName should be deleted
+     */
+    public KeyValueCloudant(String dbName, String inputFile, HttpTransportConfig transport,
+            boolean deletePreviousDb) {
         File file = new File(inputFile);
         Scanner input = null;
         try {
@@ -83,7 +161,7 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
         String storeId = Util.getNextWord(input);
         String userId = Util.getNextWord(input);
         String password = Util.getNextWord(input);
-        initialize(storeId, dbName, userId, password, deletePreviousDb);
+        initialize(storeId, dbName, userId, password, transport, deletePreviousDb);
     }
 
     
@@ -97,6 +175,7 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
     public void getDatabase(String id) {
         database = client.database(id, true);
         databaseName = id;
+        revisions.invalidateAll();
     }
 
     
@@ -121,8 +200,16 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
             client.deleteDB(id, "delete database");
         } catch (Exception e) {
         }
+        revisions.invalidateAll();
     }    
     
+    /**
+     * Close connections to the key-value store.  The object can't be used afterwards.
+     */
+    public void shutdown() {
+        client.shutdown();
+    }
+
     /**
      * Pass boolean parameter to determine whether to output exceptions
      * 
@@ -144,14 +231,85 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
             putAttempts = attempts;
     }
 
+    /**
+     * Set maximum number of documents sent in a single _bulk_docs or _all_docs request
+     * by putAll, getAll, and deleteAll
+     * 
+     * @param batchSize
+     *            number of documents per request (ignored if < 1)
+     */
+    public void setBulkBatchSize(int batchSize) {
+        if (batchSize >= 1)
+            bulkBatchSize = batchSize;
+    }
+
+    public int getBulkBatchSize() {
+        return bulkBatchSize;
+    }
+
+    /**
+     * Set maximum number of document revisions remembered from previous requests.  A
+     * remembered revision allows a document to be updated or deleted with a single request
+     * instead of first looking up its revision.  Previously remembered revisions are
+     * discarded.
+     * 
+     * @param size
+     *            maximum number of revisions, 0 to disable the cache (ignored if < 0)
+     */
+    public void setRevisionCacheSize(int size) {
+        if (size >= 0)
+            revisions = newRevisionCache(size);
+    }
+
+    /**
+     * Set size above which serialized values are stored as binary attachments instead of
+     * as base64-encoded fields of JSON documents.  Attachments avoid the base64 and JSON
+     * overhead for large values but require an extra request to read.
+     * 
+     * @param threshold
+     *            size in bytes (ignored if < 0)
+     */
+    public void setAttachmentThreshold(int threshold) {
+        if (threshold >= 0)
+            attachmentThreshold = threshold;
+    }
+
+    public int getAttachmentThreshold() {
+        return attachmentThreshold;
+    }
+
+    private static Cache<String, String> newRevisionCache(long size) {
+        return CacheBuilder.newBuilder().maximumSize(size).build();
+    }
+
+    private void recordRevision(String key, String revision) {
+        if (revision == null) {
+            revisions.invalidate(key);
+        }
+        else {
+            revisions.put(key, revision);
+        }
+    }
+
+    // look up current revision of a single document, return null if it doesn't exist or
+    // can't be determined
+    private String fetchRevision(String key) {
+        Map<String, String> current = fetchRevisions(Collections.singletonList(key));
+        return (current == null) ? null : current.get(key);
+    }
+
     // look up an object in database, return null if not found
     private DatabaseObject find(String id, Database db) {
         DatabaseObject object = null;
         try {
             object = db.find(DatabaseObject.class, id);
         } catch (Exception e) {
+            revisions.invalidate(id);
             return null;
         }
+        if (object != null) {
+            recordRevision(id, object.getRevision());
+        }
         return object;
     }
    
@@ -167,34 +325,133 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
      */
     private boolean insert(String key, byte[] value) {
         DatabaseObject obj = new DatabaseObject(key, value);
-        Response response = null;
+        String revision = revisions.getIfPresent(key);
+        if (write(obj, revision)) {
+            return true;
+        }
+        // remembered revision is missing or stale, look up the current one and try again
+        revisions.invalidate(key);
+        return write(obj, fetchRevision(key));
+    }
+
+    // save a new document or update an existing revision with a single request
+    private boolean write(DatabaseObject obj, String revision) {
+        if (isLarge(obj.getValue())) {
+            return writeAttachment(obj.getKey(), obj.getValue(), revision);
+        }
+        obj.setRevision(revision);
         try {
-            response = database.save(obj);
+            Response response = (revision == null) ? database.save(obj) : database.update(obj);
             if (response != null) {
+                recordRevision(obj.getKey(), response.getRev());
                 return true;
             }
         } catch (Exception e) {
         }
+        return false;
+    }
+    
+    private boolean isLarge(byte[] value) {
+        return (value != null) && (value.length > attachmentThreshold);
+    }
+
+    // store a value as a binary attachment of a document with no other fields.  The
+    // document and attachment are sent in a single multipart/related request, which
+    // replaces any inline value the document previously had.
+    private boolean writeAttachment(String key, byte[] value, String revision) {
+        JsonObject stub = new JsonObject();
+        stub.addProperty("follows", true);
+        stub.addProperty("content_type", ATTACHMENT_CONTENT_TYPE);
+        stub.addProperty("length", value.length);
+        JsonObject attachments = new JsonObject();
+        attachments.add(VALUE_ATTACHMENT, stub);
+        JsonObject doc = new JsonObject();
+        doc.addProperty("_id", key);
+        if (revision != null) {
+            doc.addProperty("_rev", revision);
+        }
+        doc.add("_attachments", attachments);
+        String boundary = "attachment-" + Long.toHexString(System.nanoTime());
+        byte[] head = ("--" + boundary + "\r\nContent-Type: application/json\r\n\r\n" + doc + "\r\n--"
+                + boundary + "\r\nContent-Type: " + ATTACHMENT_CONTENT_TYPE + "\r\n\r\n").getBytes(UTF8);
+        byte[] tail = ("\r\n--" + boundary + "--").getBytes(UTF8);
+        InputStream body = new SequenceInputStream(Collections.enumeration(Arrays.asList(
+                new ByteArrayInputStream(head), new ByteArrayInputStream(value), new ByteArrayInputStream(tail))));
+        HttpPut put = new HttpPut(documentUri(key));
+        // known length, so the request has a Content-Length header rather than being chunked
+        put.setEntity(new InputStreamEntity(body, head.length + value.length + tail.length,
+                ContentType.create("multipart/related", new BasicNameValuePair("boundary", boundary))));
+        HttpResponse response = null;
         try {
-            obj = database.find(DatabaseObject.class, key);
+            response = client.executeRequest(put);
+            int status = response.getStatusLine().getStatusCode();
+            if ((status == 201) || (status == 202)) {
+                JsonObject result = new JsonParser().parse(EntityUtils.toString(response.getEntity(), UTF8))
+                        .getAsJsonObject();
+                recordRevision(key, result.get("rev").getAsString());
+                return true;
+            }
         } catch (Exception e) {
-            return false;
+        } finally {
+            if (response != null) {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
         }
-        if (obj == null) { // might never happen
-            // no object corresponding to key exists
-            return false;
+        return false;
+    }
+
+    // read a value stored as an attachment, return null if it can't be read
+    private V readAttachment(String key, String revision) {
+        String uri = documentUri(key) + "/" + VALUE_ATTACHMENT;
+        if (revision != null) {
+            uri = uri + "?rev=" + encode(revision);
         }
-        obj.setValue(value);
+        HttpResponse response = null;
         try {
-            response = database.update(obj);
-            if (response != null) {
-                return true;
+            response = client.executeRequest(new HttpGet(uri));
+            if (response.getStatusLine().getStatusCode() != 200) {
+                return null;
+            }
+            InputStream in = response.getEntity().getContent();
+            try {
+                return Serializer.deserializeFromStream(in);
+            } finally {
+                in.close();
             }
         } catch (Exception e) {
+            if (describeExceptions) {
+                System.out.println("KeyValue.readAttachment failed.  " + e.getMessage());
+                e.printStackTrace();
+            }
+            return null;
+        } finally {
+            if (response != null) {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
         }
-        return false;   
     }
-    
+
+    // extract the value of a document, reading it from an attachment if necessary
+    private V value(DatabaseObject obj) {
+        if (obj.hasAttachment(VALUE_ATTACHMENT)) {
+            return readAttachment(obj.getKey(), obj.getRevision());
+        }
+        return Serializer.deserializeFromByteArray(obj.getValue());
+    }
+
+    private String documentUri(String key) {
+        String dbUri = database.getDBUri().toString();
+        return dbUri + (dbUri.endsWith("/") ? "" : "/") + encode(key);
+    }
+
+    private static String encode(String pathSegment) {
+        try {
+            return URLEncoder.encode(pathSegment, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            return pathSegment;
+        }
+    }
+
     /**
      * delete all entries from the storage service
      * 
@@ -203,6 +460,7 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
      * */
     @Override
     public ReturnStatus clear() {
+        revisions.invalidateAll();
         deleteDatabase(databaseName);  
         createDatabase(databaseName); 
         return ReturnStatus.SUCCESS;
@@ -220,14 +478,25 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
     @Override
     public int delete(K key) {
         String stringKey = (String) key;
-        DatabaseObject obj = find(stringKey, database);
-        if (obj == null)  {
+        String revision = revisions.getIfPresent(stringKey);
+        if (revision != null) {
+            try {
+                database.remove(stringKey, revision);
+                revisions.invalidate(stringKey);
+                return 1;
+            } catch (Exception e) {
+                // remembered revision is stale, fall through and look up the current one
+                revisions.invalidate(stringKey);
+            }
+        }
+        revision = fetchRevision(stringKey);
+        if (revision == null)  {
             // no object corresponding to key exists
             return 0;
         }
         else {
             try {
-                database.remove(obj);
+                database.remove(stringKey, revision);
             } catch (Exception e) {
                 if (describeExceptions) {
                     System.out
@@ -251,8 +520,61 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
      * */
     @Override
     public int deleteAll(List<K> keys){
-        
-        return Util.deleteAll(this, keys);
+        int numDeleted = 0;
+        for (List<String> batch : batches(stringKeys(keys))) {
+            // use remembered revisions where possible and look up the rest in one request
+            Map<String, String> current = new HashMap<String, String>();
+            List<String> unknown = new ArrayList<String>();
+            for (String key : batch) {
+                String revision = revisions.getIfPresent(key);
+                if (revision == null) {
+                    unknown.add(key);
+                }
+                else {
+                    current.put(key, revision);
+                }
+            }
+            if (!unknown.isEmpty()) {
+                Map<String, String> fetched = fetchRevisions(unknown);
+                if (fetched == null) {
+                    return numDeleted;
+                }
+                current.putAll(fetched);
+            }
+            for (int i = 0; i < putAttempts && !current.isEmpty(); i++) {
+                List<Map<String, Object>> tombstones = new ArrayList<Map<String, Object>>();
+                for (Map.Entry<String, String> entry : current.entrySet()) {
+                    Map<String, Object> tombstone = new HashMap<String, Object>();
+                    tombstone.put("_id", entry.getKey());
+                    tombstone.put("_rev", entry.getValue());
+                    tombstone.put("_deleted", true);
+                    tombstones.add(tombstone);
+                    revisions.invalidate(entry.getKey());
+                }
+                List<Response> responses = bulk(tombstones);
+                if (responses == null) {
+                    return numDeleted;
+                }
+                // documents whose revisions were stale are retried with their current ones
+                List<String> conflicts = new ArrayList<String>();
+                for (Response response : responses) {
+                    if (response.getError() == null) {
+                        numDeleted++;
+                    }
+                    else if (response.getError().equals("conflict")) {
+                        conflicts.add(response.getId());
+                    }
+                }
+                if (conflicts.isEmpty()) {
+                    break;
+                }
+                current = fetchRevisions(conflicts);
+                if (current == null) {
+                    return numDeleted;
+                }
+            }
+        }
+        return numDeleted;
     }
     
     /**
@@ -272,7 +594,7 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
             return null;
         }
         else {
-            return Serializer.deserializeFromByteArray(obj.getValue());
+            return value(obj);
         }
         
     };
@@ -286,8 +608,30 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
      * 
      * */
     @Override
+    @SuppressWarnings("unchecked")
     public Map<K, V> getAll(List<K> keys) {
-        return Util.getAll(this, keys);
+        Map<K, V> hmap = new HashMap<K, V>();
+        for (List<String> batch : batches(stringKeys(keys))) {
+            List<DatabaseObject> objects;
+            try {
+                objects = database.view("_all_docs").keys(batch).includeDocs(true)
+                        .query(DatabaseObject.class);
+            } catch (Exception e) {
+                if (describeExceptions) {
+                    System.out.println("KeyValue.getAll failed.  " + e.getMessage());
+                    e.printStackTrace();
+                }
+                return hmap;
+            }
+            for (DatabaseObject obj : objects) {
+                // missing and deleted keys come back without a document
+                if (obj != null && obj.getKey() != null) {
+                    recordRevision(obj.getKey(), obj.getRevision());
+                    hmap.put((K) obj.getKey(), value(obj));
+                }
+            }
+        }
+        return hmap;
     };
 
     /**
@@ -325,14 +669,18 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
     public ReturnStatus put(K key, V value) {
         String stringKey = (String) key;
         byte[] byteArray = Serializer.serializeToByteArray(value);
+        return putBytes(stringKey, byteArray);
+    };
+
+    private ReturnStatus putBytes(String key, byte[] value) {
         for (int i = 0; i < putAttempts; i ++) {
-            boolean inserted = insert(stringKey, byteArray);
+            boolean inserted = insert(key, value);
             if (inserted) {
                 return ReturnStatus.SUCCESS;                
             }
         }
         return ReturnStatus.FAILURE;
-    };
+    }
 
     /**
      * store one or more key-value pairs
@@ -345,9 +693,125 @@ public class KeyValueCloudant<K,V> implements com.ibm.storage.storagemanager.int
      * */
     @Override
     public int putAll(Map<K, V> map) {
-        return Util.putAll(this, map);
+        List<DatabaseObject> objects = new ArrayList<DatabaseObject>();
+        int numStored = 0;
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            String key = (String) entry.getKey();
+            byte[] value = Serializer.serializeToByteArray(entry.getValue());
+            if (isLarge(value)) {
+                // _bulk_docs would base64 encode attachments, so large values are sent separately
+                if (putBytes(key, value) == ReturnStatus.SUCCESS) {
+                    numStored++;
+                }
+            }
+            else {
+                DatabaseObject obj = new DatabaseObject(key, value);
+                obj.setRevision(revisions.getIfPresent(key));
+                objects.add(obj);
+            }
+        }
+        for (List<DatabaseObject> batch : batches(objects)) {
+            numStored += putBatch(batch);
+        }
+        return numStored;
     };
 
+    // store a batch of objects with a single _bulk_docs request.  Documents rejected
+    // because they already exist or have stale revisions are retried with their current
+    // revisions.
+    private int putBatch(List<DatabaseObject> batch) {
+        int numStored = 0;
+        for (int i = 0; i < putAttempts && !batch.isEmpty(); i++) {
+            List<Response> responses = bulk(batch);
+            if (responses == null) {
+                return numStored;
+            }
+            List<DatabaseObject> conflicts = new ArrayList<DatabaseObject>();
+            for (int j = 0; j < responses.size(); j++) {
+                Response response = responses.get(j);
+                if (response.getError() == null) {
+                    recordRevision(response.getId(), response.getRev());
+                    numStored++;
+                }
+                else if (response.getError().equals("conflict")) {
+                    revisions.invalidate(response.getId());
+                    conflicts.add(batch.get(j));
+                }
+            }
+            batch = conflicts;
+            if (batch.isEmpty() || i == putAttempts - 1) {
+                break;
+            }
+            List<String> keys = new ArrayList<String>();
+            for (DatabaseObject obj : batch) {
+                keys.add(obj.getKey());
+            }
+            Map<String, String> current = fetchRevisions(keys);
+            if (current == null) {
+                return numStored;
+            }
+            for (DatabaseObject obj : batch) {
+                obj.setRevision(current.get(obj.getKey()));
+            }
+        }
+        return numStored;
+    }
+
+    // send documents in a single _bulk_docs request, return null on failure
+    private List<Response> bulk(List<?> docs) {
+        try {
+            return database.bulk(docs);
+        } catch (Exception e) {
+            if (describeExceptions) {
+                System.out.println("KeyValue bulk request failed.  " + e.getMessage());
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    // look up current revisions of documents with a single keyed _all_docs request.
+    // Keys which don't exist or have been deleted are omitted from the map.  Returns null
+    // on failure.
+    private Map<String, String> fetchRevisions(List<String> keys) {
+        Map<String, String> revisions = new HashMap<String, String>();
+        ViewResult<String, JsonObject, Object> result;
+        try {
+            result = database.view("_all_docs").keys(keys).includeDocs(false)
+                    .queryView(String.class, JsonObject.class, Object.class);
+        } catch (Exception e) {
+            if (describeExceptions) {
+                System.out.println("KeyValue.fetchRevisions failed.  " + e.getMessage());
+                e.printStackTrace();
+            }
+            return null;
+        }
+        for (ViewResult<String, JsonObject, Object>.Rows row : result.getRows()) {
+            JsonObject value = row.getValue();
+            if (row.getId() != null && value != null && value.has("rev") && !value.has("deleted")) {
+                revisions.put(row.getId(), value.get("rev").getAsString());
+            }
+        }
+        return revisions;
+    }
+
+    private List<String> stringKeys(List<K> keys) {
+        List<String> stringKeys = new ArrayList<String>();
+        for (K key : keys) {
+            stringKeys.add((String) key);
+        }
+        return stringKeys;
+    }
+
+    // split a list into consecutive sublists of at most bulkBatchSize elements
+    private <T> List<List<T>> batches(List<T> list) {
+        List<List<T>> batches = new ArrayList<List<T>>();
+        for (int i = 0; i < list.size(); i += bulkBatchSize) {
+            batches.add(list.subList(i, Math.min(list.size(), i + bulkBatchSize)));
+        }
+        return batches;
+    }
+
     /**
      * Return number of stored objects
      * 
@@ -1,12 +1,42 @@
 package com.ibm.storage.storagemanager.implementations.guava;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ibm.storage.storagemanager.util.Constants;
+import com.ibm.storage.storagemanager.util.Serializer;
 
 import static com.ibm.storage.storagemanager.util.Constants.NUM_UNKNOWN;
 
@@ -16,7 +46,63 @@ import static com.ibm.storage.storagemanager.util.Constants.NUM_UNKNOWN;
  */
 public class KeyValueGuava<K,V> implements com.ibm.storage.storagemanager.interfaces.KeyValue<K, V> {
 
-    private LoadingCache<K,V> cache;
+    private static final int SNAPSHOT_MAGIC = 0x4b564753;  // "KVGS"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_BATCH_SIZE = 1000;  // entries deserialized together when loading
+
+    // A cached value, the time it expires, and the time it was last read, so that entries can
+    // be saved in order of how recently they were used
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;  // milliseconds since the epoch, 0 if the value does not expire
+        volatile long lastAccess;  // System.nanoTime() when last read or written
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.lastAccess = System.nanoTime();
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+    }
+
+    // An entry read from a snapshot file, not yet deserialized
+    private static class SerializedEntry {
+        final long expiresAt;
+        final byte[] key;
+        final byte[] value;
+
+        SerializedEntry(long expiresAt, byte[] key, byte[] value) {
+            this.expiresAt = expiresAt;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private LoadingCache<K, Entry<V>> cache;
+    private long maxWeight;  // maximum total weight of cached values, NUM_UNKNOWN if bounded by # of objects
+    private final AtomicLong expiredHits = new AtomicLong();  // hits Guava counted on entries which had expired
+    private long ttl;  // milliseconds after writing that values expire, NUM_UNKNOWN if they do not expire
+
+    /**
+     * Weighs a cached value by its size in bytes: the length of a byte array, or the
+     * length of the serialized form of any other value.  Serializing a value to weigh it
+     * takes time comparable to storing it in a remote store, so values which are not byte
+     * arrays are best weighed by a Weigher specific to their type.
+     */
+    public static class SerializedSizeWeigher<K, V> implements Weigher<K, V> {
+        @Override
+        public int weigh(K key, V value) {
+            if (value instanceof byte[]) {
+                return ((byte[]) value).length;
+            }
+            CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+            Serializer.serializeToStream(value, out);
+            return (int) Math.min(out.getCount(), Integer.MAX_VALUE);
+        }
+    }
 
     /**
      * Constructor
@@ -27,12 +113,63 @@ public class KeyValueGuava<K,V> implements com.ibm.storage.storagemanager.interf
      * 
      * */
     public KeyValueGuava(long maxObjects) {
-        cache = CacheBuilder.newBuilder().maximumSize(maxObjects)
-                .build(new CacheLoader<K,V>() {
-                    public V load(K key) throws Exception {
+        cache = CacheBuilder.newBuilder().maximumSize(maxObjects).recordStats()
+                .build(new CacheLoader<K, Entry<V>>() {
+                    public Entry<V> load(K key) throws Exception {
+                        return null;
+                    }
+                });
+        maxWeight = NUM_UNKNOWN;
+        ttl = NUM_UNKNOWN;
+    }
+
+    /**
+     * Constructor for a cache whose values expire a fixed time after they are written
+     *
+     * @param maxObjects
+     *            maximum number of objects which can be stored before
+     *            replacement starts
+     * @param ttlMillis
+     *            milliseconds after a value is written at which it expires
+     *
+     * */
+    public KeyValueGuava(long maxObjects, long ttlMillis) {
+        cache = CacheBuilder.newBuilder().maximumSize(maxObjects).expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .recordStats().build(new CacheLoader<K, Entry<V>>() {
+                    public Entry<V> load(K key) throws Exception {
                         return null;
                     }
                 });
+        maxWeight = NUM_UNKNOWN;
+        ttl = ttlMillis;
+    }
+
+    /**
+     * Constructor for a cache bounded by the total weight of its values rather than their
+     * number, such as a cache bounded by bytes using a SerializedSizeWeigher:
+     *     new KeyValueGuava<String, byte[]>(maxBytes, new KeyValueGuava.SerializedSizeWeigher<String, byte[]>())
+     * 
+     * @param maxTotalWeight
+     *            maximum total weight of values which can be stored before
+     *            replacement starts
+     * @param weigher
+     *            determines the weight of each value when it is stored
+     * 
+     * */
+    public KeyValueGuava(long maxTotalWeight, final Weigher<? super K, ? super V> weigher) {
+        cache = CacheBuilder.newBuilder().maximumWeight(maxTotalWeight).weigher(new Weigher<K, Entry<V>>() {
+                    @Override
+                    public int weigh(K key, Entry<V> entry) {
+                        return weigher.weigh(key, entry.value);
+                    }
+                }).recordStats()
+                .build(new CacheLoader<K, Entry<V>>() {
+                    public Entry<V> load(K key) throws Exception {
+                        return null;
+                    }
+                });
+        maxWeight = maxTotalWeight;
+        ttl = NUM_UNKNOWN;
     }
   
     /**
@@ -87,7 +224,7 @@ public class KeyValueGuava<K,V> implements com.ibm.storage.storagemanager.interf
      * */
     @Override
     public V get(K key) {
-        return cache.getIfPresent(key);
+        return value(key, cache.getIfPresent(key));
     }
 
     /**
@@ -100,7 +237,35 @@ public class KeyValueGuava<K,V> implements com.ibm.storage.storagemanager.interf
      * */
     @Override
     public Map<K, V> getAll(List<K> keys) {
-        return  cache.getAllPresent(keys);
+        Map<K, V> result = new HashMap<K, V>();
+        for (Map.Entry<K, Entry<V>> entry : cache.getAllPresent(keys).entrySet()) {
+            V value = value(entry.getKey(), entry.getValue());
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return whether a key is cached.  Unlike get, this does not count as a hit or miss.
+     * An expired entry loaded from a snapshot is removed and is not counted as cached.
+     *
+     * @param key
+     *            key to look for
+     * @return true if a value for key is cached
+     *
+     * */
+    public boolean containsKey(K key) {
+        Entry<V> entry = cache.asMap().get(key);
+        if (entry == null) {
+            return false;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            cache.asMap().remove(key, entry);
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -126,7 +291,7 @@ public class KeyValueGuava<K,V> implements com.ibm.storage.storagemanager.interf
      * */
     @Override
     public ReturnStatus put(K key, V value) {
-        cache.put(key, value);
+        cache.put(key, newEntry(value));
         return ReturnStatus.SUCCESS;
     }
 
@@ -141,7 +306,11 @@ public class KeyValueGuava<K,V> implements com.ibm.storage.storagemanager.interf
      * */
     @Override
     public int putAll(Map<K, V> map) {
-        cache.putAll(map);
+        Map<K, Entry<V>> entries = new HashMap<K, Entry<V>>();
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            entries.put(entry.getKey(), newEntry(entry.getValue()));
+        }
+        cache.putAll(entries);
         return NUM_UNKNOWN;
     }
  
@@ -154,6 +323,178 @@ public class KeyValueGuava<K,V> implements com.ibm.storage.storagemanager.interf
         return cache.size();
     }
 
+    /**
+     * Return maximum total weight of cached values
+     * 
+     * @return maximum weight, NUM_UNKNOWN if the cache is bounded by number of objects
+     * */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Return time after which written values expire
+     *
+     * @return milliseconds, NUM_UNKNOWN if values do not expire
+     * */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Return statistics on lookups and evictions since the cache was created.  A lookup
+     * which finds an expired entry loaded from a snapshot counts as a miss.
+     * 
+     * @return hit, miss, and eviction counts
+     * */
+    public CacheStats getStats() {
+        CacheStats stats = cache.stats();
+        long expired = expiredHits.get();
+        return new CacheStats(stats.hitCount() - expired, stats.missCount() + expired, stats.loadSuccessCount(),
+                stats.loadExceptionCount(), stats.totalLoadTime(), stats.evictionCount());
+    }
+
+    /**
+     * Return number of values evicted to stay within the maximum size or weight
+     * 
+     * @return number of evictions
+     * */
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    /**
+     * Save all cached values to a file, to be loaded into a cache using loadSnapshot
+     *
+     * @param fileName
+     *            file to write
+     * @return number of entries saved
+     * @throws IOException
+     *             if the file cannot be written
+     * */
+    public int saveSnapshot(String fileName) throws IOException {
+        return saveSnapshot(fileName, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Save the most recently used cached values to a file, to be loaded into a cache using
+     * loadSnapshot.  Keys and values are serialized and compressed, along with the time each
+     * value expires.  The file is replaced only once it has been completely written.
+     *
+     * @param fileName
+     *            file to write
+     * @param maxEntries
+     *            maximum number of entries to save
+     * @return number of entries saved
+     * @throws IOException
+     *             if the file cannot be written
+     * */
+    public int saveSnapshot(String fileName, int maxEntries) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<K, Entry<V>>> entries = new ArrayList<Map.Entry<K, Entry<V>>>();
+        for (Map.Entry<K, Entry<V>> entry : cache.asMap().entrySet()) {
+            if (!entry.getValue().isExpired(now)) {
+                entries.add(entry);
+            }
+        }
+        // least recently used first, so that the most recently used entries are loaded last
+        // and are the last to be evicted if the loading cache is smaller
+        final Map<Map.Entry<K, Entry<V>>, Long> lastAccess = new HashMap<Map.Entry<K, Entry<V>>, Long>();
+        for (Map.Entry<K, Entry<V>> entry : entries) {
+            lastAccess.put(entry, entry.getValue().lastAccess);
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<K, Entry<V>>>() {
+            @Override
+            public int compare(Map.Entry<K, Entry<V>> entry1, Map.Entry<K, Entry<V>> entry2) {
+                return Long.compare(lastAccess.get(entry1), lastAccess.get(entry2));
+            }
+        });
+        if (entries.size() > maxEntries) {
+            entries = entries.subList(entries.size() - Math.max(maxEntries, 0), entries.size());
+        }
+        File file = new File(fileName);
+        File tempFile = new File(fileName + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                new FileOutputStream(tempFile))))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<K, Entry<V>> entry : entries) {
+                byte[] key = Serializer.serializeToByteArray(entry.getKey());
+                byte[] value = Serializer.serializeToByteArray(entry.getValue().value);
+                out.writeLong(entry.getValue().expiresAt);
+                out.writeInt(key.length);
+                out.write(key);
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return entries.size();
+    }
+
+    /**
+     * Load values saved by saveSnapshot into the cache.  Values which have expired since
+     * they were saved are skipped; the others keep the expiration time they had when saved.
+     * The file is read sequentially while keys and values are deserialized and stored by
+     * several threads.
+     *
+     * @param fileName
+     *            file to read
+     * @param numThreads
+     *            number of threads deserializing and storing entries
+     * @return number of entries loaded
+     * @throws IOException
+     *             if the file cannot be read or is not a snapshot
+     * */
+    public int loadSnapshot(String fileName, int numThreads) throws IOException {
+        ExecutorService loaders = Executors.newFixedThreadPool(Math.max(numThreads, 1),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("snapshot-loader-%d").build());
+        List<Future<Integer>> batches = new ArrayList<Future<Integer>>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                new FileInputStream(fileName))))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("KeyValueGuava: " + fileName + " is not a cache snapshot");
+            }
+            int numEntries = in.readInt();
+            long now = System.currentTimeMillis();
+            List<SerializedEntry> batch = new ArrayList<SerializedEntry>();
+            for (int i = 0; i < numEntries; i++) {
+                long expiresAt = in.readLong();
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                if (expiresAt != 0 && expiresAt <= now) {
+                    continue;
+                }
+                batch.add(new SerializedEntry(expiresAt, key, value));
+                if (batch.size() == SNAPSHOT_BATCH_SIZE) {
+                    batches.add(loaders.submit(loadBatch(batch)));
+                    batch = new ArrayList<SerializedEntry>();
+                }
+            }
+            if (!batch.isEmpty()) {
+                batches.add(loaders.submit(loadBatch(batch)));
+            }
+            int numLoaded = 0;
+            for (Future<Integer> loaded : batches) {
+                numLoaded += loaded.get();
+            }
+            return numLoaded;
+        } catch (EOFException e) {
+            throw new IOException("KeyValueGuava: snapshot " + fileName + " is truncated", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("KeyValueGuava: interrupted loading " + fileName, e);
+        } catch (ExecutionException e) {
+            throw new IOException("KeyValueGuava: failed to load " + fileName, e.getCause());
+        } finally {
+            loaders.shutdownNow();
+        }
+    }
+
     /**
      * Return contents of entire cache in a string
      * 
@@ -162,11 +503,11 @@ public class KeyValueGuava<K,V> implements com.ibm.storage.storagemanager.interf
      * */
     @Override
     public String toString() {
-        Map<K,V> cacheMap = cache.asMap();
+        Map<K, Entry<V>> cacheMap = cache.asMap();
         String result = "\nContents of Entire Cache\n\n";
-        for (Map.Entry<K,V> entry : cacheMap.entrySet()) {
+        for (Map.Entry<K, Entry<V>> entry : cacheMap.entrySet()) {
             result = result + "Key: " + entry.getKey() + "\n";
-            V cacheEntry = entry.getValue();
+            V cacheEntry = entry.getValue().value;
             if (cacheEntry == null) {
                 result = result + "CacheEntry is null\n";
             }
@@ -179,4 +520,39 @@ public class KeyValueGuava<K,V> implements com.ibm.storage.storagemanager.interf
         return result;
     }
     
+    private Entry<V> newEntry(V value) {
+        return new Entry<V>(value, ttl == NUM_UNKNOWN ? 0 : System.currentTimeMillis() + ttl);
+    }
+
+    // return the value of an entry, or null if there is no entry or the entry has expired.
+    // An entry loaded from a snapshot can expire before the cache would expire it.
+    private V value(K key, Entry<V> entry) {
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            expiredHits.incrementAndGet();
+            cache.asMap().remove(key, entry);
+            return null;
+        }
+        entry.lastAccess = System.nanoTime();
+        return entry.value;
+    }
+
+    private Callable<Integer> loadBatch(final List<SerializedEntry> batch) {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                Map<K, Entry<V>> entries = new HashMap<K, Entry<V>>();
+                for (SerializedEntry serialized : batch) {
+                    K key = Serializer.deserializeFromByteArray(serialized.key);
+                    V value = Serializer.deserializeFromByteArray(serialized.value);
+                    entries.put(key, new Entry<V>(value, serialized.expiresAt));
+                }
+                cache.putAll(entries);
+                return entries.size();
+            }
+        };
+    }
+
 }
@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.implementations.objectstorage;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.javaswift.joss.model.Container;
+import org.javaswift.joss.model.StoredObject;
+
+/**
+ * @author ArunIyengar
+ *
+ * Objects in a container, optionally restricted to names beginning with a prefix, in
+ * name order.  Objects are listed a page at a time as they are iterated over, each page
+ * starting after the last name of the previous one, so that containers of any size are
+ * listed completely while only one page is held in memory.  Objects carry the name,
+ * size, ETag, content type, and last-modified time from the listing.
+ */
+public class ContainerListing implements Iterable<StoredObject> {
+    private Container container;
+    private String prefix;
+    private int pageSize;
+
+    /**
+     * Constructor.
+     *
+     * @param container
+     *            container to list
+     * @param prefix
+     *            only objects whose names begin with prefix are listed, null for all objects
+     * @param pageSize
+     *            number of objects requested at a time, at most container.getMaxPageSize()
+     */
+    public ContainerListing(Container container, String prefix, int pageSize) {
+        this.container = container;
+        this.prefix = prefix;
+        this.pageSize = Math.max(1, Math.min(pageSize, container.getMaxPageSize()));
+    }
+
+    /**
+     * Constructor.  Objects are requested in pages of the maximum size.
+     *
+     * @param container
+     *            container to list
+     * @param prefix
+     *            only objects whose names begin with prefix are listed, null for all objects
+     */
+    public ContainerListing(Container container, String prefix) {
+        this(container, prefix, container.getMaxPageSize());
+    }
+
+    @Override
+    public Iterator<StoredObject> iterator() {
+        return new Iterator<StoredObject>() {
+            private Iterator<StoredObject> page;
+            private boolean lastPage;  // true once a page with fewer than pageSize objects is read
+            private String marker;  // name of the last object returned
+
+            @Override
+            public boolean hasNext() {
+                while (page == null || !page.hasNext()) {
+                    if (lastPage) {
+                        return false;
+                    }
+                    Collection<StoredObject> objects = container.list(prefix, marker, pageSize);
+                    lastPage = objects.size() < pageSize;
+                    page = objects.iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public StoredObject next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                StoredObject object = page.next();
+                marker = object.getName();
+                return object;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+}
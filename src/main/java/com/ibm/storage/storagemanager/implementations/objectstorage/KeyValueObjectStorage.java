@@ -1,19 +1,66 @@
 package com.ibm.storage.storagemanager.implementations.objectstorage;
 
+import static com.ibm.storage.storagemanager.util.Constants.NUM_UNKNOWN;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
 import org.javaswift.joss.client.factory.AccountFactory;
 import org.javaswift.joss.client.factory.AuthenticationMethod;
+import org.javaswift.joss.exception.CommandException;
+import org.javaswift.joss.exception.HttpStatusExceptionUtil;
+import org.javaswift.joss.exception.ModifiedException;
+import org.javaswift.joss.exception.NotFoundException;
+import org.javaswift.joss.exception.NotModifiedException;
+import org.javaswift.joss.headers.object.conditional.IfNoneMatch;
+import org.javaswift.joss.instructions.DownloadInstructions;
 import org.javaswift.joss.model.Account;
 import org.javaswift.joss.model.Container;
 import org.javaswift.joss.model.StoredObject;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.ibm.storage.storagemanager.util.Constants;
+import com.ibm.storage.storagemanager.util.HttpTransportConfig;
 import com.ibm.storage.storagemanager.util.Serializer;
 import com.ibm.storage.storagemanager.util.Util;
 
@@ -26,6 +73,33 @@ import com.ibm.storage.storagemanager.util.Util;
 
      private Account account;
      private Container container;
+     private CloseableHttpClient httpClient;
+     private ExecutorService requestService;  // runs requests of multi-object operations in parallel
+     private int parallelism = 16;  // max # of requests in flight for a multi-object operation
+     private int requestAttempts = 3;  // # of times a failed request is tried
+     private static final long RETRY_DELAY = 100;  // milliseconds before first retry, doubles after each one
+     private boolean serviceInfoRead;  // true once optional features of the service are known
+     private boolean bulkDeleteSupported;
+     private boolean largeObjectsSupported;  // true if static large objects are supported
+     private int maxDeletesPerRequest = 1000;
+     private static final String SEGMENTS_SUFFIX = "_segments";  // appended to names of segment containers
+     private volatile int segmentSize;  // values larger than this are uploaded in segments, 0 if never
+     private Container segmentContainer;  // segments of large values
+     private ExecutorService segmentService;  // transfers segments of a single value in parallel
+     private static final Random random = new Random();
+     private volatile String authToken;  // token for requests not made through JOSS
+     private volatile Cache<String, CachedObject> objectCache;  // null if conditional GETs aren't used
+
+     // serialized value of an object along with its ETag, the MD5 hash of the value
+     private static class CachedObject {
+         final String etag;
+         final byte[] value;
+
+         CachedObject(String etag, byte[] value) {
+             this.etag = etag;
+             this.value = value;
+         }
+     }
 
      /**
       * Constructor. Establishes a session with a Key-value store, reading in credentials from a file.
@@ -38,6 +112,24 @@ import com.ibm.storage.storagemanager.util.Util;
       *            true if all previous database entries should be deleted
       */
      public KeyValueObjectStorage(String dbName, String inputFile, boolean clearAll) {
+         this(dbName, inputFile, new HttpTransportConfig(), clearAll);
+     }
+
+     /**
+      * Constructor. Establishes a session with a Key-value store using specific HTTP transport
+      * settings, reading in credentials from a file.
+      * 
+      * @param dbName
+      *            identifies the database
+      * @param inputFile
+      *            Name of file storing Cloudant URL, user id, and password
+      * @param transport
+      *            HTTP connection pool size, keep-alive time, and timeouts
+      * @param clearAll
+      *            true if all previous database entries should be deleted
+      */
+     public KeyValueObjectStorage(String dbName, String inputFile, HttpTransportConfig transport,
+             boolean clearAll) {
          File file = new File(inputFile);
          Scanner input = null;
          try {
@@ -50,7 +142,7 @@ import com.ibm.storage.storagemanager.util.Util;
          String storeId = Util.getNextWord(input);
          String userId = Util.getNextWord(input);
          String password = Util.getNextWord(input);
-         createAccount(dbName, storeId, userId, password, clearAll);
+         createAccount(dbName, storeId, userId, password, transport, clearAll);
      }
 
      /**
@@ -68,22 +160,171 @@ import com.ibm.storage.storagemanager.util.Util;
       *            true if all previous database entries should be deleted
       */
      public KeyValueObjectStorage(String dbName, String storeId, String userId, String password, boolean clearAll) {
-         createAccount(dbName, storeId, userId, password, clearAll);
+         createAccount(dbName, storeId, userId, password, new HttpTransportConfig(), clearAll);
      }
 
-     private void createAccount(String dbName, String storeId, String userId, String password, boolean clearAll) {
+     /**
+      * Constructor. Establishes a session with a Key-value store using specific HTTP transport
+      * settings.
+      * 
+      * @param dbName
+      *            identifies the database
+      * @param storeId
+      *            Url for the data store
+      * @param userId
+      *            user ID
+      * @param password
+      *            password
+      * @param transport
+      *            HTTP connection pool size, keep-alive time, and timeouts
+      * @param clearAll
+      *            true if all previous database entries should be deleted
+      */
+     public KeyValueObjectStorage(String dbName, String storeId, String userId, String password,
+             HttpTransportConfig transport, boolean clearAll) {
+         createAccount(dbName, storeId, userId, password, transport, clearAll);
+     }
+
+     private void createAccount(String dbName, String storeId, String userId, String password,
+             HttpTransportConfig transport, boolean clearAll) {
+         // replaces the JOSS default client, whose pool allows 25 connections per host and
+         // whose timeouts can't be changed
+         httpClient = transport.createHttpClient();
          account = new AccountFactory()
+         .setHttpClient(httpClient)
          .setAuthenticationMethod(AuthenticationMethod.BASIC)
          .setUsername(userId)
          .setPassword(password)
          .setAuthUrl(storeId)
          .createAccount();
+         // more requests in flight than pooled connections would only queue for connections
+         parallelism = Math.min(parallelism, transport.getMaxConnections());
+         requestService = newRequestService(parallelism, "objectstorage-request-%d");
          container = account.getContainer(dbName);
          if (clearAll) {
              clearAll(container);
+             clearAll(account.getContainer(dbName + SEGMENTS_SUFFIX));
          }
          createContainer(container);
      } 
+
+     private static ExecutorService newRequestService(int numThreads, String nameFormat) {
+         return Executors.newFixedThreadPool(numThreads,
+                 new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build());
+     }
+
+     /**
+      * Set maximum number of requests getAll, putAll, deleteAll, and clear have in flight at
+      * the same time.  Should not exceed the maximum number of pooled HTTP connections.
+      * 
+      * @param numRequests
+      *            number of parallel requests (ignored if < 1)
+      */
+     public synchronized void setParallelism(int numRequests) {
+         if (numRequests >= 1) {
+             ExecutorService oldService = requestService;
+             parallelism = numRequests;
+             requestService = newRequestService(numRequests, "objectstorage-request-%d");
+             oldService.shutdown();
+             if (segmentService != null) {
+                 oldService = segmentService;
+                 segmentService = newRequestService(numRequests, "objectstorage-segment-%d");
+                 oldService.shutdown();
+             }
+         }
+     }
+
+     public int getParallelism() {
+         return parallelism;
+     }
+
+     /**
+      * Set number of times a request which fails is tried before the operation gives up.
+      * Requests for objects which don't exist aren't retried.
+      * 
+      * @param attempts
+      *            number of attempts (ignored if < 1)
+      */
+     public void setRequestAttempts(int attempts) {
+         if (attempts >= 1)
+             requestAttempts = attempts;
+     }
+
+     public int getRequestAttempts() {
+         return requestAttempts;
+     }
+
+     /**
+      * Keep copies of recently stored and fetched objects, up to a total number of bytes.
+      * get requests objects which have a copy with If-None-Match, so an object which hasn't
+      * changed is answered with 304 Not Modified and isn't transferred again.  Disabled by
+      * default.
+      * 
+      * @param maxBytes
+      *            total size of cached objects in bytes, 0 to disable (ignored if < 0)
+      */
+     public void setObjectCacheSize(long maxBytes) {
+         if (maxBytes > 0) {
+             objectCache = CacheBuilder.newBuilder().maximumWeight(maxBytes)
+                     .weigher(new Weigher<String, CachedObject>() {
+                         @Override
+                         public int weigh(String key, CachedObject object) {
+                             return object.value.length;
+                         }
+                     }).build();
+         }
+         else if (maxBytes == 0) {
+             objectCache = null;
+         }
+     }
+
+     /**
+      * Store serialized values larger than segmentBytes as static large objects.  A value is
+      * split into segments of this size as it is serialized.  Segments are uploaded in
+      * parallel to the container dbName_segments and tied together by a manifest, so no
+      * more than getParallelism() + 1 segments of a value are held in memory and a segment
+      * which fails is uploaded again on its own.  get downloads values in ranges of this
+      * size in parallel, and delete removes the segments of a value along with its manifest.
+      * Values stored while segments are used should be read with segments enabled.
+      * Ignored if the service doesn't support static large objects.  Disabled by default.
+      * 
+      * @param segmentBytes
+      *            segment size in bytes, 0 to disable (ignored if < 0)
+      */
+     public synchronized void setSegmentSize(int segmentBytes) {
+         if (segmentBytes < 0) {
+             return;
+         }
+         if (segmentBytes > 0 && segmentContainer == null) {
+             segmentContainer = account.getContainer(container.getName() + SEGMENTS_SUFFIX);
+             createContainer(segmentContainer);
+             segmentService = newRequestService(parallelism, "objectstorage-segment-%d");
+         }
+         segmentSize = segmentBytes;
+     }
+
+     public int getSegmentSize() {
+         return segmentSize;
+     }
+
+     // true if values are stored and retrieved in segments
+     private boolean useSegments() {
+         return segmentSize > 0 && supportsLargeObjects();
+     }
+
+     private void cacheObject(String name, byte[] value) {
+         Cache<String, CachedObject> cache = objectCache;
+         if (cache != null) {
+             cache.put(name, new CachedObject(md5(value), value));
+         }
+     }
+
+     private void uncacheObject(String name) {
+         Cache<String, CachedObject> cache = objectCache;
+         if (cache != null) {
+             cache.invalidate(name);
+         }
+     }
      
      private static void createContainer(Container cont) {
          if (!cont.exists()) {
@@ -92,21 +333,44 @@ import com.ibm.storage.storagemanager.util.Util;
          }
      }
      
-     private static void deleteContainer(Container cont) {
+     private void deleteContainer(Container cont) {
          if (cont.exists()) {
              clearAll(cont);
              cont.delete();
          }
      }
      
-     private static void clearAll(Container container) {
-         if (container.exists()) {
-             for (StoredObject object : container.list()) {
-                 object.delete();
+     // delete objects a batch at a time as they are listed
+     private void clearAll(Container cont) {
+         if (!cont.exists()) {
+             return;
+         }
+         List<String> batch = new ArrayList<String>();
+         for (StoredObject object : new ContainerListing(cont, null)) {
+             batch.add(object.getName());
+             if (batch.size() == maxDeletesPerRequest) {
+                 deleteObjects(cont, batch);
+                 batch.clear();
              }
          }
+         deleteObjects(cont, batch);
      }
      
+     /**
+      * Close connections to the key-value store.  The object can't be used afterwards.
+      */
+     public void shutdown() {
+         requestService.shutdown();
+         if (segmentService != null) {
+             segmentService.shutdown();
+         }
+         try {
+             httpClient.close();
+         } catch (IOException e) {
+             System.out.println("KeyValueObjectStorage.shutdown: " + e.getMessage());
+         }
+     }
+
      /**
       * Output all container (database) names corresponding to the account
       * 
@@ -128,6 +392,13 @@ import com.ibm.storage.storagemanager.util.Util;
      @Override
      public ReturnStatus clear() { 
          clearAll(container);
+         if (segmentContainer != null) {
+             clearAll(segmentContainer);
+         }
+         Cache<String, CachedObject> cache = objectCache;
+         if (cache != null) {
+             cache.invalidateAll();
+         }
          return ReturnStatus.SUCCESS;
      }
 
@@ -142,15 +413,52 @@ import com.ibm.storage.storagemanager.util.Util;
       * */
      @Override
      public int delete(K key) {
-         String keyString = (String) key;
-         StoredObject object = container.getObject(keyString);
-         if (object.exists()) {
-             object.delete();
-             return 1;
-         }
-         else {
-             return 0;
+         return deleteObject(container, (String) key);
+     }
+
+     // delete an object with a single request; an object which doesn't exist isn't an error
+     private int deleteObject(final Container cont, final String name) {
+         uncacheObject(name);
+         if (cont == container && useSegments()) {
+             return deleteLargeObject(name);
          }
+         return retry(new Callable<Integer>() {
+             @Override
+             public Integer call() {
+                 try {
+                     cont.getObject(name).delete();
+                     return 1;
+                 } catch (NotFoundException e) {
+                     return 0;
+                 }
+             }
+         });
+     }
+
+     // delete an object which may be a static large object, along with its segments
+     private int deleteLargeObject(final String name) {
+         return retry(new Callable<Integer>() {
+             @Override
+             public Integer call() throws IOException {
+                 HttpDelete request = new HttpDelete(objectUrl(container, name) + "?multipart-manifest=delete");
+                 request.setHeader("Accept", "application/json");
+                 HttpResponse response = execute(request);
+                 if (response.getStatusLine().getStatusCode() == 404) {
+                     EntityUtils.consume(response.getEntity());
+                     return 0;
+                 }
+                 checkStatus(response);
+                 String body = (response.getEntity() == null) ? "" : EntityUtils.toString(response.getEntity());
+                 if (body.trim().startsWith("{")) {
+                     // a manifest deleted with its segments is answered with a summary
+                     JsonElement status = new JsonParser().parse(body).getAsJsonObject().get("Response Status");
+                     if (status != null && status.getAsString().startsWith("404")) {
+                         return 0;
+                     }
+                 }
+                 return 1;
+             }
+         });
      }
 
      /**
@@ -164,7 +472,15 @@ import com.ibm.storage.storagemanager.util.Util;
       * */
      @Override
      public int deleteAll(List<K> keys) {
-         return Util.deleteAll(this, keys);
+         List<String> names = new ArrayList<String>(keys.size());
+         for (K key : keys) {
+             names.add((String) key);
+         }
+         if (useSegments()) {
+             // bulk delete would leave the segments of large values behind
+             return deleteEach(container, names);
+         }
+         return deleteObjects(container, names);
      }
 
      /**
@@ -177,16 +493,45 @@ import com.ibm.storage.storagemanager.util.Util;
       * */
      @Override
      public V get(K key) {
-         String keyString = (String) key;
-         StoredObject object = container.getObject(keyString);
-         if (object.exists()) {
-             byte[] rawValue = object.downloadObject();;
-             if (rawValue == null) {
+         final String keyString = (String) key;
+         Cache<String, CachedObject> cache = objectCache;
+         final CachedObject cached = (cache == null) ? null : cache.getIfPresent(keyString);
+         if (useSegments()) {
+             CachedObject object = download(keyString, cached);
+             if (object == null) {
+                 uncacheObject(keyString);
                  return null;
              }
-             return Serializer.deserializeFromByteArray(rawValue);        
+             if (cache != null && object != cached) {
+                 cache.put(keyString, object);
+             }
+             return Serializer.deserializeFromByteArray(object.value);
+         }
+         byte[] rawValue = retry(new Callable<byte[]>() {
+             @Override
+             public byte[] call() {
+                 StoredObject object = container.getObject(keyString);
+                 try {
+                     if (cached == null) {
+                         return object.downloadObject();
+                     }
+                     return object.downloadObject(new DownloadInstructions()
+                             .setMatchConditional(new IfNoneMatch(cached.etag)));
+                 } catch (NotModifiedException e) {
+                     return cached.value;
+                 } catch (NotFoundException e) {
+                     return null;
+                 }
+             }
+         });
+         if (rawValue == null) {
+             uncacheObject(keyString);
+             return null;
+         }
+         if (cached == null || rawValue != cached.value) {
+             cacheObject(keyString, rawValue);
          }
-         return null;
+         return Serializer.deserializeFromByteArray(rawValue);        
      }
 
      /**
@@ -199,7 +544,23 @@ import com.ibm.storage.storagemanager.util.Util;
       * */
      @Override
      public Map<K, V> getAll(List<K> keys) {
-         return Util.getAll(this, keys);
+         List<Callable<V>> tasks = new ArrayList<Callable<V>>(keys.size());
+         for (final K key : keys) {
+             tasks.add(new Callable<V>() {
+                 @Override
+                 public V call() {
+                     return get(key);
+                 }
+             });
+         }
+         List<V> values = runRequests(tasks);
+         Map<K, V> hashMap = new HashMap<K, V>();
+         for (int i = 0; i < keys.size(); i++) {
+             if (values.get(i) != null) {
+                 hashMap.put(keys.get(i), values.get(i));
+             }
+         }
+         return hashMap;
      }
 
      /**
@@ -211,6 +572,66 @@ import com.ibm.storage.storagemanager.util.Util;
      public Container getDatabase() {
          return container;
      }
+
+     /**
+      * Return all keys in name order.  Keys are listed a page at a time as they are
+      * iterated over, so any number of keys can be iterated over in constant memory.
+      * 
+      * @return keys
+      * 
+      * */
+     public Iterable<K> keys() {
+         return keys(null);
+     }
+
+     /**
+      * Return keys beginning with a prefix in name order.  Keys are listed a page at a
+      * time as they are iterated over.
+      * 
+      * @param prefix
+      *            prefix of keys to return, null for all keys
+      * @return keys
+      * 
+      * */
+     public Iterable<K> keys(String prefix) {
+         final ContainerListing listing = new ContainerListing(container, prefix);
+         return new Iterable<K>() {
+             @Override
+             public Iterator<K> iterator() {
+                 final Iterator<StoredObject> objects = listing.iterator();
+                 return new Iterator<K>() {
+                     @Override
+                     public boolean hasNext() {
+                         return objects.hasNext();
+                     }
+
+                     @Override
+                     public K next() {
+                         return Util.uncheckedCast(objects.next().getName());
+                     }
+
+                     @Override
+                     public void remove() {
+                         throw new UnsupportedOperationException();
+                     }
+                 };
+             }
+         };
+     }
+
+     /**
+      * Return objects whose names begin with a prefix, with their sizes, ETags, content
+      * types, and last-modified times.  Objects are listed a page at a time as they are
+      * iterated over.
+      * 
+      * @param prefix
+      *            prefix of names of objects to return, null for all objects
+      * @return objects in name order
+      * 
+      * */
+     public ContainerListing listObjects(String prefix) {
+         return new ContainerListing(container, prefix);
+     }
      
      /**
       * Return a string idenfitying the type of storage service
@@ -236,10 +657,299 @@ import com.ibm.storage.storagemanager.util.Util;
      @Override
      public ReturnStatus put(K key, V value) {
          String keyString = (String) key;
-         StoredObject object = container.getObject(keyString);
-         byte[] array = Serializer.serializeToByteArray(value);
-         object.uploadObject(array);
-         return ReturnStatus.SUCCESS;
+         if (useSegments()) {
+             return putSegmented(keyString, value);
+         }
+         return putBytes(keyString, Serializer.serializeToByteArray(value));
+     }
+
+     private ReturnStatus putBytes(final String name, final byte[] array) {
+         return retry(new Callable<ReturnStatus>() {
+             @Override
+             public ReturnStatus call() {
+                 StoredObject object = container.getObject(name);
+                 object.uploadObject(array);
+                 cacheObject(name, array);
+                 return ReturnStatus.SUCCESS;
+             }
+         });
+     }
+
+     // serialize a value directly into segments which are uploaded while serialization continues
+     private ReturnStatus putSegmented(String name, V value) {
+         SegmentWriter writer = new SegmentWriter(name);
+         try {
+             if (Serializer.serializeToStream(value, writer)) {
+                 writer.close();
+                 return ReturnStatus.SUCCESS;
+             }
+         } catch (IOException e) {
+             Util.describeException(e, "Exception in KeyValueObjectStorage.putSegmented");
+         } catch (RuntimeException e) {
+             writer.abort();
+             throw e;
+         }
+         writer.abort();
+         return ReturnStatus.FAILURE;
+     }
+
+     // Buffers a value being serialized and uploads each full segment in the background.
+     // Segments are named name/uploadId/index, where uploadIds increase over time.
+     private class SegmentWriter extends OutputStream {
+         private final String name;
+         private final String uploadId;
+         private final int size = segmentSize;
+         private final int maxInFlight = parallelism;
+         private byte[] buffer = new byte[size];
+         private int count;  // # of bytes in buffer
+         private final List<Future<JsonObject>> segments = new ArrayList<Future<JsonObject>>();  // manifest entries
+
+         SegmentWriter(String name) {
+             this.name = name;
+             uploadId = String.format("%016x%08x", System.currentTimeMillis(), random.nextInt());
+         }
+
+         @Override
+         public void write(int b) throws IOException {
+             if (count == size) {
+                 uploadSegment();
+             }
+             buffer[count++] = (byte) b;
+         }
+
+         @Override
+         public void write(byte[] bytes, int offset, int length) throws IOException {
+             while (length > 0) {
+                 if (count == size) {
+                     uploadSegment();
+                 }
+                 int n = Math.min(length, size - count);
+                 System.arraycopy(bytes, offset, buffer, count, n);
+                 count += n;
+                 offset += n;
+                 length -= n;
+             }
+         }
+
+         // start uploading the buffered segment once fewer than maxInFlight uploads are running
+         private void uploadSegment() throws IOException {
+             if (segments.size() >= maxInFlight) {
+                 await(segments.get(segments.size() - maxInFlight));
+             }
+             final byte[] data = (count == size) ? buffer : Arrays.copyOf(buffer, count);
+             final String segmentName = name + "/" + uploadId + "/" + String.format("%08d", segments.size());
+             segments.add(segmentService.submit(new Callable<JsonObject>() {
+                 @Override
+                 public JsonObject call() {
+                     retry(new Callable<Void>() {
+                         @Override
+                         public Void call() {
+                             segmentContainer.getObject(segmentName).uploadObject(data);
+                             return null;
+                         }
+                     });
+                     JsonObject entry = new JsonObject();
+                     entry.addProperty("path", "/" + segmentContainer.getName() + "/" + segmentName);
+                     entry.addProperty("etag", md5(data));
+                     entry.addProperty("size_bytes", data.length);
+                     return entry;
+                 }
+             }));
+             buffer = new byte[size];
+             count = 0;
+         }
+
+         // upload the rest of the value and its manifest, or the whole value if it fits in one
+         // segment, then delete the segments of the value it replaces.  A value which fits in
+         // one segment only looks for old segments if the value it replaces was segmented.
+         @Override
+         public void close() throws IOException {
+             if (segments.isEmpty()) {
+                 boolean replacesLargeObject = isLargeObject(name);
+                 putBytes(name, Arrays.copyOf(buffer, count));
+                 if (replacesLargeObject) {
+                     deleteSegments(name, uploadId, true);
+                 }
+                 return;
+             }
+             if (count > 0) {
+                 uploadSegment();
+             }
+             final JsonArray manifest = new JsonArray();
+             for (Future<JsonObject> segment : segments) {
+                 manifest.add(await(segment));
+             }
+             retry(new Callable<Void>() {
+                 @Override
+                 public Void call() throws IOException {
+                     HttpPut request = new HttpPut(objectUrl(container, name) + "?multipart-manifest=put");
+                     request.setEntity(new StringEntity(manifest.toString(), ContentType.APPLICATION_JSON));
+                     HttpResponse response = execute(request);
+                     checkStatus(response);
+                     EntityUtils.consume(response.getEntity());
+                     return null;
+                 }
+             });
+             uncacheObject(name);
+             deleteSegments(name, uploadId, true);
+         }
+
+         // wait for segment uploads to finish and delete the segments of this upload
+         void abort() {
+             for (Future<JsonObject> segment : segments) {
+                 try {
+                     segment.get();
+                 } catch (Exception e) {
+                     // the upload is being abandoned
+                 }
+             }
+             deleteSegments(name, uploadId, false);
+         }
+
+         private JsonObject await(Future<JsonObject> segment) throws IOException {
+             try {
+                 return segment.get();
+             } catch (InterruptedException e) {
+                 Thread.currentThread().interrupt();
+                 throw new IOException(e);
+             } catch (ExecutionException e) {
+                 throw new IOException(e.getCause());
+             }
+         }
+     }
+
+     // Delete segments of a value uploaded before the upload identified by uploadId if
+     // earlier is true, otherwise the segments of that upload.  If two clients replace the
+     // same value at the same time, the one finishing first may lose its segments.
+     // Segments of keys which begin with name + "/" have more '/' characters and are skipped.
+     // Segments are deleted on the calling thread, which may be running a request of putAll
+     // on requestService, so they must not be deleted by other tasks on requestService.
+     private void deleteSegments(String name, String uploadId, boolean earlier) {
+         String prefix = name + "/";
+         List<String> obsolete = new ArrayList<String>();
+         for (StoredObject segment : new ContainerListing(segmentContainer, prefix)) {
+             String rest = segment.getName().substring(prefix.length());
+             int slash = rest.indexOf('/');
+             if (slash > 0 && slash == rest.lastIndexOf('/')) {
+                 int order = rest.substring(0, slash).compareTo(uploadId);
+                 if (earlier ? order < 0 : order == 0) {
+                     obsolete.add(segment.getName());
+                 }
+             }
+             if (obsolete.size() == maxDeletesPerRequest) {
+                 deleteObjects(segmentContainer, obsolete, false);
+                 obsolete.clear();
+             }
+         }
+         deleteObjects(segmentContainer, obsolete, false);
+     }
+
+     // Download an object in ranges of segmentSize bytes, all but the first in parallel.  A
+     // cached copy is returned if the object hasn't changed.  Returns null if the object
+     // doesn't exist.  The download starts over if the object changes while it is read.
+     private CachedObject download(final String name, final CachedObject cached) {
+         for (int attempt = 1; ; attempt++) {
+             try {
+                 return downloadRanges(name, cached);
+             } catch (ModifiedException e) {
+                 if (attempt >= requestAttempts) {
+                     throw e;
+                 }
+             }
+         }
+     }
+
+     private CachedObject downloadRanges(final String name, final CachedObject cached) {
+         final String url = objectUrl(container, name);
+         final int rangeSize = segmentSize;
+         // the first range also tells the size of the object
+         final CachedObject object = retry(new Callable<CachedObject>() {
+             @Override
+             public CachedObject call() throws IOException {
+                 HttpGet request = new HttpGet(url);
+                 request.setHeader("Range", "bytes=0-" + (rangeSize - 1));
+                 if (cached != null) {
+                     request.setHeader("If-None-Match", cached.etag);
+                 }
+                 HttpResponse response = execute(request);
+                 int status = response.getStatusLine().getStatusCode();
+                 if (status == 404 || status == 304 || status == 416) {
+                     EntityUtils.consume(response.getEntity());
+                     // 416 means the range starts past the end of an empty object
+                     return (status == 404) ? null : (status == 304) ? cached : new CachedObject(null, new byte[0]);
+                 }
+                 checkStatus(response);
+                 Header etag = response.getFirstHeader("ETag");
+                 byte[] first = EntityUtils.toByteArray(response.getEntity());
+                 long length = first.length;
+                 Header contentRange = response.getFirstHeader("Content-Range");
+                 if (status == 206 && contentRange != null) {
+                     length = Long.parseLong(contentRange.getValue().substring(contentRange.getValue().indexOf('/') + 1));
+                 }
+                 if (length > Integer.MAX_VALUE - 8) {
+                     throw new CommandException("Object " + name + " is too large to be read into memory");
+                 }
+                 byte[] value = (length == first.length) ? first : Arrays.copyOf(first, (int) length);
+                 return new CachedObject((etag == null) ? null : etag.getValue(), value);
+             }
+         });
+         if (object == null || object == cached || object.value.length <= rangeSize) {
+             return object;
+         }
+         List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+         for (long start = rangeSize; start < object.value.length; start += rangeSize) {
+             final int offset = (int) start;
+             final int length = Math.min(rangeSize, object.value.length - offset);
+             tasks.add(new Callable<Void>() {
+                 @Override
+                 public Void call() {
+                     return retry(new Callable<Void>() {
+                         @Override
+                         public Void call() throws IOException {
+                             readRange(url, object, offset, length);
+                             return null;
+                         }
+                     });
+                 }
+             });
+         }
+         try {
+             for (Future<Void> future : segmentService.invokeAll(tasks)) {
+                 future.get();
+             }
+         } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+             throw new CommandException("Download of " + name + " interrupted", e);
+         } catch (ExecutionException e) {
+             throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause()
+                     : new CommandException("Download of " + name + " failed", e.getCause());
+         }
+         return object;
+     }
+
+     // read length bytes at offset into object.value.  Fails with ModifiedException if the
+     // object no longer has the ETag of the first range.
+     private void readRange(String url, CachedObject object, int offset, int length) throws IOException {
+         HttpGet request = new HttpGet(url);
+         request.setHeader("Range", "bytes=" + offset + "-" + (offset + length - 1));
+         if (object.etag != null) {
+             request.setHeader("If-Match", object.etag);
+         }
+         HttpResponse response = execute(request);
+         checkStatus(response);
+         InputStream in = response.getEntity().getContent();
+         try {
+             int total = 0;
+             int n;
+             while (total < length && (n = in.read(object.value, offset + total, length - total)) > 0) {
+                 total += n;
+             }
+             if (total < length) {
+                 throw new IOException("Range of " + url + " ended after " + total + " of " + length + " bytes");
+             }
+         } finally {
+             in.close();
+         }
      }
 
      /**
@@ -253,7 +963,282 @@ import com.ibm.storage.storagemanager.util.Util;
       * */
      @Override
      public int putAll(Map<K, V> map) {
-         return Util.putAll(this, map);
+         List<Callable<ReturnStatus>> tasks = new ArrayList<Callable<ReturnStatus>>(map.size());
+         for (final Map.Entry<K, V> entry : map.entrySet()) {
+             tasks.add(new Callable<ReturnStatus>() {
+                 @Override
+                 public ReturnStatus call() {
+                     return put(entry.getKey(), entry.getValue());
+                 }
+             });
+         }
+         int numStored = 0;
+         for (ReturnStatus status : runRequests(tasks)) {
+             if (status == ReturnStatus.SUCCESS) {
+                 numStored++;
+             }
+         }
+         return numStored;
+     }
+
+     // run requests on requestService, returning null for requests which failed
+     private <T> List<T> runRequests(List<Callable<T>> tasks) {
+         List<T> results = new ArrayList<T>(tasks.size());
+         try {
+             for (Future<T> future : requestService.invokeAll(tasks)) {
+                 try {
+                     results.add(future.get());
+                 } catch (Exception e) {
+                     Util.describeException(e, "Exception in KeyValueObjectStorage.runRequests");
+                     results.add(null);
+                 }
+             }
+         } catch (InterruptedException e) {
+             Thread.currentThread().interrupt();
+             while (results.size() < tasks.size()) {
+                 results.add(null);
+             }
+         }
+         return results;
+     }
+
+     // make a request, trying it up to requestAttempts times with increasing delays in
+     // between.  A request for an object which doesn't exist or has changed fails right away.
+     private <T> T retry(Callable<T> request) {
+         long delay = RETRY_DELAY;
+         for (int attempt = 1; ; attempt++) {
+             try {
+                 return request.call();
+             } catch (NotFoundException e) {
+                 throw e;
+             } catch (ModifiedException e) {
+                 throw e;
+             } catch (Exception e) {
+                 if (attempt >= requestAttempts) {
+                     throw (e instanceof RuntimeException) ? (RuntimeException) e : new RuntimeException(e);
+                 }
+             }
+             try {
+                 Thread.sleep(delay);
+             } catch (InterruptedException e) {
+                 Thread.currentThread().interrupt();
+                 throw new RuntimeException(e);
+             }
+             delay *= 2;
+         }
+     }
+
+     // delete objects using bulk delete requests if the service supports them, otherwise
+     // by deleting objects individually in parallel
+     private int deleteObjects(Container cont, List<String> names) {
+         return deleteObjects(cont, names, true);
+     }
+
+     // delete objects using bulk delete requests if the service supports them, otherwise by
+     // deleting objects individually, in parallel on requestService if parallel is true and
+     // one at a time on the calling thread if not
+     private int deleteObjects(Container cont, List<String> names, boolean parallel) {
+         for (String name : names) {
+             uncacheObject(name);
+         }
+         int numDeleted = 0;
+         for (int start = 0; start < names.size(); start += maxDeletesPerRequest) {
+             List<String> batch = names.subList(start, Math.min(names.size(), start + maxDeletesPerRequest));
+             int result = supportsBulkDelete() ? bulkDelete(cont, batch, parallel) : NUM_UNKNOWN;
+             if (result == NUM_UNKNOWN) {
+                 result = parallel ? deleteEach(cont, batch) : deleteInline(cont, batch);
+             }
+             numDeleted += result;
+         }
+         return numDeleted;
+     }
+
+     private int deleteEach(final Container cont, List<String> names) {
+         List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(names.size());
+         for (final String name : names) {
+             tasks.add(new Callable<Integer>() {
+                 @Override
+                 public Integer call() {
+                     return deleteObject(cont, name);
+                 }
+             });
+         }
+         int numDeleted = 0;
+         for (Integer result : runRequests(tasks)) {
+             if (result != null) {
+                 numDeleted += result;
+             }
+         }
+         return numDeleted;
+     }
+
+     private int deleteInline(Container cont, List<String> names) {
+         int numDeleted = 0;
+         for (String name : names) {
+             try {
+                 numDeleted += deleteObject(cont, name);
+             } catch (RuntimeException e) {
+                 Util.describeException(e, "Exception in KeyValueObjectStorage.deleteInline");
+             }
+         }
+         return numDeleted;
+     }
+
+     // true if an object is stored as a static large object, so replacing it leaves its
+     // segments behind
+     private boolean isLargeObject(final String name) {
+         return retry(new Callable<Boolean>() {
+             @Override
+             public Boolean call() throws IOException {
+                 HttpResponse response = execute(new HttpHead(objectUrl(container, name)));
+                 if (response.getStatusLine().getStatusCode() == 404) {
+                     EntityUtils.consume(response.getEntity());
+                     return false;
+                 }
+                 checkStatus(response);
+                 EntityUtils.consume(response.getEntity());
+                 Header largeObject = response.getFirstHeader("X-Static-Large-Object");
+                 return largeObject != null && "true".equalsIgnoreCase(largeObject.getValue());
+             }
+         });
+     }
+
+     private boolean supportsBulkDelete() {
+         readServiceInfo();
+         return bulkDeleteSupported;
+     }
+
+     private boolean supportsLargeObjects() {
+         readServiceInfo();
+         return largeObjectsSupported;
+     }
+
+     // ask the service once which optional features, such as bulk delete, it supports
+     private synchronized void readServiceInfo() {
+         if (serviceInfoRead) {
+             return;
+         }
+         serviceInfoRead = true;
+         try {
+             URL storageUrl = new URL(account.getPublicURL());
+             HttpGet request = new HttpGet(new URL(storageUrl, "/info").toString());
+             HttpResponse response = httpClient.execute(request);
+             String body = EntityUtils.toString(response.getEntity());
+             if (response.getStatusLine().getStatusCode() != 200) {
+                 return;
+             }
+             JsonObject info = new JsonParser().parse(body).getAsJsonObject();
+             JsonElement bulkDelete = info.get("bulk_delete");
+             if (bulkDelete != null && bulkDelete.isJsonObject()) {
+                 JsonElement maxDeletes = bulkDelete.getAsJsonObject().get("max_deletes_per_request");
+                 if (maxDeletes != null && maxDeletes.getAsInt() >= 1) {
+                     maxDeletesPerRequest = maxDeletes.getAsInt();
+                 }
+                 bulkDeleteSupported = true;
+             }
+             largeObjectsSupported = info.has("slo");
+         } catch (Exception e) {
+             System.out.println("KeyValueObjectStorage: could not determine which features the service supports.  "
+                     + e.getMessage());
+         }
+     }
+
+     // delete objects with a single bulk delete request.  Objects the service reports errors
+     // for are deleted individually, in parallel on requestService if parallel is true and
+     // one at a time on the calling thread if not.  Returns NUM_UNKNOWN if the request fails.
+     private int bulkDelete(Container cont, List<String> names, boolean parallel) {
+         StringBuilder body = new StringBuilder();
+         Map<String, String> paths = new HashMap<String, String>();  // maps paths in body to object names
+         for (String name : names) {
+             String path = "/" + encode(cont.getName()) + "/" + encode(name);
+             paths.put(path, name);
+             body.append(path).append('\n');
+         }
+         long delay = RETRY_DELAY;
+         for (int attempt = 1; attempt <= requestAttempts; attempt++) {
+             try {
+                 HttpPost request = new HttpPost(account.getPublicURL() + "?bulk-delete");
+                 request.setHeader("Accept", "application/json");
+                 request.setEntity(new StringEntity(body.toString(), ContentType.TEXT_PLAIN.withCharset("UTF-8")));
+                 HttpResponse response = execute(request);
+                 String result = EntityUtils.toString(response.getEntity());
+                 int status = response.getStatusLine().getStatusCode();
+                 if (status == 200) {
+                     JsonObject json = new JsonParser().parse(result).getAsJsonObject();
+                     int numDeleted = json.get("Number Deleted").getAsInt();
+                     JsonArray errors = json.getAsJsonArray("Errors");
+                     if (errors != null && errors.size() > 0) {
+                         List<String> failed = new ArrayList<String>();
+                         for (JsonElement error : errors) {
+                             String name = paths.get(error.getAsJsonArray().get(0).getAsString());
+                             if (name != null) {
+                                 failed.add(name);
+                             }
+                         }
+                         numDeleted += parallel ? deleteEach(cont, failed) : deleteInline(cont, failed);
+                     }
+                     return numDeleted;
+                 }
+                 System.out.println("KeyValueObjectStorage: bulk delete returned status " + status);
+             } catch (Exception e) {
+                 System.out.println("KeyValueObjectStorage: bulk delete failed.  " + e.getMessage());
+             }
+             try {
+                 Thread.sleep(delay);
+             } catch (InterruptedException e) {
+                 Thread.currentThread().interrupt();
+                 break;
+             }
+             delay *= 2;
+         }
+         return NUM_UNKNOWN;
+     }
+
+     // make a request which JOSS doesn't support, authenticating again if the token has
+     // expired.  The caller must consume the response entity.
+     private HttpResponse execute(HttpRequestBase request) throws IOException {
+         request.setHeader("X-Auth-Token", token(false));
+         HttpResponse response = httpClient.execute(request);
+         if (response.getStatusLine().getStatusCode() == 401) {
+             EntityUtils.consume(response.getEntity());
+             request.setHeader("X-Auth-Token", token(true));
+             response = httpClient.execute(request);
+         }
+         return response;
+     }
+
+     // throw the exception JOSS uses for an unsuccessful status
+     private static void checkStatus(HttpResponse response) throws IOException {
+         int status = response.getStatusLine().getStatusCode();
+         if (status < 200 || status >= 300) {
+             EntityUtils.consume(response.getEntity());
+             HttpStatusExceptionUtil.throwException(status);
+         }
+     }
+
+     private String objectUrl(Container cont, String name) {
+         return account.getPublicURL() + "/" + encode(cont.getName()) + "/" + encode(name);
+     }
+
+     private static String md5(byte[] bytes) {
+         return Hashing.md5().hashBytes(bytes).toString();
+     }
+
+     // token for authenticating requests which aren't made through JOSS
+     private synchronized String token(boolean renew) {
+         if (authToken == null || renew) {
+             authToken = account.authenticate().getToken();
+         }
+         return authToken;
+     }
+
+     // URL-encode a path segment, encoding spaces as %20 rather than +
+     private static String encode(String pathSegment) {
+         try {
+             return URLEncoder.encode(pathSegment, "UTF-8").replace("+", "%20");
+         } catch (UnsupportedEncodingException e) {
+             return pathSegment;
+         }
      }
 
      /**
@@ -295,18 +1280,18 @@ import com.ibm.storage.storagemanager.util.Util;
      private static String getMetadata(boolean useExtraIndent, Map<?, ?> metadata) {
          String indentString = useExtraIndent ? "    " : "";
 
-         String result = indentString;
+         StringBuilder result = new StringBuilder(indentString);
          if (metadata.isEmpty()) {
-             result += "(there is no metadata)\n";
+             result.append("(there is no metadata)\n");
          } else {
-             result += "Metadata:\n";
+             result.append("Metadata:\n");
              for (Object entry : metadata.entrySet()) {
-                 result += indentString;
-                 result += String.format("  %s: %s%n", ((Map.Entry<?, ?>)entry).getKey(),
-                         ((Map.Entry<?, ?>)entry).getValue());
+                 result.append(indentString);
+                 result.append(String.format("  %s: %s%n", ((Map.Entry<?, ?>)entry).getKey(),
+                         ((Map.Entry<?, ?>)entry).getValue()));
              }
          }
-         return result;
+         return result.toString();
      }
 
      private static void printMetadata(boolean useExtraIndent, Map<?, ?> metadata) {
@@ -327,20 +1312,21 @@ import com.ibm.storage.storagemanager.util.Util;
      
      private static String getContainerObjects(Container container) {
          container.exists();  // certain container operations won't work w/o calling this
-         String result = ("Container size: " + container.getCount()) + "\n";
+         StringBuilder result = new StringBuilder("Container size: " + container.getCount() + "\n");
          if (container.getCount() > 0) {
-             result += "Contents:\n";
-             for (StoredObject object : container.list()) {
-                 result += String.format("  %s%n", object.getName());
-                 if (container.isPublic()) {
-                     result += String.format("    Public URL: %s%n", object.getPublicURL());
+             result.append("Contents:\n");
+             boolean isPublic = container.isPublic();
+             for (StoredObject object : new ContainerListing(container, null)) {
+                 result.append(String.format("  %s%n", object.getName()));
+                 if (isPublic) {
+                     result.append(String.format("    Public URL: %s%n", object.getPublicURL()));
                  }
-                 result += String.format("    Type: %s%n    Size: %s%n    Last modified: %s%n    E-tag: %s%n", object.getContentType(), object.getContentLength(),
-                                   object.getLastModified(), object.getEtag());
-                 result += getMetadata(true, object.getMetadata());
+                 result.append(String.format("    Type: %s%n    Size: %s%n    Last modified: %s%n    E-tag: %s%n", object.getContentType(), object.getContentLength(),
+                                   object.getLastModified(), object.getEtag()));
+                 result.append(getMetadata(true, object.getMetadata()));
              }
          }
-         return result + "\n";
+         return result.append("\n").toString();
      }
      
      private static void listContainerObjects(Container container) {
@@ -348,7 +1334,7 @@ import com.ibm.storage.storagemanager.util.Util;
          System.out.println("Container size: " + container.getCount());
          if (container.getCount() > 0) {
              System.out.println("Contents:");
-             for (StoredObject object : container.list()) {
+             for (StoredObject object : new ContainerListing(container, null)) {
                  System.out.printf("  %s%n", object.getName());
                  if (container.isPublic()) {
                      System.out.printf("    Public URL: %s%n", object.getPublicURL());
@@ -393,7 +1379,7 @@ import com.ibm.storage.storagemanager.util.Util;
      
      private static void test2(KeyValueObjectStorage<String, Integer> os1) {
          os1.printContainerNames();
-         deleteContainer(os1.container);
+         os1.deleteContainer(os1.container);
          System.out.println("containers after deleting test1");
          os1.printContainerNames();
      }
@@ -0,0 +1,659 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.implementations.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.util.Constants;
+import com.ibm.storage.storagemanager.util.Serializer;
+import com.ibm.storage.storagemanager.util.Util;
+
+/**
+ * @author ArunIyengar
+ *
+ * In-process cache which keeps serialized keys and values outside the Java heap, so
+ * that the size of the cache does not affect garbage collection.  Only a value being
+ * returned, and the serialized form of a key or value being looked up or stored, is on
+ * the heap.
+ *
+ * The cache is divided into segments, each with its own lock.  A segment is a direct
+ * ByteBuffer divided into fixed-size blocks; an entry occupies a chain of blocks holding
+ * its serialized key followed by its serialized value.  Each segment also has an
+ * open-addressing hash index in a direct ByteBuffer mapping keys to their first blocks.
+ * When a segment needs space, entries are evicted using the CLOCK algorithm: a hand
+ * sweeps over the blocks, giving entries which have been looked up since the hand last
+ * passed them a second chance and evicting the first entry which has not.
+ *
+ * Direct memory is limited by the JVM option -XX:MaxDirectMemorySize, which defaults to
+ * the maximum heap size, so it usually needs to be set for large caches.
+ */
+public class KeyValueOffHeap<K, V> implements KeyValue<K, V> {
+
+    private static final int DEFAULT_BLOCK_SIZE = 256;
+    private static final int MIN_BLOCK_SIZE = 32;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;  // segments are indexed by int
+    private static final long MIN_SEGMENT_BYTES = 16L << 20;  // smaller caches have fewer segments
+    private static final int MAX_LOCKING_SEGMENTS = 16;  // segments are added for concurrency up to this many
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    private Segment[] segments;
+    private int segmentShift;  // top bits of a key's hash select its segment
+    private int blockSize;
+
+    /**
+     * Constructor.  Blocks are 256 bytes.
+     *
+     * @param maxBytes
+     *            maximum number of bytes of memory used for keys and values
+     *
+     * */
+    public KeyValueOffHeap(long maxBytes) {
+        this(maxBytes, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes
+     *            maximum number of bytes of memory used for keys and values
+     * @param blockBytes
+     *            size of the blocks entries are stored in (values < 32 are treated as 32).
+     *            Each entry wastes half a block on average, and each block has an 8-byte
+     *            header, so the block size should be small compared to large entries but
+     *            not much larger than small ones.
+     *
+     * */
+    public KeyValueOffHeap(long maxBytes, int blockBytes) {
+        blockSize = Math.max(MIN_BLOCK_SIZE, blockBytes);
+        int numSegments = 1;
+        while (maxBytes / numSegments > MAX_SEGMENT_BYTES || (numSegments < MAX_LOCKING_SEGMENTS
+                && maxBytes / (2 * numSegments) >= MIN_SEGMENT_BYTES)) {
+            numSegments *= 2;
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
+        int blocksPerSegment = (int) Math.max(1, maxBytes / numSegments / blockSize);
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment(blocksPerSegment, blockSize);
+        }
+    }
+
+    /**
+     * delete all entries from the cache
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public ReturnStatus clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+        return ReturnStatus.SUCCESS;
+    }
+
+    /**
+     * delete a key-value pair
+     *
+     * @param key
+     *            key corresponding to value
+     *
+     * @return # of objects deleted
+     *
+     * */
+    @Override
+    public int delete(K key) {
+        byte[] keyBytes = Serializer.serializeToByteArray(key);
+        int hash = hash(keyBytes);
+        return segmentFor(hash).delete(hash, keyBytes) ? 1 : 0;
+    }
+
+    /**
+     * delete one or more key-value pairs
+     *
+     * @param keys
+     *            iterable data structure containing the keys to delete
+     *
+     * @return # of objects deleted
+     *
+     * */
+    @Override
+    public int deleteAll(List<K> keys) {
+        return Util.deleteAll(this, keys);
+    }
+
+    /**
+     * look up a value
+     *
+     * @param key
+     *            key corresponding to value
+     * @return value corresponding to key, null if key is not present
+     *
+     * */
+    @Override
+    public V get(K key) {
+        byte[] keyBytes = Serializer.serializeToByteArray(key);
+        int hash = hash(keyBytes);
+        byte[] value = segmentFor(hash).get(hash, keyBytes);
+        if (value == null) {
+            return null;
+        }
+        return Serializer.deserializeFromByteArray(value);
+    }
+
+    /**
+     * look up one or more values.
+     *
+     * @param keys
+     *            iterable data structure containing the keys to look up
+     * @return map containing key-value pairs corresponding to data
+     *
+     * */
+    @Override
+    public Map<K, V> getAll(List<K> keys) {
+        return Util.getAll(this, keys);
+    }
+
+    /**
+     * Return a string idenfitying the type of storage service
+     *
+     * @return string identifying the type of storage service
+     * */
+    @Override
+    public String storeType() {
+        return Constants.OFFHEAP;
+    }
+
+    /**
+     * store a key-value pair, evicting other entries if necessary
+     *
+     * @param key
+     *            key associated with value
+     * @param value
+     *            value associated with key
+     *
+     * @return status code, FAILURE if the serialized key and value are larger than a
+     *         segment of the cache
+     *
+     * */
+    @Override
+    public ReturnStatus put(K key, V value) {
+        byte[] keyBytes = Serializer.serializeToByteArray(key);
+        byte[] valueBytes = Serializer.serializeToByteArray(value);
+        int hash = hash(keyBytes);
+        return segmentFor(hash).put(hash, keyBytes, valueBytes) ? ReturnStatus.SUCCESS : ReturnStatus.FAILURE;
+    }
+
+    /**
+     * store one or more key-value pairs
+     *
+     * @param map
+     *            map containing key-value pairs to store
+     *
+     * @return # of objects stored
+     *
+     * */
+    @Override
+    public int putAll(Map<K, V> map) {
+        return Util.putAll(this, map);
+    }
+
+    /**
+     * Return number of objects in cache
+     *
+     * @return number of stored objects
+     * */
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Return number of bytes of memory for keys and values
+     *
+     * @return capacity in bytes
+     * */
+    public long getCapacity() {
+        return (long) segments.length * segments[0].numBlocks * blockSize;
+    }
+
+    /**
+     * Return number of bytes of memory holding entries, including unused parts of blocks
+     *
+     * @return bytes in use
+     * */
+    public long getUsedBytes() {
+        long used = 0;
+        for (Segment segment : segments) {
+            used += segment.usedBlocks();
+        }
+        return used * blockSize;
+    }
+
+    /**
+     * Return number of bytes of the largest serialized key and value which can be stored
+     * together
+     *
+     * @return maximum entry size in bytes
+     * */
+    public long getMaxEntrySize() {
+        return Segment.payloadCapacity(segments[0].numBlocks, blockSize);
+    }
+
+    public int getNumSegments() {
+        return segments.length;
+    }
+
+    /**
+     * Return number of lookups which found their keys
+     *
+     * @return number of hits
+     * */
+    public long getHitCount() {
+        long hits = 0;
+        for (Segment segment : segments) {
+            hits += segment.hits();
+        }
+        return hits;
+    }
+
+    /**
+     * Return number of lookups which did not find their keys
+     *
+     * @return number of misses
+     * */
+    public long getMissCount() {
+        long misses = 0;
+        for (Segment segment : segments) {
+            misses += segment.misses();
+        }
+        return misses;
+    }
+
+    /**
+     * Return number of entries evicted to make room for others
+     *
+     * @return number of evictions
+     * */
+    public long getEvictionCount() {
+        long evictions = 0;
+        for (Segment segment : segments) {
+            evictions += segment.evictions();
+        }
+        return evictions;
+    }
+
+    /**
+     * Return contents of entire cache in a string
+     *
+     * @return string containing output
+     *
+     * */
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("\nContents of Entire Cache\n\n");
+        for (Segment segment : segments) {
+            segment.appendEntries(result);
+        }
+        result.append("Cache size is: ").append(size()).append("\n");
+        return result.toString();
+    }
+
+    private static int hash(byte[] keyBytes) {
+        return HASH.hashBytes(keyBytes).asInt();
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments.length == 1 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    /*
+     * A segment of the cache.  Blocks are numbered from 0; every block starts with the
+     * number of the next block of its entry (-1 for the last) and flags.  The first block of
+     * an entry also holds the hash of its key and the lengths of its key and value.  Index
+     * slots hold a key hash and 1 + the first block of its entry, 0 for an empty slot.
+     */
+    private static class Segment {
+        private static final int NEXT = 0;
+        private static final int FLAGS = 4;
+        private static final int HASH_FIELD = 8;
+        private static final int KEY_LENGTH = 12;
+        private static final int VALUE_LENGTH = 16;
+        private static final int HEADER = 8;  // header size of blocks after the first
+        private static final int FIRST_HEADER = 20;  // header size of the first block of an entry
+        private static final int FIRST_BLOCK = 1;  // flag marking the first block of an entry
+        private static final int REFERENCED = 2;  // flag set when an entry is looked up
+        private static final int SLOT_SIZE = 8;
+        private static final int INITIAL_SLOTS = 1024;
+        private static final int READ = 0;
+        private static final int WRITE = 1;
+        private static final int COMPARE = 2;
+
+        final int numBlocks;
+        private final int blockSize;
+        private final ByteBuffer data;
+        private final ByteBuffer view;  // positioned for bulk transfers to and from data
+        private ByteBuffer index;
+        private int indexMask;
+        private int count;  // # of entries
+        private int freeList = -1;  // first block of the list of freed blocks
+        private int highWater;  // blocks at or above this have never been used
+        private int numFree;  // freed blocks plus blocks never used
+        private int hand;  // next block examined by the CLOCK hand
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        Segment(int blocks, int blockBytes) {
+            numBlocks = blocks;
+            blockSize = blockBytes;
+            data = ByteBuffer.allocateDirect(numBlocks * blockSize);
+            view = data.duplicate();
+            clear();
+        }
+
+        static long payloadCapacity(int blocks, int blockBytes) {
+            return (blockBytes - FIRST_HEADER) + (long) (blocks - 1) * (blockBytes - HEADER);
+        }
+
+        synchronized void clear() {
+            index = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_SIZE);
+            indexMask = INITIAL_SLOTS - 1;
+            count = 0;
+            freeList = -1;
+            highWater = 0;
+            numFree = numBlocks;
+            hand = 0;
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        synchronized int usedBlocks() {
+            return numBlocks - numFree;
+        }
+
+        synchronized long hits() {
+            return hits;
+        }
+
+        synchronized long misses() {
+            return misses;
+        }
+
+        synchronized long evictions() {
+            return evictions;
+        }
+
+        synchronized byte[] get(int hash, byte[] key) {
+            int slot = find(hash, key);
+            if (slot < 0) {
+                misses++;
+                return null;
+            }
+            hits++;
+            int block = slotBlock(slot);
+            int header = block * blockSize;
+            data.putInt(header + FLAGS, FIRST_BLOCK | REFERENCED);
+            byte[] value = new byte[data.getInt(header + VALUE_LENGTH)];
+            transfer(block, key.length, value, READ);
+            return value;
+        }
+
+        synchronized boolean delete(int hash, byte[] key) {
+            int slot = find(hash, key);
+            if (slot < 0) {
+                return false;
+            }
+            remove(slot);
+            return true;
+        }
+
+        synchronized boolean put(int hash, byte[] key, byte[] value) {
+            int slot = find(hash, key);
+            if (slot >= 0) {
+                remove(slot);
+            }
+            long payload = (long) key.length + value.length;
+            if (payload > payloadCapacity(numBlocks, blockSize)) {
+                return false;
+            }
+            int needed = 1;
+            if (payload > blockSize - FIRST_HEADER) {
+                needed += (int) ((payload - (blockSize - FIRST_HEADER) + blockSize - HEADER - 1)
+                        / (blockSize - HEADER));
+            }
+            while (numFree < needed) {
+                evict();
+            }
+            int first = allocate(needed);
+            int header = first * blockSize;
+            data.putInt(header + FLAGS, FIRST_BLOCK);
+            data.putInt(header + HASH_FIELD, hash);
+            data.putInt(header + KEY_LENGTH, key.length);
+            data.putInt(header + VALUE_LENGTH, value.length);
+            transfer(first, 0, key, WRITE);
+            transfer(first, key.length, value, WRITE);
+            insert(-find(hash, key) - 1, hash, first);
+            return true;
+        }
+
+        synchronized void appendEntries(StringBuilder result) {
+            for (int slot = 0; slot <= indexMask; slot++) {
+                int block = slotBlock(slot);
+                if (block < 0) {
+                    continue;
+                }
+                int header = block * blockSize;
+                byte[] key = new byte[data.getInt(header + KEY_LENGTH)];
+                byte[] value = new byte[data.getInt(header + VALUE_LENGTH)];
+                transfer(block, 0, key, READ);
+                transfer(block, key.length, value, READ);
+                Object cacheKey = Serializer.deserializeFromByteArray(key);
+                Object cacheEntry = Serializer.deserializeFromByteArray(value);
+                result.append("Key: ").append(cacheKey).append("\n");
+                result.append(cacheEntry == null ? "CacheEntry is null" : cacheEntry.toString()).append("\n\n");
+            }
+        }
+
+        // Return the slot holding key, or -(empty slot where it would be inserted) - 1
+        private int find(int hash, byte[] key) {
+            int slot = hash & indexMask;
+            while (true) {
+                int block = slotBlock(slot);
+                if (block < 0) {
+                    return -slot - 1;
+                }
+                if (slotHash(slot) == hash && data.getInt(block * blockSize + KEY_LENGTH) == key.length
+                        && transfer(block, 0, key, COMPARE)) {
+                    return slot;
+                }
+                slot = (slot + 1) & indexMask;
+            }
+        }
+
+        private int slotHash(int slot) {
+            return index.getInt(slot * SLOT_SIZE);
+        }
+
+        private int slotBlock(int slot) {
+            return index.getInt(slot * SLOT_SIZE + 4) - 1;
+        }
+
+        private void setSlot(int slot, int hash, int block) {
+            index.putInt(slot * SLOT_SIZE, hash);
+            index.putInt(slot * SLOT_SIZE + 4, block + 1);
+        }
+
+        private void insert(int slot, int hash, int block) {
+            setSlot(slot, hash, block);
+            count++;
+            if (count > (indexMask + 1) / 4 * 3) {
+                resizeIndex();
+            }
+        }
+
+        private void resizeIndex() {
+            ByteBuffer oldIndex = index;
+            int oldSlots = indexMask + 1;
+            index = ByteBuffer.allocateDirect(2 * oldSlots * SLOT_SIZE);
+            indexMask = 2 * oldSlots - 1;
+            for (int i = 0; i < oldSlots; i++) {
+                int block = oldIndex.getInt(i * SLOT_SIZE + 4) - 1;
+                if (block >= 0) {
+                    int hash = oldIndex.getInt(i * SLOT_SIZE);
+                    int slot = hash & indexMask;
+                    while (slotBlock(slot) >= 0) {
+                        slot = (slot + 1) & indexMask;
+                    }
+                    setSlot(slot, hash, block);
+                }
+            }
+        }
+
+        // delete the entry in slot and free its blocks
+        private void remove(int slot) {
+            free(slotBlock(slot));
+            // shift later entries of the probe sequence back so lookups need no tombstones
+            int empty = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & indexMask;
+                int block = slotBlock(next);
+                if (block < 0) {
+                    break;
+                }
+                int hash = slotHash(next);
+                int home = hash & indexMask;
+                boolean stays = (empty <= next) ? (empty < home && home <= next) : (empty < home || home <= next);
+                if (!stays) {
+                    setSlot(empty, hash, block);
+                    empty = next;
+                }
+            }
+            index.putInt(empty * SLOT_SIZE, 0);
+            index.putInt(empty * SLOT_SIZE + 4, 0);
+            count--;
+        }
+
+        // evict one entry using the CLOCK algorithm.  Called only when count > 0.
+        private void evict() {
+            while (true) {
+                if (hand >= highWater) {
+                    hand = 0;
+                }
+                int block = hand++;
+                int flags = data.getInt(block * blockSize + FLAGS);
+                if ((flags & FIRST_BLOCK) == 0) {
+                    continue;
+                }
+                if ((flags & REFERENCED) != 0) {
+                    data.putInt(block * blockSize + FLAGS, FIRST_BLOCK);
+                    continue;
+                }
+                int slot = data.getInt(block * blockSize + HASH_FIELD) & indexMask;
+                while (slotBlock(slot) != block) {
+                    slot = (slot + 1) & indexMask;
+                }
+                remove(slot);
+                evictions++;
+                return;
+            }
+        }
+
+        // Return first block of a new chain of n blocks
+        private int allocate(int n) {
+            int first = -1;
+            int previous = -1;
+            for (int i = 0; i < n; i++) {
+                int block;
+                if (freeList >= 0) {
+                    block = freeList;
+                    freeList = data.getInt(block * blockSize + NEXT);
+                }
+                else {
+                    block = highWater++;
+                }
+                data.putInt(block * blockSize + NEXT, -1);
+                data.putInt(block * blockSize + FLAGS, 0);
+                if (previous >= 0) {
+                    data.putInt(previous * blockSize + NEXT, block);
+                }
+                else {
+                    first = block;
+                }
+                previous = block;
+            }
+            numFree -= n;
+            return first;
+        }
+
+        private void free(int block) {
+            while (block >= 0) {
+                int next = data.getInt(block * blockSize + NEXT);
+                data.putInt(block * blockSize + FLAGS, 0);
+                data.putInt(block * blockSize + NEXT, freeList);
+                freeList = block;
+                numFree++;
+                block = next;
+            }
+        }
+
+        // Read, write, or compare array against the payload of the entry starting at block,
+        // beginning skip bytes into the payload.  Returns false if a comparison fails.
+        private boolean transfer(int block, int skip, byte[] array, int mode) {
+            int offset = FIRST_HEADER;
+            int room = blockSize - FIRST_HEADER;
+            while (skip >= room) {
+                skip -= room;
+                block = data.getInt(block * blockSize + NEXT);
+                offset = HEADER;
+                room = blockSize - HEADER;
+            }
+            offset += skip;
+            room -= skip;
+            int done = 0;
+            while (done < array.length) {
+                if (room == 0) {
+                    block = data.getInt(block * blockSize + NEXT);
+                    offset = HEADER;
+                    room = blockSize - HEADER;
+                }
+                int n = Math.min(room, array.length - done);
+                int position = block * blockSize + offset;
+                if (mode == COMPARE) {
+                    for (int i = 0; i < n; i++) {
+                        if (data.get(position + i) != array[done + i]) {
+                            return false;
+                        }
+                    }
+                }
+                else {
+                    view.position(position);
+                    if (mode == WRITE) {
+                        view.put(array, done, n);
+                    }
+                    else {
+                        view.get(array, done, n);
+                    }
+                }
+                done += n;
+                offset += n;
+                room -= n;
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,574 @@
+package com.ibm.storage.storagemanager.implementations.redis;
+
+import java.io.Closeable;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.storage.storagemanager.util.Constants;
+import com.ibm.storage.storagemanager.util.Serializer;
+import com.ibm.storage.storagemanager.util.Util;
+
+import redis.clients.jedis.BinaryJedisPubSub;
+import redis.clients.jedis.Jedis;
+
+
+/**
+ * @author ArunIyengar
+ *
+ * Redis cache with a near cache: a bounded in-process copy of recently used values, so
+ * lookups of values which are already local do not need a network round trip.  Every write
+ * or delete made through a KeyValueRedisNearCache is published on a Redis pub/sub channel,
+ * and every KeyValueRedisNearCache using the same channel removes the keys named in messages
+ * from other nodes from its near cache.  Writes made to Redis other than through a
+ * KeyValueRedisNearCache are not seen by near caches until the values are evicted.
+ *
+ * Invalidations arrive asynchronously, so another node can read an old value for the time
+ * it takes a message to be delivered.  A value read from Redis is not cached locally if an
+ * invalidation or local write of the same key happened while it was being read, since it
+ * could be older than the invalidation.  If the subscription is lost, the near cache is
+ * cleared and not used until the subscription is re-established, because invalidations
+ * could have been missed.
+ *
+ * A KeyValueRedisNearCache uses two Redis connections: one for commands, which are
+ * serialized, and one for receiving invalidations on a background thread.
+ */
+public class KeyValueRedisNearCache<K, V> implements com.ibm.storage.storagemanager.interfaces.KeyValue<K, V>,
+        Closeable {
+
+    public static final String DEFAULT_CHANNEL = "storagemanager:invalidations";
+
+    private static final Charset CHARSET = Charset.forName("UTF8");
+    private static final long SUBSCRIBE_WAIT = 5000;  // milliseconds constructor waits for subscription
+    private static final long RESUBSCRIBE_DELAY = 1000;  // milliseconds between attempts to resubscribe
+
+    // Message published for writes of keys, or for a clear if keys is null
+    private static class Invalidation<K> implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String node;
+        final ArrayList<K> keys;
+
+        Invalidation(String node, ArrayList<K> keys) {
+            this.node = node;
+            this.keys = keys;
+        }
+    }
+
+    private KeyValueRedis<K, V> redis;
+    private String host;
+    private int port;
+    private byte[] channel;
+    private String nodeId = UUID.randomUUID().toString();
+    private Cache<K, V> nearCache;
+    private final Object nearCacheLock = new Object();
+    // The following are guarded by nearCacheLock.  A read from Redis only caches a value if
+    // neither its key nor the whole near cache was invalidated after the read started.
+    private long version;  // incremented on every invalidation
+    private long clearedAt;  // version when the whole near cache was last invalidated
+    private Map<K, Integer> numReading = new HashMap<K, Integer>();  // reads from Redis in progress per key
+    private Map<K, Long> invalidatedAt = new HashMap<K, Long>();  // version when keys being read were last invalidated
+    private volatile boolean subscribed;
+    private volatile boolean closed;
+    private volatile Jedis subscriberConnection;
+    private BinaryJedisPubSub listener;
+    private ExecutorService subscriberService = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("redis-near-cache-%d").build());
+    private CountDownLatch firstSubscription = new CountDownLatch(1);
+    private AtomicLong localHits = new AtomicLong();
+    private AtomicLong remoteReads = new AtomicLong();
+    private AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Constructor using the default invalidation channel.  Waits briefly for the
+     * invalidation subscription to be established.
+     *
+     * @param host
+     *            host where Redis is running
+     * @param port
+     *            port number
+     * @param maxObjects
+     *            maximum number of objects which can be stored in the near cache before
+     *            replacement starts
+     *
+     * */
+    public KeyValueRedisNearCache(String host, int port, long maxObjects) {
+        this(host, port, maxObjects, DEFAULT_CHANNEL);
+    }
+
+    /**
+     * Constructor.  Waits briefly for the invalidation subscription to be established.
+     *
+     * @param host
+     *            host where Redis is running
+     * @param port
+     *            port number
+     * @param maxObjects
+     *            maximum number of objects which can be stored in the near cache before
+     *            replacement starts
+     * @param channelName
+     *            pub/sub channel for invalidations, shared by all near caches of the same data
+     *
+     * */
+    public KeyValueRedisNearCache(String host, int port, long maxObjects, String channelName) {
+        this.host = host;
+        this.port = port;
+        redis = new KeyValueRedis<K, V>(host, port);
+        channel = Serializer.serializeString(channelName, CHARSET);
+        nearCache = CacheBuilder.newBuilder().maximumSize(maxObjects).build();
+        listener = new BinaryJedisPubSub() {
+            @Override
+            public void onSubscribe(byte[] channel, int subscribedChannels) {
+                synchronized (nearCacheLock) {
+                    // values being read from before the subscription could have missed invalidations
+                    invalidateEverything();
+                    subscribed = true;
+                }
+                firstSubscription.countDown();
+            }
+
+            @Override
+            public void onMessage(byte[] channel, byte[] message) {
+                invalidate(message);
+            }
+        };
+        subscriberService.execute(new Runnable() {
+            @Override
+            public void run() {
+                listen();
+            }
+        });
+        try {
+            firstSubscription.await(SUBSCRIBE_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * delete all key-value pairs from the current database and all near caches
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public ReturnStatus clear() {
+        synchronized (redis) {
+            ReturnStatus status = redis.clear();
+            publish(null);
+            synchronized (nearCacheLock) {
+                invalidateEverything();
+            }
+            return status;
+        }
+    }
+
+    /**
+     * Stop listening for invalidations and close the Redis connections
+     *
+     * */
+    @Override
+    public void close() {
+        closed = true;
+        if (listener.isSubscribed()) {
+            listener.unsubscribe();
+        }
+        subscriberService.shutdownNow();
+        try {
+            subscriberService.awaitTermination(SUBSCRIBE_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Jedis connection = subscriberConnection;
+        if (connection != null) {
+            connection.close();
+        }
+        synchronized (redis) {
+            redis.close();
+        }
+    }
+
+    /**
+     * delete a key-value pair from Redis and all near caches
+     *
+     * @param key
+     *            key corresponding to value
+     *
+     * @return # of objects deleted
+     *
+     * */
+    @Override
+    public int delete(K key) {
+        synchronized (redis) {
+            int numDeleted = redis.delete(key);
+            ArrayList<K> keys = new ArrayList<K>();
+            keys.add(key);
+            publish(keys);
+            synchronized (nearCacheLock) {
+                invalidateKeys(keys);
+            }
+            return numDeleted;
+        }
+    }
+
+    /**
+     * delete one or more key-value pairs from Redis and all near caches
+     *
+     * @param keys
+     *            iterable data structure containing the keys to delete
+     *
+     * @return # of objects deleted
+     *
+     * */
+    @Override
+    public int deleteAll(List<K> keys) {
+        synchronized (redis) {
+            int numDeleted = redis.deleteAll(keys);
+            publish(new ArrayList<K>(keys));
+            synchronized (nearCacheLock) {
+                invalidateKeys(keys);
+            }
+            return numDeleted;
+        }
+    }
+
+    /**
+     * look up a value in the near cache, or in Redis if it is not in the near cache
+     *
+     * @param key
+     *            key corresponding to value
+     * @return value corresponding to key, null if key is not in cache or if
+     *         value is expired
+     *
+     * */
+    @Override
+    public V get(K key) {
+        if (subscribed) {
+            V value = nearCache.getIfPresent(key);
+            if (value != null) {
+                localHits.incrementAndGet();
+                return value;
+            }
+        }
+        remoteReads.incrementAndGet();
+        List<K> keys = new ArrayList<K>();
+        keys.add(key);
+        Map<K, V> values = new HashMap<K, V>();
+        long startVersion = startRead(keys);
+        try {
+            V value;
+            synchronized (redis) {
+                value = redis.get(key);
+            }
+            if (value != null) {
+                values.put(key, value);
+            }
+            return value;
+        } finally {
+            finishRead(keys, startVersion, values);
+        }
+    }
+
+    /**
+     * look up one or more values, in the near cache where possible
+     *
+     * @param keys
+     *            iterable data structure containing the keys to look up
+     * @return map containing key-value pairs corresponding to data in
+     *         the cache
+     *
+     * */
+    @Override
+    public Map<K, V> getAll(List<K> keys) {
+        Map<K, V> result = new HashMap<K, V>();
+        List<K> remoteKeys = new ArrayList<K>();
+        for (K key : keys) {
+            V value = subscribed ? nearCache.getIfPresent(key) : null;
+            if (value != null) {
+                localHits.incrementAndGet();
+                result.put(key, value);
+            }
+            else {
+                remoteKeys.add(key);
+            }
+        }
+        if (remoteKeys.isEmpty()) {
+            return result;
+        }
+        remoteReads.addAndGet(remoteKeys.size());
+        Map<K, V> values = new HashMap<K, V>();
+        long startVersion = startRead(remoteKeys);
+        try {
+            synchronized (redis) {
+                values = redis.getAll(remoteKeys);
+            }
+            result.putAll(values);
+            return result;
+        } finally {
+            finishRead(remoteKeys, startVersion, values);
+        }
+    }
+
+    /**
+     * Return KeyValueRedis object used for commands.  Writes made directly to it are not
+     * published to near caches.
+     *
+     * @return KeyValueRedis object
+     * */
+    public KeyValueRedis<K, V> getRedis() {
+        return redis;
+    }
+
+    /**
+     * store a key-value pair in Redis and the near cache, and remove it from other near caches
+     *
+     * @param key
+     *            key associated with value
+     * @param value
+     *            value associated with key
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public ReturnStatus put(K key, V value) {
+        synchronized (redis) {
+            ReturnStatus status = redis.put(key, value);
+            ArrayList<K> keys = new ArrayList<K>();
+            keys.add(key);
+            publish(keys);
+            synchronized (nearCacheLock) {
+                invalidateKeys(keys);
+                if (status == ReturnStatus.SUCCESS && subscribed) {
+                    nearCache.put(key, value);
+                }
+            }
+            return status;
+        }
+    }
+
+    /**
+     * store one or more key-value pairs in Redis and the near cache, and remove them from
+     * other near caches
+     *
+     * @param map
+     *            map containing key-value pairs to store
+     *
+     * @return # of objects stored
+     *
+     * */
+    @Override
+    public int putAll(Map<K, V> map) {
+        synchronized (redis) {
+            int numStored = redis.putAll(map);
+            publish(new ArrayList<K>(map.keySet()));
+            synchronized (nearCacheLock) {
+                invalidateKeys(map.keySet());
+                if (numStored == map.size() && subscribed) {
+                    nearCache.putAll(map);
+                }
+            }
+            return numStored;
+        }
+    }
+
+    /**
+     * Return a string idenfitying the type of storage service
+     *
+     * @return string identifying the type of storage service
+     * */
+    @Override
+    public String storeType() {
+        return Constants.REDIS;
+    }
+
+    /**
+     * Return number of objects in Redis
+     *
+     * */
+    @Override
+    public long size() {
+        synchronized (redis) {
+            return redis.size();
+        }
+    }
+
+    /**
+     * Return number of objects in the near cache
+     *
+     * @return number of objects
+     * */
+    public long getNearCacheSize() {
+        return nearCache.size();
+    }
+
+    /**
+     * Return number of key lookups answered from the near cache
+     *
+     * @return number of lookups
+     * */
+    public long getLocalHits() {
+        return localHits.get();
+    }
+
+    /**
+     * Return number of key lookups sent to Redis
+     *
+     * @return number of lookups
+     * */
+    public long getRemoteReads() {
+        return remoteReads.get();
+    }
+
+    /**
+     * Return number of invalidation messages received from other nodes
+     *
+     * @return number of messages
+     * */
+    public long getNumInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Return whether invalidations are being received, so that the near cache is in use
+     *
+     * @return true if subscribed to the invalidation channel
+     * */
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    /**
+     * Output contents of current database to a string.
+     *
+     * @return string containing output
+     *
+     * */
+    @Override
+    public String toString() {
+        synchronized (redis) {
+            return redis.toString();
+        }
+    }
+
+    // record that keys are being read from Redis, returning the version when the read started
+    private long startRead(List<K> keys) {
+        synchronized (nearCacheLock) {
+            for (K key : keys) {
+                Integer count = numReading.get(key);
+                numReading.put(key, (count == null) ? 1 : count + 1);
+            }
+            return version;
+        }
+    }
+
+    // cache values read from Redis whose keys have not been invalidated since the read started
+    private void finishRead(List<K> keys, long startVersion, Map<K, V> values) {
+        synchronized (nearCacheLock) {
+            for (K key : keys) {
+                Long keyInvalidatedAt = invalidatedAt.get(key);
+                V value = values.get(key);
+                if (value != null && subscribed && clearedAt <= startVersion
+                        && (keyInvalidatedAt == null || keyInvalidatedAt <= startVersion)) {
+                    nearCache.put(key, value);
+                }
+                int count = numReading.get(key);
+                if (count == 1) {
+                    numReading.remove(key);
+                    invalidatedAt.remove(key);
+                }
+                else {
+                    numReading.put(key, count - 1);
+                }
+            }
+        }
+    }
+
+    // remove keys from the near cache, and keep reads of them in progress from caching
+    // values.  Called with nearCacheLock held.
+    private void invalidateKeys(Iterable<K> keys) {
+        version++;
+        for (K key : keys) {
+            nearCache.invalidate(key);
+            if (numReading.containsKey(key)) {
+                invalidatedAt.put(key, version);
+            }
+        }
+    }
+
+    // remove everything from the near cache, and keep all reads in progress from caching
+    // values.  Called with nearCacheLock held.
+    private void invalidateEverything() {
+        version++;
+        clearedAt = version;
+        nearCache.invalidateAll();
+    }
+
+    // publish an invalidation of keys, or of everything if keys is null.  Called with the
+    // command connection locked.
+    private void publish(ArrayList<K> keys) {
+        try {
+            redis.getDatabase().publish(channel, Serializer.serializeToByteArray(new Invalidation<K>(nodeId, keys)));
+        } catch (RuntimeException e) {
+            Util.describeException(e, "KeyValueRedisNearCache: failed to publish invalidation");
+        }
+    }
+
+    private void invalidate(byte[] message) {
+        Invalidation<K> invalidation = Serializer.deserializeFromByteArray(message);
+        if (invalidation == null || nodeId.equals(invalidation.node)) {
+            return;
+        }
+        invalidations.incrementAndGet();
+        synchronized (nearCacheLock) {
+            if (invalidation.keys == null) {
+                invalidateEverything();
+            }
+            else {
+                invalidateKeys(invalidation.keys);
+            }
+        }
+    }
+
+    // receive invalidations until closed, resubscribing after a lost connection
+    private void listen() {
+        while (!closed) {
+            try {
+                subscriberConnection = new Jedis(host, port);
+                subscriberConnection.subscribe(listener, channel);
+            } catch (RuntimeException e) {
+                if (!closed) {
+                    System.out.println("KeyValueRedisNearCache: lost invalidation subscription: " + e.getMessage());
+                }
+            } finally {
+                // empty the near cache before it is seen to be unused, so it can't be seen
+                // holding values while invalidations could be missed
+                synchronized (nearCacheLock) {
+                    invalidateEverything();
+                    subscribed = false;
+                }
+                subscriberConnection.close();
+            }
+            if (!closed) {
+                try {
+                    Thread.sleep(RESUBSCRIBE_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * 
+ */
+package com.ibm.storage.storagemanager.implementations.sql;
+
+import static com.ibm.storage.storagemanager.util.Constants.NUM_UNKNOWN;
+
+/**
+ * @author ArunIyengar
+ * 
+ * SQL dialect for the H2 embedded database.  An H2 database is identified by its URL,
+ * so there is no separate server-level connection; the root connection and the database
+ * connection both go to the same database.  Base URLs look like "jdbc:h2:mem:" or
+ * "jdbc:h2:./database/", and the database name is appended to them.
+ */
+public class H2Dialect implements SQLDialect {
+
+    static final String URL_PREFIX = "jdbc:h2:";
+    private static final String MEMORY_PREFIX = "jdbc:h2:mem:";
+
+    // keeps an in-memory database alive after its last connection is closed 
+    private static final String KEEP_OPEN = ";DB_CLOSE_DELAY=-1";
+
+    @Override
+    public String rootUrl(String baseUrl, String dbName) {
+        return databaseUrl(baseUrl, dbName);
+    }
+
+    @Override
+    public String databaseUrl(String baseUrl, String dbName) {
+        if (baseUrl.startsWith(MEMORY_PREFIX)) {
+            return baseUrl + dbName + KEEP_OPEN;
+        }
+        return baseUrl + dbName;
+    }
+
+    @Override
+    public String createDatabase(String dbName) {
+        return null;
+    }
+
+    @Override
+    public String dropDatabase(String dbName) {
+        return null;
+    }
+
+    @Override
+    public String createTable(String tblName, String keyColumn, int maxKeySize, String valueColumn) {
+        return "CREATE TABLE " + tblName + 
+                " (" + keyColumn + " VARCHAR(" + maxKeySize + ") NOT NULL," +
+                " " + valueColumn + " BLOB, " +
+                "PRIMARY KEY (" + keyColumn + "))";
+    }
+
+    @Override
+    public String truncateTable(String tblName) {
+        return "TRUNCATE TABLE " + tblName;
+    }
+
+    @Override
+    public String upsert(String tblName, String keyColumn, String valueColumn) {
+        return "MERGE INTO " + tblName + 
+                " (" + keyColumn + ", " + valueColumn + ") KEY (" + keyColumn + ") VALUES (?, ?)";
+    }
+
+    @Override
+    public String approximateRowCount() {
+        return "SELECT ROW_COUNT_ESTIMATE FROM INFORMATION_SCHEMA.TABLES " +
+                "WHERE TABLE_SCHEMA = SCHEMA() AND TABLE_NAME = ?";
+    }
+
+    // MERGE returns 1 whether the row was inserted or updated
+    @Override
+    public int rowsInserted(int updateCount) {
+        return NUM_UNKNOWN;
+    }
+
+    @Override
+    public String name() {
+        return "h2";
+    }
+
+}
@@ -2,16 +2,32 @@ package com.ibm.storage.storagemanager.implementations.sql;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.ibm.storage.storagemanager.util.Constants;
 import com.ibm.storage.storagemanager.util.Serializer;
 import com.ibm.storage.storagemanager.util.Util;
@@ -24,21 +40,70 @@ import static com.ibm.storage.storagemanager.util.Constants.NUM_UNKNOWN;
  */
 public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfaces.KeyValue<K, V> {
 
+    /**
+     * Determines how size() counts stored objects
+     * 
+     * EXACT: count rows with SELECT COUNT(*), which scans an index
+     * APPROXIMATE: use the row estimate from table statistics
+     * CACHED: maintain a counter as objects are stored and deleted, reconciled with an
+     *         exact count once the reconcile interval has passed.  With MySQL, inserts are
+     *         only counted by a MySQLDialect constructed with useAffectedRows true;
+     *         otherwise the counter is stale after each put and size() counts rows exactly
+     * 
+     * */
+    public enum SizeMode {
+        EXACT,
+        APPROXIMATE,
+        CACHED
+    }
+
     private static final String COLUMN1_NAME = "id_string";  // name of 1st column in database
     private static final String COLUMN2_NAME = "value_byte_array";  // name of 2nd column in database
     
     private static final int MAX_KEY_SIZE = 200;  // maximum length of a key
 
+    private static final int MAX_BATCH_SIZE = 500;  // maximum # of keys in one batched statement
+
+    private static final int MAX_DISPLAYED_VALUE_SIZE = 65536;  // larger values are not deserialized
+                                                               // by toString
+    
+    private static final int PIPE_SIZE = 65536;  // buffer size in bytes for values stored by putStreamed
+
+    private static final String PARTITION_SUFFIX = "_p";  // partition tables are named tableName_p0, 
+                                                        // tableName_p1, ...
+
+    private static final long DEFAULT_RECONCILE_INTERVAL = 60000;  // milliseconds between exact counts
+                                                                 // in SizeMode.CACHED
+
     private String baseUrl;
     private String dbName;
     private String dbUrl;
+    private SQLDialect dialect;
     private String password;
+    private String rootUrl;
     private String tableName;
     private String userId;
 
     private Connection rootConnection = null;
     private Connection dbConnection = null;
 
+    private int numPartitions = 1;  // # of tables the keys are hashed across
+    private String[] partitionTables;  // table storing each partition
+    private Connection[] partitionConnections;  // connection for batched requests to each partition,
+                                                // only used if numPartitions > 1
+    private volatile ExecutorService partitionService;  // runs batched requests on partitions in parallel,
+                                                       // null while connections are closed
+
+    private int connectionPoolSize = 1;  // # of connections for single-key requests
+    private BlockingQueue<Connection> connectionPool;  // idle connections for single-key requests, 
+                                                       // only used if connectionPoolSize > 1
+
+    private SizeMode sizeMode = SizeMode.EXACT;
+    private long reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+    private AtomicLong cachedSize = new AtomicLong();  // object count in SizeMode.CACHED
+    private volatile long lastReconcileTime = 0;  // time cachedSize was last set from an exact count
+    private volatile boolean sizeStale = true;  // true if cachedSize can no longer be trusted
+
     /**
      * Constructor. Establishes a session with a Key-value store, reading in credentials from a file.
      * 
@@ -60,11 +125,10 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
         }
         dbName = Util.getNextWord(input);
         baseUrl = Util.getNextWord(input);
-        dbUrl = baseUrl + dbName;
         userId = Util.getNextWord(input);
         password = Util.getNextWord(input);
         tableName = tblName;
-        initialize(clearAll);
+        initialize(SQLDialect.forUrl(baseUrl), clearAll);
     }
     
     /**
@@ -83,16 +147,77 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
      */
     public KeyValueSQL(String tblName, String databaseName, String url, String userName, String passWord,
             boolean clearAll) {
+        this(tblName, databaseName, url, userName, passWord, SQLDialect.forUrl(url), clearAll);
+    }
+
+    /**
+     * Constructor. Establishes a session with a Key-value store using a specific SQL dialect.
+     * 
+     * @param tableName
+     *            identifies the table name for the key-value pairs
+     * @param databaseName
+     *            database name
+     * @param url
+     *            base URL for the data service
+     * @param userName
+     *            user name for authentication
+     * @param passWord
+     *            password
+     * @param sqlDialect
+     *            SQL dialect of the database engine, e.g. MySQLDialect or H2Dialect
+     * @param clearAll
+     *            true if all previous table entries should be deleted
+     */
+    public KeyValueSQL(String tblName, String databaseName, String url, String userName, String passWord,
+            SQLDialect sqlDialect, boolean clearAll) {
+        this(tblName, databaseName, url, userName, passWord, sqlDialect, 1, clearAll);
+    }
+
+    /**
+     * Constructor. Establishes a session with a Key-value store whose keys are split by hash
+     * across multiple tables.  Batched requests (getAll, putAll, deleteAll) run on the
+     * partitions in parallel, each over its own connection.
+     * 
+     * @param tableName
+     *            identifies the table name for the key-value pairs.  If partitions > 1, the
+     *            partitions are stored in tables tableName_p0, tableName_p1, ...
+     * @param databaseName
+     *            database name
+     * @param url
+     *            base URL for the data service
+     * @param userName
+     *            user name for authentication
+     * @param passWord
+     *            password
+     * @param sqlDialect
+     *            SQL dialect of the database engine, e.g. MySQLDialect or H2Dialect
+     * @param partitions
+     *            number of tables to split keys across (values < 1 are treated as 1)
+     * @param clearAll
+     *            true if all previous table entries should be deleted
+     */
+    public KeyValueSQL(String tblName, String databaseName, String url, String userName, String passWord,
+            SQLDialect sqlDialect, int partitions, boolean clearAll) {
         dbName = databaseName;
         baseUrl = url;
-        dbUrl = baseUrl + dbName;
         userId = userName;
         password = passWord;
         tableName = tblName;
-        initialize(clearAll);
+        numPartitions = Math.max(partitions, 1);
+        initialize(sqlDialect, clearAll);
     }
         
-    private void initialize(boolean clearAll) {
+    private void initialize(SQLDialect sqlDialect, boolean clearAll) {
+        dialect = sqlDialect;
+        partitionTables = new String[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            partitionTables[i] = (numPartitions == 1) ? tableName : tableName + PARTITION_SUFFIX + i;
+        }
+        if (numPartitions > 1) {
+            partitionConnections = new Connection[numPartitions];
+        }
+        rootUrl = dialect.rootUrl(baseUrl, dbName);
+        dbUrl = dialect.databaseUrl(baseUrl, dbName);
         /*
          * Following is only required before JDBC version 4
         final String JDBC_DRIVER = "com.mysql.jdbc.Driver";
@@ -105,9 +230,9 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
         }
         System.out.println("MySQL JDBC Driver Registered");
         */
-        rootConnection = openConnection(baseUrl);
+        rootConnection = openConnection(rootUrl);
         if (rootConnection == null) {
-            System.out.println("Error: could not connect to " + baseUrl);
+            System.out.println("Error: could not connect to " + rootUrl);
             return;
         }
         createDatabase(dbName);
@@ -116,7 +241,10 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
             System.out.println("Error: could not connect to " + dbUrl);
             return;
         }
-        System.out.println("Return value from createTable: " + createTable(tableName, clearAll));
+        for (String table : partitionTables) {
+            System.out.println("Return value from createTable: " + createTable(table, clearAll));
+        }
+        openPartitionConnections();
         printDatabaseInfo();
         
     }
@@ -173,12 +301,112 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
         }
     }
     
+    private boolean openPartitionConnections() {
+        if (numPartitions == 1) {
+            return true;
+        }
+        partitionService = Executors.newFixedThreadPool(numPartitions,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(tableName + "-partition-%d").build());
+        for (int i = 0; i < numPartitions; i++) {
+            partitionConnections[i] = openConnection(dbUrl);
+            if (partitionConnections[i] == null) {
+                System.out.println("Error: could not connect to " + dbUrl + " for partition " + i);
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Set number of connections used for single-key requests (get, put, delete, and their
+     * streamed variants).  With a pool of n connections, up to n of these requests can run on
+     * the database at the same time, for example when the store is accessed through an
+     * AsyncKeyValue created with n as its maximum number of requests in flight.  Otherwise,
+     * all single-key requests share one connection.  This should be called before the store
+     * is accessed by multiple threads.
+     * 
+     * @param size
+     *            number of connections (values < 1 are treated as 1)
+     * @return true if all connections were opened, false otherwise
+     * 
+     * */
+    public boolean setConnectionPoolSize(int size) {
+        closeConnectionPool();
+        connectionPoolSize = Math.max(size, 1);
+        return openConnectionPool();
+    }
+
+    /**
+     * Return number of connections used for single-key requests
+     * 
+     * @return connection pool size
+     * 
+     * */
+    public int getConnectionPoolSize() {
+        return connectionPoolSize;
+    }
+
+    private boolean openConnectionPool() {
+        if (connectionPoolSize == 1) {
+            connectionPool = null;
+            return true;
+        }
+        connectionPool = new ArrayBlockingQueue<Connection>(connectionPoolSize);
+        for (int i = 0; i < connectionPoolSize; i++) {
+            Connection connection = openConnection(dbUrl);
+            if (connection == null) {
+                System.out.println("Error: could not open pooled connection to " + dbUrl);
+                return false;
+            }
+            connectionPool.add(connection);
+        }
+        return true;
+    }
+
+    private void closeConnectionPool() {
+        if (connectionPool == null) {
+            return;
+        }
+        for (Connection connection : connectionPool) {
+            try {
+                connection.close();
+            } catch (SQLException se) {
+                System.out.println("Error: in closeConnectionPool: Connection failed to close");
+                se.printStackTrace();
+            }
+        }
+        connectionPool = null;
+    }
+
+    // Return a connection for a single-key request.  The connection must be given back by
+    // releaseConnection.  The shared connection is never handed out in place of a pooled one,
+    // since it may be in use by another thread.
+    private Connection borrowConnection() throws SQLException {
+        BlockingQueue<Connection> pool = connectionPool;
+        if (pool == null) {
+            return dbConnection;
+        }
+        try {
+            return pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a pooled connection", e);
+        }
+    }
+
+    private void releaseConnection(Connection connection) {
+        BlockingQueue<Connection> pool = connectionPool;
+        if (pool != null && connection != null && connection != dbConnection) {
+            pool.offer(connection);
+        }
+    }
+
     // Reset connections, if needed
     public boolean resetConnections() {
         closeConnections();
-        rootConnection = openConnection(baseUrl);
+        rootConnection = openConnection(rootUrl);
         if (rootConnection == null) {
-            System.out.println("Error: could not connect to " + baseUrl);
+            System.out.println("Error: could not connect to " + rootUrl);
             return false;
         }
         dbConnection = openConnection(dbUrl);
@@ -186,13 +414,25 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
             System.out.println("Error: could not connect to " + dbUrl);
             return false;
         }
-        return true;
+        return openPartitionConnections() && openConnectionPool();
     }
     
     public boolean closeConnections() {
+        closeConnectionPool();
+        if (partitionService != null) {
+            partitionService.shutdown();
+            partitionService = null;
+        }
         try {
             rootConnection.close();
             dbConnection.close();
+            if (numPartitions > 1) {
+                for (Connection connection : partitionConnections) {
+                    if (connection != null) {
+                        connection.close();
+                    }
+                }
+            }
             return true;
         } catch (SQLException se) {
             System.out.println("Error: in closeConnections: Connection failed to close");
@@ -202,6 +442,16 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
 
     }
     
+    /**
+     * Return SQL dialect used to generate engine-specific statements
+     * 
+     * @return SQL dialect
+     * 
+     * */
+    public SQLDialect getDialect() {
+        return dialect;
+    }
+
     private static boolean executeStatement(String sql, Connection connection) {
         try {
             try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
@@ -217,11 +467,20 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
     }
     
     public boolean createDatabase(String dbName) {
-        return executeStatement ("CREATE DATABASE IF NOT EXISTS " + dbName, rootConnection);        
+        String sql = dialect.createDatabase(dbName);
+        if (sql == null) {  // database is created when it is first connected to
+            return true;
+        }
+        return executeStatement (sql, rootConnection);        
     }
     
     public boolean dropDatabase(String dbName) {
-        return executeStatement ("DROP DATABASE IF EXISTS " + dbName, rootConnection);
+        String sql = dialect.dropDatabase(dbName);
+        if (sql == null) {
+            System.out.println("Error.  dropDatabase not supported for " + dialect.name());
+            return false;
+        }
+        return executeStatement (sql, rootConnection);
     }
 
     public boolean dropTable(String tblName) {
@@ -233,22 +492,15 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
     // return true if there are no sql exceptions caught
     public boolean createTable(String tblName, boolean removeAll) {
         try {
-            try (ResultSet tables = getMetaInfo().getTables(null, null, tblName, null)) {
+            try (ResultSet tables = getMetaInfo().getTables(null, null, storedName(tblName), null)) {
                 // ResultSet tables = getMetaInfo().getTables(null, null, tblName, null);
                 if (!tables.next()) {  // if table does not exist
-                    String sql = "CREATE TABLE " + tblName + 
-                            " (" + COLUMN1_NAME + " VARCHAR(" + MAX_KEY_SIZE + ") NOT NULL," +
-                            " " + COLUMN2_NAME + " LONGBLOB, " +
-                            "PRIMARY KEY (" + COLUMN1_NAME + "))";
+                    String sql = dialect.createTable(tblName, COLUMN1_NAME, MAX_KEY_SIZE, COLUMN2_NAME);
                     return executeStatement(sql, dbConnection);
                 }
                 else if (removeAll) {
-                    if (clear() == ReturnStatus.SUCCESS) {
-                        return true;
-                    }
-                    else {
-                        return false;
-                    }
+                    sizeStale = true;
+                    return executeStatement(dialect.truncateTable(tblName), dbConnection);
                 }
                 else {
                     return true;
@@ -262,6 +514,13 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
     }
     
 
+    // return name under which the database stores an unquoted identifier
+    private String storedName(String identifier) throws SQLException {
+        if (getMetaInfo().storesUpperCaseIdentifiers()) {
+            return identifier.toUpperCase();
+        }
+        return identifier;
+    }
     
     public void listTables() {
         System.out.println("Tables in database " + dbName);
@@ -279,24 +538,7 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
     }
 
     public void displayTable() {
-        System.out.println("Contents of table " + tableName);        
-        String sql = "SELECT * FROM " + tableName;
-        try {
-            try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    while (rs.next()) {
-                        String key = rs.getString(COLUMN1_NAME);
-                        byte[] array = rs.getBytes(COLUMN2_NAME);
-                        V value = Serializer.deserializeFromByteArray(array);
-                        System.out.println(key + ", " + value);
-                    }
-                }
-            }
-        }  catch (SQLException se) {
-            System.out.println("Error.  listTables failed.\n");
-            se.printStackTrace();
-        }
-        System.out.println("End of table " + tableName + "\n");        
+        System.out.print(toString());
     }
     
     
@@ -308,17 +550,15 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
      * */
    @Override
    public ReturnStatus clear() {
-       String sql = "DELETE FROM " + tableName;
-       try {
-           try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
-               pstmt.executeUpdate();
-               return ReturnStatus.SUCCESS;
+       for (String table : partitionTables) {
+           if (!executeStatement(dialect.truncateTable(table), dbConnection)) {
+               System.out.println("Error.  clear failed.\n");
+               sizeStale = true;
+               return ReturnStatus.FAILURE;
            }
-       }  catch (SQLException se) {
-           System.out.println("Error.  clear failed.\n");
-           se.printStackTrace();
-           return ReturnStatus.FAILURE;
        }
+       resetCachedSize(0);
+       return ReturnStatus.SUCCESS;
     }
 
     /**
@@ -332,17 +572,23 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
      * */
     @Override
     public int delete(K key) {
-        String sql = "DELETE FROM " + tableName +
+        String sql = "DELETE FROM " + partitionTable(key) +
                 " WHERE " + COLUMN1_NAME + " = ?";
+        Connection connection = null;
         try {
-            try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
+            connection = borrowConnection();
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
                 pstmt.setString(1, (String) key);
-                return pstmt.executeUpdate();
+                int numDeleted = pstmt.executeUpdate();
+                cachedSize.addAndGet(-numDeleted);
+                return numDeleted;
             }
         }  catch (SQLException se) {
             System.out.println("Error.  clear failed.\n");
             se.printStackTrace();
             return 0;
+        } finally {
+            releaseConnection(connection);
         }
     }
 
@@ -355,10 +601,48 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
      * @return # of objects deleted, NUM_UNKNOWN if unknown
      * 
      * */
-    // Could make this more efficient using DELETE FROM table WHERE id IN (?,?,?,?,?,?,?,?)
     @Override
     public int deleteAll(List<K> keys) {
-        return Util.deleteAll(this, keys);
+        List<List<K>> partitionedKeys = partitionKeys(keys);
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < numPartitions; i++) {
+            final int partition = i;
+            final List<K> partitionKeys = partitionedKeys.get(i);
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return deleteBatch(partitionConnection(partition), partitionTables[partition], partitionKeys);
+                }
+            });
+        }
+        int numDeleted = 0;
+        for (Integer result : runOnPartitions(tasks)) {
+            if (result == null) {
+                return NUM_UNKNOWN;
+            }
+            numDeleted += result;
+        }
+        return numDeleted;
+    }
+
+    // delete keys from a single table using DELETE ... WHERE id IN (?, ?, ...)
+    private int deleteBatch(Connection connection, String table, List<K> keys) {
+        int numDeleted = 0;
+        for (int start = 0; start < keys.size(); start += MAX_BATCH_SIZE) {
+            List<K> chunk = keys.subList(start, Math.min(start + MAX_BATCH_SIZE, keys.size()));
+            String sql = "DELETE FROM " + table +
+                    " WHERE " + COLUMN1_NAME + " IN (" + placeholders(chunk.size()) + ")";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                setKeys(pstmt, chunk);
+                int deleted = pstmt.executeUpdate();
+                cachedSize.addAndGet(-deleted);
+                numDeleted += deleted;
+            }  catch (SQLException se) {
+                System.out.println("Error.  deleteAll failed: " + sql);
+                se.printStackTrace();
+            }
+        }
+        return numDeleted;
     }
 
     /**
@@ -371,10 +655,12 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
      * */
     @Override
     public V get(K key) {
-        String sql = "SELECT " + COLUMN2_NAME + " FROM " + tableName +
+        String sql = "SELECT " + COLUMN2_NAME + " FROM " + partitionTable(key) +
                 " WHERE " + COLUMN1_NAME + " = ?";
+        Connection connection = null;
         try {
-            try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
+            connection = borrowConnection();
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
                 pstmt.setString(1, (String) key);
                 try (ResultSet rs = pstmt.executeQuery()) {
                     if (rs.next()) {
@@ -391,6 +677,43 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
             System.out.println("Error.  get failed.\n");
             se.printStackTrace();
             return null;
+        } finally {
+            releaseConnection(connection);
+        }
+    }
+
+    /**
+     * look up a value, deserializing it as it is read from the database rather than first
+     * copying it into a byte array.  This reduces memory usage for large values.
+     * 
+     * @param key
+     *            key corresponding to value
+     * @return value corresponding to key, null if key is not present
+     * 
+     * */
+    public V getStreamed(K key) {
+        String sql = "SELECT " + COLUMN2_NAME + " FROM " + partitionTable(key) +
+                " WHERE " + COLUMN1_NAME + " = ?";
+        Connection connection = null;
+        try {
+            connection = borrowConnection();
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setString(1, (String) key);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    try (InputStream stream = rs.getBinaryStream(1)) {
+                        return Serializer.deserializeFromStream(stream);
+                    }
+                }
+            }
+        }  catch (SQLException | IOException e) {
+            System.out.println("Error.  getStreamed failed.\n");
+            e.printStackTrace();
+            return null;
+        } finally {
+            releaseConnection(connection);
         }
     }
 
@@ -404,7 +727,51 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
      * */
     @Override
     public Map<K, V> getAll(List<K> keys) {
-        return Util.getAll(this, keys);
+        List<List<K>> partitionedKeys = partitionKeys(keys);
+        List<Callable<Map<K, V>>> tasks = new ArrayList<Callable<Map<K, V>>>();
+        for (int i = 0; i < numPartitions; i++) {
+            final int partition = i;
+            final List<K> partitionKeys = partitionedKeys.get(i);
+            tasks.add(new Callable<Map<K, V>>() {
+                @Override
+                public Map<K, V> call() {
+                    return getBatch(partitionConnection(partition), partitionTables[partition], partitionKeys);
+                }
+            });
+        }
+        Map<K, V> hashMap = new HashMap<K, V>();
+        for (Map<K, V> result : runOnPartitions(tasks)) {
+            if (result != null) {
+                hashMap.putAll(result);
+            }
+        }
+        return hashMap;
+    }
+
+    // look up keys in a single table using SELECT ... WHERE id IN (?, ?, ...)
+    private Map<K, V> getBatch(Connection connection, String table, List<K> keys) {
+        Map<K, V> hashMap = new HashMap<K, V>();
+        for (int start = 0; start < keys.size(); start += MAX_BATCH_SIZE) {
+            List<K> chunk = keys.subList(start, Math.min(start + MAX_BATCH_SIZE, keys.size()));
+            String sql = "SELECT " + COLUMN1_NAME + ", " + COLUMN2_NAME + " FROM " + table +
+                    " WHERE " + COLUMN1_NAME + " IN (" + placeholders(chunk.size()) + ")";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                setKeys(pstmt, chunk);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        K key = Util.uncheckedCast(rs.getString(1));
+                        V value = Serializer.deserializeFromByteArray(rs.getBytes(2));
+                        if (value != null) {
+                            hashMap.put(key, value);
+                        }
+                    }
+                }
+            }  catch (SQLException se) {
+                System.out.println("Error.  getAll failed: " + sql);
+                se.printStackTrace();
+            }
+        }
+        return hashMap;
     }
 
     /**
@@ -440,24 +807,81 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
      * */
     @Override
     public ReturnStatus put(K key, V value) {
-        String sql = "INSERT " + tableName + 
-                " (" + COLUMN1_NAME + ", " + COLUMN2_NAME + ") VALUES (?, ?) " + 
-                "ON DUPLICATE KEY UPDATE " +
-                COLUMN2_NAME + " = VALUES(" + COLUMN2_NAME + ")";
+        String sql = dialect.upsert(partitionTable(key), COLUMN1_NAME, COLUMN2_NAME);
         String keyString = (String) key;
         byte[] array = Serializer.serializeToByteArray(value);
+        Connection connection = null;
         try {
-            
-            try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
+            connection = borrowConnection();
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
                 pstmt.setString(1, keyString);
                 pstmt.setBytes(2, array);
-                pstmt.executeUpdate();
+                recordInserts(dialect.rowsInserted(pstmt.executeUpdate()));
                 return ReturnStatus.SUCCESS;
             }
         } catch (SQLException se) {
             System.out.println("Error.  put failed: "+ sql);
             se.printStackTrace();
             return ReturnStatus.FAILURE;
+        } finally {
+            releaseConnection(connection);
+        }
+   }
+
+    /**
+     * store a key-value pair, serializing the value as it is sent to the database rather
+     * than first copying it into a byte array.  This reduces memory usage for large values.
+     * 
+     * @param key
+     *            key associated with value
+     * @param value
+     *            value associated with key
+     * 
+     * @return status code
+     * 
+     * */
+    public ReturnStatus putStreamed(K key, final V value) {
+        String sql = dialect.upsert(partitionTable(key), COLUMN1_NAME, COLUMN2_NAME);
+        final PipedOutputStream pipeOut = new PipedOutputStream();
+        Thread writer = null;
+        Connection connection = null;
+        try (PipedInputStream pipeIn = new PipedInputStream(pipeOut, PIPE_SIZE)) {
+            connection = borrowConnection();
+            // The value is serialized into the pipe by a separate thread while the driver reads
+            // from the other end.  If serialization fails, the pipe is left open and the driver
+            // sees a broken pipe once the writer exits, so a truncated value is never stored.
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if (Serializer.serializeToStream(value, pipeOut)) {
+                        try {
+                            pipeOut.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            }, "KeyValueSQL-putStreamed");
+            writer.setDaemon(true);
+            writer.start();
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setString(1, (String) key);
+                pstmt.setBinaryStream(2, pipeIn);
+                recordInserts(dialect.rowsInserted(pstmt.executeUpdate()));
+                return ReturnStatus.SUCCESS;
+            }
+        } catch (SQLException | IOException e) {
+            System.out.println("Error.  putStreamed failed: "+ sql);
+            e.printStackTrace();
+            return ReturnStatus.FAILURE;
+        } finally {
+            releaseConnection(connection);
+            if (writer != null) {
+                try {
+                    writer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
         }
    }
 
@@ -472,28 +896,284 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
      * */
     @Override
     public int putAll(Map<K, V> map) {
-        return Util.putAll(this, map);
+        List<Map<K, V>> partitionedMaps = new ArrayList<Map<K, V>>(numPartitions);
+        for (int i = 0; i < numPartitions; i++) {
+            partitionedMaps.add(new HashMap<K, V>());
+        }
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            partitionedMaps.get(partition(entry.getKey())).put(entry.getKey(), entry.getValue());
+        }
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < numPartitions; i++) {
+            final int partition = i;
+            final Map<K, V> partitionMap = partitionedMaps.get(i);
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return putBatch(partitionConnection(partition), partitionTables[partition], partitionMap);
+                }
+            });
+        }
+        int numStored = 0;
+        for (Integer result : runOnPartitions(tasks)) {
+            if (result == null) {
+                return NUM_UNKNOWN;
+            }
+            numStored += result;
+        }
+        return numStored;
+    }
+
+    // store key-value pairs in a single table using JDBC batches of upsert statements
+    private int putBatch(Connection connection, String table, Map<K, V> map) {
+        String sql = dialect.upsert(table, COLUMN1_NAME, COLUMN2_NAME);
+        List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>(map.entrySet());
+        int numStored = 0;
+        for (int start = 0; start < entries.size(); start += MAX_BATCH_SIZE) {
+            List<Map.Entry<K, V>> chunk = entries.subList(start, Math.min(start + MAX_BATCH_SIZE, entries.size()));
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                for (Map.Entry<K, V> entry : chunk) {
+                    pstmt.setString(1, (String) entry.getKey());
+                    pstmt.setBytes(2, Serializer.serializeToByteArray(entry.getValue()));
+                    pstmt.addBatch();
+                }
+                for (int updateCount : pstmt.executeBatch()) {
+                    if (updateCount == Statement.EXECUTE_FAILED) {
+                        continue;
+                    }
+                    numStored++;
+                    recordInserts((updateCount >= 0) ? dialect.rowsInserted(updateCount) : NUM_UNKNOWN);
+                }
+            } catch (SQLException se) {
+                System.out.println("Error.  putAll failed: "+ sql);
+                se.printStackTrace();
+                sizeStale = true;
+            }
+        }
+        return numStored;
+    }
+
+    // return partition number for a key
+    private int partition(K key) {
+        return (numPartitions == 1) ? 0 : Math.floorMod(key.hashCode(), numPartitions);
+    }
+
+    // return table storing a key
+    private String partitionTable(K key) {
+        return partitionTables[partition(key)];
+    }
+
+    private Connection partitionConnection(int partition) {
+        return (numPartitions == 1) ? dbConnection : partitionConnections[partition];
+    }
+
+    /**
+     * Return number of tables keys are split across
+     * 
+     * @return number of partitions
+     * 
+     * */
+    public int getNumPartitions() {
+        return numPartitions;
+    }
+
+    private List<List<K>> partitionKeys(List<K> keys) {
+        List<List<K>> partitionedKeys = new ArrayList<List<K>>(numPartitions);
+        for (int i = 0; i < numPartitions; i++) {
+            partitionedKeys.add(new ArrayList<K>());
+        }
+        for (K key : keys) {
+            partitionedKeys.get(partition(key)).add(key);
+        }
+        return partitionedKeys;
+    }
+
+    // Run one task per partition, in parallel if there are multiple partitions.  The result
+    // of a task which throws an exception is null.
+    private <T> List<T> runOnPartitions(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        if (numPartitions == 1) {
+            try {
+                results.add(tasks.get(0).call());
+            } catch (Exception e) {
+                Util.describeException(e, "Exception in KeyValueSQL.runOnPartitions");
+                results.add(null);
+            }
+            return results;
+        }
+        ExecutorService service = partitionService;
+        if (service == null) {
+            System.out.println("Error: KeyValueSQL.runOnPartitions: connections are closed");
+        }
+        else {
+            try {
+                for (Future<T> future : service.invokeAll(tasks)) {
+                    try {
+                        results.add(future.get());
+                    } catch (Exception e) {
+                        Util.describeException(e, "Exception in KeyValueSQL.runOnPartitions");
+                        results.add(null);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RejectedExecutionException e) {
+                Util.describeException(e, "Exception in KeyValueSQL.runOnPartitions: connections are closed");
+            }
+        }
+        while (results.size() < tasks.size()) {
+            results.add(null);
+        }
+        return results;
+    }
+
+    // return "?, ?, ..., ?" with n parameters
+    private static String placeholders(int n) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            builder.append((i == 0) ? "?" : ", ?");
+        }
+        return builder.toString();
+    }
+
+    private void setKeys(PreparedStatement pstmt, List<K> keys) throws SQLException {
+        for (int i = 0; i < keys.size(); i++) {
+            pstmt.setString(i + 1, (String) keys.get(i));
+        }
     }
  
+    /**
+     * Set how size() counts stored objects
+     * 
+     * @param mode
+     *            size mode
+     * 
+     * */
+    public void setSizeMode(SizeMode mode) {
+        sizeMode = mode;
+        sizeStale = true;
+    }
+
+    /**
+     * Return how size() counts stored objects
+     * 
+     * @return size mode
+     * 
+     * */
+    public SizeMode getSizeMode() {
+        return sizeMode;
+    }
+
+    /**
+     * Set maximum time between exact counts in SizeMode.CACHED
+     * 
+     * @param milliseconds
+     *            reconcile interval in milliseconds (ignored if < 0)
+     * 
+     * */
+    public void setReconcileInterval(long milliseconds) {
+        if (milliseconds >= 0) {
+            reconcileInterval = milliseconds;
+        }
+    }
+
+    // called after a put with the number of rows it added
+    private void recordInserts(int numInserted) {
+        if (numInserted == NUM_UNKNOWN) {
+            sizeStale = true;
+        }
+        else {
+            cachedSize.addAndGet(numInserted);
+        }
+    }
+
+    private void resetCachedSize(long newSize) {
+        cachedSize.set(newSize);
+        lastReconcileTime = Util.getTime();
+        sizeStale = false;
+    }
+
     /**
      * Return number of objects in cache
      * 
      * */
     @Override
     public long size() {
-        String sql = "SELECT COUNT(*) FROM " + tableName;
+        switch (sizeMode) {
+        case APPROXIMATE:
+            long estimate = approximateSize();
+            return (estimate == NUM_UNKNOWN) ? exactSize() : estimate;
+        case CACHED:
+            if (sizeStale || (Util.getTime() - lastReconcileTime >= reconcileInterval)) {
+                long numRows = exactSize();
+                if (numRows == NUM_UNKNOWN) {
+                    return NUM_UNKNOWN;
+                }
+                resetCachedSize(numRows);
+            }
+            return cachedSize.get();
+        default:
+            return exactSize();
+        }
+    }
+
+    /**
+     * Return exact number of stored objects by counting table rows
+     * 
+     * @return number of stored objects, NUM_UNKNOWN if the count fails
+     * 
+     * */
+    public long exactSize() {
+        long numRows = 0;
+        for (String table : partitionTables) {
+            String sql = "SELECT COUNT(*) FROM " + table;
+            try {
+                try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        rs.next();
+                        numRows += rs.getLong(1);
+                    }
+                }
+            }  catch (SQLException se) {
+                System.out.println("Error.  size failed.\n");
+                se.printStackTrace();
+                return NUM_UNKNOWN;
+            }
+        }
+        return numRows;
+    }
+
+    /**
+     * Return estimated number of stored objects from table statistics.  The estimate
+     * can be far from the exact count, particularly right after many changes.
+     * 
+     * @return estimated number of stored objects, NUM_UNKNOWN if no estimate is available
+     * 
+     * */
+    public long approximateSize() {
+        String sql = dialect.approximateRowCount();
+        if (sql == null) {
+            return NUM_UNKNOWN;
+        }
+        long numRows = 0;
         try {
             try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    rs.next();
-                    return rs.getInt(1);
+                for (String table : partitionTables) {
+                    pstmt.setString(1, storedName(table));
+                    try (ResultSet rs = pstmt.executeQuery()) {
+                        if (!rs.next()) {
+                            return NUM_UNKNOWN;
+                        }
+                        numRows += rs.getLong(1);
+                    }
                 }
             }
         }  catch (SQLException se) {
-            System.out.println("Error.  size failed.\n");
+            System.out.println("Error.  approximateSize failed.\n");
             se.printStackTrace();
+            return NUM_UNKNOWN;
         }
-        return NUM_UNKNOWN;
+        return numRows;
     }
 
     /**
@@ -504,16 +1184,35 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
      * */
     @Override
     public String toString() {
-        String returnVal = "Contents of table " + tableName + "\n";        
-        String sql = "SELECT * FROM " + tableName;
+        String returnVal = "";
+        for (String table : partitionTables) {
+            returnVal += toString(table);
+        }
+        return returnVal;
+    }
+
+    // values larger than MAX_DISPLAYED_VALUE_SIZE are never fetched; only their size is output
+    private String toString(String table) {
+        StringBuilder returnVal = new StringBuilder("Contents of table " + table + "\n");        
+        String sql = "SELECT " + COLUMN1_NAME + ", " +
+                "CASE WHEN OCTET_LENGTH(" + COLUMN2_NAME + ") <= ? THEN " + COLUMN2_NAME + " END, " +
+                "OCTET_LENGTH(" + COLUMN2_NAME + ") FROM " + table;
         try {
             try (PreparedStatement pstmt = dbConnection.prepareStatement(sql)) {
+                pstmt.setInt(1, MAX_DISPLAYED_VALUE_SIZE);
                 try (ResultSet rs = pstmt.executeQuery()) {
                     while (rs.next()) {
-                        String key = rs.getString(COLUMN1_NAME);
-                        byte[] array = rs.getBytes(COLUMN2_NAME);
-                        V value = Serializer.deserializeFromByteArray(array);
-                        returnVal += key + ", " + value + "\n";
+                        String key = rs.getString(1);
+                        long valueSize = rs.getLong(3);
+                        returnVal.append(key).append(", ");
+                        if (valueSize > MAX_DISPLAYED_VALUE_SIZE) {
+                            returnVal.append("<value of ").append(valueSize).append(" bytes>");
+                        }
+                        else {
+                            V value = Serializer.deserializeFromByteArray(rs.getBytes(2));
+                            returnVal.append(value);
+                        }
+                        returnVal.append("\n");
                     }
                 }
             }
@@ -521,8 +1220,8 @@ public class KeyValueSQL<K,V> implements com.ibm.storage.storagemanager.interfac
             System.out.println("Error.  listTables failed.\n");
             se.printStackTrace();
         }
-        returnVal += "End of table " + tableName + "\n\n";        
-        return returnVal;
+        returnVal.append("End of table " + table + "\n\n");        
+        return returnVal.toString();
     }
     
     public static void test1(KeyValueSQL<String, Integer> os1) {
@@ -0,0 +1,105 @@
+/**
+ * 
+ */
+package com.ibm.storage.storagemanager.implementations.sql;
+
+import static com.ibm.storage.storagemanager.util.Constants.NUM_UNKNOWN;
+
+/**
+ * @author ArunIyengar
+ * 
+ * SQL dialect for MySQL
+ */
+public class MySQLDialect implements SQLDialect {
+
+    private static final String AFFECTED_ROWS_PROPERTY = "?useAffectedRows=true";
+
+    private boolean affectedRows;  // true if update counts are rows changed rather than rows matched
+
+    /**
+     * Constructor.  Connections use Connector/J's default useAffectedRows=false, so
+     * SizeMode.CACHED cannot count inserts and recounts rows instead.
+     * 
+     * */
+    public MySQLDialect() {
+        this(false);
+    }
+
+    /**
+     * Constructor
+     * 
+     * @param useAffectedRows
+     *            true to open connections with useAffectedRows=true, so that an upsert
+     *            leaving a row unchanged returns an update count of 0 and SizeMode.CACHED
+     *            can count inserts.  The base URL should not contain other properties.
+     * 
+     * */
+    public MySQLDialect(boolean useAffectedRows) {
+        affectedRows = useAffectedRows;
+    }
+
+    @Override
+    public String rootUrl(String baseUrl, String dbName) {
+        return baseUrl;
+    }
+
+    @Override
+    public String databaseUrl(String baseUrl, String dbName) {
+        return baseUrl + dbName + (affectedRows ? AFFECTED_ROWS_PROPERTY : "");
+    }
+
+    @Override
+    public String createDatabase(String dbName) {
+        return "CREATE DATABASE IF NOT EXISTS " + dbName;
+    }
+
+    @Override
+    public String dropDatabase(String dbName) {
+        return "DROP DATABASE IF EXISTS " + dbName;
+    }
+
+    @Override
+    public String createTable(String tblName, String keyColumn, int maxKeySize, String valueColumn) {
+        return "CREATE TABLE " + tblName + 
+                " (" + keyColumn + " VARCHAR(" + maxKeySize + ") NOT NULL," +
+                " " + valueColumn + " LONGBLOB, " +
+                "PRIMARY KEY (" + keyColumn + "))";
+    }
+
+    @Override
+    public String truncateTable(String tblName) {
+        return "TRUNCATE TABLE " + tblName;
+    }
+
+    @Override
+    public String upsert(String tblName, String keyColumn, String valueColumn) {
+        return "INSERT " + tblName + 
+                " (" + keyColumn + ", " + valueColumn + ") VALUES (?, ?) " + 
+                "ON DUPLICATE KEY UPDATE " +
+                valueColumn + " = VALUES(" + valueColumn + ")";
+    }
+
+    // TABLE_ROWS is an estimate for InnoDB tables, maintained from index statistics
+    @Override
+    public String approximateRowCount() {
+        return "SELECT TABLE_ROWS FROM information_schema.TABLES " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?";
+    }
+
+    // ON DUPLICATE KEY UPDATE returns 1 for an insert and 2 for an update.  An existing row
+    // left unchanged returns 0 with useAffectedRows=true but 1 by default, so by default an
+    // update count of 1 does not tell whether a row was added
+    @Override
+    public int rowsInserted(int updateCount) {
+        if (updateCount == 1) {
+            return affectedRows ? 1 : NUM_UNKNOWN;
+        }
+        return 0;
+    }
+
+    @Override
+    public String name() {
+        return "mysql";
+    }
+
+}
@@ -0,0 +1,143 @@
+/**
+ * 
+ */
+package com.ibm.storage.storagemanager.implementations.sql;
+
+/**
+ * @author ArunIyengar
+ * 
+ * SQL statements which differ between database engines.  KeyValueSQL generates all
+ * engine-specific SQL through this interface so that the same store can run against
+ * MySQL or against an embedded engine such as H2.
+ */
+public interface SQLDialect {
+
+    /**
+     * Return URL used to open the connection for creating and listing databases
+     * 
+     * @param baseUrl
+     *            base URL for the data service
+     * @param dbName
+     *            database name
+     * @return URL for the root connection
+     * 
+     * */
+    public String rootUrl(String baseUrl, String dbName);
+
+    /**
+     * Return URL used to open the connection to the database storing the key-value pairs
+     * 
+     * @param baseUrl
+     *            base URL for the data service
+     * @param dbName
+     *            database name
+     * @return URL for the database connection
+     * 
+     * */
+    public String databaseUrl(String baseUrl, String dbName);
+
+    /**
+     * Return statement creating a database if it does not already exist
+     * 
+     * @param dbName
+     *            database name
+     * @return SQL statement, null if databases are not created through SQL
+     * 
+     * */
+    public String createDatabase(String dbName);
+
+    /**
+     * Return statement dropping a database if it exists
+     * 
+     * @param dbName
+     *            database name
+     * @return SQL statement, null if databases are not dropped through SQL
+     * 
+     * */
+    public String dropDatabase(String dbName);
+
+    /**
+     * Return statement creating a key-value table
+     * 
+     * @param tblName
+     *            table name
+     * @param keyColumn
+     *            name of the key column
+     * @param maxKeySize
+     *            maximum length of a key
+     * @param valueColumn
+     *            name of the value column
+     * @return SQL statement
+     * 
+     * */
+    public String createTable(String tblName, String keyColumn, int maxKeySize, String valueColumn);
+
+    /**
+     * Return statement deleting all rows of a table
+     * 
+     * @param tblName
+     *            table name
+     * @return SQL statement
+     * 
+     * */
+    public String truncateTable(String tblName);
+
+    /**
+     * Return statement inserting a key-value pair or replacing the value if the key
+     * is already present.  The key is the first parameter and the value is the second.
+     * 
+     * @param tblName
+     *            table name
+     * @param keyColumn
+     *            name of the key column
+     * @param valueColumn
+     *            name of the value column
+     * @return SQL statement
+     * 
+     * */
+    public String upsert(String tblName, String keyColumn, String valueColumn);
+
+    /**
+     * Return query estimating the number of rows in a table from table statistics
+     * rather than by scanning the table.  The table name is the only parameter.
+     * 
+     * @return SQL query, null if no estimate is available
+     * 
+     * */
+    public String approximateRowCount();
+
+    /**
+     * Return number of rows added by an upsert statement
+     * 
+     * @param updateCount
+     *            update count returned by executing the statement from upsert
+     * @return # of rows added, NUM_UNKNOWN if inserts cannot be told apart from updates
+     * 
+     * */
+    public int rowsInserted(int updateCount);
+
+    /**
+     * Return a string identifying the database engine
+     * 
+     * @return name of the dialect
+     * 
+     * */
+    public String name();
+
+    /**
+     * Return the dialect corresponding to a JDBC URL.  MySQL is used unless the URL
+     * identifies another supported engine.
+     * 
+     * @param url
+     *            JDBC URL
+     * @return dialect for url
+     * 
+     * */
+    public static SQLDialect forUrl(String url) {
+        if (url != null && url.startsWith(H2Dialect.URL_PREFIX)) {
+            return new H2Dialect();
+        }
+        return new MySQLDialect();
+    }
+
+}
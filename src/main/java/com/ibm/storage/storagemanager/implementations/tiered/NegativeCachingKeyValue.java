@@ -0,0 +1,318 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.implementations.tiered;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+
+/**
+ * @author ArunIyengar
+ *
+ * Decorator which remembers keys a key-value store does not contain, so repeated lookups of
+ * missing keys are answered without a request to the store.  A key is remembered as missing
+ * when a lookup does not find it, for a short time (the negative TTL) and up to a maximum
+ * number of keys, separately from any cache of values.  Writing a key through this decorator
+ * forgets that it is missing, including when the write happens while a lookup which will not
+ * find the key is in progress.
+ *
+ * Keys written to the store other than through this decorator can appear to be missing for
+ * up to the negative TTL.
+ *
+ * Placed in front of the slower tiers of a TieredKeyValue, it stops misses in every tier
+ * from reaching the backing store:
+ *     new TieredKeyValue<K, V>(Arrays.asList(cache, new NegativeCachingKeyValue<K, V>(store)))
+ */
+public class NegativeCachingKeyValue<K, V> implements KeyValue<K, V> {
+
+    private static final long DEFAULT_MAX_KEYS = 10000;
+    private static final long DEFAULT_TTL = 10000;  // milliseconds
+    private static final int NUM_LOCKS = 64;
+
+    private KeyValue<K, V> store;
+    private Cache<K, Boolean> missing;  // keys known to be missing from the store
+    // lookups in progress, so a write can stop a lookup which started before it from
+    // remembering the key as missing
+    private ConcurrentHashMap<K, Object> lookups = new ConcurrentHashMap<K, Object>();
+    // held while a lookup remembers a key as missing or a write forgets it, so a write can't
+    // come between a lookup checking it is still current and remembering the key
+    private Striped<Lock> locks = Striped.lock(NUM_LOCKS);
+    private AtomicLong negativeHits = new AtomicLong();
+    private AtomicLong numRequests = new AtomicLong();  // keys looked up in the store
+
+    /**
+     * Constructor.
+     *
+     * @param kvStore
+     *            key-value store to look up keys in
+     * @param maxKeys
+     *            maximum number of missing keys which are remembered
+     * @param ttlMillis
+     *            milliseconds for which a key is remembered as missing
+     */
+    public NegativeCachingKeyValue(KeyValue<K, V> kvStore, long maxKeys, long ttlMillis) {
+        store = kvStore;
+        missing = CacheBuilder.newBuilder().maximumSize(maxKeys).expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Constructor.  Up to 10000 missing keys are remembered for 10 seconds.
+     *
+     * @param kvStore
+     *            key-value store to look up keys in
+     */
+    public NegativeCachingKeyValue(KeyValue<K, V> kvStore) {
+        this(kvStore, DEFAULT_MAX_KEYS, DEFAULT_TTL);
+    }
+
+    /**
+     * delete all entries from the store
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public ReturnStatus clear() {
+        return store.clear();
+    }
+
+    /**
+     * delete a key-value pair
+     *
+     * @param key
+     *            key corresponding to value
+     *
+     * @return # of objects deleted, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int delete(K key) {
+        return store.delete(key);
+    }
+
+    /**
+     * delete one or more key-value pairs
+     *
+     * @param keys
+     *            iterable data structure containing the keys to delete
+     *
+     * @return # of objects deleted, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int deleteAll(List<K> keys) {
+        return store.deleteAll(keys);
+    }
+
+    /**
+     * look up a value.  Keys recently found to be missing are not looked up again.
+     *
+     * @param key
+     *            key corresponding to value
+     * @return value corresponding to key, null if key is not present
+     *
+     * */
+    @Override
+    public V get(K key) {
+        if (missing.getIfPresent(key) != null) {
+            negativeHits.incrementAndGet();
+            return null;
+        }
+        Object lookup = new Object();
+        lookups.put(key, lookup);
+        numRequests.incrementAndGet();
+        V value;
+        try {
+            value = store.get(key);
+        } catch (RuntimeException e) {
+            lookups.remove(key, lookup);
+            throw e;
+        }
+        finishLookup(key, lookup, value == null);
+        return value;
+    }
+
+    /**
+     * look up one or more values.  Keys recently found to be missing are not looked up again.
+     *
+     * @param keys
+     *            iterable data structure containing the keys to look up
+     * @return map containing key-value pairs corresponding to data
+     *
+     * */
+    @Override
+    public Map<K, V> getAll(List<K> keys) {
+        List<K> lookupKeys = new ArrayList<K>();
+        for (K key : keys) {
+            if (missing.getIfPresent(key) != null) {
+                negativeHits.incrementAndGet();
+            }
+            else {
+                lookupKeys.add(key);
+            }
+        }
+        if (lookupKeys.isEmpty()) {
+            return new HashMap<K, V>();
+        }
+        Object lookup = new Object();
+        for (K key : lookupKeys) {
+            lookups.put(key, lookup);
+        }
+        numRequests.addAndGet(lookupKeys.size());
+        Map<K, V> values;
+        try {
+            values = store.getAll(lookupKeys);
+        } catch (RuntimeException e) {
+            for (K key : lookupKeys) {
+                lookups.remove(key, lookup);
+            }
+            throw e;
+        }
+        for (K key : lookupKeys) {
+            finishLookup(key, lookup, values != null && values.get(key) == null);
+        }
+        return values;
+    }
+
+    /**
+     * Return a string idenfitying the type of the underlying store
+     *
+     * @return string identifying the type of the underlying store
+     * */
+    @Override
+    public String storeType() {
+        return store.storeType();
+    }
+
+    /**
+     * store a key-value pair
+     *
+     * @param key
+     *            key associated with value
+     * @param value
+     *            value associated with key
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public ReturnStatus put(K key, V value) {
+        ReturnStatus status = store.put(key, value);
+        forget(key);
+        return status;
+    }
+
+    /**
+     * store one or more key-value pairs
+     *
+     * @param map
+     *            map containing key-value pairs to store
+     *
+     * @return # of objects stored, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int putAll(Map<K, V> map) {
+        int numStored = store.putAll(map);
+        for (K key : map.keySet()) {
+            forget(key);
+        }
+        return numStored;
+    }
+
+    /**
+     * Return number of objects in the store
+     *
+     * */
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    /**
+     * Return number of key lookups answered without the store because the key was known to
+     * be missing
+     *
+     * @return number of lookups
+     * */
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * Return number of key lookups sent to the store
+     *
+     * @return number of lookups
+     * */
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    /**
+     * Return number of keys remembered as missing
+     *
+     * @return number of keys
+     * */
+    public long getNumMissing() {
+        return missing.size();
+    }
+
+    /**
+     * forget that all keys are missing, for example after keys have been written to the
+     * store other than through this decorator
+     *
+     * */
+    public void clearMissing() {
+        missing.invalidateAll();
+    }
+
+    /**
+     * Return contents of the store in a string
+     *
+     * @return string containing output
+     *
+     * */
+    @Override
+    public String toString() {
+        return store.toString();
+    }
+
+    // forget that key is missing, and keep lookups in progress from remembering it as missing
+    private void forget(K key) {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            lookups.remove(key);
+            missing.invalidate(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // end a lookup of key, remembering the key as missing if it was not found and no write
+    // of the key happened during the lookup
+    private void finishLookup(K key, Object lookup, boolean notFound) {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            if (lookups.remove(key, lookup) && notFound) {
+                missing.put(key, Boolean.TRUE);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
@@ -0,0 +1,408 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.implementations.tiered;
+
+import static com.ibm.storage.storagemanager.util.Constants.NUM_UNKNOWN;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.util.Util;
+
+/**
+ * @author ArunIyengar
+ *
+ * In-process cache in front of a key-value store which reloads popular entries before they
+ * expire.  Cached values expire a fixed time (the TTL) after they are loaded from or written
+ * to the store.  When an entry is read during the last part of its TTL, given by the refresh
+ * fraction, the old value is returned immediately and the entry is reloaded from the store in
+ * the background, restarting its TTL.  Keys which keep being read therefore stay cached and
+ * never wait for the store, while keys which are not read again simply expire.
+ *
+ * Reloads run on a fixed number of threads with a bounded queue.  When the queue is full, a
+ * reload is skipped and the entry expires normally.  A reload which finds the key is gone
+ * from the store removes the entry, and a reload which completes after the key has been
+ * written through this cache is discarded.
+ */
+public class RefreshAheadKeyValue<K, V> implements KeyValue<K, V>, Closeable {
+
+    private static final double DEFAULT_REFRESH_FRACTION = 0.2;
+    private static final int DEFAULT_NUM_THREADS = 2;
+    private static final int DEFAULT_MAX_QUEUED = 1000;
+    private static final long SHUTDOWN_WAIT = 10;  // seconds close waits for reloads in progress
+
+    // A cached value and the time it was loaded
+    private static class Entry<V> {
+        final V value;
+        final long loadTime;  // System.nanoTime() when loaded
+
+        Entry(V value) {
+            this.value = value;
+            this.loadTime = System.nanoTime();
+        }
+    }
+
+    private KeyValue<K, V> store;
+    private Cache<K, Entry<V>> cache;
+    private ConcurrentHashMap<K, Entry<V>> refreshing = new ConcurrentHashMap<K, Entry<V>>();
+    private ThreadPoolExecutor executor;
+    private long refreshAfter;  // nanoseconds after loading at which a read triggers a reload
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong numRefreshes = new AtomicLong();  // reloads completed
+    private AtomicLong numSkipped = new AtomicLong();  // reloads not queued because the queue was full
+    private AtomicLong numFailed = new AtomicLong();  // reloads which threw an exception
+
+    /**
+     * Constructor.
+     *
+     * @param kvStore
+     *            key-value store to load values from
+     * @param maxObjects
+     *            maximum number of objects which can be cached before
+     *            replacement starts
+     * @param ttlMillis
+     *            milliseconds after loading at which a cached value expires
+     * @param refreshFraction
+     *            fraction of the TTL, at the end, in which a read triggers a reload; between
+     *            0 and 1
+     * @param numThreads
+     *            number of threads for reloading values
+     * @param maxQueued
+     *            maximum number of reloads waiting for a thread
+     */
+    public RefreshAheadKeyValue(KeyValue<K, V> kvStore, long maxObjects, long ttlMillis, double refreshFraction,
+            int numThreads, int maxQueued) {
+        if (ttlMillis <= 0 || refreshFraction < 0 || refreshFraction > 1 || numThreads <= 0 || maxQueued <= 0) {
+            throw new IllegalArgumentException("Invalid RefreshAheadKeyValue parameters: ttl " + ttlMillis
+                    + ", refresh fraction " + refreshFraction + ", threads " + numThreads + ", queue " + maxQueued);
+        }
+        store = kvStore;
+        cache = CacheBuilder.newBuilder().maximumSize(maxObjects).expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        refreshAfter = (long) (TimeUnit.MILLISECONDS.toNanos(ttlMillis) * (1 - refreshFraction));
+        executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("refresh-ahead-%d").build());
+    }
+
+    /**
+     * Constructor.  Entries are reloaded when read in the last 20% of their TTL, using 2
+     * threads and at most 1000 queued reloads.
+     *
+     * @param kvStore
+     *            key-value store to load values from
+     * @param maxObjects
+     *            maximum number of objects which can be cached before
+     *            replacement starts
+     * @param ttlMillis
+     *            milliseconds after loading at which a cached value expires
+     */
+    public RefreshAheadKeyValue(KeyValue<K, V> kvStore, long maxObjects, long ttlMillis) {
+        this(kvStore, maxObjects, ttlMillis, DEFAULT_REFRESH_FRACTION, DEFAULT_NUM_THREADS, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * delete all entries from the store and the cache
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public ReturnStatus clear() {
+        ReturnStatus status = store.clear();
+        cache.invalidateAll();
+        return status;
+    }
+
+    /**
+     * delete a key-value pair from the store and the cache
+     *
+     * @param key
+     *            key corresponding to value
+     *
+     * @return # of objects deleted from the store, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int delete(K key) {
+        int numDeleted = store.delete(key);
+        cache.invalidate(key);
+        return numDeleted;
+    }
+
+    /**
+     * delete one or more key-value pairs from the store and the cache
+     *
+     * @param keys
+     *            iterable data structure containing the keys to delete
+     *
+     * @return # of objects deleted from the store, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int deleteAll(List<K> keys) {
+        int numDeleted = store.deleteAll(keys);
+        cache.invalidateAll(keys);
+        return numDeleted;
+    }
+
+    /**
+     * look up a value, loading it from the store if it is not cached.  Reading a value in
+     * the last part of its TTL starts a reload in the background.
+     *
+     * @param key
+     *            key corresponding to value
+     * @return value corresponding to key, null if key is not present
+     *
+     * */
+    @Override
+    public V get(K key) {
+        Entry<V> entry = cache.getIfPresent(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            refreshIfDue(key, entry);
+            return entry.value;
+        }
+        misses.incrementAndGet();
+        V value = store.get(key);
+        if (value != null) {
+            cache.put(key, new Entry<V>(value));
+        }
+        return value;
+    }
+
+    /**
+     * look up one or more values.  Values which are not cached are loaded from the store
+     * using one getAll.
+     *
+     * @param keys
+     *            iterable data structure containing the keys to look up
+     * @return map containing key-value pairs corresponding to data
+     *
+     * */
+    @Override
+    public Map<K, V> getAll(List<K> keys) {
+        Map<K, V> result = new HashMap<K, V>();
+        List<K> missing = new ArrayList<K>();
+        for (K key : keys) {
+            Entry<V> entry = cache.getIfPresent(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                refreshIfDue(key, entry);
+                result.put(key, entry.value);
+            }
+            else {
+                misses.incrementAndGet();
+                missing.add(key);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<K, V> values = store.getAll(missing);
+            if (values != null) {
+                for (Map.Entry<K, V> value : values.entrySet()) {
+                    if (value.getValue() != null) {
+                        cache.put(value.getKey(), new Entry<V>(value.getValue()));
+                        result.put(value.getKey(), value.getValue());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return a string idenfitying the type of the underlying store
+     *
+     * @return string identifying the type of the underlying store
+     * */
+    @Override
+    public String storeType() {
+        return store.storeType();
+    }
+
+    /**
+     * store a key-value pair in the store and the cache
+     *
+     * @param key
+     *            key associated with value
+     * @param value
+     *            value associated with key
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public ReturnStatus put(K key, V value) {
+        ReturnStatus status = store.put(key, value);
+        if (status == ReturnStatus.SUCCESS) {
+            cache.put(key, new Entry<V>(value));
+        }
+        else {
+            cache.invalidate(key);
+        }
+        return status;
+    }
+
+    /**
+     * store one or more key-value pairs in the store and the cache.  If the store reports
+     * storing fewer pairs than were given, they are removed from the cache instead.
+     *
+     * @param map
+     *            map containing key-value pairs to store
+     *
+     * @return # of objects stored, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int putAll(Map<K, V> map) {
+        int numStored = store.putAll(map);
+        if (numStored != NUM_UNKNOWN && numStored != map.size()) {
+            cache.invalidateAll(map.keySet());
+            return numStored;
+        }
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            cache.put(entry.getKey(), new Entry<V>(entry.getValue()));
+        }
+        return numStored;
+    }
+
+    /**
+     * Return number of objects in the store
+     *
+     * */
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    /**
+     * Return number of lookups answered from the cache
+     *
+     * @return number of hits
+     * */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Return number of lookups which were loaded from the store
+     *
+     * @return number of misses
+     * */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Return number of background reloads which have completed
+     *
+     * @return number of reloads
+     * */
+    public long getNumRefreshes() {
+        return numRefreshes.get();
+    }
+
+    /**
+     * Return number of reloads skipped because too many were queued
+     *
+     * @return number of skipped reloads
+     * */
+    public long getNumSkipped() {
+        return numSkipped.get();
+    }
+
+    /**
+     * Return number of reloads which failed with an exception
+     *
+     * @return number of failed reloads
+     * */
+    public long getNumFailed() {
+        return numFailed.get();
+    }
+
+    /**
+     * Return number of cached objects
+     *
+     * @return number of cached objects
+     * */
+    public long getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * wait for reloads in progress and stop the reloading threads.  Reads after close no
+     * longer start reloads.
+     *
+     * */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_WAIT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Return contents of the store in a string
+     *
+     * @return string containing output
+     *
+     * */
+    @Override
+    public String toString() {
+        return store.toString();
+    }
+
+    // start a reload of key if entry is in the last part of its TTL and no reload of it is in progress
+    private void refreshIfDue(final K key, final Entry<V> entry) {
+        if (System.nanoTime() - entry.loadTime < refreshAfter || executor.isShutdown()
+                || refreshing.putIfAbsent(key, entry) != null) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        V value = store.get(key);
+                        // only replace the entry which triggered the reload, so a value
+                        // written in the meantime is kept
+                        if (value != null) {
+                            cache.asMap().replace(key, entry, new Entry<V>(value));
+                        }
+                        else {
+                            cache.asMap().remove(key, entry);
+                        }
+                        numRefreshes.incrementAndGet();
+                    } catch (Exception e) {
+                        numFailed.incrementAndGet();
+                        Util.describeException(e, "RefreshAheadKeyValue: reload of " + key + " failed");
+                    } finally {
+                        refreshing.remove(key, entry);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            numSkipped.incrementAndGet();
+            refreshing.remove(key, entry);
+        }
+    }
+
+}
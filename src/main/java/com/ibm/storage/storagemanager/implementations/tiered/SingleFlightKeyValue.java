@@ -0,0 +1,299 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.implementations.tiered;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+
+/**
+ * @author ArunIyengar
+ *
+ * Decorator which collapses concurrent lookups of the same key into one request to a
+ * key-value store.  The first thread to look up a key sends the request; threads which look
+ * up the key before the request completes wait for it and share its result instead of
+ * sending their own.  This prevents a popular key which has just expired from a cache from
+ * causing a burst of identical requests to the store behind it.
+ *
+ * getAll requests only the keys which no other lookup is already requesting, in one getAll
+ * call to the store, and waits for the others.  Concurrent get and getAll calls with
+ * overlapping keys therefore share requests in both directions.
+ *
+ * A write or delete of a key stops later lookups from joining a request for the key which
+ * started before the write.  Waiting threads receive the same value object, so values should
+ * not be modified by callers.  If the request throws an exception, every waiting thread
+ * throws it.
+ *
+ * Placed in front of the slower tiers of a TieredKeyValue, it collapses the misses of the
+ * cache tier above:
+ *     new TieredKeyValue<K, V>(Arrays.asList(cache, new SingleFlightKeyValue<K, V>(store)))
+ */
+public class SingleFlightKeyValue<K, V> implements KeyValue<K, V> {
+
+    private KeyValue<K, V> store;
+    private ConcurrentHashMap<K, SettableFuture<V>> inFlight = new ConcurrentHashMap<K, SettableFuture<V>>();
+    private AtomicLong numRequests = new AtomicLong();  // get and getAll calls sent to the store
+    private AtomicLong numShared = new AtomicLong();  // lookups answered by another thread's request
+
+    /**
+     * Constructor.
+     *
+     * @param kvStore
+     *            key-value store to send lookups to
+     */
+    public SingleFlightKeyValue(KeyValue<K, V> kvStore) {
+        store = kvStore;
+    }
+
+    /**
+     * delete all entries from the store
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public ReturnStatus clear() {
+        ReturnStatus status = store.clear();
+        inFlight.clear();
+        return status;
+    }
+
+    /**
+     * delete a key-value pair
+     *
+     * @param key
+     *            key corresponding to value
+     *
+     * @return # of objects deleted, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int delete(K key) {
+        int numDeleted = store.delete(key);
+        inFlight.remove(key);
+        return numDeleted;
+    }
+
+    /**
+     * delete one or more key-value pairs
+     *
+     * @param keys
+     *            iterable data structure containing the keys to delete
+     *
+     * @return # of objects deleted, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int deleteAll(List<K> keys) {
+        int numDeleted = store.deleteAll(keys);
+        for (K key : keys) {
+            inFlight.remove(key);
+        }
+        return numDeleted;
+    }
+
+    /**
+     * look up a value, sharing the result of a lookup of the same key already in progress
+     *
+     * @param key
+     *            key corresponding to value
+     * @return value corresponding to key, null if key is not present
+     *
+     * */
+    @Override
+    public V get(K key) {
+        SettableFuture<V> request = SettableFuture.create();
+        SettableFuture<V> existing = inFlight.putIfAbsent(key, request);
+        if (existing != null) {
+            numShared.incrementAndGet();
+            return await(existing);
+        }
+        numRequests.incrementAndGet();
+        try {
+            V value = store.get(key);
+            request.set(value);
+            return value;
+        } catch (Throwable e) {
+            // including Errors, so that threads sharing the lookup don't wait forever
+            request.setException(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, request);
+        }
+    }
+
+    /**
+     * look up one or more values.  Keys already being looked up by other threads are not
+     * requested again.
+     *
+     * @param keys
+     *            iterable data structure containing the keys to look up
+     * @return map containing key-value pairs corresponding to data
+     *
+     * */
+    @Override
+    public Map<K, V> getAll(List<K> keys) {
+        Map<K, SettableFuture<V>> owned = new LinkedHashMap<K, SettableFuture<V>>();
+        Map<K, SettableFuture<V>> joined = new HashMap<K, SettableFuture<V>>();
+        for (K key : keys) {
+            if (owned.containsKey(key) || joined.containsKey(key)) {
+                continue;
+            }
+            SettableFuture<V> request = SettableFuture.create();
+            SettableFuture<V> existing = inFlight.putIfAbsent(key, request);
+            if (existing == null) {
+                owned.put(key, request);
+            }
+            else {
+                joined.put(key, existing);
+            }
+        }
+        Map<K, V> result = new HashMap<K, V>();
+        // complete our own request before waiting for others, so threads waiting on each
+        // other's keys cannot deadlock
+        if (!owned.isEmpty()) {
+            numRequests.incrementAndGet();
+            try {
+                Map<K, V> values = store.getAll(new ArrayList<K>(owned.keySet()));
+                for (Map.Entry<K, SettableFuture<V>> entry : owned.entrySet()) {
+                    V value = (values == null) ? null : values.get(entry.getKey());
+                    entry.getValue().set(value);
+                    if (value != null) {
+                        result.put(entry.getKey(), value);
+                    }
+                }
+            } catch (Throwable e) {
+                for (SettableFuture<V> request : owned.values()) {
+                    request.setException(e);
+                }
+                throw e;
+            } finally {
+                for (Map.Entry<K, SettableFuture<V>> entry : owned.entrySet()) {
+                    inFlight.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        numShared.addAndGet(joined.size());
+        for (Map.Entry<K, SettableFuture<V>> entry : joined.entrySet()) {
+            V value = await(entry.getValue());
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return a string idenfitying the type of the underlying store
+     *
+     * @return string identifying the type of the underlying store
+     * */
+    @Override
+    public String storeType() {
+        return store.storeType();
+    }
+
+    /**
+     * store a key-value pair
+     *
+     * @param key
+     *            key associated with value
+     * @param value
+     *            value associated with key
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public ReturnStatus put(K key, V value) {
+        ReturnStatus status = store.put(key, value);
+        inFlight.remove(key);
+        return status;
+    }
+
+    /**
+     * store one or more key-value pairs
+     *
+     * @param map
+     *            map containing key-value pairs to store
+     *
+     * @return # of objects stored, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int putAll(Map<K, V> map) {
+        int numStored = store.putAll(map);
+        for (K key : map.keySet()) {
+            inFlight.remove(key);
+        }
+        return numStored;
+    }
+
+    /**
+     * Return number of objects in the store
+     *
+     * */
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    /**
+     * Return number of get and getAll requests sent to the store
+     *
+     * @return number of requests
+     * */
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    /**
+     * Return number of key lookups answered by waiting for another thread's request
+     *
+     * @return number of shared lookups
+     * */
+    public long getNumShared() {
+        return numShared.get();
+    }
+
+    /**
+     * Return number of keys currently being looked up
+     *
+     * @return number of keys
+     * */
+    public int getNumInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * Return contents of the store in a string
+     *
+     * @return string containing output
+     *
+     * */
+    @Override
+    public String toString() {
+        return store.toString();
+    }
+
+    // wait for another thread's request, rethrowing any exception it threw
+    private V await(SettableFuture<V> request) {
+        try {
+            return Uninterruptibles.getUninterruptibly(request);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,359 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.implementations.tiered;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.util.Constants;
+
+import static com.ibm.storage.storagemanager.util.Constants.NUM_UNKNOWN;
+
+/**
+ * @author ArunIyengar
+ *
+ * Key-value store made up of an ordered list of tiers, such as an in-process Guava cache
+ * in front of a Redis cache in front of an SQL database.  The first tier is the fastest,
+ * and the last tier is the backing store which holds every value; the other tiers are
+ * caches holding copies of some values.
+ *
+ * A lookup tries each tier in order and reads through to the next tier on a miss.  A
+ * value found in a lower tier is promoted by storing it in each tier above.  Writes and
+ * deletes go to the backing store first, then to the caches according to the write policy.
+ * Hits and misses are counted for each tier.
+ */
+public class TieredKeyValue<K, V> implements KeyValue<K, V> {
+
+    /**
+     * Determines how writes to the backing store update the cache tiers
+     *
+     * */
+    public enum WritePolicy {
+        /** values are also stored in every cache tier */
+        WRITE_THROUGH,
+        /** values are removed from every cache tier, to be cached again when next read */
+        WRITE_AROUND
+    }
+
+    private List<KeyValue<K, V>> tiers;
+    private WritePolicy writePolicy;
+    private AtomicLongArray hits;
+    private AtomicLongArray misses;
+
+    /**
+     * Constructor.
+     *
+     * @param tierList
+     *            tiers from fastest to slowest; the last tier is the backing store
+     * @param policy
+     *            how writes update the cache tiers
+     */
+    public TieredKeyValue(List<? extends KeyValue<K, V>> tierList, WritePolicy policy) {
+        if (tierList.isEmpty()) {
+            throw new IllegalArgumentException("TieredKeyValue needs at least one tier");
+        }
+        tiers = new ArrayList<KeyValue<K, V>>(tierList);
+        writePolicy = policy;
+        hits = new AtomicLongArray(tiers.size());
+        misses = new AtomicLongArray(tiers.size());
+    }
+
+    /**
+     * Constructor.  Uses write-through.
+     *
+     * @param tierList
+     *            tiers from fastest to slowest; the last tier is the backing store
+     */
+    public TieredKeyValue(List<? extends KeyValue<K, V>> tierList) {
+        this(tierList, WritePolicy.WRITE_THROUGH);
+    }
+
+    /**
+     * delete all entries from every tier
+     *
+     * @return status code, FAILURE if any tier could not be cleared
+     *
+     * */
+    @Override
+    public ReturnStatus clear() {
+        ReturnStatus status = ReturnStatus.SUCCESS;
+        for (int i = tiers.size() - 1; i >= 0; i--) {
+            if (tiers.get(i).clear() != ReturnStatus.SUCCESS) {
+                status = ReturnStatus.FAILURE;
+            }
+        }
+        return status;
+    }
+
+    /**
+     * delete a key-value pair from every tier
+     *
+     * @param key
+     *            key corresponding to value
+     *
+     * @return # of objects deleted from the backing store, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int delete(K key) {
+        int numDeleted = backingStore().delete(key);
+        for (int i = tiers.size() - 2; i >= 0; i--) {
+            tiers.get(i).delete(key);
+        }
+        return numDeleted;
+    }
+
+    /**
+     * delete one or more key-value pairs from every tier
+     *
+     * @param keys
+     *            iterable data structure containing the keys to delete
+     *
+     * @return # of objects deleted from the backing store, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int deleteAll(List<K> keys) {
+        int numDeleted = backingStore().deleteAll(keys);
+        for (int i = tiers.size() - 2; i >= 0; i--) {
+            tiers.get(i).deleteAll(keys);
+        }
+        return numDeleted;
+    }
+
+    /**
+     * look up a value, trying each tier in order.  A value found below the first tier is
+     * stored in the tiers above it.
+     *
+     * @param key
+     *            key corresponding to value
+     * @return value corresponding to key, null if key is not present
+     *
+     * */
+    @Override
+    public V get(K key) {
+        for (int i = 0; i < tiers.size(); i++) {
+            V value = tiers.get(i).get(key);
+            if (value != null) {
+                hits.incrementAndGet(i);
+                for (int j = i - 1; j >= 0; j--) {
+                    tiers.get(j).put(key, value);
+                }
+                return value;
+            }
+            misses.incrementAndGet(i);
+        }
+        return null;
+    }
+
+    /**
+     * look up one or more values.  Keys missing from a tier are looked up in the next tier
+     * with a single getAll call, and values found below the first tier are stored in the
+     * tiers above it.
+     *
+     * @param keys
+     *            iterable data structure containing the keys to look up
+     * @return map containing key-value pairs corresponding to data
+     *
+     * */
+    @Override
+    public Map<K, V> getAll(List<K> keys) {
+        Map<K, V> result = new HashMap<K, V>();
+        List<K> remaining = new ArrayList<K>(keys);
+        for (int i = 0; i < tiers.size() && !remaining.isEmpty(); i++) {
+            Map<K, V> found = tiers.get(i).getAll(remaining);
+            List<K> missing = new ArrayList<K>();
+            Map<K, V> promoted = new HashMap<K, V>();
+            for (K key : remaining) {
+                V value = found.get(key);
+                if (value == null) {
+                    missing.add(key);
+                }
+                else {
+                    promoted.put(key, value);
+                }
+            }
+            hits.addAndGet(i, promoted.size());
+            misses.addAndGet(i, missing.size());
+            if (!promoted.isEmpty()) {
+                for (int j = i - 1; j >= 0; j--) {
+                    tiers.get(j).putAll(promoted);
+                }
+                result.putAll(promoted);
+            }
+            remaining = missing;
+        }
+        return result;
+    }
+
+    /**
+     * Return a string idenfitying the type of storage service
+     *
+     * @return string identifying the type of storage service
+     * */
+    @Override
+    public String storeType() {
+        return Constants.TIERED;
+    }
+
+    /**
+     * store a key-value pair in the backing store, then store it in or remove it from the
+     * cache tiers according to the write policy
+     *
+     * @param key
+     *            key associated with value
+     * @param value
+     *            value associated with key
+     *
+     * @return status code of the backing store
+     *
+     * */
+    @Override
+    public ReturnStatus put(K key, V value) {
+        ReturnStatus status = backingStore().put(key, value);
+        for (int i = tiers.size() - 2; i >= 0; i--) {
+            if (writePolicy == WritePolicy.WRITE_THROUGH && status == ReturnStatus.SUCCESS) {
+                tiers.get(i).put(key, value);
+            }
+            else {
+                tiers.get(i).delete(key);
+            }
+        }
+        return status;
+    }
+
+    /**
+     * store one or more key-value pairs in the backing store, then store them in or remove
+     * them from the cache tiers according to the write policy.  If the backing store reports
+     * storing fewer pairs than were given, they are removed from the cache tiers, since the
+     * cached values could otherwise differ from the stored ones.
+     *
+     * @param map
+     *            map containing key-value pairs to store
+     *
+     * @return # of objects stored in the backing store, NUM_UNKNOWN if unknown
+     *
+     * */
+    @Override
+    public int putAll(Map<K, V> map) {
+        int numStored = backingStore().putAll(map);
+        boolean allStored = (numStored == NUM_UNKNOWN) || (numStored == map.size());
+        List<K> keys = new ArrayList<K>(map.keySet());
+        for (int i = tiers.size() - 2; i >= 0; i--) {
+            if (writePolicy == WritePolicy.WRITE_THROUGH && allStored) {
+                tiers.get(i).putAll(map);
+            }
+            else {
+                tiers.get(i).deleteAll(keys);
+            }
+        }
+        return numStored;
+    }
+
+    /**
+     * Return number of objects in the backing store
+     *
+     * @return number of stored objects
+     * */
+    @Override
+    public long size() {
+        return backingStore().size();
+    }
+
+    /**
+     * Return the tiers from fastest to slowest
+     *
+     * @return list of tiers
+     * */
+    public List<KeyValue<K, V>> getTiers() {
+        return tiers;
+    }
+
+    public WritePolicy getWritePolicy() {
+        return writePolicy;
+    }
+
+    /**
+     * Return number of lookups for which a tier had the value
+     *
+     * @param tier
+     *            index of tier, 0 for the fastest tier
+     * @return number of hits
+     * */
+    public long getHits(int tier) {
+        return hits.get(tier);
+    }
+
+    /**
+     * Return number of lookups which reached a tier and did not find the value there
+     *
+     * @param tier
+     *            index of tier, 0 for the fastest tier
+     * @return number of misses
+     * */
+    public long getMisses(int tier) {
+        return misses.get(tier);
+    }
+
+    /**
+     * Return fraction of lookups reaching a tier which found the value there
+     *
+     * @param tier
+     *            index of tier, 0 for the fastest tier
+     * @return hit rate, 0 if no lookups have reached the tier
+     * */
+    public double getHitRate(int tier) {
+        long numHits = hits.get(tier);
+        long total = numHits + misses.get(tier);
+        return total == 0 ? 0.0 : (double) numHits / total;
+    }
+
+    /**
+     * Reset hit and miss counts to 0
+     *
+     * */
+    public void clearStats() {
+        for (int i = 0; i < tiers.size(); i++) {
+            hits.set(i, 0);
+            misses.set(i, 0);
+        }
+    }
+
+    /**
+     * Return hit and miss counts of each tier in a string
+     *
+     * @return string containing hit and miss counts
+     * */
+    public String statsToString() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < tiers.size(); i++) {
+            result.append("Tier ").append(i).append(" (").append(tiers.get(i).storeType())
+                    .append("): hits: ").append(hits.get(i)).append(", misses: ")
+                    .append(misses.get(i)).append(", hit rate: ").append(getHitRate(i))
+                    .append("\n");
+        }
+        return result.toString();
+    }
+
+    /**
+     * Output hit and miss counts of each tier followed by contents of the backing store to a
+     * string.
+     *
+     * @return string containing output
+     *
+     * */
+    @Override
+    public String toString() {
+        return statsToString() + backingStore().toString();
+    }
+
+    private KeyValue<K, V> backingStore() {
+        return tiers.get(tiers.size() - 1);
+    }
+
+}
@@ -0,0 +1,554 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.implementations.tiered;
+
+import static com.ibm.storage.storagemanager.util.Constants.NUM_UNKNOWN;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.util.Util;
+
+/**
+ * @author ArunIyengar
+ *
+ * Decorator which writes to a key-value store asynchronously.  put, putAll, delete, and
+ * deleteAll return as soon as the writes are queued; a background thread sends queued
+ * writes to the store in batches using putAll and deleteAll.  Only the most recent write
+ * of a key is queued, so repeated writes to the same key before it is sent are coalesced
+ * into one.  Lookups of keys with queued writes are answered from the queue.
+ *
+ * The number of keys with queued writes is bounded; a write of another key waits until
+ * there is room.  flush waits until all queued writes have been sent, and close flushes
+ * and stops the background thread.
+ *
+ * Used as the last tier of a TieredKeyValue, writes are acknowledged once the cache
+ * tiers are updated:
+ *     new TieredKeyValue<K, V>(Arrays.asList(cache, new WriteBehindKeyValue<K, V>(store)))
+ */
+public class WriteBehindKeyValue<K, V> implements KeyValue<K, V>, Closeable {
+
+    private static final int DEFAULT_MAX_PENDING = 10000;
+    private static final int DEFAULT_BATCH_SIZE = 500;
+    private static final long RETRY_DELAY = 100;  // milliseconds before first retry, doubles after each one
+
+    // A queued write: a value to store, or a delete
+    private static class Write<V> {
+        final V value;
+        final boolean delete;
+
+        Write(V value, boolean delete) {
+            this.value = value;
+            this.delete = delete;
+        }
+    }
+
+    private KeyValue<K, V> store;
+    private int maxPending;
+    private int batchSize;
+    private volatile int writeAttempts = 3;  // attempts to send a batch before its writes are dropped
+    private final Object lock = new Object();  // guards pending, inFlight, and closed
+    private LinkedHashMap<K, Write<V>> pending = new LinkedHashMap<K, Write<V>>();  // queued writes, oldest first
+    private Map<K, Write<V>> inFlight = new HashMap<K, Write<V>>();  // batch being sent to store
+    private boolean closed = false;
+    private ExecutorService writerService;
+    private AtomicLong numCoalesced = new AtomicLong();
+    private AtomicLong numBatches = new AtomicLong();
+    private AtomicLong numWritten = new AtomicLong();
+    private AtomicLong numDropped = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param kvStore
+     *            store which writes are sent to
+     * @param maxPendingWrites
+     *            maximum number of keys with queued writes (values < 1 are treated as 1)
+     * @param maxBatchSize
+     *            maximum number of writes sent to the store in one putAll or deleteAll
+     *            (values < 1 are treated as 1)
+     */
+    public WriteBehindKeyValue(KeyValue<K, V> kvStore, int maxPendingWrites, int maxBatchSize) {
+        store = kvStore;
+        maxPending = Math.max(1, maxPendingWrites);
+        batchSize = Math.max(1, maxBatchSize);
+        writerService = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("write-behind-%d").build());
+        writerService.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        });
+    }
+
+    /**
+     * Constructor.  At most 10000 keys have queued writes, and writes are sent in batches of
+     * at most 500.
+     *
+     * @param kvStore
+     *            store which writes are sent to
+     */
+    public WriteBehindKeyValue(KeyValue<K, V> kvStore) {
+        this(kvStore, DEFAULT_MAX_PENDING, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Set number of times a batch is sent to the store, with exponential backoff between
+     * attempts, before its writes are dropped.
+     *
+     * @param attempts
+     *            number of attempts, ignored if < 1
+     * */
+    public void setWriteAttempts(int attempts) {
+        if (attempts >= 1) {
+            writeAttempts = attempts;
+        }
+    }
+
+    public int getWriteAttempts() {
+        return writeAttempts;
+    }
+
+    /**
+     * Return the store which writes are sent to
+     *
+     * @return underlying store
+     * */
+    public KeyValue<K, V> getStore() {
+        return store;
+    }
+
+    /**
+     * discard queued writes and delete all entries from the store
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public ReturnStatus clear() {
+        synchronized (lock) {
+            pending.clear();
+            lock.notifyAll();
+            // the lock is held until the store is cleared so no later write is sent before it
+            if (!awaitEmpty()) {
+                return ReturnStatus.FAILURE;
+            }
+            return store.clear();
+        }
+    }
+
+    /**
+     * queue deletion of a key-value pair
+     *
+     * @param key
+     *            key corresponding to value
+     *
+     * @return NUM_UNKNOWN since the deletion has not yet been sent to the store
+     *
+     * */
+    @Override
+    public int delete(K key) {
+        synchronized (lock) {
+            enqueue(key, new Write<V>(null, true));
+        }
+        return NUM_UNKNOWN;
+    }
+
+    /**
+     * queue deletion of one or more key-value pairs
+     *
+     * @param keys
+     *            iterable data structure containing the keys to delete
+     *
+     * @return NUM_UNKNOWN since the deletions have not yet been sent to the store
+     *
+     * */
+    @Override
+    public int deleteAll(List<K> keys) {
+        synchronized (lock) {
+            for (K key : keys) {
+                if (!enqueue(key, new Write<V>(null, true))) {
+                    break;
+                }
+            }
+        }
+        return NUM_UNKNOWN;
+    }
+
+    /**
+     * look up a value, from the queued writes if the key has one, otherwise from the store
+     *
+     * @param key
+     *            key corresponding to value
+     * @return value corresponding to key, null if key is not present
+     *
+     * */
+    @Override
+    public V get(K key) {
+        Write<V> write;
+        synchronized (lock) {
+            write = queuedWrite(key);
+        }
+        if (write != null) {
+            return write.value;
+        }
+        return store.get(key);
+    }
+
+    /**
+     * look up one or more values.  Keys with queued writes are answered from the queue, and
+     * the others are looked up in the store with a single getAll call.
+     *
+     * @param keys
+     *            iterable data structure containing the keys to look up
+     * @return map containing key-value pairs corresponding to data
+     *
+     * */
+    @Override
+    public Map<K, V> getAll(List<K> keys) {
+        Map<K, V> result = new HashMap<K, V>();
+        List<K> remaining = new ArrayList<K>();
+        synchronized (lock) {
+            for (K key : keys) {
+                Write<V> write = queuedWrite(key);
+                if (write == null) {
+                    remaining.add(key);
+                }
+                else if (!write.delete) {
+                    result.put(key, write.value);
+                }
+            }
+        }
+        if (!remaining.isEmpty()) {
+            result.putAll(store.getAll(remaining));
+        }
+        return result;
+    }
+
+    /**
+     * Return a string idenfitying the type of storage service
+     *
+     * @return string identifying the type of the underlying store
+     * */
+    @Override
+    public String storeType() {
+        return store.storeType();
+    }
+
+    /**
+     * queue storing a key-value pair.  Waits if the maximum number of keys have queued
+     * writes and key is not one of them.
+     *
+     * @param key
+     *            key associated with value
+     * @param value
+     *            value associated with key
+     *
+     * @return status code, FAILURE if interrupted while waiting
+     *
+     * */
+    @Override
+    public ReturnStatus put(K key, V value) {
+        synchronized (lock) {
+            return enqueue(key, new Write<V>(value, false)) ? ReturnStatus.SUCCESS : ReturnStatus.FAILURE;
+        }
+    }
+
+    /**
+     * queue storing one or more key-value pairs
+     *
+     * @param map
+     *            map containing key-value pairs to store
+     *
+     * @return NUM_UNKNOWN since the values have not yet been sent to the store
+     *
+     * */
+    @Override
+    public int putAll(Map<K, V> map) {
+        synchronized (lock) {
+            for (Map.Entry<K, V> entry : map.entrySet()) {
+                if (!enqueue(entry.getKey(), new Write<V>(entry.getValue(), false))) {
+                    break;
+                }
+            }
+        }
+        return NUM_UNKNOWN;
+    }
+
+    /**
+     * Return number of objects in the store after queued writes have been sent
+     *
+     * @return number of stored objects
+     * */
+    @Override
+    public long size() {
+        flush();
+        return store.size();
+    }
+
+    /**
+     * Wait until all queued writes have been sent to the store
+     *
+     * */
+    public void flush() {
+        synchronized (lock) {
+            awaitEmpty();
+        }
+    }
+
+    /**
+     * Send all queued writes to the store and stop the background thread.  Later writes
+     * throw an IllegalStateException.
+     *
+     * */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            awaitEmpty();
+            closed = true;
+            lock.notifyAll();
+        }
+        writerService.shutdown();
+        try {
+            writerService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Return number of keys with writes which have not yet been sent to the store
+     *
+     * @return number of pending writes
+     * */
+    public int getNumPending() {
+        synchronized (lock) {
+            return pending.size() + inFlight.size();
+        }
+    }
+
+    /**
+     * Return number of writes replaced by a later write of the same key before being sent
+     *
+     * @return number of coalesced writes
+     * */
+    public long getNumCoalesced() {
+        return numCoalesced.get();
+    }
+
+    /**
+     * Return number of batches sent to the store
+     *
+     * @return number of batches
+     * */
+    public long getNumBatches() {
+        return numBatches.get();
+    }
+
+    /**
+     * Return number of writes sent to the store
+     *
+     * @return number of writes
+     * */
+    public long getNumWritten() {
+        return numWritten.get();
+    }
+
+    /**
+     * Return number of writes dropped because the store failed writeAttempts times
+     *
+     * @return number of dropped writes
+     * */
+    public long getNumDropped() {
+        return numDropped.get();
+    }
+
+    /**
+     * Output contents of the store, after queued writes have been sent, to a string.
+     *
+     * @return string containing output
+     *
+     * */
+    @Override
+    public String toString() {
+        flush();
+        return store.toString();
+    }
+
+    // queue a write, waiting for room if key has no queued write.  Called with lock held.
+    // Returns false if interrupted while waiting.
+    private boolean enqueue(K key, Write<V> write) {
+        if (closed) {
+            throw new IllegalStateException("WriteBehindKeyValue is closed");
+        }
+        while (!pending.containsKey(key) && pending.size() >= maxPending) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (closed) {
+                throw new IllegalStateException("WriteBehindKeyValue is closed");
+            }
+        }
+        if (pending.put(key, write) != null) {
+            numCoalesced.incrementAndGet();
+        }
+        lock.notifyAll();
+        return true;
+    }
+
+    // most recent write of key which has not yet completed, null if none.  Called with lock held.
+    private Write<V> queuedWrite(K key) {
+        Write<V> write = pending.get(key);
+        return write != null ? write : inFlight.get(key);
+    }
+
+    // wait until no writes are queued or being sent.  Called with lock held.
+    // Returns false if interrupted while waiting.
+    private boolean awaitEmpty() {
+        while (!pending.isEmpty() || !inFlight.isEmpty()) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // runs on the background thread until closed
+    private void writeBatches() {
+        while (true) {
+            synchronized (lock) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                Iterator<Map.Entry<K, Write<V>>> iterator = pending.entrySet().iterator();
+                while (iterator.hasNext() && inFlight.size() < batchSize) {
+                    Map.Entry<K, Write<V>> entry = iterator.next();
+                    inFlight.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+                lock.notifyAll();  // writers waiting for room
+            }
+            // inFlight is only modified by this thread, so it can be read without the lock
+            writeBatch(inFlight);
+            synchronized (lock) {
+                inFlight.clear();
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // send a batch to the store, retrying with exponential backoff on failure.  A store may
+    // report failure by throwing an exception or by returning fewer objects stored than it
+    // was given, in which case the writes which were not stored are retried.
+    private void writeBatch(Map<K, Write<V>> batch) {
+        Map<K, V> puts = new HashMap<K, V>();
+        List<K> deletes = new ArrayList<K>();
+        for (Map.Entry<K, Write<V>> entry : batch.entrySet()) {
+            if (entry.getValue().delete) {
+                deletes.add(entry.getKey());
+            }
+            else {
+                puts.put(entry.getKey(), entry.getValue().value);
+            }
+        }
+        long delay = RETRY_DELAY;
+        for (int attempt = 1; ; attempt++) {
+            RuntimeException failure = null;
+            try {
+                // putAll doesn't say which values weren't stored, so all of them are retried
+                if (!puts.isEmpty()) {
+                    int numStored = store.putAll(puts);
+                    if (numStored == NUM_UNKNOWN || numStored >= puts.size()) {
+                        numWritten.addAndGet(puts.size());
+                        puts.clear();
+                    }
+                }
+                if (!deletes.isEmpty()) {
+                    int numDeleted = store.deleteAll(deletes);
+                    if (numDeleted == NUM_UNKNOWN || numDeleted >= deletes.size()) {
+                        numWritten.addAndGet(deletes.size());
+                        deletes.clear();
+                    }
+                    else {
+                        // keys which were already missing aren't counted as deleted either, so
+                        // only keys still in the store are retried
+                        List<K> remaining = storedKeys(deletes);
+                        numWritten.addAndGet(deletes.size() - remaining.size());
+                        deletes = remaining;
+                    }
+                }
+                if (puts.isEmpty() && deletes.isEmpty()) {
+                    numBatches.incrementAndGet();
+                    return;
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+            }
+            if (attempt >= writeAttempts) {
+                drop(puts.size() + deletes.size(), "after " + attempt + " attempts", failure);
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                drop(puts.size() + deletes.size(), "after being interrupted", failure);
+                return;
+            }
+            delay *= 2;
+        }
+    }
+
+    // keys which are still in the store, all of keys if the store can't be read
+    private List<K> storedKeys(List<K> keys) {
+        Map<K, V> values = store.getAll(keys);
+        if (values == null) {
+            return keys;
+        }
+        List<K> stored = new ArrayList<K>();
+        for (K key : keys) {
+            if (values.get(key) != null) {
+                stored.add(key);
+            }
+        }
+        return stored;
+    }
+
+    private void drop(int numLost, String reason, RuntimeException failure) {
+        numDropped.addAndGet(numLost);
+        String message = "WriteBehindKeyValue: dropping " + numLost + " writes " + reason;
+        if (failure != null) {
+            Util.describeException(failure, message);
+        }
+        else {
+            System.out.println(message);
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.implementations.tinylfu;
+
+import java.util.Arrays;
+
+/**
+ * @author ArunIyengar
+ *
+ * Approximate count of how often each key has been accessed recently, used to decide
+ * which keys are worth caching.  This is a count-min sketch with four rows of 4-bit
+ * counters packed 16 to a long; a key's count is the minimum of its four counters, so
+ * counts can be overestimated but never underestimated, and they saturate at 15.  After
+ * a number of increments proportional to the cache size, every counter is halved so that
+ * the counts reflect recent popularity rather than all history.
+ *
+ * Adapted from the FrequencySketch class of Caffeine (https://github.com/ben-manes/caffeine),
+ * Copyright 2015 Ben Manes, licensed under the Apache License, Version 2.0.  The seeds,
+ * masks, hashing (spread and indexOf), and the correction for odd counts when halving are
+ * taken from it.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long ONE_MASK = 0x1111111111111111L;  // low bit of each counter
+    private static final long RESET_MASK = 0x7777777777777777L;  // all but the high bit of each counter
+    private static final int MAX_COUNT = 15;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;  // # of increments after which counts are halved
+    private int size;  // # of increments since counts were last halved
+
+    /**
+     * Constructor.
+     *
+     * @param maximumSize
+     *            maximum number of entries in the cache
+     */
+    FrequencySketch(long maximumSize) {
+        int capacity = (int) Math.min(Math.max(maximumSize, 1), 1 << 30);
+        int tableSize = 1;
+        while (tableSize < capacity) {
+            tableSize *= 2;
+        }
+        table = new long[tableSize];
+        tableMask = table.length - 1;
+        sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Return estimated number of recent accesses of a key, at most 15
+     *
+     * @param hashCode
+     *            hash code of key
+     * @return estimated count
+     */
+    int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an access of a key
+     *
+     * @param hashCode
+     *            hash code of key
+     */
+    void increment(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Set all counts to 0
+     */
+    void clear() {
+        Arrays.fill(table, 0L);
+        size = 0;
+    }
+
+    // increment counter j of table[i] unless it is saturated.  Returns true if incremented.
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        if ((table[i] & mask) != mask) {
+            table[i] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    // halve every counter
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (odd >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    // mix the bits of a hash code so that similar hash codes have dissimilar counters
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
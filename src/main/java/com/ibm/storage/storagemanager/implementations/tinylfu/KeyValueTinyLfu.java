@@ -0,0 +1,398 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.implementations.tinylfu;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.util.Constants;
+
+/**
+ * @author ArunIyengar
+ *
+ * In-process cache using the W-TinyLFU replacement policy, which keeps hit rates high on
+ * skewed workloads and is not flushed by scans of keys which are accessed once.
+ *
+ * New entries go to a small window LRU queue holding 1% of the cache.  An entry evicted
+ * from the window becomes a candidate for the main part of the cache, which is divided
+ * into a probation queue and a protected queue (80% of the main part) for entries which
+ * have been accessed while on probation.  When the cache is full, the candidate is only
+ * admitted if a frequency sketch estimates it has been accessed more often recently than
+ * the least recently used entry on probation, which is evicted in its place; otherwise
+ * the candidate is evicted.  The frequency sketch counts accesses of keys whether or not
+ * they are cached.
+ *
+ * All operations are serialized by a single lock.
+ */
+public class KeyValueTinyLfu<K, V> implements KeyValue<K, V> {
+
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static class Node<K, V> {
+        K key;
+        V value;
+        int queue;
+        Node<K, V> previous;
+        Node<K, V> next;
+    }
+
+    // LRU queue of nodes, least recently used first
+    private static class Queue<K, V> {
+        private Node<K, V> head = new Node<K, V>();  // sentinel
+        int size;
+
+        Queue() {
+            head.previous = head;
+            head.next = head;
+        }
+
+        Node<K, V> first() {
+            return head.next == head ? null : head.next;
+        }
+
+        void add(Node<K, V> node) {
+            node.previous = head.previous;
+            node.next = head;
+            head.previous.next = node;
+            head.previous = node;
+            size++;
+        }
+
+        void remove(Node<K, V> node) {
+            node.previous.next = node.next;
+            node.next.previous = node.previous;
+            node.previous = null;
+            node.next = null;
+            size--;
+        }
+
+        void clear() {
+            head.previous = head;
+            head.next = head;
+            size = 0;
+        }
+    }
+
+    private Map<K, Node<K, V>> map = new HashMap<K, Node<K, V>>();
+    private Queue<K, V> window = new Queue<K, V>();
+    private Queue<K, V> probation = new Queue<K, V>();
+    private Queue<K, V> protectedQueue = new Queue<K, V>();
+    private FrequencySketch sketch;
+    private long maximum;
+    private long maxWindow;
+    private long maxProtected;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;  // candidates evicted by the admission filter
+
+    /**
+     * Constructor
+     *
+     * @param maxObjects
+     *            maximum number of objects which can be stored before
+     *            replacement starts
+     *
+     * */
+    public KeyValueTinyLfu(long maxObjects) {
+        maximum = Math.max(1, maxObjects);
+        maxWindow = Math.max(1, Math.round(maximum * WINDOW_FRACTION));
+        maxProtected = Math.round((maximum - maxWindow) * PROTECTED_FRACTION);
+        sketch = new FrequencySketch(maximum);
+    }
+
+    /**
+     * delete all entries and access counts from the cache, and reset its statistics
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public synchronized ReturnStatus clear() {
+        map.clear();
+        window.clear();
+        probation.clear();
+        protectedQueue.clear();
+        sketch.clear();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        rejections = 0;
+        return ReturnStatus.SUCCESS;
+    }
+
+    /**
+     * delete a key-value pair
+     *
+     * @param key
+     *            key corresponding to value
+     *
+     * @return # of objects deleted
+     *
+     * */
+    @Override
+    public synchronized int delete(K key) {
+        Node<K, V> node = map.remove(key);
+        if (node == null) {
+            return 0;
+        }
+        queueOf(node).remove(node);
+        return 1;
+    }
+
+    /**
+     * delete one or more key-value pairs
+     *
+     * @param keys
+     *            iterable data structure containing the keys to delete
+     *
+     * @return # of objects deleted
+     *
+     * */
+    @Override
+    public synchronized int deleteAll(List<K> keys) {
+        int numDeleted = 0;
+        for (K key : keys) {
+            numDeleted += delete(key);
+        }
+        return numDeleted;
+    }
+
+    /**
+     * look up a value
+     *
+     * @param key
+     *            key corresponding to value
+     * @return value corresponding to key, null if key is not present
+     *
+     * */
+    @Override
+    public synchronized V get(K key) {
+        sketch.increment(key.hashCode());
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        onAccess(node);
+        return node.value;
+    }
+
+    /**
+     * look up one or more values.
+     *
+     * @param keys
+     *            iterable data structure containing the keys to look up
+     * @return map containing key-value pairs corresponding to data
+     *
+     * */
+    @Override
+    public synchronized Map<K, V> getAll(List<K> keys) {
+        Map<K, V> result = new HashMap<K, V>();
+        for (K key : keys) {
+            V value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return a string idenfitying the type of storage service
+     *
+     * @return string identifying the type of storage service
+     * */
+    @Override
+    public String storeType() {
+        return Constants.TINYLFU;
+    }
+
+    /**
+     * store a key-value pair
+     *
+     * @param key
+     *            key associated with value
+     * @param value
+     *            value associated with key
+     *
+     * @return status code
+     *
+     * */
+    @Override
+    public synchronized ReturnStatus put(K key, V value) {
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            node.value = value;
+            onAccess(node);
+            return ReturnStatus.SUCCESS;
+        }
+        node = new Node<K, V>();
+        node.key = key;
+        node.value = value;
+        node.queue = WINDOW;
+        map.put(key, node);
+        window.add(node);
+        Node<K, V> candidate = null;
+        while (window.size > maxWindow) {
+            candidate = window.first();
+            window.remove(candidate);
+            candidate.queue = PROBATION;
+            probation.add(candidate);
+        }
+        evict(candidate);
+        return ReturnStatus.SUCCESS;
+    }
+
+    /**
+     * store one or more key-value pairs
+     *
+     * @param map
+     *            map containing key-value pairs to store
+     *
+     * @return # of objects stored
+     *
+     * */
+    @Override
+    public synchronized int putAll(Map<K, V> map) {
+        for (Map.Entry<K, V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+        return map.size();
+    }
+
+    /**
+     * Return number of objects in cache
+     *
+     * */
+    @Override
+    public synchronized long size() {
+        return map.size();
+    }
+
+    /**
+     * Return number of lookups which found their keys
+     *
+     * @return number of hits
+     * */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Return number of lookups which did not find their keys
+     *
+     * @return number of misses
+     * */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Return number of entries evicted, including candidates the admission filter rejected
+     *
+     * @return number of evictions
+     * */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Return number of new entries evicted instead of an entry on probation because they
+     * were accessed less often recently
+     *
+     * @return number of rejected candidates
+     * */
+    public synchronized long getRejectionCount() {
+        return rejections;
+    }
+
+    /**
+     * Return fraction of lookups which found their keys
+     *
+     * @return hit rate, 0 if there have been no lookups
+     * */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Return contents of entire cache in a string
+     *
+     * @return string containing output
+     *
+     * */
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder("\nContents of Entire Cache\n\n");
+        for (Node<K, V> node : map.values()) {
+            result.append("Key: ").append(node.key).append("\n");
+            result.append(node.value == null ? "CacheEntry is null" : node.value.toString()).append("\n\n");
+        }
+        result.append("Cache size is: ").append(map.size()).append("\n");
+        return result.toString();
+    }
+
+    private Queue<K, V> queueOf(Node<K, V> node) {
+        switch (node.queue) {
+        case WINDOW:
+            return window;
+        case PROBATION:
+            return probation;
+        default:
+            return protectedQueue;
+        }
+    }
+
+    // move an accessed node to the most recently used end of its queue, promoting it from
+    // probation to protected
+    private void onAccess(Node<K, V> node) {
+        Queue<K, V> queue = queueOf(node);
+        queue.remove(node);
+        if (node.queue == PROBATION) {
+            node.queue = PROTECTED;
+            protectedQueue.add(node);
+            while (protectedQueue.size > maxProtected) {
+                Node<K, V> demoted = protectedQueue.first();
+                protectedQueue.remove(demoted);
+                demoted.queue = PROBATION;
+                probation.add(demoted);
+            }
+        }
+        else {
+            queue.add(node);
+        }
+    }
+
+    // evict entries until the cache is within its maximum size.  candidate, if not null, is
+    // the node most recently moved from the window to probation.
+    private void evict(Node<K, V> candidate) {
+        while (map.size() > maximum) {
+            Node<K, V> victim = probation.first();
+            if (victim == null) {
+                victim = protectedQueue.first();
+            }
+            if (candidate != null && candidate != victim) {
+                if (sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                    victim = candidate;
+                    rejections++;
+                }
+                candidate = null;
+            }
+            queueOf(victim).remove(victim);
+            map.remove(victim.key);
+            evictions++;
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.performancetester;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
+import com.ibm.storage.storagemanager.implementations.tinylfu.KeyValueTinyLfu;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+
+
+/**
+ * @author ArunIyengar
+ * Compares hit rates of in-process caches on synthetic request traces.  Keys are drawn from a
+ * Zipfian distribution, in which the key of rank i is requested with probability proportional
+ * to 1 / i^exponent, optionally with scans of keys which are requested only once interleaved.
+ * Each request is a get; a miss is followed by a put of the key, as an application reading
+ * through the cache from a slower data store would do.
+ *
+ */
+public class HitRateBenchmark {
+
+    private static final long SEED = 42;
+    private static final int NUM_KEYS = 100000;
+    private static final int TRACE_LENGTH = 1000000;
+    private static final double[] EXPONENTS = {0.6, 0.8, 1.0, 1.2};
+    private static final int[] CACHE_SIZES = {500, 2000, 10000};
+    private static final int SCAN_LENGTH = 20000;  // # of distinct keys in each scan
+    private static final int SCAN_INTERVAL = 100000;  // # of Zipfian requests between scans
+
+    /**
+     * Generate a trace of requests for keys 0 to numKeys - 1 drawn from a Zipfian distribution.
+     * Key 0 is the most popular.
+     *
+     * @param numKeys
+     *            number of distinct keys
+     * @param exponent
+     *            skew of the distribution; larger values concentrate requests on fewer keys
+     * @param length
+     *            number of requests in the trace
+     * @param seed
+     *            random number generator seed, so that traces can be reproduced
+     * @return array of requested keys
+     * */
+    public static int[] zipfTrace(int numKeys, double exponent, int length, long seed) {
+        double[] cumulative = new double[numKeys];
+        double total = 0;
+        for (int i = 0; i < numKeys; i++) {
+            total += 1.0 / Math.pow(i + 1, exponent);
+            cumulative[i] = total;
+        }
+        Random random = new Random(seed);
+        int[] trace = new int[length];
+        for (int i = 0; i < length; i++) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            trace[i] = Math.min(index < 0 ? -index - 1 : index, numKeys - 1);
+        }
+        return trace;
+    }
+
+    /**
+     * Insert scans of keys which are never requested again into a trace.  Scanned keys are
+     * numbered from firstKey upward, so they do not collide with keys in the original trace if
+     * firstKey is at least the number of keys in the original trace.
+     *
+     * @param trace
+     *            original trace
+     * @param interval
+     *            number of requests from the original trace between scans
+     * @param scanLength
+     *            number of keys in each scan
+     * @param firstKey
+     *            first key to scan
+     * @return new trace with scans inserted
+     * */
+    public static int[] addScans(int[] trace, int interval, int scanLength, int firstKey) {
+        int numScans = trace.length / interval;
+        int[] result = new int[trace.length + numScans * scanLength];
+        int next = 0;
+        int scanKey = firstKey;
+        for (int i = 0; i < trace.length; i++) {
+            result[next++] = trace[i];
+            if ((i + 1) % interval == 0) {
+                for (int j = 0; j < scanLength; j++) {
+                    result[next++] = scanKey++;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replay a trace against a cache and return the fraction of gets which hit.  The cache is
+     * cleared first.
+     *
+     * @param cache
+     *            cache to test
+     * @param trace
+     *            keys to request
+     * @return hit rate
+     * */
+    public static double hitRate(KeyValue<Integer, Integer> cache, int[] trace) {
+        cache.clear();
+        long hits = 0;
+        for (int key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            }
+            else {
+                cache.put(key, key);
+            }
+        }
+        return trace.length == 0 ? 0.0 : (double) hits / trace.length;
+    }
+
+    private static void compare(String description, int[] trace) {
+        System.out.println(description);
+        System.out.println(String.format("%12s %10s %10s", "cache size", "guava", "tinylfu"));
+        for (int cacheSize : CACHE_SIZES) {
+            double guava = hitRate(new KeyValueGuava<Integer, Integer>(cacheSize), trace);
+            double tinyLfu = hitRate(new KeyValueTinyLfu<Integer, Integer>(cacheSize), trace);
+            System.out.println(String.format("%12d %10.4f %10.4f", cacheSize, guava, tinyLfu));
+        }
+        System.out.println();
+    }
+
+    /**
+     * Print hit rates of KeyValueGuava and KeyValueTinyLfu for several Zipfian exponents and
+     * cache sizes, with and without scans
+     *
+     * @param args
+     *            not used
+     * */
+    public static void main(String[] args) {
+        System.out.println("Hit rates for " + TRACE_LENGTH + " requests over " + NUM_KEYS + " keys\n");
+        for (double exponent : EXPONENTS) {
+            int[] trace = zipfTrace(NUM_KEYS, exponent, TRACE_LENGTH, SEED);
+            compare("Zipf exponent " + exponent, trace);
+            compare("Zipf exponent " + exponent + " with a scan of " + SCAN_LENGTH + " keys every "
+                    + SCAN_INTERVAL + " requests", addScans(trace, SCAN_INTERVAL, SCAN_LENGTH, NUM_KEYS));
+        }
+    }
+
+}
@@ -84,7 +84,9 @@ public class PerformanceTester {
     private boolean useRemoteCache;  // true if a remote process cache should be used,
                                      // in addition to the inprocess cache
     
-    private PerformanceTester(String configFile) throws Exception {
+    private PerformanceTester(String configFile, KeyValueRedis<String, byte[]> remoteCache)
+            throws Exception {
+        this.remoteCache = remoteCache;
         readConfigInfo(configFile);
         objects = new byte[objectSizes][];
         compressedObjects = new byte[objectSizes][];
@@ -128,7 +130,9 @@ public class PerformanceTester {
         fastCacheMissTime = missTime(fastCache);
         System.out.println("Fast cache miss time in nanosecods is: " + fastCacheMissTime);
         if (useRemoteCache) {
-            remoteCache = new KeyValueRedis<String, byte[]>("localhost", 6379, 60);
+            if (remoteCache == null) {
+                remoteCache = new KeyValueRedis<String, byte[]>("localhost", 6379, 60);
+            }
             populateStore(remoteCache);
             remoteCacheHitTimes = runTests(remoteCache, Operations.READ);
             remoteCacheMissTime = missTime(remoteCache);
@@ -362,7 +366,23 @@ public class PerformanceTester {
      *            Array containing all data stores to test
      */
     public static void runAllTests(String configFile, ArrayList<KeyValue<String, byte[]>> dataStores) throws Exception {
-        PerformanceTester pt = new PerformanceTester(configFile);
+        runAllTests(configFile, dataStores, null);
+    }
+
+    /**
+     * Run all tests, store the results in output files.
+     * 
+     * @param configFile
+     *            file storing configuration parameters
+     * @param dataStores
+     *            Array containing all data stores to test
+     * @param remoteCache
+     *            Redis cache used as the out-of-process cache if the configuration file calls
+     *            for one, null for a Redis server on localhost at the default port
+     */
+    public static void runAllTests(String configFile, ArrayList<KeyValue<String, byte[]>> dataStores,
+            KeyValueRedis<String, byte[]> remoteCache) throws Exception {
+        PerformanceTester pt = new PerformanceTester(configFile, remoteCache);
         if (DEBUG_MODE) {
             pt.outputTestParameters();
             // pt.printObjects();
@@ -22,8 +22,11 @@ public final class Constants {
     public static final String FILE = "file";
     public static final String GUAVA = "guava";
     public static final String OBJECTSTORAGE = "objectstorage";
+    public static final String OFFHEAP = "offheap";
     public static final String REDIS = "redis";
     public static final String SQLID = "sql";
+    public static final String TIERED = "tiered";
+    public static final String TINYLFU = "tinylfu";
 
     public static final String PERFORMANCETEST = "performancetest";
 
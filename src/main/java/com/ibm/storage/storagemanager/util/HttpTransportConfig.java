@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package com.ibm.storage.storagemanager.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * @author ArunIyengar
+ *
+ * HTTP transport settings for storage services accessed over HTTP, such as Cloudant and
+ * OpenStack Object Storage.  Connections are pooled and kept alive between requests so
+ * that concurrent requests, for example from AsyncKeyValue, don't queue for a small
+ * number of connections or repeat TCP and TLS handshakes.  maxConnections should be at
+ * least the number of requests expected to run concurrently.
+ */
+public class HttpTransportConfig {
+    private int maxConnections = 64;  // max # of pooled connections to the service
+    private int connectTimeout = 10000;  // milliseconds to wait for a connection to be established
+    private int socketTimeout = 60000;  // milliseconds to wait for data from the service
+    private long keepAlive = 60000;  // milliseconds an idle connection is kept open
+
+    /**
+     * Set maximum number of pooled connections to the service
+     *
+     * @param connections
+     *            number of connections (ignored if < 1)
+     */
+    public void setMaxConnections(int connections) {
+        if (connections >= 1)
+            maxConnections = connections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Set time to wait for a connection to be established
+     *
+     * @param millis
+     *            timeout in milliseconds, 0 for no timeout (ignored if < 0)
+     */
+    public void setConnectTimeout(int millis) {
+        if (millis >= 0)
+            connectTimeout = millis;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Set time to wait for data from the service before a request fails
+     *
+     * @param millis
+     *            timeout in milliseconds, 0 for no timeout (ignored if < 0)
+     */
+    public void setSocketTimeout(int millis) {
+        if (millis >= 0)
+            socketTimeout = millis;
+    }
+
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Set maximum time an idle pooled connection is kept open for reuse.  A shorter time
+     * requested by the service in a Keep-Alive header takes precedence.
+     *
+     * @param millis
+     *            time in milliseconds (ignored if < 1)
+     */
+    public void setKeepAlive(long millis) {
+        if (millis >= 1)
+            keepAlive = millis;
+    }
+
+    public long getKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Create an HTTP client with a connection pool configured by these settings.  The
+     * client should be closed when it is no longer needed.
+     *
+     * @return HTTP client
+     */
+    public CloseableHttpClient createHttpClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        // a store talks to a single host, so one route may use the whole pool
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(connectTimeout)
+                .setSocketTimeout(socketTimeout).build();
+        return HttpClients.custom().setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig).setKeepAliveStrategy(keepAliveStrategy())
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS).build();
+    }
+
+    // keep connections open for keepAlive milliseconds unless the service asks for less
+    private ConnectionKeepAliveStrategy keepAliveStrategy() {
+        return new ConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                BasicHeaderElementIterator elements = new BasicHeaderElementIterator(
+                        response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                while (elements.hasNext()) {
+                    HeaderElement element = elements.nextElement();
+                    if (element.getName().equalsIgnoreCase("timeout") && element.getValue() != null) {
+                        try {
+                            return Math.min(keepAlive, Long.parseLong(element.getValue()) * 1000);
+                        } catch (NumberFormatException e) {
+                            // ignore malformed header
+                        }
+                    }
+                }
+                return keepAlive;
+            }
+        };
+    }
+
+    public String toString() {
+        return "maxConnections: " + maxConnections + ", connectTimeout: " + connectTimeout
+                + ", socketTimeout: " + socketTimeout + ", keepAlive: " + keepAlive;
+    }
+
+}
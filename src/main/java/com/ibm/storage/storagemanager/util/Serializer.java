@@ -2,10 +2,13 @@ package com.ibm.storage.storagemanager.util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 
 /**
@@ -101,6 +104,67 @@ public class Serializer {
         return bytes;
     }
 
+    /**
+     * Deserialize a single object read from a stream.  Unlike deserializeFromByteArray, the
+     * serialized bytes are never held in memory all at once.  The stream is not closed.
+     * 
+     * @param stream
+     *            stream containing the serialized object
+     * @param <T>
+     *            type of deserialized object
+     * @return deserialized object, null if the stream is empty or cannot be deserialized
+     * 
+     * */
+    public static <T> T deserializeFromStream(InputStream stream) {
+        if (stream == null) {
+            return null;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(stream);
+            return Util.uncheckedCast(in.readObject());
+        } catch (EOFException e) {  // empty stream represents null
+            return null;
+        } catch (IOException i) {
+            System.out.println("Exception in Serializer.deserializeFromStream  " + ",  " + i.getMessage());
+            i.printStackTrace();
+            return null;
+        } catch (ClassNotFoundException c) {
+            System.out
+                    .println("Serializer.deserializeFromStream: class not found");
+            c.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Serialize a single object to a stream.  Unlike serializeToByteArray, the serialized
+     * bytes are never held in memory all at once.  A null object is written as an empty
+     * stream.  The stream is flushed but not closed.
+     * 
+     * @param r
+     *            object to serialize
+     * @param stream
+     *            stream to write the serialized object to
+     * @param <T>
+     *            type of serialized object
+     * @return true if the object was written, false otherwise
+     * 
+     * */
+    public static <T> boolean serializeToStream(T r, OutputStream stream) {
+        if (r == null) {
+            return true;
+        }
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(stream);
+            out.writeObject(r);
+            out.flush();
+            return true;
+        } catch (IOException ex) {
+            System.out.println("Exception in Serializer.serializeToStream  " + ",  " + ex.getMessage());
+            return false;
+        }
+    }
+
 
     /**
      * Deserialize a string from a byte array
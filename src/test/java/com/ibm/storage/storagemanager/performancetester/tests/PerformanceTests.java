@@ -14,6 +14,9 @@ import com.ibm.storage.storagemanager.implementations.redis.KeyValueRedis;
 import com.ibm.storage.storagemanager.implementations.sql.KeyValueSQL;
 import com.ibm.storage.storagemanager.interfaces.KeyValue;
 import com.ibm.storage.storagemanager.performancetester.PerformanceTester;
+import com.ibm.storage.storagemanager.standins.CouchDBStandIn;
+import com.ibm.storage.storagemanager.standins.RedisStandIn;
+import com.ibm.storage.storagemanager.standins.SwiftStandIn;
 import com.ibm.storage.storagemanager.util.Constants;
 import com.ibm.storage.storagemanager.util.Util;
 
@@ -37,6 +40,9 @@ public class PerformanceTests {
 
     // File with SQL database name, base URL, username, and password should be entered here
     private static final String CONFIG_FILE_SQL =  Util.configFile(Constants.SQLID);
+
+    // Milliseconds by which the in-process stand-ins delay each request
+    private static final long STANDIN_LATENCY = 2;
   
     
     KeyValue<String, byte[]> datastoreCloudant, datastoreFile, datastoreObjectstorage, datastoreRedis,
@@ -90,6 +96,43 @@ public class PerformanceTests {
         testDataStore(new KeyValueSQL<String, byte[]>("db1", CONFIG_FILE_SQL, true));
     }
    
+    /*
+     * Test SQL store running on an embedded H2 database, requires no database server
+     */
+    @Test
+    public void testSQLEmbedded() throws Exception {
+        testDataStore(new KeyValueSQL<String, byte[]>("db1", "db1", "jdbc:h2:mem:", "sa", "", true));
+    }
+   
+    /*
+     * Test KeyValueCloudant, KeyValueObjectStorage, and KeyValueRedis against in-process stand-ins
+     * for the remote services which delay each request by STANDIN_LATENCY, so the client code
+     * paths can be measured without any remote services
+     */
+    @Test
+    public void standInTests() throws Exception {
+        CouchDBStandIn couchDB = new CouchDBStandIn(STANDIN_LATENCY);
+        SwiftStandIn swift = new SwiftStandIn(STANDIN_LATENCY);
+        RedisStandIn redis = new RedisStandIn(STANDIN_LATENCY);
+        try {
+            dataStores = new ArrayList<KeyValue<String, byte[]>>();
+            datastoreCloudant = new KeyValueCloudant<String, byte[]>(couchDB.getUrl(), "db1", "user",
+                    "pw", true);
+            dataStores.add(datastoreCloudant);
+            datastoreObjectstorage = new KeyValueObjectStorage<String, byte[]>("db1",
+                    swift.getAuthUrl(), "user", "pw", true);
+            dataStores.add(datastoreObjectstorage);
+            datastoreRedis = new KeyValueRedis<String, byte[]>(redis.getHost(), redis.getPort(), 60);
+            dataStores.add(datastoreRedis);
+            PerformanceTester.runAllTests(CONFIG_FILE_PERFORMANCETESTER, dataStores,
+                    new KeyValueRedis<String, byte[]>(redis.getHost(), redis.getPort(), 60));
+        } finally {
+            couchDB.close();
+            swift.close();
+            redis.close();
+        }
+    }
+
     /*
      * Test KeyValueFile and KeyValueSQL
      */
@@ -0,0 +1,689 @@
+package com.ibm.storage.storagemanager.standins;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author ArunIyengar
+ * 
+ * In-process stand-in for a CouchDB/Cloudant HTTP endpoint, implementing the subset of
+ * the API used by KeyValueCloudant: databases, documents, attachments, _bulk_docs,
+ * _all_docs and _changes.  Each request can be delayed by a fixed latency to model a
+ * remote service.
+ */
+public class CouchDBStandIn extends StandInServer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // A stored document.  Attachments are kept separately from the JSON body.
+    private static class Doc {
+        JsonObject body;
+        int generation;
+        boolean deleted;
+        long seq;
+        Map<String, byte[]> attachments = new HashMap<String, byte[]>();
+        Map<String, String> attachmentTypes = new HashMap<String, String>();
+        String rev() {
+            return generation + "-" + Integer.toHexString((body.toString() + generation).hashCode());
+        }
+    }
+
+    private static class Database {
+        TreeMap<String, Doc> docs = new TreeMap<String, Doc>();
+        long updateSeq = 0;
+    }
+
+    private Map<String, Database> databases = new ConcurrentHashMap<String, Database>();
+    private HttpServer server;
+    private AtomicLong numRequests = new AtomicLong();
+    private volatile boolean logRequests = false;
+
+    /**
+     * Constructor.  Starts serving on an ephemeral port on the loopback interface.
+     * 
+     * @param latency
+     *            milliseconds to delay each request
+     */
+    public CouchDBStandIn(long latency) throws IOException {
+        super(latency);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool(daemonThreads("couchdb-standin")));
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    numRequests.incrementAndGet();
+                    delay();
+                    bufferRequestBody(exchange);
+                    if (logRequests) {
+                        System.out.println("CouchDBStandIn: " + exchange.getRequestMethod() + " "
+                                + exchange.getRequestURI());
+                    }
+                    dispatch(exchange);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    sendJson(exchange, 500, error("internal", String.valueOf(e)));
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Return URL clients should connect to
+     * 
+     * @return base URL
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Return number of HTTP requests served
+     * 
+     * @return number of requests
+     */
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    public void logRequests(boolean log) {
+        logRequests = log;
+    }
+
+    /**
+     * Write a document directly, as another client of the same database would.
+     * 
+     * @param dbName
+     *            database name
+     * @param id
+     *            document id
+     * @param body
+     *            JSON document body
+     * @return new revision
+     */
+    public String putDocument(String dbName, String id, JsonObject body) {
+        Database db = databases.get(dbName);
+        synchronized (db) {
+            return store(db, id, body, true).getAsJsonPrimitive("rev").getAsString();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        URI uri = exchange.getRequestURI();
+        String[] path = splitPath(uri.getRawPath());
+        Map<String, String> query = parseQuery(uri.getRawQuery());
+        if (path.length == 0) {
+            JsonObject welcome = new JsonObject();
+            welcome.addProperty("couchdb", "Welcome");
+            welcome.addProperty("version", "1.6.1");
+            sendJson(exchange, 200, welcome);
+            return;
+        }
+        if (path[0].equals("_session")) {
+            exchange.getResponseHeaders().add("Set-Cookie", "AuthSession=standin; Path=/");
+            JsonObject ok = new JsonObject();
+            ok.addProperty("ok", true);
+            sendJson(exchange, 200, ok);
+            return;
+        }
+        if (path[0].equals("_all_dbs")) {
+            JsonArray names = new JsonArray();
+            for (String name : databases.keySet()) {
+                names.add(new JsonPrimitive(name));
+            }
+            sendJson(exchange, 200, names);
+            return;
+        }
+        String dbName = path[0];
+        if (path.length == 1) {
+            handleDatabase(exchange, method, dbName);
+            return;
+        }
+        Database db = databases.get(dbName);
+        if (db == null) {
+            sendJson(exchange, 404, error("not_found", "Database does not exist."));
+            return;
+        }
+        String id = path[1];
+        if (id.equals("_bulk_docs") && method.equals("POST")) {
+            handleBulkDocs(exchange, db);
+        }
+        else if (id.equals("_all_docs")) {
+            handleAllDocs(exchange, method, db, query);
+        }
+        else if (id.equals("_changes")) {
+            handleChanges(exchange, db, query);
+        }
+        else if (path.length == 3) {
+            handleAttachment(exchange, method, db, id, path[2], query);
+        }
+        else {
+            handleDocument(exchange, method, db, id, query);
+        }
+    }
+
+    private void handleDatabase(HttpExchange exchange, String method, String dbName) throws IOException {
+        JsonObject ok = new JsonObject();
+        ok.addProperty("ok", true);
+        if (method.equals("PUT")) {
+            if (databases.containsKey(dbName)) {
+                sendJson(exchange, 412, error("file_exists", "The database could not be created."));
+                return;
+            }
+            databases.put(dbName, new Database());
+            sendJson(exchange, 201, ok);
+        }
+        else if (method.equals("DELETE")) {
+            if (databases.remove(dbName) == null) {
+                sendJson(exchange, 404, error("not_found", "Database does not exist."));
+                return;
+            }
+            sendJson(exchange, 200, ok);
+        }
+        else if (method.equals("POST")) {
+            Database db = databases.get(dbName);
+            if (db == null) {
+                sendJson(exchange, 404, error("not_found", "Database does not exist."));
+                return;
+            }
+            JsonObject body = readJson(exchange).getAsJsonObject();
+            String id = body.has("_id") ? body.get("_id").getAsString() : Long.toHexString(System.nanoTime());
+            synchronized (db) {
+                JsonObject result = store(db, id, body, false);
+                sendJson(exchange, result.has("error") ? 409 : 201, result);
+            }
+        }
+        else {
+            Database db = databases.get(dbName);
+            if (db == null) {
+                sendJson(exchange, 404, error("not_found", "Database does not exist."));
+                return;
+            }
+            JsonObject info = new JsonObject();
+            synchronized (db) {
+                int count = 0;
+                for (Doc doc : db.docs.values()) {
+                    if (!doc.deleted) {
+                        count++;
+                    }
+                }
+                info.addProperty("db_name", dbName);
+                info.addProperty("doc_count", count);
+                info.addProperty("doc_del_count", db.docs.size() - count);
+                info.addProperty("update_seq", String.valueOf(db.updateSeq));
+            }
+            sendJson(exchange, 200, info);
+        }
+    }
+
+    // store a document body, checking _rev unless force is true.  Returns the per-document
+    // result as it appears in a _bulk_docs response.
+    private JsonObject store(Database db, String id, JsonObject body, boolean force) {
+        return store(db, id, body, force, new ArrayList<byte[]>());
+    }
+
+    // attachments marked "follows" take their data, in order, from the given list
+    private JsonObject store(Database db, String id, JsonObject body, boolean force, List<byte[]> following) {
+        Doc existing = db.docs.get(id);
+        String rev = body.has("_rev") ? body.get("_rev").getAsString() : null;
+        boolean deleting = body.has("_deleted") && body.get("_deleted").getAsBoolean();
+        JsonObject result = new JsonObject();
+        result.addProperty("id", id);
+        if (!force) {
+            boolean live = existing != null && !existing.deleted;
+            if ((live && !existing.rev().equals(rev)) || (!live && rev != null && existing == null)
+                    || (!live && deleting)) {
+                result.addProperty("error", "conflict");
+                result.addProperty("reason", "Document update conflict.");
+                return result;
+            }
+        }
+        Doc doc = (existing == null) ? new Doc() : existing;
+        JsonObject copy = new JsonObject();
+        for (Map.Entry<String, JsonElement> entry : body.entrySet()) {
+            if (!entry.getKey().equals("_rev") && !entry.getKey().equals("_id")
+                    && !entry.getKey().equals("_attachments")) {
+                copy.add(entry.getKey(), entry.getValue());
+            }
+        }
+        // stubs keep existing attachments, inline and following attachments replace them,
+        // and attachments which aren't mentioned are dropped
+        Map<String, byte[]> attachments = new HashMap<String, byte[]>();
+        Map<String, String> types = new HashMap<String, String>();
+        if (body.has("_attachments") && body.get("_attachments").isJsonObject()) {
+            int next = 0;
+            for (Map.Entry<String, JsonElement> entry : body.getAsJsonObject("_attachments").entrySet()) {
+                JsonObject stub = entry.getValue().getAsJsonObject();
+                String name = entry.getKey();
+                if (stub.has("follows") && next < following.size()) {
+                    attachments.put(name, following.get(next++));
+                }
+                else if (stub.has("data")) {
+                    attachments.put(name, Base64.getDecoder().decode(stub.get("data").getAsString()));
+                }
+                else if (doc.attachments.containsKey(name)) {
+                    attachments.put(name, doc.attachments.get(name));
+                    types.put(name, doc.attachmentTypes.get(name));
+                    continue;
+                }
+                else {
+                    continue;
+                }
+                types.put(name, stub.has("content_type") ? stub.get("content_type").getAsString()
+                        : "application/octet-stream");
+            }
+        }
+        doc.attachments = attachments;
+        doc.attachmentTypes = types;
+        doc.body = copy;
+        doc.deleted = deleting;
+        if (deleting) {
+            doc.attachments.clear();
+        }
+        doc.generation++;
+        doc.seq = ++db.updateSeq;
+        db.docs.put(id, doc);
+        result.addProperty("rev", doc.rev());
+        result.addProperty("ok", true);
+        return result;
+    }
+
+    private JsonObject render(String id, Doc doc) {
+        JsonObject out = new JsonObject();
+        out.addProperty("_id", id);
+        out.addProperty("_rev", doc.rev());
+        for (Map.Entry<String, JsonElement> entry : doc.body.entrySet()) {
+            out.add(entry.getKey(), entry.getValue());
+        }
+        if (!doc.attachments.isEmpty()) {
+            JsonObject stubs = new JsonObject();
+            for (Map.Entry<String, byte[]> entry : doc.attachments.entrySet()) {
+                JsonObject stub = new JsonObject();
+                stub.addProperty("content_type", doc.attachmentTypes.get(entry.getKey()));
+                stub.addProperty("length", entry.getValue().length);
+                stub.addProperty("stub", true);
+                stubs.add(entry.getKey(), stub);
+            }
+            out.add("_attachments", stubs);
+        }
+        return out;
+    }
+
+    private void handleDocument(HttpExchange exchange, String method, Database db, String id,
+            Map<String, String> query) throws IOException {
+        if (method.equals("GET") || method.equals("HEAD")) {
+            JsonObject out = null;
+            synchronized (db) {
+                Doc doc = db.docs.get(id);
+                if (doc != null && !doc.deleted) {
+                    out = render(id, doc);
+                }
+            }
+            if (out == null) {
+                sendJson(exchange, 404, error("not_found", "missing"));
+                return;
+            }
+            exchange.getResponseHeaders().add("ETag", "\"" + out.get("_rev").getAsString() + "\"");
+            sendJson(exchange, 200, out);
+        }
+        else if (method.equals("PUT")) {
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            JsonObject body;
+            List<byte[]> following = new ArrayList<byte[]>();
+            if (contentType != null && contentType.startsWith("multipart/related")) {
+                body = readMultipart(exchange, contentType, following);
+            }
+            else {
+                body = readJson(exchange).getAsJsonObject();
+            }
+            if (query.containsKey("rev")) {
+                body.addProperty("_rev", query.get("rev"));
+            }
+            JsonObject result;
+            synchronized (db) {
+                result = store(db, id, body, false, following);
+            }
+            sendJson(exchange, result.has("error") ? 409 : 201, result);
+        }
+        else if (method.equals("DELETE")) {
+            JsonObject body = new JsonObject();
+            body.addProperty("_deleted", true);
+            if (query.containsKey("rev")) {
+                body.addProperty("_rev", query.get("rev"));
+            }
+            JsonObject result;
+            synchronized (db) {
+                Doc doc = db.docs.get(id);
+                if (doc == null || doc.deleted) {
+                    sendJson(exchange, 404, error("not_found", "missing"));
+                    return;
+                }
+                result = store(db, id, body, false);
+            }
+            sendJson(exchange, result.has("error") ? 409 : 200, result);
+        }
+        else {
+            sendJson(exchange, 405, error("method_not_allowed", method));
+        }
+    }
+
+    private void handleAttachment(HttpExchange exchange, String method, Database db, String id,
+            String name, Map<String, String> query) throws IOException {
+        if (method.equals("GET")) {
+            byte[] data = null;
+            String type = null;
+            synchronized (db) {
+                Doc doc = db.docs.get(id);
+                if (doc != null && !doc.deleted) {
+                    data = doc.attachments.get(name);
+                    type = doc.attachmentTypes.get(name);
+                }
+            }
+            if (data == null) {
+                sendJson(exchange, 404, error("not_found", "Document is missing attachment"));
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Type", type);
+            exchange.sendResponseHeaders(200, data.length);
+            exchange.getResponseBody().write(data);
+        }
+        else if (method.equals("PUT")) {
+            byte[] data = readBytes(exchange.getRequestBody());
+            String rev = query.get("rev");
+            JsonObject result = new JsonObject();
+            synchronized (db) {
+                Doc doc = db.docs.get(id);
+                boolean live = doc != null && !doc.deleted;
+                if ((live && !doc.rev().equals(rev)) || (!live && rev != null)) {
+                    sendJson(exchange, 409, error("conflict", "Document update conflict."));
+                    return;
+                }
+                if (doc == null || doc.deleted) {
+                    doc = new Doc();
+                    doc.body = new JsonObject();
+                    db.docs.put(id, doc);
+                }
+                doc.attachments.put(name, data);
+                doc.attachmentTypes.put(name, exchange.getRequestHeaders().getFirst("Content-Type"));
+                doc.deleted = false;
+                doc.generation++;
+                doc.seq = ++db.updateSeq;
+                result.addProperty("ok", true);
+                result.addProperty("id", id);
+                result.addProperty("rev", doc.rev());
+            }
+            sendJson(exchange, 201, result);
+        }
+        else {
+            sendJson(exchange, 405, error("method_not_allowed", method));
+        }
+    }
+
+    private void handleBulkDocs(HttpExchange exchange, Database db) throws IOException {
+        JsonArray docs = readJson(exchange).getAsJsonObject().getAsJsonArray("docs");
+        JsonArray results = new JsonArray();
+        synchronized (db) {
+            for (JsonElement element : docs) {
+                JsonObject body = element.getAsJsonObject();
+                String id = body.has("_id") ? body.get("_id").getAsString() : Long.toHexString(System.nanoTime());
+                results.add(store(db, id, body, false));
+            }
+        }
+        sendJson(exchange, 201, results);
+    }
+
+    private void handleAllDocs(HttpExchange exchange, String method, Database db, Map<String, String> query)
+            throws IOException {
+        boolean includeDocs = "true".equals(query.get("include_docs"));
+        List<String> keys = null;
+        if (method.equals("POST")) {
+            JsonObject body = readJson(exchange).getAsJsonObject();
+            if (body.has("keys")) {
+                keys = new ArrayList<String>();
+                for (JsonElement key : body.getAsJsonArray("keys")) {
+                    keys.add(key.getAsString());
+                }
+            }
+        }
+        else if (query.containsKey("keys")) {
+            keys = new ArrayList<String>();
+            for (JsonElement key : new JsonParser().parse(query.get("keys")).getAsJsonArray()) {
+                keys.add(key.getAsString());
+            }
+        }
+        JsonArray rows = new JsonArray();
+        int total;
+        synchronized (db) {
+            List<String> ids = new ArrayList<String>();
+            if (keys != null) {
+                ids.addAll(keys);
+            }
+            else {
+                String startKey = query.containsKey("startkey") ? new JsonParser().parse(query.get("startkey"))
+                        .getAsString() : null;
+                int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : Integer.MAX_VALUE;
+                for (Map.Entry<String, Doc> entry : (startKey == null ? db.docs : db.docs.tailMap(startKey, true))
+                        .entrySet()) {
+                    if (ids.size() >= limit) {
+                        break;
+                    }
+                    if (!entry.getValue().deleted) {
+                        ids.add(entry.getKey());
+                    }
+                }
+            }
+            total = 0;
+            for (Doc doc : db.docs.values()) {
+                if (!doc.deleted) {
+                    total++;
+                }
+            }
+            for (String id : ids) {
+                Doc doc = db.docs.get(id);
+                JsonObject row = new JsonObject();
+                row.addProperty("key", id);
+                if (doc == null) {
+                    row.addProperty("error", "not_found");
+                }
+                else {
+                    row.addProperty("id", id);
+                    JsonObject value = new JsonObject();
+                    value.addProperty("rev", doc.rev());
+                    if (doc.deleted) {
+                        value.addProperty("deleted", true);
+                    }
+                    row.add("value", value);
+                    if (includeDocs) {
+                        row.add("doc", doc.deleted ? JsonNull.INSTANCE : render(id, doc));
+                    }
+                }
+                rows.add(row);
+            }
+        }
+        JsonObject out = new JsonObject();
+        out.addProperty("total_rows", total);
+        out.addProperty("offset", 0);
+        out.add("rows", rows);
+        sendJson(exchange, 200, out);
+    }
+
+    private void handleChanges(HttpExchange exchange, Database db, Map<String, String> query) throws IOException {
+        String sinceParam = query.containsKey("since") ? query.get("since") : "0";
+        long since;
+        synchronized (db) {
+            since = sinceParam.equals("now") ? db.updateSeq : Long.parseLong(sinceParam);
+        }
+        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : Integer.MAX_VALUE;
+        boolean includeDocs = "true".equals(query.get("include_docs"));
+        TreeMap<Long, String> bySeq = new TreeMap<Long, String>();
+        JsonArray results = new JsonArray();
+        long lastSeq = since;
+        synchronized (db) {
+            for (Map.Entry<String, Doc> entry : db.docs.entrySet()) {
+                if (entry.getValue().seq > since) {
+                    bySeq.put(entry.getValue().seq, entry.getKey());
+                }
+            }
+            for (Map.Entry<Long, String> entry : bySeq.entrySet()) {
+                if (results.size() >= limit) {
+                    break;
+                }
+                Doc doc = db.docs.get(entry.getValue());
+                JsonObject row = new JsonObject();
+                row.addProperty("seq", String.valueOf(entry.getKey()));
+                row.addProperty("id", entry.getValue());
+                JsonArray changes = new JsonArray();
+                JsonObject rev = new JsonObject();
+                rev.addProperty("rev", doc.rev());
+                changes.add(rev);
+                row.add("changes", changes);
+                if (doc.deleted) {
+                    row.addProperty("deleted", true);
+                }
+                if (includeDocs) {
+                    row.add("doc", doc.deleted ? JsonNull.INSTANCE : render(entry.getValue(), doc));
+                }
+                results.add(row);
+                lastSeq = entry.getKey();
+            }
+        }
+        JsonObject out = new JsonObject();
+        out.add("results", results);
+        out.addProperty("last_seq", String.valueOf(lastSeq));
+        sendJson(exchange, 200, out);
+    }
+
+    // parse a multipart/related document: the first part is the JSON document, and the
+    // remaining parts are the data of attachments marked "follows"
+    private static JsonObject readMultipart(HttpExchange exchange, String contentType, List<byte[]> following)
+            throws IOException {
+        String boundary = contentType.substring(contentType.indexOf("boundary=") + "boundary=".length());
+        boundary = boundary.split(";")[0].replace("\"", "");
+        byte[] bytes = readBytes(exchange.getRequestBody());
+        byte[] delimiter = ("--" + boundary).getBytes(UTF8);
+        List<byte[]> parts = new ArrayList<byte[]>();
+        int start = indexOf(bytes, delimiter, 0);
+        while (start >= 0) {
+            int headerStart = start + delimiter.length;
+            if (headerStart + 2 <= bytes.length && bytes[headerStart] == '-' && bytes[headerStart + 1] == '-') {
+                break;
+            }
+            int bodyStart = indexOf(bytes, "\r\n\r\n".getBytes(UTF8), headerStart) + 4;
+            int end = indexOf(bytes, ("\r\n--" + boundary).getBytes(UTF8), bodyStart);
+            if (bodyStart < 4 || end < 0) {
+                break;
+            }
+            byte[] part = new byte[end - bodyStart];
+            System.arraycopy(bytes, bodyStart, part, 0, part.length);
+            parts.add(part);
+            start = end + 2;
+        }
+        JsonObject body = new JsonParser().parse(new String(parts.get(0), UTF8)).getAsJsonObject();
+        following.addAll(parts.subList(1, parts.size()));
+        return body;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        outer: for (int i = from; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static JsonObject error(String error, String reason) {
+        JsonObject out = new JsonObject();
+        out.addProperty("error", error);
+        out.addProperty("reason", reason);
+        return out;
+    }
+
+    private static JsonElement readJson(HttpExchange exchange) throws IOException {
+        return new JsonParser().parse(new String(readBytes(exchange.getRequestBody()), UTF8));
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, JsonElement body) throws IOException {
+        byte[] bytes = body.toString().getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+    }
+
+    private static String[] splitPath(String rawPath) {
+        List<String> parts = new ArrayList<String>();
+        for (String part : rawPath.split("/")) {
+            if (!part.isEmpty()) {
+                parts.add(decode(part));
+            }
+        }
+        return parts.toArray(new String[parts.size()]);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                query.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+            }
+        }
+        return query;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s.replace("+", "%2B"), "UTF-8");
+        } catch (IOException e) {
+            return s;
+        }
+    }
+}
@@ -0,0 +1,663 @@
+package com.ibm.storage.storagemanager.standins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * @author ArunIyengar
+ *
+ * In-process stand-in for a Redis server speaking the RESP protocol, implementing the
+ * string commands used by KeyValueRedis (GET, SET, DEL, KEYS, DBSIZE, SELECT, FLUSHDB,
+ * FLUSHALL) along with MGET, MSET, EXISTS, key expiration, connection commands, and
+ * publish/subscribe messaging (PUBLISH, SUBSCRIBE, UNSUBSCRIBE).  As in Redis, commands are
+ * executed one at a time; each command can be delayed by a fixed latency to model a remote
+ * server.
+ */
+public class RedisStandIn extends StandInServer {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final int NUM_DATABASES = 16;
+
+    // A stored value.  Keys are byte strings held as ISO-8859-1 strings, which map bytes
+    // one to one onto characters.
+    private static class Entry {
+        byte[] value;
+        long expiresAt;  // milliseconds since the epoch, 0 if the key does not expire
+
+        Entry(byte[] value) {
+            this.value = value;
+        }
+    }
+
+    // A connection in subscribe mode.  Messages are written to it by the publishing
+    // connection's thread, so writes to out are synchronized on out.
+    private static class Subscriber {
+        final OutputStream out;
+        final Set<String> channels = new HashSet<String>();
+
+        Subscriber(OutputStream out) {
+            this.out = out;
+        }
+    }
+
+    // reply sent after the connection is closed
+    private static final Object QUIT = new Object();
+
+    private List<Map<String, Entry>> databases = new ArrayList<Map<String, Entry>>();
+    private Map<String, Set<Subscriber>> channels = new HashMap<String, Set<Subscriber>>();
+    private ServerSocket serverSocket;
+    private ExecutorService connectionService = Executors.newCachedThreadPool(daemonThreads("redis-standin"));
+    private Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private AtomicLong numCommands = new AtomicLong();
+    private volatile boolean logRequests = false;
+
+    /**
+     * Constructor.  Starts serving on an ephemeral port on the loopback interface.
+     *
+     * @param latency
+     *            milliseconds to delay each command
+     * @throws IOException
+     *             if the server socket cannot be opened
+     */
+    public RedisStandIn(long latency) throws IOException {
+        super(latency);
+        for (int i = 0; i < NUM_DATABASES; i++) {
+            databases.add(new HashMap<String, Entry>());
+        }
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        connectionService.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * Return host clients should connect to
+     *
+     * @return host name
+     */
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Return number of commands executed
+     *
+     * @return number of commands
+     */
+    public long getNumCommands() {
+        return numCommands.get();
+    }
+
+    public void logRequests(boolean log) {
+        logRequests = log;
+    }
+
+    /**
+     * Close every client connection, as a network failure would, while continuing to accept
+     * new connections.  Stored data is kept.
+     */
+    public void closeConnections() {
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+        connectionService.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;  // server socket closed
+            }
+            connections.add(socket);
+            connectionService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } finally {
+                        connections.remove(socket);
+                        closeQuietly(socket);
+                    }
+                }
+            });
+        }
+    }
+
+    private void serve(Socket socket) {
+        int db = 0;  // selected database
+        Subscriber subscriber = null;
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            subscriber = new Subscriber(out);
+            while (true) {
+                List<byte[]> command = readCommand(in);
+                if (command == null) {
+                    return;
+                }
+                if (command.isEmpty()) {
+                    continue;
+                }
+                numCommands.incrementAndGet();
+                delay();
+                String name = new String(command.get(0), LATIN1).toUpperCase();
+                if (logRequests) {
+                    System.out.println("RedisStandIn: " + name + " (" + (command.size() - 1)
+                            + " arguments)");
+                }
+                Object reply;
+                if (name.equals("SELECT")) {
+                    reply = select(command);
+                    if (reply instanceof String) {
+                        db = Integer.parseInt(string(command.get(1)));
+                    }
+                }
+                else if (name.equals("SUBSCRIBE") || name.equals("UNSUBSCRIBE")) {
+                    // one reply for each channel, sent as separate replies rather than an array
+                    synchronized (this) {
+                        reply = subscribe(name, command, subscriber);
+                    }
+                    synchronized (out) {
+                        for (Object channelReply : (List<?>) reply) {
+                            writeReply(out, channelReply);
+                        }
+                        out.flush();
+                    }
+                    continue;
+                }
+                else {
+                    synchronized (this) {
+                        reply = execute(name, command, databases.get(db));
+                    }
+                }
+                synchronized (out) {
+                    writeReply(out, reply == QUIT ? "OK" : reply);
+                    // replies to pipelined commands are sent together
+                    if (in.available() == 0 || reply == QUIT) {
+                        out.flush();
+                    }
+                }
+                if (reply == QUIT) {
+                    return;
+                }
+            }
+        } catch (SocketException | EOFException e) {
+            // client closed the connection
+        } catch (IOException | RuntimeException e) {
+            if (!socket.isClosed()) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (subscriber != null) {
+                synchronized (this) {
+                    unsubscribe(subscriber, new ArrayList<String>(subscriber.channels), new ArrayList<Object>());
+                }
+            }
+        }
+    }
+
+    // SUBSCRIBE channel [channel ...] or UNSUBSCRIBE [channel ...].  Returns a list with one
+    // reply for each channel.
+    private List<Object> subscribe(String name, List<byte[]> args, Subscriber subscriber) {
+        List<Object> replies = new ArrayList<Object>();
+        if (name.equals("SUBSCRIBE")) {
+            if (args.size() < 2) {
+                replies.add(wrongArguments(name));
+                return replies;
+            }
+            for (int i = 1; i < args.size(); i++) {
+                String channel = string(args.get(i));
+                Set<Subscriber> subscribers = channels.get(channel);
+                if (subscribers == null) {
+                    subscribers = new HashSet<Subscriber>();
+                    channels.put(channel, subscribers);
+                }
+                subscribers.add(subscriber);
+                subscriber.channels.add(channel);
+                replies.add(Arrays.<Object>asList("subscribe".getBytes(LATIN1), args.get(i),
+                        (long) subscriber.channels.size()));
+            }
+            return replies;
+        }
+        List<String> names = new ArrayList<String>();
+        for (int i = 1; i < args.size(); i++) {
+            names.add(string(args.get(i)));
+        }
+        if (names.isEmpty()) {
+            names.addAll(subscriber.channels);
+        }
+        unsubscribe(subscriber, names, replies);
+        if (replies.isEmpty()) {
+            replies.add(Arrays.<Object>asList("unsubscribe".getBytes(LATIN1), null, 0L));
+        }
+        return replies;
+    }
+
+    private void unsubscribe(Subscriber subscriber, List<String> names, List<Object> replies) {
+        for (String channel : names) {
+            subscriber.channels.remove(channel);
+            Set<Subscriber> subscribers = channels.get(channel);
+            if (subscribers != null) {
+                subscribers.remove(subscriber);
+                if (subscribers.isEmpty()) {
+                    channels.remove(channel);
+                }
+            }
+            replies.add(Arrays.<Object>asList("unsubscribe".getBytes(LATIN1), channel.getBytes(LATIN1),
+                    (long) subscriber.channels.size()));
+        }
+    }
+
+    // PUBLISH channel message.  Returns the number of subscribers the message was sent to.
+    private Object publish(List<byte[]> args) {
+        if (args.size() != 3) {
+            return wrongArguments("PUBLISH");
+        }
+        Set<Subscriber> subscribers = channels.get(string(args.get(1)));
+        if (subscribers == null) {
+            return 0L;
+        }
+        List<Object> message = Arrays.<Object>asList("message".getBytes(LATIN1), args.get(1), args.get(2));
+        long count = 0;
+        for (Subscriber subscriber : subscribers) {
+            try {
+                synchronized (subscriber.out) {
+                    writeReply(subscriber.out, message);
+                    subscriber.out.flush();
+                }
+                count++;
+            } catch (IOException e) {
+                // subscriber disconnected; removed when its connection closes
+            }
+        }
+        return count;
+    }
+
+    // Return a reply: a String is sent as a status reply, a RedisError as an error, a Long as
+    // an integer, a byte[] as a bulk string, null as a null bulk string, and a List as an array.
+    private Object execute(String name, List<byte[]> args, Map<String, Entry> db) {
+        int numArgs = args.size() - 1;
+        switch (name) {
+        case "PING":
+            return numArgs == 0 ? "PONG" : args.get(1);
+        case "ECHO":
+            return numArgs == 1 ? args.get(1) : wrongArguments(name);
+        case "AUTH":
+        case "CLIENT":
+            return "OK";
+        case "QUIT":
+            return QUIT;
+        case "GET":
+            if (numArgs != 1) {
+                return wrongArguments(name);
+            }
+            Entry entry = lookup(db, string(args.get(1)));
+            return entry == null ? null : entry.value;
+        case "SET":
+            return set(args, db);
+        case "SETEX":
+        case "PSETEX":
+            if (numArgs != 3) {
+                return wrongArguments(name);
+            }
+            long duration = Long.parseLong(string(args.get(2)));
+            Entry expiringEntry = new Entry(args.get(3));
+            expiringEntry.expiresAt = System.currentTimeMillis()
+                    + (name.equals("SETEX") ? duration * 1000 : duration);
+            db.put(string(args.get(1)), expiringEntry);
+            return "OK";
+        case "MGET":
+            if (numArgs < 1) {
+                return wrongArguments(name);
+            }
+            List<Object> values = new ArrayList<Object>();
+            for (int i = 1; i < args.size(); i++) {
+                Entry found = lookup(db, string(args.get(i)));
+                values.add(found == null ? null : found.value);
+            }
+            return values;
+        case "MSET":
+            if (numArgs < 2 || numArgs % 2 != 0) {
+                return wrongArguments(name);
+            }
+            for (int i = 1; i < args.size(); i += 2) {
+                db.put(string(args.get(i)), new Entry(args.get(i + 1)));
+            }
+            return "OK";
+        case "DEL":
+        case "UNLINK":
+        case "EXISTS":
+            if (numArgs < 1) {
+                return wrongArguments(name);
+            }
+            long count = 0;
+            for (int i = 1; i < args.size(); i++) {
+                String key = string(args.get(i));
+                if (lookup(db, key) != null) {
+                    count++;
+                    if (!name.equals("EXISTS")) {
+                        db.remove(key);
+                    }
+                }
+            }
+            return count;
+        case "EXPIRE":
+        case "PEXPIRE":
+            if (numArgs != 2) {
+                return wrongArguments(name);
+            }
+            Entry expiring = lookup(db, string(args.get(1)));
+            if (expiring == null) {
+                return 0L;
+            }
+            long amount = Long.parseLong(string(args.get(2)));
+            expiring.expiresAt = System.currentTimeMillis()
+                    + (name.equals("EXPIRE") ? amount * 1000 : amount);
+            return 1L;
+        case "PERSIST":
+            if (numArgs != 1) {
+                return wrongArguments(name);
+            }
+            Entry persisting = lookup(db, string(args.get(1)));
+            if (persisting == null || persisting.expiresAt == 0) {
+                return 0L;
+            }
+            persisting.expiresAt = 0;
+            return 1L;
+        case "TTL":
+        case "PTTL":
+            if (numArgs != 1) {
+                return wrongArguments(name);
+            }
+            Entry timed = lookup(db, string(args.get(1)));
+            if (timed == null) {
+                return -2L;
+            }
+            if (timed.expiresAt == 0) {
+                return -1L;
+            }
+            long remaining = timed.expiresAt - System.currentTimeMillis();
+            return name.equals("TTL") ? (remaining + 999) / 1000 : remaining;
+        case "KEYS":
+            if (numArgs != 1) {
+                return wrongArguments(name);
+            }
+            removeExpired(db);
+            Pattern pattern = globPattern(string(args.get(1)));
+            List<Object> keys = new ArrayList<Object>();
+            for (String key : db.keySet()) {
+                if (pattern.matcher(key).matches()) {
+                    keys.add(key.getBytes(LATIN1));
+                }
+            }
+            return keys;
+        case "DBSIZE":
+            removeExpired(db);
+            return (long) db.size();
+        case "PUBLISH":
+            return publish(args);
+        case "FLUSHDB":
+            db.clear();
+            return "OK";
+        case "FLUSHALL":
+            for (Map<String, Entry> database : databases) {
+                database.clear();
+            }
+            return "OK";
+        default:
+            return new RedisError("ERR unknown command '" + name.toLowerCase() + "'");
+        }
+    }
+
+    // SET key value [EX seconds | PX milliseconds] [NX | XX]
+    private Object set(List<byte[]> args, Map<String, Entry> db) {
+        if (args.size() < 3) {
+            return wrongArguments("SET");
+        }
+        String key = string(args.get(1));
+        long expiresAt = 0;
+        boolean nx = false;
+        boolean xx = false;
+        for (int i = 3; i < args.size(); i++) {
+            String option = string(args.get(i)).toUpperCase();
+            if ((option.equals("EX") || option.equals("PX")) && i + 1 < args.size()) {
+                long amount = Long.parseLong(string(args.get(++i)));
+                expiresAt = System.currentTimeMillis() + (option.equals("EX") ? amount * 1000 : amount);
+            }
+            else if (option.equals("NX")) {
+                nx = true;
+            }
+            else if (option.equals("XX")) {
+                xx = true;
+            }
+            else {
+                return new RedisError("ERR syntax error");
+            }
+        }
+        boolean exists = lookup(db, key) != null;
+        if ((nx && exists) || (xx && !exists)) {
+            return null;
+        }
+        Entry entry = new Entry(args.get(2));
+        entry.expiresAt = expiresAt;
+        db.put(key, entry);
+        return "OK";
+    }
+
+    private Object select(List<byte[]> args) {
+        if (args.size() != 2) {
+            return wrongArguments("SELECT");
+        }
+        try {
+            int index = Integer.parseInt(string(args.get(1)));
+            if (index >= 0 && index < NUM_DATABASES) {
+                return "OK";
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        return new RedisError("ERR DB index is out of range");
+    }
+
+    private static Entry lookup(Map<String, Entry> db, String key) {
+        Entry entry = db.get(key);
+        if (entry != null && entry.expiresAt != 0 && entry.expiresAt <= System.currentTimeMillis()) {
+            db.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private static void removeExpired(Map<String, Entry> db) {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = db.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.expiresAt != 0 && entry.expiresAt <= now) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // convert a Redis glob pattern (*, ?, [...], and \ escapes) to a regular expression
+    private static Pattern globPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inClass = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '\\' && i + 1 < glob.length()) {
+                regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+            }
+            else if (inClass) {
+                if (c == ']') {
+                    inClass = false;
+                }
+                regex.append(c == '!' && glob.charAt(i - 1) == '[' ? '^' : c);
+            }
+            else if (c == '*') {
+                regex.append(".*");
+            }
+            else if (c == '?') {
+                regex.append('.');
+            }
+            else if (c == '[') {
+                inClass = true;
+                regex.append(c);
+            }
+            else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static RedisError wrongArguments(String name) {
+        return new RedisError("ERR wrong number of arguments for '" + name.toLowerCase() + "' command");
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, LATIN1);
+    }
+
+    private static class RedisError {
+        String message;
+
+        RedisError(String message) {
+            this.message = message;
+        }
+    }
+
+    // Read a command sent as an array of bulk strings, or as an inline command of
+    // space-separated words.  Return null at the end of the stream.
+    private static List<byte[]> readCommand(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) {
+            return null;
+        }
+        List<byte[]> command = new ArrayList<byte[]>();
+        if (first != '*') {
+            String line = ((char) first) + readLine(in);
+            for (String word : line.trim().split("\\s+")) {
+                if (!word.isEmpty()) {
+                    command.add(word.getBytes(LATIN1));
+                }
+            }
+            return command;
+        }
+        int count = Integer.parseInt(readLine(in));
+        for (int i = 0; i < count; i++) {
+            if (in.read() != '$') {
+                throw new IOException("RedisStandIn: expected bulk string");
+            }
+            int length = Integer.parseInt(readLine(in));
+            byte[] argument = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int n = in.read(argument, offset, length - offset);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                offset += n;
+            }
+            readLine(in);
+            command.add(argument);
+        }
+        return command;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void writeReply(OutputStream out, Object reply) throws IOException {
+        if (reply == null) {
+            out.write("$-1\r\n".getBytes(LATIN1));
+        }
+        else if (reply instanceof String) {
+            out.write(("+" + reply + "\r\n").getBytes(LATIN1));
+        }
+        else if (reply instanceof RedisError) {
+            out.write(("-" + ((RedisError) reply).message + "\r\n").getBytes(LATIN1));
+        }
+        else if (reply instanceof Long) {
+            out.write((":" + reply + "\r\n").getBytes(LATIN1));
+        }
+        else if (reply instanceof byte[]) {
+            byte[] bytes = (byte[]) reply;
+            out.write(("$" + bytes.length + "\r\n").getBytes(LATIN1));
+            out.write(bytes);
+            out.write("\r\n".getBytes(LATIN1));
+        }
+        else {
+            List<?> elements = (List<?>) reply;
+            out.write(("*" + elements.size() + "\r\n").getBytes(LATIN1));
+            for (Object element : elements) {
+                writeReply(out, element);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.ibm.storage.storagemanager.standins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ThreadFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * @author ArunIyengar
+ * 
+ * Base class for in-process stand-ins for remote storage services.  Each request is
+ * delayed by a configurable latency so that local tests see realistic round-trip costs.
+ */
+public abstract class StandInServer implements Closeable {
+
+    private volatile long latency;  // milliseconds added to each request
+
+    protected StandInServer(long latencyMillis) {
+        latency = latencyMillis;
+    }
+
+    /**
+     * Set milliseconds by which each request is delayed
+     * 
+     * @param latencyMillis
+     *            latency in milliseconds
+     */
+    public void setLatency(long latencyMillis) {
+        latency = latencyMillis;
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Return port the stand-in is listening on
+     * 
+     * @return port number
+     */
+    public abstract int getPort();
+
+    /**
+     * Stop serving requests
+     */
+    @Override
+    public abstract void close();
+
+    protected void delay() {
+        long millis = latency;
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    protected static ThreadFactory daemonThreads(String name) {
+        return new ThreadFactoryBuilder().setDaemon(true).setNameFormat(name + "-%d").build();
+    }
+
+    // read the whole request body before it is handled.  HttpServer closes a connection
+    // instead of keeping it alive if a response is sent before the request body is read.
+    protected static void bufferRequestBody(HttpExchange exchange) throws IOException {
+        byte[] body = readBytes(exchange.getRequestBody());
+        exchange.setStreams(new ByteArrayInputStream(body), null);
+    }
+
+    protected static byte[] readBytes(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
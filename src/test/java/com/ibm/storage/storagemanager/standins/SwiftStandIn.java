@@ -0,0 +1,774 @@
+package com.ibm.storage.storagemanager.standins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author ArunIyengar
+ *
+ * In-process stand-in for an OpenStack Swift endpoint with basic (v1.0) authentication,
+ * implementing the subset of the API used by KeyValueObjectStorage: containers, objects,
+ * paginated listings, ranged and conditional GETs, bulk delete, and dynamic and static
+ * large object manifests.  Each request can be delayed by a fixed latency to model a
+ * remote service.
+ */
+public class SwiftStandIn extends StandInServer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String ACCOUNT = "AUTH_standin";
+    private static final String TOKEN = "standin-token";
+    private static final int MAX_LISTING = 10000;
+
+    // A stored object.  Manifests have no data of their own.
+    private static class SwiftObject {
+        byte[] data;
+        String etag;
+        String contentType;
+        long lastModified;
+        Map<String, String> metadata = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        String manifestPrefix;  // X-Object-Manifest of a dynamic large object
+        List<String> segments;  // segment paths of a static large object
+    }
+
+    private static class Container {
+        TreeMap<String, SwiftObject> objects = new TreeMap<String, SwiftObject>();
+        String readAcl;
+    }
+
+    private Map<String, Container> containers = new ConcurrentHashMap<String, Container>();
+    private HttpServer server;
+    private AtomicLong numRequests = new AtomicLong();
+    private Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile boolean logRequests = false;
+    private volatile boolean bulkDeleteEnabled = true;
+    private volatile boolean bulkDeleteErrors = false;
+
+    /**
+     * Constructor.  Starts serving on an ephemeral port on the loopback interface.
+     *
+     * @param latency
+     *            milliseconds to delay each request
+     */
+    public SwiftStandIn(long latency) throws IOException {
+        super(latency);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool(daemonThreads("swift-standin")));
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    numRequests.incrementAndGet();
+                    count(exchange.getRequestMethod());
+                    delay();
+                    bufferRequestBody(exchange);
+                    if (logRequests) {
+                        System.out.println("SwiftStandIn: " + exchange.getRequestMethod() + " "
+                                + exchange.getRequestURI());
+                    }
+                    dispatch(exchange);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    send(exchange, 500, new byte[0]);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Return authentication URL clients should connect to
+     *
+     * @return authentication URL
+     */
+    public String getAuthUrl() {
+        return "http://127.0.0.1:" + getPort() + "/auth/v1.0";
+    }
+
+    @Override
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Return number of HTTP requests served
+     *
+     * @return number of requests
+     */
+    public long getNumRequests() {
+        return numRequests.get();
+    }
+
+    /**
+     * Return number of HTTP requests served with a given method
+     *
+     * @param method
+     *            HTTP method, such as "HEAD"
+     * @return number of requests
+     */
+    public long getNumRequests(String method) {
+        AtomicLong count = requestCounts.get(method);
+        return (count == null) ? 0 : count.get();
+    }
+
+    public void logRequests(boolean log) {
+        logRequests = log;
+    }
+
+    /**
+     * Enable or disable the bulk delete middleware
+     *
+     * @param enabled
+     *            true if bulk delete requests are accepted
+     */
+    public void setBulkDeleteEnabled(boolean enabled) {
+        bulkDeleteEnabled = enabled;
+    }
+
+    /**
+     * Make bulk delete requests report an error for every object instead of deleting it
+     *
+     * @param fail
+     *            true if bulk deletes of objects should fail
+     */
+    public void setBulkDeleteErrors(boolean fail) {
+        bulkDeleteErrors = fail;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private void count(String method) {
+        AtomicLong count = requestCounts.get(method);
+        if (count == null) {
+            requestCounts.putIfAbsent(method, new AtomicLong());
+            count = requestCounts.get(method);
+        }
+        count.incrementAndGet();
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        URI uri = exchange.getRequestURI();
+        String rawPath = uri.getRawPath();
+        Map<String, String> query = parseQuery(uri.getRawQuery());
+        if (rawPath.startsWith("/auth/")) {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("X-Storage-Url", "http://127.0.0.1:" + getPort() + "/v1/" + ACCOUNT);
+            headers.add("X-Auth-Token", TOKEN);
+            send(exchange, 200, new byte[0]);
+            return;
+        }
+        if (rawPath.equals("/info")) {
+            JsonObject info = new JsonObject();
+            info.add("swift", new JsonObject());
+            info.add("slo", new JsonObject());
+            if (bulkDeleteEnabled) {
+                JsonObject bulkDelete = new JsonObject();
+                bulkDelete.addProperty("max_deletes_per_request", MAX_LISTING);
+                info.add("bulk_delete", bulkDelete);
+            }
+            sendJson(exchange, 200, info);
+            return;
+        }
+        String prefix = "/v1/" + ACCOUNT;
+        if (!rawPath.startsWith(prefix)) {
+            send(exchange, 404, new byte[0]);
+            return;
+        }
+        if (!TOKEN.equals(exchange.getRequestHeaders().getFirst("X-Auth-Token"))) {
+            send(exchange, 401, new byte[0]);
+            return;
+        }
+        String rest = rawPath.substring(prefix.length());
+        if (rest.startsWith("/")) {
+            rest = rest.substring(1);
+        }
+        if (rest.isEmpty()) {
+            handleAccount(exchange, query);
+            return;
+        }
+        int slash = rest.indexOf('/');
+        if (slash < 0 || slash == rest.length() - 1) {
+            String containerName = decode(slash < 0 ? rest : rest.substring(0, slash));
+            handleContainer(exchange, containerName, query);
+            return;
+        }
+        handleObject(exchange, decode(rest.substring(0, slash)), decode(rest.substring(slash + 1)), query);
+    }
+
+    private void handleAccount(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (method.equals("POST") && query.containsKey("bulk-delete")) {
+            handleBulkDelete(exchange);
+            return;
+        }
+        if (method.equals("HEAD") || method.equals("GET")) {
+            long objects = 0;
+            long bytes = 0;
+            JsonArray list = new JsonArray();
+            for (Map.Entry<String, Container> entry : new TreeMap<String, Container>(containers).entrySet()) {
+                synchronized (entry.getValue()) {
+                    long containerBytes = bytesUsed(entry.getValue());
+                    objects += entry.getValue().objects.size();
+                    bytes += containerBytes;
+                    JsonObject item = new JsonObject();
+                    item.addProperty("name", entry.getKey());
+                    item.addProperty("count", entry.getValue().objects.size());
+                    item.addProperty("bytes", containerBytes);
+                    list.add(item);
+                }
+            }
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("X-Account-Container-Count", String.valueOf(containers.size()));
+            headers.add("X-Account-Object-Count", String.valueOf(objects));
+            headers.add("X-Account-Bytes-Used", String.valueOf(bytes));
+            if (method.equals("HEAD")) {
+                send(exchange, 204, null);
+            }
+            else if ("json".equals(query.get("format"))) {
+                sendJson(exchange, 200, list);
+            }
+            else {
+                StringBuilder names = new StringBuilder();
+                for (JsonElement item : list) {
+                    names.append(item.getAsJsonObject().get("name").getAsString()).append('\n');
+                }
+                sendText(exchange, names.toString());
+            }
+            return;
+        }
+        send(exchange, 204, null);
+    }
+
+    // bulk delete: the body lists URL-encoded /container/object paths, one per line
+    private void handleBulkDelete(HttpExchange exchange) throws IOException {
+        if (!bulkDeleteEnabled) {
+            send(exchange, 404, new byte[0]);
+            return;
+        }
+        String body = new String(readBytes(exchange.getRequestBody()), UTF8);
+        int deleted = 0;
+        int notFound = 0;
+        JsonArray errors = new JsonArray();
+        for (String line : body.split("\n")) {
+            String path = decode(line.trim());
+            if (path.isEmpty()) {
+                continue;
+            }
+            if (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            int slash = path.indexOf('/');
+            String containerName = (slash < 0) ? path : path.substring(0, slash);
+            Container container = containers.get(containerName);
+            if (container == null) {
+                notFound++;
+                continue;
+            }
+            if (slash < 0) {
+                synchronized (container) {
+                    if (container.objects.isEmpty()) {
+                        containers.remove(containerName);
+                        deleted++;
+                    }
+                    else {
+                        JsonArray error = new JsonArray();
+                        error.add(new com.google.gson.JsonPrimitive(line.trim()));
+                        error.add(new com.google.gson.JsonPrimitive("409 Conflict"));
+                        errors.add(error);
+                    }
+                }
+                continue;
+            }
+            if (bulkDeleteErrors) {
+                JsonArray error = new JsonArray();
+                error.add(new com.google.gson.JsonPrimitive(line.trim()));
+                error.add(new com.google.gson.JsonPrimitive("503 Service Unavailable"));
+                errors.add(error);
+                continue;
+            }
+            synchronized (container) {
+                if (container.objects.remove(path.substring(slash + 1)) != null) {
+                    deleted++;
+                }
+                else {
+                    notFound++;
+                }
+            }
+        }
+        JsonObject result = new JsonObject();
+        result.addProperty("Number Deleted", deleted);
+        result.addProperty("Number Not Found", notFound);
+        result.addProperty("Response Status", errors.size() == 0 ? "200 OK" : "400 Bad Request");
+        result.addProperty("Response Body", "");
+        result.add("Errors", errors);
+        sendJson(exchange, 200, result);
+    }
+
+    private void handleContainer(HttpExchange exchange, String name, Map<String, String> query)
+            throws IOException {
+        String method = exchange.getRequestMethod();
+        Container container = containers.get(name);
+        if (method.equals("PUT")) {
+            if (container == null) {
+                containers.put(name, new Container());
+                send(exchange, 201, new byte[0]);
+            }
+            else {
+                send(exchange, 202, new byte[0]);
+            }
+            return;
+        }
+        if (container == null) {
+            send(exchange, 404, new byte[0]);
+            return;
+        }
+        if (method.equals("DELETE")) {
+            synchronized (container) {
+                if (!container.objects.isEmpty()) {
+                    send(exchange, 409, new byte[0]);
+                    return;
+                }
+                containers.remove(name);
+            }
+            send(exchange, 204, null);
+        }
+        else if (method.equals("POST")) {
+            String read = exchange.getRequestHeaders().getFirst("X-Container-Read");
+            if (read != null) {
+                container.readAcl = read;
+            }
+            send(exchange, 204, null);
+        }
+        else {
+            JsonArray list = new JsonArray();
+            Headers headers = exchange.getResponseHeaders();
+            synchronized (container) {
+                headers.add("X-Container-Object-Count", String.valueOf(container.objects.size()));
+                headers.add("X-Container-Bytes-Used", String.valueOf(bytesUsed(container)));
+                if (container.readAcl != null) {
+                    headers.add("X-Container-Read", container.readAcl);
+                }
+                if (method.equals("GET")) {
+                    list = listing(container, query);
+                }
+            }
+            if (method.equals("HEAD")) {
+                send(exchange, 204, null);
+            }
+            else if ("json".equals(query.get("format"))) {
+                sendJson(exchange, 200, list);
+            }
+            else {
+                StringBuilder names = new StringBuilder();
+                for (JsonElement item : list) {
+                    JsonObject object = item.getAsJsonObject();
+                    names.append(object.has("name") ? object.get("name").getAsString()
+                            : object.get("subdir").getAsString()).append('\n');
+                }
+                if (names.length() == 0) {
+                    send(exchange, 204, null);
+                }
+                else {
+                    sendText(exchange, names.toString());
+                }
+            }
+        }
+    }
+
+    // listing with marker, end_marker, prefix, delimiter, and limit parameters
+    private JsonArray listing(Container container, Map<String, String> query) {
+        String marker = query.get("marker");
+        String endMarker = query.get("end_marker");
+        String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        String delimiter = query.get("delimiter");
+        int limit = query.containsKey("limit") ? Math.min(Integer.parseInt(query.get("limit")), MAX_LISTING)
+                : MAX_LISTING;
+        SortedMap<String, SwiftObject> objects = container.objects;
+        if (marker != null && !marker.isEmpty()) {
+            objects = container.objects.tailMap(marker + "\0");
+        }
+        JsonArray list = new JsonArray();
+        String lastSubdir = null;
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSSSS", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        for (Map.Entry<String, SwiftObject> entry : objects.entrySet()) {
+            String name = entry.getKey();
+            if (list.size() >= limit || (endMarker != null && name.compareTo(endMarker) >= 0)) {
+                break;
+            }
+            if (!name.startsWith(prefix)) {
+                if (name.compareTo(prefix) > 0) {
+                    break;
+                }
+                continue;
+            }
+            JsonObject item = new JsonObject();
+            if (delimiter != null) {
+                int index = name.indexOf(delimiter, prefix.length());
+                if (index >= 0) {
+                    String subdir = name.substring(0, index + delimiter.length());
+                    if (!subdir.equals(lastSubdir)) {
+                        item.addProperty("subdir", subdir);
+                        list.add(item);
+                        lastSubdir = subdir;
+                    }
+                    continue;
+                }
+            }
+            SwiftObject object = entry.getValue();
+            item.addProperty("name", name);
+            item.addProperty("hash", object.etag);
+            item.addProperty("bytes", object.data == null ? 0 : object.data.length);
+            item.addProperty("content_type", object.contentType);
+            item.addProperty("last_modified", format.format(new Date(object.lastModified)));
+            list.add(item);
+        }
+        return list;
+    }
+
+    private void handleObject(HttpExchange exchange, String containerName, String name, Map<String, String> query)
+            throws IOException {
+        String method = exchange.getRequestMethod();
+        Container container = containers.get(containerName);
+        if (container == null) {
+            readBytes(exchange.getRequestBody());
+            send(exchange, 404, new byte[0]);
+            return;
+        }
+        if (method.equals("PUT")) {
+            handlePut(exchange, container, name, query);
+        }
+        else if (method.equals("DELETE")) {
+            SwiftObject removed;
+            int numSegments = 0;
+            synchronized (container) {
+                removed = container.objects.remove(name);
+                if (removed != null && removed.segments != null && query.containsKey("multipart-manifest")) {
+                    for (String segment : removed.segments) {
+                        deletePath(segment);
+                        numSegments++;
+                    }
+                }
+            }
+            if (removed != null && removed.segments != null && query.containsKey("multipart-manifest")) {
+                // like Swift, deleting a static large object with its segments reports a summary
+                JsonObject result = new JsonObject();
+                result.addProperty("Number Deleted", numSegments + 1);
+                result.addProperty("Number Not Found", 0);
+                result.addProperty("Response Status", "200 OK");
+                result.add("Errors", new JsonArray());
+                sendJson(exchange, 200, result);
+                return;
+            }
+            send(exchange, removed == null ? 404 : 204, null);
+        }
+        else if (method.equals("POST")) {
+            synchronized (container) {
+                SwiftObject object = container.objects.get(name);
+                if (object == null) {
+                    send(exchange, 404, new byte[0]);
+                    return;
+                }
+                object.metadata.clear();
+                readMetadata(exchange, object);
+            }
+            send(exchange, 202, new byte[0]);
+        }
+        else {
+            handleGet(exchange, container, containerName, name, query);
+        }
+    }
+
+    private void handlePut(HttpExchange exchange, Container container, String name, Map<String, String> query)
+            throws IOException {
+        byte[] data = readBytes(exchange.getRequestBody());
+        Headers request = exchange.getRequestHeaders();
+        SwiftObject object = new SwiftObject();
+        object.contentType = request.containsKey("Content-Type") ? request.getFirst("Content-Type")
+                : "application/octet-stream";
+        object.lastModified = System.currentTimeMillis();
+        readMetadata(exchange, object);
+        if ("put".equals(query.get("multipart-manifest"))) {
+            // static large object: body lists segments as [{"path": ..., "etag": ..., "size_bytes": ...}]
+            object.segments = new ArrayList<String>();
+            StringBuilder etags = new StringBuilder();
+            for (JsonElement element : new JsonParser().parse(new String(data, UTF8)).getAsJsonArray()) {
+                JsonObject segment = element.getAsJsonObject();
+                String path = segment.get("path").getAsString();
+                SwiftObject stored = lookupPath(path);
+                if (stored == null || (segment.has("etag") && !segment.get("etag").isJsonNull()
+                        && !segment.get("etag").getAsString().equals(stored.etag))) {
+                    send(exchange, 400, "Invalid segment".getBytes(UTF8));
+                    return;
+                }
+                object.segments.add(path);
+                etags.append(stored.etag);
+            }
+            object.etag = md5(etags.toString().getBytes(UTF8));
+            object.data = new byte[0];
+        }
+        else {
+            object.data = data;
+            object.etag = md5(data);
+            object.manifestPrefix = request.getFirst("X-Object-Manifest");
+            String expected = request.getFirst("ETag");
+            if (expected != null && !expected.replace("\"", "").equalsIgnoreCase(object.etag)) {
+                send(exchange, 422, new byte[0]);
+                return;
+            }
+        }
+        synchronized (container) {
+            container.objects.put(name, object);
+        }
+        exchange.getResponseHeaders().add("ETag", object.etag);
+        send(exchange, 201, new byte[0]);
+    }
+
+    private void handleGet(HttpExchange exchange, Container container, String containerName, String name,
+            Map<String, String> query) throws IOException {
+        SwiftObject object;
+        synchronized (container) {
+            object = container.objects.get(name);
+        }
+        if (object == null) {
+            send(exchange, 404, new byte[0]);
+            return;
+        }
+        byte[] data = object.data;
+        String etag = object.etag;
+        Headers headers = exchange.getResponseHeaders();
+        boolean manifestOnly = "get".equals(query.get("multipart-manifest"));
+        if (object.manifestPrefix != null && !manifestOnly) {
+            // dynamic large object: concatenation of objects with the manifest prefix
+            headers.add("X-Object-Manifest", object.manifestPrefix);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            StringBuilder etags = new StringBuilder();
+            int slash = object.manifestPrefix.indexOf('/');
+            Container segments = containers.get(decode(object.manifestPrefix.substring(0, slash)));
+            String prefix = decode(object.manifestPrefix.substring(slash + 1));
+            if (segments != null) {
+                synchronized (segments) {
+                    for (Map.Entry<String, SwiftObject> entry : segments.objects.tailMap(prefix).entrySet()) {
+                        if (!entry.getKey().startsWith(prefix)) {
+                            break;
+                        }
+                        out.write(entry.getValue().data);
+                        etags.append(entry.getValue().etag);
+                    }
+                }
+            }
+            data = out.toByteArray();
+            etag = "\"" + md5(etags.toString().getBytes(UTF8)) + "\"";
+        }
+        else if (object.segments != null && !manifestOnly) {
+            headers.add("X-Static-Large-Object", "True");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String path : object.segments) {
+                SwiftObject segment = lookupPath(path);
+                if (segment != null) {
+                    out.write(segment.data);
+                }
+            }
+            data = out.toByteArray();
+            etag = "\"" + etag + "\"";
+        }
+        headers.add("ETag", etag);
+        headers.add("Content-Type", object.contentType);
+        headers.add("Last-Modified", httpDate(object.lastModified));
+        headers.add("Accept-Ranges", "bytes");
+        for (Map.Entry<String, String> entry : object.metadata.entrySet()) {
+            headers.add("X-Object-Meta-" + entry.getKey(), entry.getValue());
+        }
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.equals("*") && !ifMatch.replace("\"", "").equals(etag.replace("\"", ""))) {
+            send(exchange, 412, new byte[0]);
+            return;
+        }
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.equals("*")
+                || ifNoneMatch.replace("\"", "").equals(etag.replace("\"", "")))) {
+            send(exchange, 304, null);
+            return;
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            long start;
+            long end;
+            if (bounds[0].isEmpty()) {
+                start = Math.max(0, data.length - Long.parseLong(bounds[1]));
+                end = data.length - 1;
+            }
+            else {
+                start = Long.parseLong(bounds[0]);
+                end = bounds[1].isEmpty() ? data.length - 1 : Math.min(Long.parseLong(bounds[1]), data.length - 1);
+            }
+            if (start >= data.length || start > end) {
+                headers.add("Content-Range", "bytes */" + data.length);
+                send(exchange, 416, new byte[0]);
+                return;
+            }
+            byte[] part = new byte[(int) (end - start + 1)];
+            System.arraycopy(data, (int) start, part, 0, part.length);
+            headers.add("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+            send(exchange, 206, part);
+            return;
+        }
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            headers.add("Content-Length", String.valueOf(data.length));
+            exchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        send(exchange, 200, data);
+    }
+
+    private SwiftObject lookupPath(String path) {
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        int slash = path.indexOf('/');
+        Container container = containers.get(path.substring(0, slash));
+        if (container == null) {
+            return null;
+        }
+        synchronized (container) {
+            return container.objects.get(path.substring(slash + 1));
+        }
+    }
+
+    private void deletePath(String path) {
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        int slash = path.indexOf('/');
+        Container container = containers.get(path.substring(0, slash));
+        if (container != null) {
+            synchronized (container) {
+                container.objects.remove(path.substring(slash + 1));
+            }
+        }
+    }
+
+    private static void readMetadata(HttpExchange exchange, SwiftObject object) {
+        for (Map.Entry<String, List<String>> entry : exchange.getRequestHeaders().entrySet()) {
+            if (entry.getKey().toLowerCase(Locale.US).startsWith("x-object-meta-")) {
+                object.metadata.put(entry.getKey().substring("x-object-meta-".length()), entry.getValue().get(0));
+            }
+        }
+    }
+
+    private static long bytesUsed(Container container) {
+        long bytes = 0;
+        for (SwiftObject object : container.objects.values()) {
+            bytes += object.data == null ? 0 : object.data.length;
+        }
+        return bytes;
+    }
+
+    private static String md5(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(data);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    // send a response.  HttpServer drops the connection after a response declared to have
+    // no body unless the status is 204 or 304, so other empty responses are sent chunked.
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        if (status == 204 || status == 304 || exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        if (body == null || body.length == 0) {
+            exchange.sendResponseHeaders(status, 0);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+    }
+
+    private static void sendJson(HttpExchange exchange, int status, JsonElement body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        byte[] bytes = body.toString().getBytes(UTF8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static void sendText(HttpExchange exchange, String body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        byte[] bytes = body.getBytes(UTF8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                query.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+            }
+            else if (!pair.isEmpty()) {
+                query.put(decode(pair), "");
+            }
+        }
+        return query;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s.replace("+", "%2B"), "UTF-8");
+        } catch (IOException e) {
+            return s;
+        }
+    }
+}
@@ -6,7 +6,11 @@ import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
 @SuiteClasses({  CloudantTests.class, FileTests.class, GuavaTests.class, ObjectStorageTests.class, RedisTests.class,
-    SQLTests.class, CompressionTests.class, EncryptionTests.class, MonitoredTests.class })
+    SQLTests.class, SQLEmbeddedTests.class, CompressionTests.class, EncryptionTests.class, MonitoredTests.class,
+    StandInTests.class, TieredTests.class, WriteBehindTests.class, OffHeapTests.class,
+    TinyLfuTests.class, SingleFlightTests.class,
+    RefreshAheadTests.class, NegativeCachingTests.class,
+    RedisNearCacheTests.class, SnapshotTests.class })
 public class AllTests {
 
 }
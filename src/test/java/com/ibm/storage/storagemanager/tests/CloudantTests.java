@@ -1,12 +1,28 @@
 package com.ibm.storage.storagemanager.tests;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
+import com.ibm.storage.storagemanager.implementations.async.AsyncKeyValue;
+import com.ibm.storage.storagemanager.implementations.cloudant.ChangesFeedInvalidator;
+import com.ibm.storage.storagemanager.implementations.cloudant.DatabaseObject;
 import com.ibm.storage.storagemanager.implementations.cloudant.KeyValueCloudant;
+import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
 import com.ibm.storage.storagemanager.interfaces.KeyValue;
 import com.ibm.storage.storagemanager.util.Constants;
+import com.ibm.storage.storagemanager.util.HttpTransportConfig;
 import com.ibm.storage.storagemanager.util.Util;
 
 public class CloudantTests {
@@ -54,5 +70,194 @@ public class CloudantTests {
     public void testHashMap() {
         StorageTests.testHashMap(datastore2);
     }
-    
+
+    @Test
+    public void testBulk() {
+        KeyValueCloudant<String, Integer> datastore3 = new KeyValueCloudant<String, Integer>("db1",
+                CONFIG_FILE, true);
+        // small batches so that each bulk operation needs several requests
+        datastore3.setBulkBatchSize(7);
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        ArrayList<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            map.put("key" + i, i);
+            keys.add("key" + i);
+        }
+        assertEquals("putAll should store 50 objects", 50, datastore3.putAll(map));
+        map.put("key12", 1212);
+        assertEquals("putAll should overwrite 50 objects", 50, datastore3.putAll(map));
+        assertEquals("Size should be 50", 50, datastore3.size());
+        keys.add("missingKey");
+        Map<String, Integer> fetched = datastore3.getAll(keys);
+        assertEquals("getAll should return 50 objects", 50, fetched.size());
+        assertEquals("Fetched value should be 1212", (Integer) 1212, fetched.get("key12"));
+        assertTrue("Missing key should not be returned", !fetched.containsKey("missingKey"));
+        assertEquals("deleteAll should delete 50 objects", 50, datastore3.deleteAll(keys));
+        assertEquals("Size should be 0", 0, datastore3.size());
+        assertEquals("getAll should return 0 objects", 0, datastore3.getAll(keys).size());
+    }
+
+    @Test
+    public void testStaleRevisions() {
+        KeyValueCloudant<String, Integer> datastore3 = new KeyValueCloudant<String, Integer>("db1",
+                CONFIG_FILE, true);
+        // second client of the same database makes revisions remembered by the first stale
+        KeyValueCloudant<String, Integer> datastore4 = new KeyValueCloudant<String, Integer>("db1",
+                CONFIG_FILE, false);
+        datastore3.put("key1", 1);
+        datastore3.put("key2", 2);
+        datastore3.put("key3", 3);
+        datastore4.put("key1", 11);
+        datastore4.put("key2", 12);
+        datastore4.put("key3", 13);
+        assertEquals("put with stale revision should succeed", KeyValue.ReturnStatus.SUCCESS, datastore3.put("key1", 21));
+        assertEquals("Fetched value should be 21", (Integer) 21, datastore4.get("key1"));
+        assertEquals("delete with stale revision should delete 1 object", 1, datastore3.delete("key2"));
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        map.put("key1", 31);
+        map.put("key3", 33);
+        datastore4.put("key1", 41);
+        assertEquals("putAll with stale revisions should store 2 objects", 2, datastore3.putAll(map));
+        assertEquals("Fetched value should be 31", (Integer) 31, datastore4.get("key1"));
+        datastore4.put("key3", 43);
+        ArrayList<String> keys = new ArrayList<String>();
+        keys.add("key1");
+        keys.add("key2");
+        keys.add("key3");
+        assertEquals("deleteAll with stale revisions should delete 2 objects", 2, datastore3.deleteAll(keys));
+        assertEquals("Size should be 0", 0, datastore4.size());
+
+        // revisions learned from responses allow updates without conflicts
+        datastore3.setRevisionCacheSize(0);
+        assertEquals("put without revision cache should succeed", KeyValue.ReturnStatus.SUCCESS, datastore3.put("key1", 1));
+        assertEquals("put without revision cache should succeed", KeyValue.ReturnStatus.SUCCESS, datastore3.put("key1", 2));
+        assertEquals("delete without revision cache should delete 1 object", 1, datastore3.delete("key1"));
+    }
+
+    @Test
+    public void testLargeValues() {
+        KeyValueCloudant<String, byte[]> datastore3 = new KeyValueCloudant<String, byte[]>("db1",
+                CONFIG_FILE, true);
+        datastore3.setAttachmentThreshold(1000);
+        byte[] small = new byte[100];
+        byte[] large = new byte[200000];
+        new Random(1).nextBytes(small);
+        new Random(2).nextBytes(large);
+        assertEquals("put should return success", KeyValue.ReturnStatus.SUCCESS, datastore3.put("key1", large));
+        assertArrayEquals("Fetched value should equal large value", large, datastore3.get("key1"));
+        DatabaseObject obj = datastore3.getDatabase().find(DatabaseObject.class, "key1");
+        assertTrue("Large value should be stored as an attachment",
+                obj.hasAttachment("value") && obj.getValue() == null);
+
+        // switching between inline and attachment storage
+        datastore3.put("key1", small);
+        assertArrayEquals("Fetched value should equal small value", small, datastore3.get("key1"));
+        obj = datastore3.getDatabase().find(DatabaseObject.class, "key1");
+        assertTrue("Small value should be stored inline", !obj.hasAttachment("value"));
+        datastore3.put("key1", large);
+        assertArrayEquals("Fetched value should equal large value", large, datastore3.get("key1"));
+
+        HashMap<String, byte[]> map = new HashMap<String, byte[]>();
+        map.put("key2", small);
+        map.put("key3", large);
+        assertEquals("putAll should store 2 objects", 2, datastore3.putAll(map));
+        ArrayList<String> keys = new ArrayList<String>();
+        keys.add("key1");
+        keys.add("key2");
+        keys.add("key3");
+        Map<String, byte[]> fetched = datastore3.getAll(keys);
+        assertEquals("getAll should return 3 objects", 3, fetched.size());
+        assertArrayEquals("Fetched value should equal small value", small, fetched.get("key2"));
+        assertArrayEquals("Fetched value should equal large value", large, fetched.get("key3"));
+        assertEquals("delete should delete 1 object", 1, datastore3.delete("key1"));
+        assertEquals("deleteAll should delete 2 objects", 2, datastore3.deleteAll(keys));
+        assertEquals("Size should be 0", 0, datastore3.size());
+    }
+
+    @Test
+    public void testChangesFeed() throws IOException, InterruptedException {
+        KeyValueCloudant<String, Integer> datastore3 = new KeyValueCloudant<String, Integer>("db1",
+                CONFIG_FILE, true);
+        // writes from another client of the same database
+        KeyValueCloudant<String, Integer> datastore4 = new KeyValueCloudant<String, Integer>("db1",
+                CONFIG_FILE, false);
+        KeyValueGuava<String, Integer> cache = new KeyValueGuava<String, Integer>(1000);
+        File sequenceFile = File.createTempFile("changes", ".seq");
+        sequenceFile.delete();
+        ChangesFeedInvalidator<String, Integer> invalidator = new ChangesFeedInvalidator<String, Integer>(
+                datastore3, cache, sequenceFile);
+        invalidator.setBatchSize(2);
+        for (int i = 1; i <= 5; i++) {
+            datastore3.put("key" + i, i);
+            cache.put("key" + i, i);
+        }
+        invalidator.poll();
+        assertEquals("Cached value should be invalidated", null, cache.get("key1"));
+        cache.put("key1", 1);
+        cache.put("key2", 2);
+        datastore4.put("key1", 11);
+        datastore4.delete("key2");
+        datastore4.put("key6", 6);
+        assertEquals("poll should apply 3 changes", 3, invalidator.poll());
+        assertEquals("Cached value should be invalidated", null, cache.get("key1"));
+        assertEquals("Cached value should be invalidated", null, cache.get("key2"));
+
+        // sequence number is persisted, so a new invalidator resumes after the last change
+        invalidator = new ChangesFeedInvalidator<String, Integer>(datastore3, cache, sequenceFile);
+        assertEquals("poll should apply 0 changes", 0, invalidator.poll());
+        invalidator.setMode(ChangesFeedInvalidator.Mode.REFRESH);
+        cache.put("key1", 11);
+        cache.put("key3", 3);
+        datastore4.put("key1", 21);
+        datastore4.delete("key3");
+        datastore4.put("key7", 7);
+        long lookups = cache.getStats().requestCount();
+        assertEquals("poll should apply 3 changes", 3, invalidator.poll());
+        assertEquals("Refreshing should not count as cache lookups", lookups, cache.getStats().requestCount());
+        assertEquals("Cached value should be refreshed", (Integer) 21, cache.get("key1"));
+        assertEquals("Deleted value should be invalidated", null, cache.get("key3"));
+        assertEquals("Uncached value should not be added", null, cache.get("key7"));
+
+        // background polling
+        invalidator.setPollInterval(10);
+        invalidator.start();
+        datastore4.put("key1", 31);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!((Integer) 31).equals(cache.get("key1")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        invalidator.stop();
+        assertEquals("Cached value should be refreshed", (Integer) 31, cache.get("key1"));
+        sequenceFile.delete();
+    }
+
+    @Test
+    public void testTransportConfig() throws Exception {
+        HttpTransportConfig transport = new HttpTransportConfig();
+        transport.setMaxConnections(16);
+        transport.setSocketTimeout(30000);
+        KeyValueCloudant<String, Integer> datastore3 = new KeyValueCloudant<String, Integer>("db1",
+                CONFIG_FILE, transport, true);
+        // as many requests in flight as there are pooled connections
+        AsyncKeyValue<String, Integer> datastoreAsync = new AsyncKeyValue<String, Integer>(datastore3,
+                transport.getMaxConnections());
+        List<Future<KeyValue.ReturnStatus>> puts = new ArrayList<Future<KeyValue.ReturnStatus>>();
+        for (int i = 0; i < 200; i++) {
+            puts.add(datastoreAsync.putAsync("key" + i, i));
+        }
+        for (Future<KeyValue.ReturnStatus> put : puts) {
+            assertEquals("put should return success", KeyValue.ReturnStatus.SUCCESS, put.get());
+        }
+        List<Future<Integer>> gets = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 200; i++) {
+            gets.add(datastoreAsync.getAsync("key" + i));
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals("Fetched value should be " + i, (Integer) i, gets.get(i).get());
+        }
+        assertEquals("Size should be 200", 200, datastore3.size());
+        datastoreAsync.shutdown();
+        datastore3.shutdown();
+    }
+
 }
@@ -1,9 +1,14 @@
 package com.ibm.storage.storagemanager.tests;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.util.HashMap;
 
 import org.junit.Test;
 
+import com.google.common.cache.CacheStats;
+
 import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
 import com.ibm.storage.storagemanager.interfaces.KeyValue;
 
@@ -50,5 +55,49 @@ public class GuavaTests {
         StorageTests.testHashMap(datastore2);
     }
 
-    
+    @Test
+    public void testByteWeighted() {
+        int maxBytes = 100000;
+        KeyValueGuava<String, byte[]> cache = new KeyValueGuava<String, byte[]>(maxBytes,
+                new KeyValueGuava.SerializedSizeWeigher<String, byte[]>());
+        assertEquals("Maximum weight should be maxBytes", maxBytes, cache.getMaxWeight());
+        int numValues = 300;
+        for (int i = 0; i < numValues; i++) {
+            cache.put("key" + i, new byte[1000]);
+        }
+        System.out.println("Cached values: " + cache.size() + ", evictions: " + cache.getEvictionCount());
+        assertTrue("Cache should hold at most maxBytes of values", cache.size() <= maxBytes / 1000);
+        assertEquals("Values should be evicted to stay within maxBytes", numValues - cache.size(),
+                cache.getEvictionCount());
+        cache.put("large", new byte[maxBytes + 1]);
+        assertEquals("Value larger than the cache should not be kept", null, cache.get("large"));
+
+        KeyValueGuava<String, HashMap<String, Integer>> cache2 = new KeyValueGuava<String, HashMap<String, Integer>>(
+                maxBytes, new KeyValueGuava.SerializedSizeWeigher<String, HashMap<String, Integer>>());
+        StorageTests.testHashMap(cache2);
+        KeyValueGuava<String, Integer> cache3 = new KeyValueGuava<String, Integer>(maxBytes,
+                new KeyValueGuava.SerializedSizeWeigher<String, Integer>());
+        StorageTests.testPut(cache3);
+        StorageTests.testGetAll(cache3);
+    }
+
+    @Test
+    public void testStats() {
+        KeyValueGuava<String, Integer> cache = new KeyValueGuava<String, Integer>(2);
+        cache.put("key1", 1);
+        cache.get("key1");
+        cache.get("key2");
+        cache.put("key2", 2);
+        cache.put("key3", 3);
+        CacheStats stats = cache.getStats();
+        System.out.println(stats);
+        assertEquals("Hit count", 1, stats.hitCount());
+        assertEquals("Miss count", 1, stats.missCount());
+        assertEquals("Eviction count", 1, cache.getEvictionCount());
+        assertEquals("Cache bounded by # of objects has no maximum weight", -1, cache.getMaxWeight());
+        assertTrue(cache.containsKey("key3"));
+        assertTrue(!cache.containsKey("key4"));
+        assertEquals("containsKey should not count as a lookup", 2, cache.getStats().requestCount());
+    }
+
 }
@@ -0,0 +1,191 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ibm.storage.storagemanager.implementations.cloudant.KeyValueCloudant;
+import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
+import com.ibm.storage.storagemanager.implementations.tiered.NegativeCachingKeyValue;
+import com.ibm.storage.storagemanager.implementations.tiered.TieredKeyValue;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.standins.CouchDBStandIn;
+
+public class NegativeCachingTests {
+
+    private static final long LATENCY = 5;  // milliseconds added to each CouchDB request
+
+    private static CouchDBStandIn couchDB;
+
+    @BeforeClass
+    public static void startCouchDB() throws IOException {
+        couchDB = new CouchDBStandIn(LATENCY);
+    }
+
+    @AfterClass
+    public static void stopCouchDB() {
+        couchDB.close();
+    }
+
+    @Test
+    public void testStorage() {
+        KeyValue<String, Integer> datastore = new NegativeCachingKeyValue<String, Integer>(
+                new KeyValueGuava<String, Integer>(2000));
+        StorageTests.testPut(datastore);
+        StorageTests.testClear(datastore);
+        StorageTests.testDelete(datastore);
+        StorageTests.testPutAll(datastore);
+        StorageTests.testGetAll(datastore);
+        StorageTests.testUpdate(datastore);
+        StorageTests.testHashMap(new NegativeCachingKeyValue<String, HashMap<String, Integer>>(
+                new KeyValueGuava<String, HashMap<String, Integer>>(2000)));
+    }
+
+    @Test
+    public void testTiered() {
+        NegativeCachingKeyValue<String, Integer> store = new NegativeCachingKeyValue<String, Integer>(
+                new KeyValueCloudant<String, Integer>(couchDB.getUrl(), "db1", "user", "pw", true));
+        TieredKeyValue<String, Integer> datastore = new TieredKeyValue<String, Integer>(Arrays.asList(
+                new KeyValueGuava<String, Integer>(100), store));
+        assertEquals(0, datastore.getAll(Arrays.asList("key1", "key2")).size());
+        long numRequests = couchDB.getNumRequests();
+        for (int i = 0; i < 10; i++) {
+            assertNull("Missing key should not be found", datastore.get("key1"));
+            assertEquals("Missing keys should not be found", 0,
+                    datastore.getAll(Arrays.asList("key1", "key2")).size());
+        }
+        System.out.println("negative hits: " + store.getNegativeHits() + ", requests to store: "
+                + store.getNumRequests());
+        assertEquals("Repeated misses should not reach the store", numRequests, couchDB.getNumRequests());
+        assertEquals("Repeated misses should be answered by the negative cache", 30, store.getNegativeHits());
+        datastore.put("key1", 1);
+        assertEquals("put should forget that a key is missing", 1, datastore.get("key1").intValue());
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        map.put("key2", 2);
+        datastore.putAll(map);
+        assertEquals("putAll should forget that a key is missing", 2, datastore.get("key2").intValue());
+    }
+
+    @Test
+    public void testLimits() {
+        KeyValueGuava<String, Integer> backend = new KeyValueGuava<String, Integer>(100);
+        NegativeCachingKeyValue<String, Integer> datastore = new NegativeCachingKeyValue<String, Integer>(backend,
+                10, 100);
+        for (int i = 0; i < 100; i++) {
+            datastore.get("key" + i);
+        }
+        assertTrue("Number of missing keys should be bounded", datastore.getNumMissing() <= 10);
+        datastore.get("key99");
+        assertEquals(1, datastore.getNegativeHits());
+        backend.put("key99", 99);
+        assertNull("Key written to the store directly appears missing until the TTL", datastore.get("key99"));
+        Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+        assertEquals("Key should be looked up again after the TTL", 99, datastore.get("key99").intValue());
+        datastore.get("key98");
+        datastore.clearMissing();
+        assertEquals(0, datastore.getNumMissing());
+    }
+
+    @Test
+    public void testPutDuringLookup() throws Exception {
+        final long storeLatency = 200;
+        KeyValueGuava<String, Integer> backend = new KeyValueGuava<String, Integer>(100) {
+            @Override
+            public Integer get(String key) {
+                Integer value = super.get(key);
+                Uninterruptibles.sleepUninterruptibly(storeLatency, TimeUnit.MILLISECONDS);
+                return value;
+            }
+        };
+        final NegativeCachingKeyValue<String, Integer> datastore = new NegativeCachingKeyValue<String, Integer>(
+                backend);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Integer> lookup = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return datastore.get("key1");
+            }
+        });
+        Thread.sleep(storeLatency / 4);
+        datastore.put("key1", 1);
+        assertNull("Lookup started before the put should not find the key", lookup.get());
+        executor.shutdown();
+        assertEquals("Key should not be remembered as missing after a put", 0, datastore.getNumMissing());
+        assertEquals(1, datastore.get("key1").intValue());
+    }
+
+    // Key which, once looked up in the store, runs a write when the lookup thread hashes it
+    // for the second time: in the code which decides whether to remember it as missing
+    private static class WatchedKey {
+        final String name;
+        final CountDownLatch writeStarted = new CountDownLatch(1);
+        final CountDownLatch writeDone = new CountDownLatch(1);
+        volatile Thread lookupThread;
+        int numHashes;
+
+        WatchedKey(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public int hashCode() {
+            if (Thread.currentThread() == lookupThread && ++numHashes == 2) {
+                writeStarted.countDown();
+                // a write which has to wait for the lookup to finish won't be done in time
+                Uninterruptibles.awaitUninterruptibly(writeDone, 500, TimeUnit.MILLISECONDS);
+            }
+            return name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof WatchedKey && ((WatchedKey) other).name.equals(name);
+        }
+    }
+
+    @Test
+    public void testPutAfterLookup() throws Exception {
+        KeyValueGuava<WatchedKey, Integer> backend = new KeyValueGuava<WatchedKey, Integer>(100) {
+            @Override
+            public Integer get(WatchedKey key) {
+                Integer value = super.get(key);
+                key.lookupThread = Thread.currentThread();
+                return value;
+            }
+        };
+        final NegativeCachingKeyValue<WatchedKey, Integer> datastore =
+                new NegativeCachingKeyValue<WatchedKey, Integer>(backend);
+        final WatchedKey key = new WatchedKey("key1");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> put = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                key.writeStarted.await();
+                datastore.put(key, 1);
+                key.writeDone.countDown();
+                return null;
+            }
+        });
+        assertNull("Lookup started before the put should not find the key", datastore.get(key));
+        put.get();
+        executor.shutdown();
+        assertEquals("Key should not be remembered as missing after a put", 0, datastore.getNumMissing());
+        assertEquals(1, datastore.get(key).intValue());
+    }
+
+}
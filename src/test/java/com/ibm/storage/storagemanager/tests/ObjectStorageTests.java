@@ -1,12 +1,25 @@
 package com.ibm.storage.storagemanager.tests;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
 
+import org.javaswift.joss.model.StoredObject;
 import org.junit.Test;
 
+import com.ibm.storage.storagemanager.implementations.async.AsyncKeyValue;
+import com.ibm.storage.storagemanager.implementations.objectstorage.ContainerListing;
 import com.ibm.storage.storagemanager.implementations.objectstorage.KeyValueObjectStorage;
 import com.ibm.storage.storagemanager.interfaces.KeyValue;
 import com.ibm.storage.storagemanager.util.Constants;
+import com.ibm.storage.storagemanager.util.HttpTransportConfig;
 import com.ibm.storage.storagemanager.util.Util;
 
 public class ObjectStorageTests {
@@ -54,5 +67,163 @@ public class ObjectStorageTests {
     public void testHashMap() {
         StorageTests.testHashMap(datastore2);
     }
-    
+
+    @Test
+    public void testTransportConfig() throws Exception {
+        HttpTransportConfig transport = new HttpTransportConfig();
+        transport.setMaxConnections(16);
+        transport.setKeepAlive(30000);
+        KeyValueObjectStorage<String, Integer> datastore3 = new KeyValueObjectStorage<String, Integer>("db1",
+                CONFIG_FILE, transport, true);
+        // as many requests in flight as there are pooled connections
+        AsyncKeyValue<String, Integer> datastoreAsync = new AsyncKeyValue<String, Integer>(datastore3,
+                transport.getMaxConnections());
+        List<Future<KeyValue.ReturnStatus>> puts = new ArrayList<Future<KeyValue.ReturnStatus>>();
+        for (int i = 0; i < 200; i++) {
+            puts.add(datastoreAsync.putAsync("key" + i, i));
+        }
+        for (Future<KeyValue.ReturnStatus> put : puts) {
+            assertEquals("put should return success", KeyValue.ReturnStatus.SUCCESS, put.get());
+        }
+        List<Future<Integer>> gets = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 200; i++) {
+            gets.add(datastoreAsync.getAsync("key" + i));
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals("Fetched value should be " + i, (Integer) i, gets.get(i).get());
+        }
+        assertEquals("Size should be 200", 200, datastore3.size());
+        datastoreAsync.shutdown();
+        datastore3.shutdown();
+    }
+
+    @Test
+    public void testParallelBulk() {
+        KeyValueObjectStorage<String, Integer> datastore3 = new KeyValueObjectStorage<String, Integer>("db1",
+                CONFIG_FILE, true);
+        datastore3.setParallelism(8);
+        datastore3.setRequestAttempts(2);
+        int numObjects = 1500;
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < numObjects; i++) {
+            map.put("key " + i, i);
+            keys.add("key " + i);
+        }
+        assertEquals("putAll should store all objects", numObjects, datastore3.putAll(map));
+        assertEquals("Size should be " + numObjects, numObjects, datastore3.size());
+        keys.add("missing");
+        Map<String, Integer> values = datastore3.getAll(keys);
+        assertEquals("getAll should find all objects", map, values);
+        List<String> half = keys.subList(0, numObjects / 2);
+        assertEquals("deleteAll should delete half the objects", numObjects / 2, datastore3.deleteAll(half));
+        assertEquals("deleteAll should not count missing objects", 0, datastore3.deleteAll(half));
+        assertEquals("Size should be " + (numObjects - numObjects / 2), numObjects - numObjects / 2,
+                datastore3.size());
+        datastore3.clear();
+        assertEquals("Size should be 0", 0, datastore3.size());
+        datastore3.shutdown();
+    }
+
+    @Test
+    public void testObjectCache() {
+        KeyValueObjectStorage<String, Integer> datastore3 = new KeyValueObjectStorage<String, Integer>("db1",
+                CONFIG_FILE, true);
+        datastore3.setObjectCacheSize(1 << 20);
+        KeyValueObjectStorage<String, Integer> writer = new KeyValueObjectStorage<String, Integer>("db1",
+                CONFIG_FILE, false);
+        assertEquals("Missing object should return null", null, datastore3.get("key1"));
+        assertEquals("Deleting missing object should return 0", 0, datastore3.delete("key1"));
+        datastore3.put("key1", 1);
+        assertEquals("Fetched value should be 1", (Integer) 1, datastore3.get("key1"));
+        assertEquals("Unchanged value should be 1", (Integer) 1, datastore3.get("key1"));
+        // changes made through another store must be seen despite the cached copy
+        writer.put("key1", 2);
+        assertEquals("Changed value should be 2", (Integer) 2, datastore3.get("key1"));
+        assertEquals("Deleting object should return 1", 1, writer.delete("key1"));
+        assertEquals("Deleted object should return null", null, datastore3.get("key1"));
+        writer.shutdown();
+        datastore3.shutdown();
+    }
+
+    @Test
+    public void testSegmentedValues() {
+        KeyValueObjectStorage<String, byte[]> datastore3 = new KeyValueObjectStorage<String, byte[]>("db1",
+                CONFIG_FILE, true);
+        datastore3.setSegmentSize(4096);
+        KeyValueObjectStorage<String, byte[]> segments = new KeyValueObjectStorage<String, byte[]>(
+                "db1_segments", CONFIG_FILE, false);
+        byte[] small = new byte[100];
+        byte[] large = new byte[100000];
+        new Random(1).nextBytes(small);
+        new Random(2).nextBytes(large);
+        assertEquals("put should return success", KeyValue.ReturnStatus.SUCCESS, datastore3.put("key1", large));
+        assertArrayEquals("Fetched value should equal large value", large, datastore3.get("key1"));
+        assertEquals("Large value should be stored in 25 segments", 25, segments.size());
+
+        // replacing a value removes the segments of the old value
+        datastore3.put("key1", small);
+        assertArrayEquals("Fetched value should equal small value", small, datastore3.get("key1"));
+        assertEquals("Small value should not be segmented", 0, segments.size());
+        datastore3.put("key1", large);
+        assertArrayEquals("Fetched value should equal large value", large, datastore3.get("key1"));
+
+        HashMap<String, byte[]> map = new HashMap<String, byte[]>();
+        map.put("key2", small);
+        map.put("key3", large);
+        assertEquals("putAll should store 2 objects", 2, datastore3.putAll(map));
+        ArrayList<String> keys = new ArrayList<String>();
+        keys.add("key1");
+        keys.add("key2");
+        keys.add("key3");
+        Map<String, byte[]> fetched = datastore3.getAll(keys);
+        assertEquals("getAll should return 3 objects", 3, fetched.size());
+        assertArrayEquals("Fetched value should equal large value", large, fetched.get("key3"));
+        assertEquals("delete should delete 1 object", 1, datastore3.delete("key1"));
+        assertEquals("deleteAll should delete 2 objects", 2, datastore3.deleteAll(keys));
+        assertEquals("Size should be 0", 0, datastore3.size());
+        assertEquals("Segments should be deleted with their values", 0, segments.size());
+        segments.shutdown();
+        datastore3.shutdown();
+    }
+
+    @Test
+    public void testListing() {
+        KeyValueObjectStorage<String, Integer> datastore3 = new KeyValueObjectStorage<String, Integer>("db1",
+                CONFIG_FILE, true);
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        for (int i = 0; i < 25; i++) {
+            map.put(String.format("a%02d", i), i);
+            map.put(String.format("b%02d", i), i);
+        }
+        datastore3.putAll(map);
+        List<String> keys = new ArrayList<String>();
+        for (String key : datastore3.keys()) {
+            keys.add(key);
+        }
+        assertEquals("keys should return all 50 keys", 50, keys.size());
+        assertEquals("First key should be a00", "a00", keys.get(0));
+        assertEquals("Last key should be b24", "b24", keys.get(49));
+        int numKeys = 0;
+        for (String key : datastore3.keys("b")) {
+            assertTrue("Key should begin with b", key.startsWith("b"));
+            numKeys++;
+        }
+        assertEquals("25 keys should begin with b", 25, numKeys);
+
+        // pages smaller than the number of objects
+        List<String> names = new ArrayList<String>();
+        for (StoredObject object : new ContainerListing(datastore3.getDatabase(), "a", 4)) {
+            names.add(object.getName());
+        }
+        assertEquals("Listing should return 25 objects", 25, names.size());
+        assertEquals("Last object should be a24", "a24", names.get(24));
+        String contents = datastore3.toString();
+        assertTrue("toString should include all objects", contents.contains("a00") && contents.contains("b24"));
+        datastore3.clear();
+        assertEquals("Size should be 0", 0, datastore3.size());
+        assertTrue("No keys should remain", !datastore3.keys().iterator().hasNext());
+        datastore3.shutdown();
+    }
+
 }
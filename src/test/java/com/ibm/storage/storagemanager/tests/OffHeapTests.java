@@ -0,0 +1,158 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.ibm.storage.storagemanager.implementations.offheap.KeyValueOffHeap;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+
+public class OffHeapTests {
+
+    long maxBytes = 1 << 20;
+    KeyValue<String, Integer> datastore = new KeyValueOffHeap<String, Integer>(maxBytes);
+
+    KeyValue<String, HashMap<String, Integer>> datastore2 =
+            new KeyValueOffHeap<String, HashMap<String, Integer>>(maxBytes);
+
+    @Test
+    public void testPut() {
+        StorageTests.testPut(datastore);
+    }
+
+    @Test
+    public void testClear() {
+        StorageTests.testClear(datastore);
+    }
+
+    @Test
+    public void testDelete() {
+        StorageTests.testDelete(datastore);
+    }
+
+    @Test
+    public void testPutAll() {
+        StorageTests.testPutAll(datastore);
+    }
+
+    @Test
+    public void testGetAll() {
+        StorageTests.testGetAll(datastore);
+    }
+
+    @Test
+    public void testUpdate() {
+        StorageTests.testUpdate(datastore);
+    }
+
+    @Test
+    public void testHashMap() {
+        StorageTests.testHashMap(datastore2);
+    }
+
+    @Test
+    public void testLargeValues() {
+        KeyValueOffHeap<String, byte[]> cache = new KeyValueOffHeap<String, byte[]>(maxBytes, 64);
+        Random random = new Random(1);
+        int[] sizes = {0, 1, 20, 43, 44, 56, 57, 100, 1000, 65536, 300000};
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] value = new byte[sizes[i]];
+            random.nextBytes(value);
+            values.add(value);
+            cache.put("key" + i, value);
+        }
+        for (int i = 0; i < sizes.length; i++) {
+            assertArrayEquals("Value of size " + sizes[i] + " should be unchanged", values.get(i),
+                    cache.get("key" + i));
+        }
+        assertEquals("Replacing a value should free its blocks", KeyValue.ReturnStatus.SUCCESS,
+                cache.put("key10", new byte[10]));
+        assertTrue("Used memory should shrink", cache.getUsedBytes() < 100000);
+        assertEquals("Value larger than the cache should not be stored", KeyValue.ReturnStatus.FAILURE,
+                cache.put("huge", new byte[(int) maxBytes]));
+        assertNull("Value larger than the cache should not be found", cache.get("huge"));
+        System.out.println("Maximum entry size: " + cache.getMaxEntrySize());
+    }
+
+    @Test
+    public void testEviction() {
+        KeyValueOffHeap<String, byte[]> cache = new KeyValueOffHeap<String, byte[]>(maxBytes);
+        cache.put("hot", new byte[1000]);
+        int numValues = 10000;
+        for (int i = 0; i < numValues; i++) {
+            cache.put("key" + i, new byte[1000]);
+            assertEquals("Frequently read value should stay cached", 1000, cache.get("hot").length);
+        }
+        System.out.println("Cached values: " + cache.size() + ", evictions: " + cache.getEvictionCount()
+                + ", used bytes: " + cache.getUsedBytes() + " of " + cache.getCapacity());
+        assertTrue("Memory used should be bounded", cache.getUsedBytes() <= cache.getCapacity());
+        assertEquals("Every value should be cached or evicted", numValues + 1,
+                cache.size() + cache.getEvictionCount());
+        assertTrue("Most recent value should be cached", cache.get("key" + (numValues - 1)) != null);
+        assertNull("Oldest value should be evicted", cache.get("key0"));
+        assertEquals("Hits", numValues + 1, cache.getHitCount());
+        assertEquals("Misses", 1, cache.getMissCount());
+        cache.clear();
+        assertEquals("Cache should be empty", 0, cache.size());
+        assertEquals("Memory should be free", 0, cache.getUsedBytes());
+    }
+
+    @Test
+    public void testConcurrency() throws Exception {
+        final KeyValueOffHeap<Integer, int[]> cache = new KeyValueOffHeap<Integer, int[]>(32 << 20, 128);
+        System.out.println("Segments: " + cache.getNumSegments());
+        ExecutorService service = Executors.newFixedThreadPool(8);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            futures.add(service.submit(new java.util.concurrent.Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    Random random = new Random(seed);
+                    int found = 0;
+                    for (int i = 0; i < 20000; i++) {
+                        int key = random.nextInt(5000);
+                        if (random.nextInt(4) == 0) {
+                            int[] value = new int[key % 500];
+                            for (int j = 0; j < value.length; j++) {
+                                value[j] = key + j;
+                            }
+                            cache.put(key, value);
+                        }
+                        else if (random.nextInt(20) == 0) {
+                            cache.delete(key);
+                        }
+                        else {
+                            int[] value = cache.get(key);
+                            if (value != null) {
+                                assertEquals("Value should match key", key % 500, value.length);
+                                for (int j = 0; j < value.length; j++) {
+                                    assertEquals("Value should match key", key + j, value[j]);
+                                }
+                                found++;
+                            }
+                        }
+                    }
+                    return found;
+                }
+            }));
+        }
+        for (Future<Integer> future : futures) {
+            assertTrue("Lookups should find values", future.get() > 0);
+        }
+        service.shutdown();
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ibm.storage.storagemanager.implementations.redis.KeyValueRedisNearCache;
+import com.ibm.storage.storagemanager.standins.RedisStandIn;
+
+public class RedisNearCacheTests {
+
+    private static final long LATENCY = 1;  // milliseconds added to each Redis command
+    private static final long WAIT = 5000;  // milliseconds to wait for an invalidation
+
+    private static RedisStandIn redis;
+
+    @BeforeClass
+    public static void startRedis() throws IOException {
+        redis = new RedisStandIn(LATENCY);
+    }
+
+    @AfterClass
+    public static void stopRedis() {
+        redis.close();
+    }
+
+    private static KeyValueRedisNearCache<String, Integer> nearCache(RedisStandIn server, String channel) {
+        return new KeyValueRedisNearCache<String, Integer>(server.getHost(), server.getPort(), 100, channel);
+    }
+
+    // wait until condition is true, returning false if it is still false after WAIT milliseconds
+    private static boolean eventually(Callable<Boolean> condition) throws Exception {
+        long end = System.currentTimeMillis() + WAIT;
+        while (!condition.call()) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    @Test
+    public void testStorage() {
+        KeyValueRedisNearCache<String, Integer> datastore = nearCache(redis, "storage");
+        StorageTests.testPut(datastore);
+        StorageTests.testClear(datastore);
+        StorageTests.testDelete(datastore);
+        StorageTests.testPutAll(datastore);
+        StorageTests.testGetAll(datastore);
+        StorageTests.testUpdate(datastore);
+        datastore.close();
+        KeyValueRedisNearCache<String, HashMap<String, Integer>> datastore2 =
+                new KeyValueRedisNearCache<String, HashMap<String, Integer>>(redis.getHost(), redis.getPort(), 100,
+                        "storage");
+        StorageTests.testHashMap(datastore2);
+        datastore2.close();
+    }
+
+    @Test
+    public void testLocalReads() {
+        KeyValueRedisNearCache<String, Integer> datastore = nearCache(redis, "local");
+        assertTrue("Near cache should be subscribed", datastore.isSubscribed());
+        datastore.put("local1", 1);
+        datastore.put("local2", 2);
+        long numCommands = redis.getNumCommands();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1, datastore.get("local1").intValue());
+            assertEquals(2, datastore.getAll(Arrays.asList("local1", "local2")).size());
+        }
+        assertEquals("Cached values should be read locally", numCommands, redis.getNumCommands());
+        assertEquals(300, datastore.getLocalHits());
+        assertNull("Missing key should be read from Redis", datastore.get("local4"));
+        assertEquals(1, datastore.getRemoteReads());
+        datastore.close();
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        final KeyValueRedisNearCache<String, Integer> node1 = nearCache(redis, "invalidation");
+        final KeyValueRedisNearCache<String, Integer> node2 = nearCache(redis, "invalidation");
+        node1.put("key1", 1);
+        node1.put("key2", 2);
+        // an invalidation arriving while node2 reads a key keeps the value from being cached
+        assertTrue("Writes should be delivered to the other node", eventually(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return node2.getNumInvalidations() == 2;
+            }
+        }));
+        assertEquals(1, node2.get("key1").intValue());
+        assertEquals(2, node2.get("key2").intValue());
+        assertEquals("Values should be cached on both nodes", 2, node2.getNearCacheSize());
+
+        node1.put("key1", 10);
+        assertTrue("Write should invalidate the other node", eventually(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return Integer.valueOf(10).equals(node2.get("key1"));
+            }
+        }));
+        node2.delete("key2");
+        assertTrue("Delete should invalidate the other node", eventually(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return node1.get("key2") == null;
+            }
+        }));
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        map.put("key1", 100);
+        map.put("key3", 300);
+        node2.putAll(map);
+        assertTrue("putAll should invalidate the other node", eventually(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return node1.getAll(Arrays.asList("key1", "key3")).equals(
+                        node2.getAll(Arrays.asList("key1", "key3")));
+            }
+        }));
+        node1.clear();
+        assertTrue("clear should invalidate the other node", eventually(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return node2.getNearCacheSize() == 0;
+            }
+        }));
+        assertNull(node2.get("key1"));
+        System.out.println("node1 invalidations: " + node1.getNumInvalidations() + ", node2 invalidations: "
+                + node2.getNumInvalidations());
+        assertTrue(node1.getNumInvalidations() >= 2);
+
+        long numInvalidations = node1.getNumInvalidations();
+        KeyValueRedisNearCache<String, Integer> otherChannel = nearCache(redis, "other");
+        otherChannel.put("key1", 1);
+        Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+        assertEquals("Near caches on other channels should not receive invalidations", numInvalidations,
+                node1.getNumInvalidations());
+        assertEquals("Own writes should not be received as invalidations", 0, otherChannel.getNumInvalidations());
+        node1.close();
+        node2.close();
+        otherChannel.close();
+    }
+
+    @Test
+    public void testResubscribe() throws Exception {
+        RedisStandIn server = new RedisStandIn(LATENCY);
+        final KeyValueRedisNearCache<String, Integer> node1 = nearCache(server, "resubscribe");
+        node1.put("key1", 1);
+        assertEquals(1, node1.getNearCacheSize());
+        server.closeConnections();
+        assertTrue("Lost subscription should be noticed", eventually(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return !node1.isSubscribed();
+            }
+        }));
+        assertEquals("Near cache should be cleared when invalidations could be missed", 0,
+                node1.getNearCacheSize());
+        assertTrue("Subscription should be re-established", eventually(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return node1.isSubscribed();
+            }
+        }));
+        KeyValueRedisNearCache<String, Integer> node2 = nearCache(server, "resubscribe");
+        node2.put("key1", 2);
+        assertTrue("Invalidations should be received after resubscribing", eventually(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return node1.getNumInvalidations() == 1;
+            }
+        }));
+        // node1's command connection was also closed, and Jedis does not reconnect it
+        node1.close();
+        node2.close();
+        server.close();
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
+import com.ibm.storage.storagemanager.implementations.tiered.RefreshAheadKeyValue;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+
+public class RefreshAheadTests {
+
+    private static final long LATENCY = 100;  // milliseconds added to each lookup by the slow store
+
+    // Guava cache which takes LATENCY milliseconds to answer a lookup, after reading the value
+    private static class SlowStore extends KeyValueGuava<String, Integer> {
+        AtomicInteger numGets = new AtomicInteger();
+
+        SlowStore() {
+            super(1000);
+        }
+
+        @Override
+        public Integer get(String key) {
+            numGets.incrementAndGet();
+            Integer value = super.get(key);
+            Uninterruptibles.sleepUninterruptibly(LATENCY, TimeUnit.MILLISECONDS);
+            return value;
+        }
+    }
+
+    // read key repeatedly for duration milliseconds, returning the longest read time in milliseconds
+    private static long readRepeatedly(KeyValue<String, Integer> datastore, String key, long duration) {
+        long maxTime = 0;
+        long end = System.currentTimeMillis() + duration;
+        while (System.currentTimeMillis() < end) {
+            long start = System.nanoTime();
+            datastore.get(key);
+            maxTime = Math.max(maxTime, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            Uninterruptibles.sleepUninterruptibly(5, TimeUnit.MILLISECONDS);
+        }
+        return maxTime;
+    }
+
+    @Test
+    public void testStorage() {
+        RefreshAheadKeyValue<String, Integer> datastore = new RefreshAheadKeyValue<String, Integer>(
+                new KeyValueGuava<String, Integer>(2000), 2000, 60000);
+        StorageTests.testPut(datastore);
+        StorageTests.testClear(datastore);
+        StorageTests.testDelete(datastore);
+        StorageTests.testPutAll(datastore);
+        StorageTests.testGetAll(datastore);
+        StorageTests.testUpdate(datastore);
+        StorageTests.testHashMap(new RefreshAheadKeyValue<String, HashMap<String, Integer>>(
+                new KeyValueGuava<String, HashMap<String, Integer>>(2000), 2000, 60000));
+        datastore.close();
+    }
+
+    @Test
+    public void testRefresh() {
+        long ttl = 6 * LATENCY;
+        SlowStore store = new SlowStore();
+        RefreshAheadKeyValue<String, Integer> datastore = new RefreshAheadKeyValue<String, Integer>(store, 100,
+                ttl, 0.5, 2, 10);
+        datastore.put("key1", 1);
+        store.put("key1", 2);
+        long maxTime = readRepeatedly(datastore, "key1", 3 * ttl);
+        System.out.println("refresh ahead: longest read " + maxTime + " ms, misses " + datastore.getMissCount()
+                + ", reloads " + datastore.getNumRefreshes());
+        assertEquals("Hot key should never expire", 0, datastore.getMissCount());
+        assertTrue("Hot key should be reloaded", datastore.getNumRefreshes() >= 2);
+        assertTrue("Reads should not wait for reloads", maxTime < LATENCY);
+        assertEquals("Reloaded value should be returned", 2, datastore.get("key1").intValue());
+        datastore.close();
+
+        RefreshAheadKeyValue<String, Integer> noRefresh = new RefreshAheadKeyValue<String, Integer>(store, 100,
+                ttl, 0.0, 2, 10);
+        noRefresh.put("key1", 1);
+        maxTime = readRepeatedly(noRefresh, "key1", 3 * ttl);
+        System.out.println("no refresh ahead: longest read " + maxTime + " ms, misses " + noRefresh.getMissCount());
+        assertTrue("Without refresh ahead the key should expire", noRefresh.getMissCount() > 0);
+        assertTrue("Reads after expiry should wait for the store", maxTime >= LATENCY);
+        noRefresh.close();
+    }
+
+    @Test
+    public void testBoundedQueue() {
+        SlowStore store = new SlowStore();
+        RefreshAheadKeyValue<String, Integer> datastore = new RefreshAheadKeyValue<String, Integer>(store, 100,
+                60000, 1.0, 1, 1);
+        int numKeys = 10;
+        for (int i = 0; i < numKeys; i++) {
+            datastore.put("key" + i, i);
+        }
+        for (int i = 0; i < numKeys; i++) {
+            assertEquals("Cached value should be returned", i, datastore.get("key" + i).intValue());
+        }
+        datastore.close();
+        System.out.println("reloads: " + datastore.getNumRefreshes() + ", skipped: " + datastore.getNumSkipped());
+        assertTrue("Reloads beyond the queue should be skipped", datastore.getNumSkipped() >= numKeys - 2);
+        assertEquals("Every reload should complete or be skipped", numKeys,
+                datastore.getNumRefreshes() + datastore.getNumSkipped());
+        assertEquals("Completed reloads should reach the store", datastore.getNumRefreshes(), store.numGets.get());
+    }
+
+    @Test
+    public void testWriteDuringRefresh() {
+        SlowStore store = new SlowStore();
+        RefreshAheadKeyValue<String, Integer> datastore = new RefreshAheadKeyValue<String, Integer>(store, 100,
+                60000, 1.0, 1, 10);
+        datastore.put("key1", 1);
+        datastore.put("key2", 2);
+        assertEquals(1, datastore.get("key1").intValue());
+        assertEquals(2, datastore.get("key2").intValue());
+        datastore.put("key1", 3);
+        store.delete("key2");
+        datastore.close();
+        assertEquals("Reload should not overwrite a later write", 3, datastore.get("key1").intValue());
+        assertEquals("Reload should remove a deleted key", 0, datastore.getAll(Arrays.asList("key2")).size());
+        assertEquals(2, datastore.getNumRefreshes());
+    }
+
+    @Test
+    public void testPartialPutAll() {
+        // store which stores only one value per putAll
+        KeyValue<String, Integer> store = new KeyValueGuava<String, Integer>(100) {
+            @Override
+            public int putAll(Map<String, Integer> map) {
+                Map.Entry<String, Integer> first = map.entrySet().iterator().next();
+                put(first.getKey(), first.getValue());
+                return 1;
+            }
+        };
+        RefreshAheadKeyValue<String, Integer> datastore = new RefreshAheadKeyValue<String, Integer>(store, 100,
+                60000);
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        map.put("key1", 1);
+        map.put("key2", 2);
+        assertEquals(1, datastore.putAll(map));
+        assertEquals("Values not all stored should not be cached", 0, datastore.getCacheSize());
+        assertEquals("Values should match the store", store.getAll(Arrays.asList("key1", "key2")),
+                datastore.getAll(Arrays.asList("key1", "key2")));
+        datastore.close();
+    }
+
+}
@@ -0,0 +1,148 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.ibm.storage.storagemanager.implementations.sql.H2Dialect;
+import com.ibm.storage.storagemanager.implementations.sql.KeyValueSQL;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+
+public class SQLEmbeddedTests {
+    
+    
+    // In-memory H2 database, so no database server or configuration file is needed
+    private static final String BASE_URL = "jdbc:h2:mem:";
+  
+    KeyValue<String, Integer> datastore = new KeyValueSQL<String, Integer>("db1", "db1", BASE_URL,
+            "sa", "", true);
+    
+    KeyValue<String, HashMap<String, Integer>> datastore2 = 
+            new KeyValueSQL<String, HashMap<String, Integer>>("db2", "db1", BASE_URL, "sa", "", true);
+
+    @Test
+    public void testPut() {
+        StorageTests.testPut(datastore);
+    }
+
+    @Test
+    public void testClear() {
+        StorageTests.testClear(datastore);
+    }
+
+    @Test
+    public void testDelete() {
+        StorageTests.testDelete(datastore);
+    }
+
+    @Test
+    public void testPutAll() {
+        StorageTests.testPutAll(datastore);
+    }
+
+    @Test
+    public void testGetAll() {
+        StorageTests.testGetAll(datastore);
+    }
+
+    @Test
+    public void testUpdate() {
+        StorageTests.testUpdate(datastore);
+    }
+ 
+    @Test
+    public void testHashMap() {
+        StorageTests.testHashMap(datastore2);
+    }
+
+    @Test
+    public void testCachedSize() {
+        KeyValueSQL<String, Integer> datastore3 = new KeyValueSQL<String, Integer>("db3", "db1", BASE_URL,
+                "sa", "", true);
+        datastore3.setSizeMode(KeyValueSQL.SizeMode.CACHED);
+        StorageTests.testDelete(datastore3);
+        StorageTests.testClear(datastore3);
+    }
+
+    @Test
+    public void testPartitioned() {
+        KeyValueSQL<String, Integer> datastore3 = new KeyValueSQL<String, Integer>("db5", "db1", BASE_URL,
+                "sa", "", new H2Dialect(), 4, true);
+        StorageTests.testDelete(datastore3);
+        StorageTests.testPutAll(datastore3);
+        StorageTests.testGetAll(datastore3);
+        StorageTests.testClear(datastore3);
+
+        // enough keys to need more than one batch per partition
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        ArrayList<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            map.put("key" + i, i);
+            keys.add("key" + i);
+        }
+        assertEquals("putAll should store 5000 objects", 5000, datastore3.putAll(map));
+        assertEquals("Size should be 5000", 5000, datastore3.size());
+        Map<String, Integer> fetched = datastore3.getAll(keys);
+        assertEquals("getAll should return 5000 objects", 5000, fetched.size());
+        assertEquals("Fetched value should be 1234", (Integer) 1234, fetched.get("key1234"));
+        assertEquals("Fetched value should be 4321", (Integer) 4321, datastore3.get("key4321"));
+        assertEquals("deleteAll should delete 5000 objects", 5000, datastore3.deleteAll(keys));
+        assertEquals("Size should be 0", 0, datastore3.size());
+
+        assertTrue(datastore3.resetConnections());
+        assertEquals("putAll should work after resetting connections", 5000, datastore3.putAll(map));
+        assertTrue(datastore3.closeConnections());
+        long end = System.currentTimeMillis() + 5000;
+        while (partitionThreads("db5") > 0 && System.currentTimeMillis() < end) {
+            Thread.yield();
+        }
+        assertEquals("Partition threads should stop when connections are closed", 0, partitionThreads("db5"));
+    }
+
+    private static int partitionThreads(String tableName) {
+        int numThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(tableName + "-partition-")) {
+                numThreads++;
+            }
+        }
+        return numThreads;
+    }
+
+    @Test
+    public void testStreamed() {
+        KeyValueSQL<String, byte[]> datastore3 = new KeyValueSQL<String, byte[]>("db6", "db1", BASE_URL,
+                "sa", "", true);
+        byte[] value = new byte[4 * 1024 * 1024];
+        new Random(7).nextBytes(value);
+        assertEquals("putStreamed should return success", KeyValue.ReturnStatus.SUCCESS,
+                datastore3.putStreamed("key1", value));
+        assertArrayEquals("Streamed value should match stored value", value, datastore3.getStreamed("key1"));
+        assertArrayEquals("Streamed value should match value from get", value, datastore3.get("key1"));
+        datastore3.put("key2", value);
+        assertArrayEquals("Streamed value should match value from put", value, datastore3.getStreamed("key2"));
+        assertEquals("Fetched value should be null", null, datastore3.getStreamed("key3"));
+        assertEquals("Size should be 2", 2, datastore3.size());
+        assertTrue("Large values should not be output", datastore3.toString().contains("bytes>"));
+    }
+
+    @Test
+    public void testApproximateSize() {
+        KeyValueSQL<String, Integer> datastore3 = new KeyValueSQL<String, Integer>("db4", "db1", BASE_URL,
+                "sa", "", true);
+        datastore3.setSizeMode(KeyValueSQL.SizeMode.APPROXIMATE);
+        datastore3.put("key1", 42);
+        datastore3.put("key2", 43);
+        System.out.println("approximate size: " + datastore3.size());
+        assertTrue("Approximate size should be nonnegative", datastore3.size() >= 0);
+        assertEquals("Exact size should be 2", 2, datastore3.exactSize());
+    }
+    
+}
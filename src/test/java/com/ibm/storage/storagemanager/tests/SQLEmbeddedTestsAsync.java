@@ -0,0 +1,106 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.ibm.storage.storagemanager.implementations.async.AsyncKeyValue;
+import com.ibm.storage.storagemanager.implementations.sql.KeyValueSQL;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.interfaces.KeyValueAsync;
+
+
+public class SQLEmbeddedTestsAsync {
+
+    // In-memory H2 database, so no database server or configuration file is needed
+    private static final String BASE_URL = "jdbc:h2:mem:";
+    private static final int POOL_SIZE = 4;
+
+    public SQLEmbeddedTestsAsync() {
+        datastore.setConnectionPoolSize(POOL_SIZE);
+        datastore2.setConnectionPoolSize(POOL_SIZE);
+        System.out.println("Requests in flight: " + datastoreAsync.getThreadPoolSize() +
+                ", virtual threads: " + datastoreAsync.usesVirtualThreads());
+    }
+    
+    KeyValueSQL<String, Integer> datastore = new KeyValueSQL<String, Integer>("async1", "db1", BASE_URL,
+            "sa", "", true);
+    AsyncKeyValue<String, Integer> datastoreAsync = new AsyncKeyValue<String, Integer>(datastore, POOL_SIZE);
+    
+    KeyValueSQL<String, HashMap<String, Integer>> datastore2 = 
+            new KeyValueSQL<String, HashMap<String, Integer>>("async2", "db1", BASE_URL, "sa", "", true);
+    KeyValueAsync<String, HashMap<String, Integer>> datastoreAsync2 = 
+            new AsyncKeyValue<String, HashMap<String,Integer>>(datastore2, POOL_SIZE);
+   
+    @Test
+    public void testPut() throws Exception {
+        StorageTestsAsync.testPut(datastoreAsync);
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        StorageTestsAsync.testClear(datastoreAsync);
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        StorageTestsAsync.testDelete(datastoreAsync);
+    }
+
+    @Test
+    public void testPutAll() throws Exception {
+        StorageTestsAsync.testPutAll(datastoreAsync);
+    }
+
+    @Test
+    public void testGetAll() throws Exception {
+        StorageTestsAsync.testGetAll(datastoreAsync);
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        StorageTestsAsync.testUpdate(datastoreAsync);
+    }
+ 
+    @Test
+    public void testHashMap() {
+        StorageTestsAsync.testHashMap(datastoreAsync2);
+    }
+
+    @Test
+    public void testManyOutstanding() throws Exception {
+        datastoreAsync.clear();
+        List<Future<KeyValue.ReturnStatus>> puts = new ArrayList<Future<KeyValue.ReturnStatus>>();
+        for (int i = 0; i < 1000; i++) {
+            puts.add(datastoreAsync.putAsync("key" + i, i));
+        }
+        for (Future<KeyValue.ReturnStatus> put : puts) {
+            assertEquals("put should return success", KeyValue.ReturnStatus.SUCCESS, put.get());
+        }
+        List<Future<Integer>> gets = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 1000; i++) {
+            gets.add(datastoreAsync.getAsync("key" + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Fetched value should be " + i, (Integer) i, gets.get(i).get());
+        }
+        assertEquals("Size should be 1000", 1000, datastoreAsync.size());
+    }
+
+    @Test
+    public void testInterruptedBorrow() {
+        datastore.put("key1", 1);
+        Thread.currentThread().interrupt();
+        assertEquals("Interrupted put should fail rather than use the shared connection",
+                KeyValue.ReturnStatus.FAILURE, datastore.put("key1", 2));
+        assertTrue("Interrupt status should be kept", Thread.interrupted());
+        assertEquals("Value should be unchanged", (Integer) 1, datastore.get("key1"));
+    }
+    
+}
@@ -0,0 +1,233 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
+import com.ibm.storage.storagemanager.implementations.tiered.SingleFlightKeyValue;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+
+public class SingleFlightTests {
+
+    private static final long LATENCY = 200;  // milliseconds added to each lookup by the slow store
+    private static final int NUM_THREADS = 20;
+
+    // Guava cache which takes LATENCY milliseconds to answer lookups and counts them
+    private static class SlowStore extends KeyValueGuava<String, Integer> {
+        AtomicInteger numGets = new AtomicInteger();
+        AtomicInteger numGetAlls = new AtomicInteger();
+        volatile boolean fail;
+        volatile boolean error;
+
+        SlowStore() {
+            super(1000);
+        }
+
+        @Override
+        public Integer get(String key) {
+            numGets.incrementAndGet();
+            Uninterruptibles.sleepUninterruptibly(LATENCY, TimeUnit.MILLISECONDS);
+            if (fail) {
+                throw new IllegalStateException("store unavailable");
+            }
+            if (error) {
+                throw new AssertionError("store broken");
+            }
+            return super.get(key);
+        }
+
+        @Override
+        public Map<String, Integer> getAll(List<String> keys) {
+            numGetAlls.incrementAndGet();
+            Uninterruptibles.sleepUninterruptibly(LATENCY, TimeUnit.MILLISECONDS);
+            return super.getAll(keys);
+        }
+    }
+
+    // run task in NUM_THREADS threads which start together, and return their results
+    private static <T> List<T> runConcurrently(final Callable<T> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int i = 0; i < NUM_THREADS; i++) {
+            futures.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    start.await();
+                    return task.call();
+                }
+            }));
+        }
+        start.countDown();
+        List<T> results = new ArrayList<T>();
+        for (Future<T> future : futures) {
+            results.add(future.get());
+        }
+        executor.shutdown();
+        return results;
+    }
+
+    @Test
+    public void testStorage() {
+        KeyValue<String, Integer> datastore = new SingleFlightKeyValue<String, Integer>(
+                new KeyValueGuava<String, Integer>(2000));
+        StorageTests.testPut(datastore);
+        StorageTests.testClear(datastore);
+        StorageTests.testDelete(datastore);
+        StorageTests.testPutAll(datastore);
+        StorageTests.testGetAll(datastore);
+        StorageTests.testUpdate(datastore);
+        StorageTests.testHashMap(new SingleFlightKeyValue<String, HashMap<String, Integer>>(
+                new KeyValueGuava<String, HashMap<String, Integer>>(2000)));
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        SlowStore store = new SlowStore();
+        final SingleFlightKeyValue<String, Integer> datastore = new SingleFlightKeyValue<String, Integer>(store);
+        datastore.put("key1", 1);
+        List<Integer> results = runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return datastore.get("key1");
+            }
+        });
+        for (Integer result : results) {
+            assertEquals("Every thread should get the value", 1, result.intValue());
+        }
+        System.out.println("gets: " + NUM_THREADS + ", sent to store: " + store.numGets.get() + ", shared: "
+                + datastore.getNumShared());
+        assertTrue("Concurrent gets should be collapsed", store.numGets.get() < NUM_THREADS / 2);
+        assertEquals("Every get should be sent or shared", NUM_THREADS,
+                datastore.getNumRequests() + datastore.getNumShared());
+        assertEquals("No lookups should remain in flight", 0, datastore.getNumInFlight());
+    }
+
+    @Test
+    public void testGetAll() throws Exception {
+        SlowStore store = new SlowStore();
+        final SingleFlightKeyValue<String, Integer> datastore = new SingleFlightKeyValue<String, Integer>(store);
+        for (int i = 0; i < 10; i++) {
+            datastore.put("key" + i, i);
+        }
+        final AtomicInteger nextThread = new AtomicInteger();
+        List<Map<String, Integer>> results = runConcurrently(new Callable<Map<String, Integer>>() {
+            @Override
+            public Map<String, Integer> call() {
+                int thread = nextThread.getAndIncrement();
+                if (thread % 4 == 0) {
+                    Map<String, Integer> result = new HashMap<String, Integer>();
+                    result.put("key3", datastore.get("key3"));
+                    return result;
+                }
+                List<String> keys = new ArrayList<String>();
+                for (int i = thread % 5; i < 10; i++) {
+                    keys.add("key" + i);
+                }
+                keys.add("missing");
+                return datastore.getAll(keys);
+            }
+        });
+        for (Map<String, Integer> result : results) {
+            for (Map.Entry<String, Integer> entry : result.entrySet()) {
+                assertEquals("Values should match keys", "key" + entry.getValue(), entry.getKey());
+            }
+            assertTrue("key9 or key3 should be found", result.containsKey("key9") || result.containsKey("key3"));
+        }
+        int numSent = store.numGets.get() + store.numGetAlls.get();
+        System.out.println("lookups: " + NUM_THREADS + ", sent to store: " + numSent + ", keys shared: "
+                + datastore.getNumShared());
+        assertTrue("Concurrent getAlls should be merged", numSent < NUM_THREADS / 2);
+        assertEquals("No lookups should remain in flight", 0, datastore.getNumInFlight());
+    }
+
+    @Test
+    public void testWriteDuringGet() throws Exception {
+        SlowStore store = new SlowStore();
+        final SingleFlightKeyValue<String, Integer> datastore = new SingleFlightKeyValue<String, Integer>(store);
+        datastore.put("key1", 1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Integer> oldGet = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return datastore.get("key1");
+            }
+        });
+        Thread.sleep(LATENCY / 4);
+        datastore.put("key1", 2);
+        assertEquals("Lookup after a write should not share an earlier request", 2,
+                datastore.get("key1").intValue());
+        oldGet.get();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testException() throws Exception {
+        SlowStore store = new SlowStore();
+        final SingleFlightKeyValue<String, Integer> datastore = new SingleFlightKeyValue<String, Integer>(store);
+        store.fail = true;
+        List<String> results = runConcurrently(new Callable<String>() {
+            @Override
+            public String call() {
+                try {
+                    datastore.get("key1");
+                    return "no exception";
+                } catch (IllegalStateException e) {
+                    return e.getMessage();
+                }
+            }
+        });
+        assertEquals("Every thread should see the exception", NUM_THREADS,
+                Collections.frequency(results, "store unavailable"));
+        store.fail = false;
+        datastore.put("key1", 1);
+        assertEquals("Failed lookups should not be remembered", 1, datastore.get("key1").intValue());
+        try {
+            store.fail = true;
+            datastore.get("key1");
+            fail("get should throw the store's exception");
+        } catch (IllegalStateException e) {
+            assertEquals("store unavailable", e.getMessage());
+        }
+        assertEquals("No lookups should remain in flight", 0, datastore.getNumInFlight());
+    }
+
+    @Test(timeout = 10000)
+    public void testError() throws Exception {
+        SlowStore store = new SlowStore();
+        final SingleFlightKeyValue<String, Integer> datastore = new SingleFlightKeyValue<String, Integer>(store);
+        store.error = true;
+        List<String> results = runConcurrently(new Callable<String>() {
+            @Override
+            public String call() {
+                try {
+                    datastore.get("key1");
+                    return "no error";
+                } catch (AssertionError e) {
+                    return e.getMessage();
+                }
+            }
+        });
+        assertEquals("Every thread should see the error", NUM_THREADS,
+                Collections.frequency(results, "store broken"));
+        assertEquals("No lookups should remain in flight", 0, datastore.getNumInFlight());
+    }
+
+}
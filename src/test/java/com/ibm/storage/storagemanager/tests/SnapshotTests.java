@@ -0,0 +1,157 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
+import com.ibm.storage.storagemanager.implementations.tiered.TieredKeyValue;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+
+public class SnapshotTests {
+
+    private static File snapshotFile() throws IOException {
+        File file = File.createTempFile("snapshot", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        KeyValueGuava<String, HashMap<String, Integer>> cache = new KeyValueGuava<String, HashMap<String, Integer>>(
+                100);
+        for (int i = 0; i < 50; i++) {
+            HashMap<String, Integer> value = new HashMap<String, Integer>();
+            value.put("field" + i, i);
+            cache.put("key" + i, value);
+        }
+        File file = snapshotFile();
+        assertEquals(50, cache.saveSnapshot(file.getPath()));
+        KeyValueGuava<String, HashMap<String, Integer>> restored =
+                new KeyValueGuava<String, HashMap<String, Integer>>(100);
+        assertEquals(50, restored.loadSnapshot(file.getPath(), 4));
+        assertEquals(50, restored.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, restored.get("key" + i).get("field" + i).intValue());
+        }
+        StorageTests.testHashMap(restored);
+    }
+
+    @Test
+    public void testHottestEntries() throws IOException {
+        KeyValueGuava<Integer, Integer> cache = new KeyValueGuava<Integer, Integer>(1000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+        }
+        for (int i = 900; i < 1000; i++) {
+            cache.get(i);
+        }
+        File file = snapshotFile();
+        assertEquals(100, cache.saveSnapshot(file.getPath(), 100));
+        KeyValueGuava<Integer, Integer> restored = new KeyValueGuava<Integer, Integer>(1000);
+        assertEquals(100, restored.loadSnapshot(file.getPath(), 2));
+        for (int i = 900; i < 1000; i++) {
+            assertEquals("Most recently read entries should be saved", i, restored.get(i).intValue());
+        }
+        assertNull("Other entries should not be saved", restored.get(0));
+
+        KeyValueGuava<Integer, Integer> small = new KeyValueGuava<Integer, Integer>(50);
+        cache.saveSnapshot(file.getPath());
+        small.loadSnapshot(file.getPath(), 1);
+        assertTrue("Smaller cache should keep the hottest entries", small.get(999) != null);
+        assertNull(small.get(0));
+    }
+
+    @Test
+    public void testExpiredEntries() throws IOException {
+        KeyValueGuava<String, Integer> cache = new KeyValueGuava<String, Integer>(100, 200);
+        assertEquals(200, cache.getTtl());
+        cache.put("short1", 1);
+        cache.put("short2", 2);
+        KeyValueGuava<String, Integer> longLived = new KeyValueGuava<String, Integer>(100, 60000);
+        longLived.put("long1", 1);
+        File shortFile = snapshotFile();
+        File longFile = snapshotFile();
+        assertEquals(2, cache.saveSnapshot(shortFile.getPath()));
+        assertEquals(1, longLived.saveSnapshot(longFile.getPath()));
+
+        KeyValueGuava<String, Integer> restored = new KeyValueGuava<String, Integer>(100);
+        assertEquals(2, restored.loadSnapshot(shortFile.getPath(), 2));
+        assertEquals(1, restored.get("short1").intValue());
+        Uninterruptibles.sleepUninterruptibly(300, TimeUnit.MILLISECONDS);
+        assertNull("Loaded entries should keep their expiration time", restored.get("short1"));
+        assertTrue("Expired entries should not be reported as cached", !restored.containsKey("short2"));
+        assertEquals(0, restored.getAll(Arrays.asList("short1", "short2")).size());
+        assertEquals("Only the lookup before expiration should be a hit", 1, restored.getStats().hitCount());
+        assertEquals("Lookups of expired entries should be misses", 3, restored.getStats().missCount());
+        assertEquals("Entries which expired on disk should be skipped", 0,
+                restored.loadSnapshot(shortFile.getPath(), 2));
+        assertEquals(1, restored.loadSnapshot(longFile.getPath(), 2));
+        assertEquals(1, restored.get("long1").intValue());
+    }
+
+    @Test
+    public void testNotSnapshot() throws IOException {
+        File file = snapshotFile();
+        KeyValueGuava<String, Integer> cache = new KeyValueGuava<String, Integer>(100);
+        try {
+            cache.loadSnapshot(file.getPath(), 1);
+            assertTrue("Empty file should not load", false);
+        } catch (IOException e) {
+            System.out.println("Expected failure: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testWarmRestart() throws IOException {
+        final long storeLatency = 1;  // milliseconds per lookup in the data store
+        int numKeys = 500;
+        KeyValue<Integer, byte[]> store = new KeyValueGuava<Integer, byte[]>(2 * numKeys) {
+            @Override
+            public byte[] get(Integer key) {
+                Uninterruptibles.sleepUninterruptibly(storeLatency, TimeUnit.MILLISECONDS);
+                return super.get(key);
+            }
+        };
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i = 0; i < numKeys; i++) {
+            store.put(i, new byte[1000]);
+            keys.add(i);
+        }
+        KeyValueGuava<Integer, byte[]> cache = new KeyValueGuava<Integer, byte[]>(2 * numKeys);
+        TieredKeyValue<Integer, byte[]> datastore = new TieredKeyValue<Integer, byte[]>(
+                Arrays.<KeyValue<Integer, byte[]>>asList(cache, store));
+        long start = System.nanoTime();
+        for (Integer key : keys) {
+            datastore.get(key);
+        }
+        long organic = System.nanoTime() - start;
+        File file = snapshotFile();
+        cache.saveSnapshot(file.getPath());
+
+        KeyValueGuava<Integer, byte[]> restarted = new KeyValueGuava<Integer, byte[]>(2 * numKeys);
+        datastore = new TieredKeyValue<Integer, byte[]>(Arrays.<KeyValue<Integer, byte[]>>asList(restarted, store));
+        start = System.nanoTime();
+        restarted.loadSnapshot(file.getPath(), 4);
+        for (Integer key : keys) {
+            datastore.get(key);
+        }
+        long warm = System.nanoTime() - start;
+        System.out.println("Refill of " + numKeys + " keys, organic: " + organic / 1000000 + " ms, warm restart: "
+                + warm / 1000000 + " ms");
+        assertEquals(numKeys, restarted.getStats().hitCount());
+        assertTrue("Warm restart should be faster than organic refill", warm < organic);
+    }
+
+}
@@ -0,0 +1,207 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.ibm.storage.storagemanager.implementations.cloudant.KeyValueCloudant;
+import com.ibm.storage.storagemanager.implementations.objectstorage.KeyValueObjectStorage;
+import com.ibm.storage.storagemanager.implementations.redis.KeyValueRedis;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.standins.CouchDBStandIn;
+import com.ibm.storage.storagemanager.standins.RedisStandIn;
+import com.ibm.storage.storagemanager.standins.SwiftStandIn;
+
+/**
+ * @author ArunIyengar
+ *
+ * Runs the Cloudant, object storage, and Redis clients against in-process stand-ins for
+ * the remote services, so no servers or configuration files are needed.
+ */
+public class StandInTests {
+
+    private static CouchDBStandIn couchDB;
+    private static SwiftStandIn swift;
+    private static RedisStandIn redis;
+
+    @BeforeClass
+    public static void startStandIns() throws IOException {
+        couchDB = new CouchDBStandIn(0);
+        swift = new SwiftStandIn(0);
+        redis = new RedisStandIn(0);
+    }
+
+    @AfterClass
+    public static void stopStandIns() {
+        couchDB.close();
+        swift.close();
+        redis.close();
+    }
+
+    private static <V> KeyValue<String, V> cloudant() {
+        return new KeyValueCloudant<String, V>(couchDB.getUrl(), "db1", "user", "pw", true);
+    }
+
+    private static <V> KeyValue<String, V> objectStorage() {
+        return new KeyValueObjectStorage<String, V>("db1", swift.getAuthUrl(), "user", "pw", true);
+    }
+
+    private static <V> KeyValueRedis<String, V> redis() {
+        KeyValueRedis<String, V> datastore = new KeyValueRedis<String, V>(redis.getHost(),
+                redis.getPort(), 60);
+        datastore.clear();
+        return datastore;
+    }
+
+    private static void testStore(KeyValue<String, Integer> datastore,
+            KeyValue<String, HashMap<String, Integer>> datastore2) {
+        StorageTests.testPut(datastore);
+        StorageTests.testClear(datastore);
+        StorageTests.testDelete(datastore);
+        StorageTests.testPutAll(datastore);
+        StorageTests.testGetAll(datastore);
+        StorageTests.testUpdate(datastore);
+        StorageTests.testHashMap(datastore2);
+    }
+
+    @Test
+    public void testCloudant() {
+        testStore(StandInTests.<Integer>cloudant(), StandInTests.<HashMap<String, Integer>>cloudant());
+    }
+
+    @Test
+    public void testObjectStorage() {
+        testStore(StandInTests.<Integer>objectStorage(),
+                StandInTests.<HashMap<String, Integer>>objectStorage());
+    }
+
+    @Test(timeout = 20000)
+    public void testSegmentsWithoutBulkDelete() throws IOException {
+        SwiftStandIn swift2 = new SwiftStandIn(0);
+        swift2.setBulkDeleteEnabled(false);
+        KeyValueObjectStorage<String, byte[]> datastore = new KeyValueObjectStorage<String, byte[]>("db3",
+                swift2.getAuthUrl(), "user", "pw", true);
+        datastore.setParallelism(2);
+        datastore.setSegmentSize(1000);
+        KeyValueObjectStorage<String, byte[]> segments = new KeyValueObjectStorage<String, byte[]>(
+                "db3_segments", swift2.getAuthUrl(), "user", "pw", false);
+        Map<String, byte[]> map = new HashMap<String, byte[]>();
+        for (int i = 0; i < 8; i++) {
+            map.put("key" + i, new byte[5000]);
+        }
+        assertEquals("All values should be stored", 8, datastore.putAll(map));
+        long numSegments = segments.size();
+        assertTrue("Values should be segmented", numSegments >= 40);
+        // old segments are deleted one at a time by each put while putAll runs puts in parallel
+        assertEquals("All values should be replaced", 8, datastore.putAll(map));
+        assertEquals("Segments of replaced values should be deleted", numSegments, segments.size());
+
+        long numGets = swift2.getNumRequests("GET");
+        datastore.put("small", new byte[10]);
+        assertEquals("Small new value should not list segments", numGets, swift2.getNumRequests("GET"));
+        datastore.put("key0", new byte[10]);
+        assertEquals("Segments of value replaced by a small value should be deleted",
+                numSegments - numSegments / 8, segments.size());
+        assertEquals(10, datastore.get("key0").length);
+        datastore.shutdown();
+        segments.shutdown();
+        swift2.close();
+    }
+
+    @Test(timeout = 20000)
+    public void testSegmentsWithBulkDeleteErrors() throws IOException {
+        SwiftStandIn swift2 = new SwiftStandIn(0);
+        KeyValueObjectStorage<String, byte[]> datastore = new KeyValueObjectStorage<String, byte[]>("db4",
+                swift2.getAuthUrl(), "user", "pw", true);
+        datastore.setParallelism(2);
+        datastore.setSegmentSize(1000);
+        KeyValueObjectStorage<String, byte[]> segments = new KeyValueObjectStorage<String, byte[]>(
+                "db4_segments", swift2.getAuthUrl(), "user", "pw", false);
+        Map<String, byte[]> map = new HashMap<String, byte[]>();
+        for (int i = 0; i < 8; i++) {
+            map.put("key" + i, new byte[5000]);
+        }
+        assertEquals("All values should be stored", 8, datastore.putAll(map));
+        long numSegments = segments.size();
+        assertTrue("Values should be segmented", numSegments >= 40);
+        // objects bulk delete fails to delete are deleted one at a time by each put while
+        // putAll runs puts in parallel
+        swift2.setBulkDeleteErrors(true);
+        long numPosts = swift2.getNumRequests("POST");
+        assertEquals("All values should be replaced", 8, datastore.putAll(map));
+        assertTrue("Bulk delete should have been tried", swift2.getNumRequests("POST") > numPosts);
+        assertEquals("Segments of replaced values should be deleted", numSegments, segments.size());
+        datastore.shutdown();
+        segments.shutdown();
+        swift2.close();
+    }
+
+    @Test
+    public void testRedis() {
+        testStore(StandInTests.<Integer>redis(), StandInTests.<HashMap<String, Integer>>redis());
+    }
+
+    @Test
+    public void testRedisDatabases() {
+        KeyValueRedis<String, Integer> datastore = redis();
+        datastore.put("key1", 1);
+        datastore.put("key2", 2);
+        assertTrue("toString should list every key", datastore.toString().contains("Key: key2"));
+        datastore.select(1);
+        assertEquals("Database 1 should be empty", 0, datastore.size());
+        datastore.put("key1", 3);
+        datastore.select(0);
+        assertEquals("Value in database 0 should be unchanged", 1, datastore.get("key1").intValue());
+        datastore.flushAll();
+        assertEquals("flushAll should empty the database", 0, datastore.size());
+        datastore.getDatabase().setex("expiring", 1, "value");
+        assertEquals("Expiring key should be stored", "value", datastore.getDatabase().get("expiring"));
+        datastore.getDatabase().pexpire("expiring", 1L);
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        assertEquals("Expired key should be gone", null, datastore.getDatabase().get("expiring"));
+        datastore.close();
+    }
+
+    @Test
+    public void testLatency() {
+        long latency = 20;
+        int numObjects = 32;
+        redis.setLatency(latency);
+        KeyValueRedis<String, Integer> datastore = redis();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < numObjects; i++) {
+            datastore.put("key" + i, i);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        redis.setLatency(0);
+        assertTrue("Each command should be delayed", elapsed >= numObjects * latency);
+        datastore.close();
+
+        swift.setLatency(latency);
+        KeyValueObjectStorage<String, Integer> datastore2 = new KeyValueObjectStorage<String, Integer>(
+                "db2", swift.getAuthUrl(), "user", "pw", true);
+        datastore2.setParallelism(numObjects);
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        for (int i = 0; i < numObjects; i++) {
+            map.put("key" + i, i);
+        }
+        start = System.currentTimeMillis();
+        assertEquals("All objects should be stored", numObjects, datastore2.putAll(map));
+        elapsed = System.currentTimeMillis() - start;
+        swift.setLatency(0);
+        assertTrue("Parallel requests should overlap their latencies", elapsed < numObjects * latency);
+        datastore2.shutdown();
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
+import com.ibm.storage.storagemanager.implementations.redis.KeyValueRedis;
+import com.ibm.storage.storagemanager.implementations.sql.KeyValueSQL;
+import com.ibm.storage.storagemanager.implementations.tiered.TieredKeyValue;
+import com.ibm.storage.storagemanager.implementations.tiered.TieredKeyValue.WritePolicy;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.standins.RedisStandIn;
+
+public class TieredTests {
+
+    // In-memory H2 database and a Redis stand-in, so no servers or configuration files are needed
+    private static final String BASE_URL = "jdbc:h2:mem:";
+
+    private static RedisStandIn redis;
+
+    @BeforeClass
+    public static void startRedis() throws IOException {
+        redis = new RedisStandIn(0);
+    }
+
+    @AfterClass
+    public static void stopRedis() {
+        redis.close();
+    }
+
+    // Guava cache in front of a Redis cache in front of an SQL database
+    private static <V> TieredKeyValue<String, V> tiered(String table, WritePolicy policy) {
+        List<KeyValue<String, V>> tiers = new ArrayList<KeyValue<String, V>>();
+        tiers.add(new KeyValueGuava<String, V>(100));
+        tiers.add(new KeyValueRedis<String, V>(redis.getHost(), redis.getPort(), 60));
+        tiers.add(new KeyValueSQL<String, V>(table, "tiered", BASE_URL, "sa", "", true));
+        TieredKeyValue<String, V> datastore = new TieredKeyValue<String, V>(tiers, policy);
+        datastore.clear();
+        return datastore;
+    }
+
+    @Test
+    public void testWriteThrough() {
+        KeyValue<String, Integer> datastore = tiered("db1", WritePolicy.WRITE_THROUGH);
+        StorageTests.testPut(datastore);
+        StorageTests.testClear(datastore);
+        StorageTests.testDelete(datastore);
+        StorageTests.testPutAll(datastore);
+        StorageTests.testGetAll(datastore);
+        StorageTests.testUpdate(datastore);
+        StorageTests.testHashMap(TieredTests.<HashMap<String, Integer>>tiered("db2",
+                WritePolicy.WRITE_THROUGH));
+    }
+
+    @Test
+    public void testWriteAround() {
+        KeyValue<String, Integer> datastore = tiered("db3", WritePolicy.WRITE_AROUND);
+        StorageTests.testPut(datastore);
+        StorageTests.testClear(datastore);
+        StorageTests.testDelete(datastore);
+        StorageTests.testPutAll(datastore);
+        StorageTests.testGetAll(datastore);
+        StorageTests.testUpdate(datastore);
+    }
+
+    @Test
+    public void testReadThrough() {
+        TieredKeyValue<String, Integer> datastore = tiered("db4", WritePolicy.WRITE_AROUND);
+        KeyValue<String, Integer> guava = datastore.getTiers().get(0);
+        KeyValue<String, Integer> redisTier = datastore.getTiers().get(1);
+        datastore.put("key1", 1);
+        assertNull("Write-around should not cache the value", guava.get("key1"));
+        assertNull("Write-around should not cache the value", redisTier.get("key1"));
+        assertEquals("Value should be read from the backing store", 1, datastore.get("key1").intValue());
+        assertEquals("Value should be promoted to the first tier", 1, guava.get("key1").intValue());
+        assertEquals("Value should be promoted to the second tier", 1, redisTier.get("key1").intValue());
+        assertEquals("Value should be read from the first tier", 1, datastore.get("key1").intValue());
+        assertNull("Missing key should not be found", datastore.get("key2"));
+        assertEquals("First tier hits", 1, datastore.getHits(0));
+        assertEquals("First tier misses", 2, datastore.getMisses(0));
+        assertEquals("Second tier hits", 0, datastore.getHits(1));
+        assertEquals("Second tier misses", 2, datastore.getMisses(1));
+        assertEquals("Backing store hits", 1, datastore.getHits(2));
+        assertEquals("Backing store misses", 1, datastore.getMisses(2));
+        System.out.println(datastore.statsToString());
+
+        // a value only in the second tier is promoted to the first
+        guava.clear();
+        datastore.clearStats();
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        map.put("key2", 2);
+        map.put("key3", 3);
+        datastore.putAll(map);
+        Map<String, Integer> values = datastore.getAll(Arrays.asList("key1", "key2", "key3", "key4"));
+        assertEquals("getAll should find 3 values", 3, values.size());
+        assertEquals("First tier misses", 4, datastore.getMisses(0));
+        assertEquals("Second tier hits", 1, datastore.getHits(1));
+        assertEquals("Backing store hits", 2, datastore.getHits(2));
+        assertEquals("Backing store misses", 1, datastore.getMisses(2));
+        assertEquals("Values should be promoted to the first tier", 3,
+                guava.getAll(Arrays.asList("key1", "key2", "key3")).size());
+        assertEquals("getAll should read from the first tier", 3,
+                datastore.getAll(Arrays.asList("key1", "key2", "key3")).size());
+        assertEquals("First tier hits", 3, datastore.getHits(0));
+
+        datastore.delete("key1");
+        assertNull("delete should remove the value from every tier", guava.get("key1"));
+        assertNull("delete should remove the value from every tier", redisTier.get("key1"));
+        assertNull("delete should remove the value from every tier", datastore.get("key1"));
+    }
+
+    @Test
+    public void testPartialPutAll() {
+        // backing store which stores only one value per putAll
+        KeyValue<String, Integer> store = new KeyValueGuava<String, Integer>(100) {
+            @Override
+            public int putAll(Map<String, Integer> map) {
+                Map.Entry<String, Integer> first = map.entrySet().iterator().next();
+                put(first.getKey(), first.getValue());
+                return 1;
+            }
+        };
+        KeyValueGuava<String, Integer> cache = new KeyValueGuava<String, Integer>(100);
+        TieredKeyValue<String, Integer> datastore = new TieredKeyValue<String, Integer>(
+                Arrays.<KeyValue<String, Integer>>asList(cache, store), WritePolicy.WRITE_THROUGH);
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        map.put("key1", 1);
+        map.put("key2", 2);
+        cache.put("key1", 0);
+        cache.put("key2", 0);
+        assertEquals(1, datastore.putAll(map));
+        assertEquals("Values not all stored should not be cached", 0,
+                cache.getAll(Arrays.asList("key1", "key2")).size());
+        assertEquals("Values should match the backing store", store.getAll(Arrays.asList("key1", "key2")),
+                datastore.getAll(Arrays.asList("key1", "key2")));
+    }
+
+}
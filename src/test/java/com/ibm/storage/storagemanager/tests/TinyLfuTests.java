@@ -0,0 +1,128 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
+import com.ibm.storage.storagemanager.implementations.tinylfu.KeyValueTinyLfu;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.performancetester.HitRateBenchmark;
+
+
+public class TinyLfuTests {
+
+    int numObjects = 2000;
+    KeyValue<String, Integer> datastore = new KeyValueTinyLfu<String, Integer>(numObjects);
+
+    KeyValue<String, HashMap<String, Integer>> datastore2 = new KeyValueTinyLfu<String, HashMap<String, Integer>>(
+            numObjects);
+
+    @Test
+    public void testPut() {
+        StorageTests.testPut(datastore);
+    }
+
+    @Test
+    public void testClear() {
+        StorageTests.testClear(datastore);
+    }
+
+    @Test
+    public void testDelete() {
+        StorageTests.testDelete(datastore);
+    }
+
+    @Test
+    public void testPutAll() {
+        StorageTests.testPutAll(datastore);
+    }
+
+    @Test
+    public void testGetAll() {
+        StorageTests.testGetAll(datastore);
+    }
+
+    @Test
+    public void testUpdate() {
+        StorageTests.testUpdate(datastore);
+    }
+
+    @Test
+    public void testHashMap() {
+        StorageTests.testHashMap(datastore2);
+    }
+
+    @Test
+    public void testCapacity() {
+        int maxObjects = 100;
+        KeyValueTinyLfu<Integer, Integer> cache = new KeyValueTinyLfu<Integer, Integer>(maxObjects);
+        for (int i = 0; i < 10 * maxObjects; i++) {
+            cache.put(i, i);
+            assertTrue("Cache should not exceed its capacity", cache.size() <= maxObjects);
+        }
+        assertEquals("Cache should be full", maxObjects, cache.size());
+        assertEquals("Every extra entry should be evicted", 9 * maxObjects, cache.getEvictionCount());
+        cache.get(0);
+        cache.clear();
+        assertEquals("clear should reset statistics", 0, cache.getEvictionCount());
+        assertEquals("clear should reset statistics", 0, cache.getMissCount());
+        KeyValueTinyLfu<Integer, Integer> tiny = new KeyValueTinyLfu<Integer, Integer>(1);
+        tiny.put(1, 1);
+        tiny.put(2, 2);
+        assertEquals("Cache of size 1 should hold one entry", 1, tiny.size());
+    }
+
+    @Test
+    public void testScanResistance() {
+        int maxObjects = 100;
+        KeyValueTinyLfu<Integer, Integer> cache = new KeyValueTinyLfu<Integer, Integer>(maxObjects);
+        int numHot = maxObjects / 2;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < numHot; i++) {
+                if (cache.get(i) == null) {
+                    cache.put(i, i);
+                }
+            }
+        }
+        for (int i = 1000; i < 1000 + 20 * maxObjects; i++) {
+            cache.get(i);
+            cache.put(i, i);
+        }
+        int numHotCached = 0;
+        for (int i = 0; i < numHot; i++) {
+            if (cache.get(i) != null) {
+                numHotCached++;
+            }
+        }
+        System.out.println("hot keys cached after scan: " + numHotCached + " of " + numHot + ", rejected: "
+                + cache.getRejectionCount());
+        assertTrue("A scan should not evict frequently used keys", numHotCached >= numHot * 9 / 10);
+        assertTrue("Scanned keys should be rejected", cache.getRejectionCount() > 0);
+        assertNotNull("Most recent key should be in the window", cache.get(1000 + 20 * maxObjects - 1));
+    }
+
+    @Test
+    public void testHitRate() {
+        int numKeys = 20000;
+        int cacheSize = 500;
+        int[] trace = HitRateBenchmark.zipfTrace(numKeys, 0.8, 200000, 1);
+        int[] scanTrace = HitRateBenchmark.addScans(trace, 20000, 5000, numKeys);
+        double guava = HitRateBenchmark.hitRate(new KeyValueGuava<Integer, Integer>(cacheSize), trace);
+        KeyValueTinyLfu<Integer, Integer> cache = new KeyValueTinyLfu<Integer, Integer>(cacheSize);
+        double tinyLfu = HitRateBenchmark.hitRate(cache, trace);
+        assertEquals("Hit rate should match the cache's counts", tinyLfu, cache.getHitRate(), 1e-9);
+        double guavaScan = HitRateBenchmark.hitRate(new KeyValueGuava<Integer, Integer>(cacheSize), scanTrace);
+        double tinyLfuScan = HitRateBenchmark.hitRate(new KeyValueTinyLfu<Integer, Integer>(cacheSize),
+                scanTrace);
+        System.out.println("Zipf hit rates: guava " + guava + ", tinylfu " + tinyLfu);
+        System.out.println("Zipf with scans hit rates: guava " + guavaScan + ", tinylfu " + tinyLfuScan);
+        assertTrue("TinyLFU should beat LRU on a skewed workload", tinyLfu > guava);
+        assertTrue("TinyLFU should beat LRU when there are scans", tinyLfuScan > guavaScan);
+    }
+
+}
@@ -0,0 +1,195 @@
+package com.ibm.storage.storagemanager.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.ibm.storage.storagemanager.implementations.cloudant.KeyValueCloudant;
+import com.ibm.storage.storagemanager.implementations.guava.KeyValueGuava;
+import com.ibm.storage.storagemanager.implementations.sql.KeyValueSQL;
+import com.ibm.storage.storagemanager.implementations.tiered.TieredKeyValue;
+import com.ibm.storage.storagemanager.implementations.tiered.WriteBehindKeyValue;
+import com.ibm.storage.storagemanager.interfaces.KeyValue;
+import com.ibm.storage.storagemanager.standins.CouchDBStandIn;
+
+public class WriteBehindTests {
+
+    // In-memory H2 database and a CouchDB stand-in, so no servers or configuration files are needed
+    private static final String BASE_URL = "jdbc:h2:mem:";
+    private static final long LATENCY = 20;  // milliseconds added to each CouchDB request
+
+    private static CouchDBStandIn couchDB;
+
+    @BeforeClass
+    public static void startCouchDB() throws IOException {
+        couchDB = new CouchDBStandIn(LATENCY);
+    }
+
+    @AfterClass
+    public static void stopCouchDB() {
+        couchDB.close();
+    }
+
+    // store which reports failures through the counts returned by putAll and deleteAll, as
+    // KeyValueSQL and KeyValueCloudant do, failing the next numFailures calls
+    private static class CountingStore extends KeyValueGuava<String, Integer> {
+        private AtomicInteger numFailures = new AtomicInteger();
+
+        CountingStore() {
+            super(1000);
+        }
+
+        private boolean fail() {
+            return numFailures.getAndDecrement() > 0;
+        }
+
+        @Override
+        public int putAll(Map<String, Integer> map) {
+            if (fail()) {
+                return 0;
+            }
+            super.putAll(map);
+            return map.size();
+        }
+
+        @Override
+        public int deleteAll(List<String> keys) {
+            int numPresent = getAll(keys).size();
+            if (fail()) {
+                return 0;
+            }
+            super.deleteAll(keys);
+            return numPresent;
+        }
+    }
+
+    private static KeyValue<String, Integer> cloudant(String dbName) {
+        return new KeyValueCloudant<String, Integer>(couchDB.getUrl(), dbName, "user", "pw", true);
+    }
+
+    @Test
+    public void testStorage() {
+        WriteBehindKeyValue<String, Integer> datastore = new WriteBehindKeyValue<String, Integer>(
+                new KeyValueSQL<String, Integer>("db1", "writebehind", BASE_URL, "sa", "", true));
+        StorageTests.testPut(datastore);
+        StorageTests.testClear(datastore);
+        StorageTests.testDelete(datastore);
+        StorageTests.testPutAll(datastore);
+        StorageTests.testGetAll(datastore);
+        StorageTests.testUpdate(datastore);
+        StorageTests.testHashMap(new WriteBehindKeyValue<String, HashMap<String, Integer>>(
+                new KeyValueSQL<String, HashMap<String, Integer>>("db2", "writebehind", BASE_URL, "sa",
+                        "", true)));
+        datastore.close();
+    }
+
+    @Test
+    public void testCoalescing() {
+        KeyValue<String, Integer> store = cloudant("db1");
+        WriteBehindKeyValue<String, Integer> datastore = new WriteBehindKeyValue<String, Integer>(store);
+        int numWrites = 50;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < numWrites; i++) {
+            datastore.put("key1", i);
+            datastore.put("key2", -i);
+            assertEquals("Queued value should be returned", i, datastore.get("key1").intValue());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Writes should not wait for the store", elapsed < numWrites * LATENCY);
+        datastore.delete("key2");
+        assertNull("Queued delete should be returned", datastore.get("key2"));
+        datastore.flush();
+        assertEquals("Nothing should be pending after flush", 0, datastore.getNumPending());
+        assertEquals("Last value should be stored", numWrites - 1, store.get("key1").intValue());
+        assertNull("Last write was a delete", store.get("key2"));
+        System.out.println("writes: " + (2 * numWrites + 1) + ", coalesced: " + datastore.getNumCoalesced()
+                + ", sent: " + datastore.getNumWritten() + ", batches: " + datastore.getNumBatches());
+        assertTrue("Repeated writes should be coalesced", datastore.getNumCoalesced() > 0);
+        assertEquals("Every write should be sent or coalesced", 2 * numWrites + 1,
+                datastore.getNumWritten() + datastore.getNumCoalesced());
+        datastore.close();
+    }
+
+    @Test
+    public void testBackpressure() {
+        KeyValue<String, Integer> store = cloudant("db2");
+        int maxPending = 4;
+        WriteBehindKeyValue<String, Integer> datastore = new WriteBehindKeyValue<String, Integer>(store,
+                maxPending, 2);
+        int numKeys = 40;
+        for (int i = 0; i < numKeys; i++) {
+            datastore.put("key" + i, i);
+            assertTrue("Pending writes should be bounded", datastore.getNumPending() <= maxPending + 2);
+        }
+        datastore.close();
+        assertEquals("All values should be stored", numKeys, store.size());
+        assertTrue("Writes should be sent in batches", datastore.getNumBatches() <= numKeys / 2 + 1);
+        try {
+            datastore.put("key1", 1);
+            fail("put after close should throw IllegalStateException");
+        } catch (IllegalStateException e) {
+            System.out.println("put after close: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testTiered() {
+        KeyValue<String, Integer> store = cloudant("db3");
+        WriteBehindKeyValue<String, Integer> writeBehind = new WriteBehindKeyValue<String, Integer>(store);
+        List<KeyValue<String, Integer>> tiers = new ArrayList<KeyValue<String, Integer>>();
+        tiers.add(new KeyValueGuava<String, Integer>(100));
+        tiers.add(writeBehind);
+        TieredKeyValue<String, Integer> datastore = new TieredKeyValue<String, Integer>(tiers);
+        datastore.put("key1", 1);
+        datastore.put("key2", 2);
+        assertEquals("Value should be cached", 1, datastore.get("key1").intValue());
+        assertEquals("Value should be read from the first tier", 1, datastore.getHits(0));
+        tiers.get(0).clear();
+        assertEquals("getAll should find queued or stored values", 2,
+                datastore.getAll(Arrays.asList("key1", "key2", "key3")).size());
+        writeBehind.close();
+        assertEquals("Values should reach the store", 2, store.size());
+    }
+
+    @Test
+    public void testReportedFailures() {
+        CountingStore store = new CountingStore();
+        WriteBehindKeyValue<String, Integer> datastore = new WriteBehindKeyValue<String, Integer>(store);
+        store.numFailures.set(1);
+        datastore.put("key1", 1);
+        datastore.put("key2", 2);
+        datastore.flush();
+        assertEquals("Failed batch should be retried", 2, store.size());
+        assertEquals(2, datastore.getNumWritten());
+
+        // deleting a key which is already missing is not a failure
+        store.numFailures.set(1);
+        datastore.deleteAll(Arrays.asList("key1", "key3"));
+        datastore.flush();
+        assertNull("Failed delete should be retried", store.get("key1"));
+        assertEquals(4, datastore.getNumWritten());
+        assertEquals(0, datastore.getNumDropped());
+
+        datastore.setWriteAttempts(2);
+        store.numFailures.set(2);
+        datastore.put("key4", 4);
+        datastore.flush();
+        assertEquals("Writes should be dropped after failing every attempt", 1, datastore.getNumDropped());
+        assertNull(store.get("key4"));
+        datastore.close();
+    }
+
+}